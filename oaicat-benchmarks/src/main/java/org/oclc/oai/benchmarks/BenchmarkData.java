@@ -0,0 +1,244 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.oclc.oai.server.catalog.helpers.RecordStringHandler;
+
+/**
+ * Synthetic records shared by the benchmarks. The records are generated from
+ * their index, so every run and every fork works on the same input; the
+ * text mixes plain words with the characters OAIUtil.xmlEncode has to
+ * escape, in about the proportion found in real bibliographic data.
+ */
+public class BenchmarkData {
+
+    static final String OAI_DC_SCHEMA_LOCATION =
+            "http://www.openarchives.org/OAI/2.0/oai_dc/ http://www.openarchives.org/OAI/2.0/oai_dc.xsd";
+
+    static final String ITEM_SCHEMA_LOCATION =
+            "http://www.oclc.org/pears/ http://www.oclc.org/pears/item.xsd";
+
+    private static final String[] WORDS = {
+            "catalog", "harvest", "metadata", "library", "archive", "record", "digital", "collection",
+            "history", "science", "journal", "thesis", "map", "manuscript", "survey", "edition"
+    };
+
+    private static final String[] SETS = { "books", "theses", "maps", "serials" };
+
+    /**
+     * Get the text of a record field: a few words, with an ampersand or an
+     * angle bracket in one record out of four.
+     *
+     * @param i the record number
+     * @param words the number of words
+     * @return the text
+     */
+    public static String text(int i, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 0; w < words; ++w) {
+            if (w > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[(i * 7 + w * 3) % WORDS.length]);
+        }
+        switch (i % 8) {
+            case 0:
+                sb.append(" & ").append(WORDS[i % WORDS.length]);
+                break;
+            case 4:
+                sb.append(" <").append(WORDS[(i + 1) % WORDS.length]).append('>');
+                break;
+            default:
+                break;
+        }
+        return sb.toString();
+    }
+
+    public static String identifier(int i) {
+        return "oai:oaicat.oclc.org:bench/" + i;
+    }
+
+    public static String datestamp(int i) {
+        return String.format("20%02d-%02d-%02dT%02d:%02d:%02dZ", 10 + i % 10, 1 + i % 12, 1 + i % 28, i % 24, i % 60, (i * 7) % 60);
+    }
+
+    public static List<String> setSpecs(int i) {
+        List<String> setSpecs = new ArrayList<String>();
+        setSpecs.add(SETS[i % SETS.length]);
+        if (i % 3 == 0) {
+            setSpecs.add(SETS[(i + 1) % SETS.length]);
+        }
+        return setSpecs;
+    }
+
+    /**
+     * Get the native metadata of a record, the pears:item element carried
+     * in the &lt;metadata&gt; of the XMLFileOAICatalog source file.
+     *
+     * @param i the record number
+     * @return the XML of the item
+     */
+    public static String item(int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<item xmlns=\"http://www.oclc.org/pears/\"");
+        sb.append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        sb.append(" xsi:schemaLocation=\"").append(ITEM_SCHEMA_LOCATION).append("\">");
+        element(sb, "title", encode(text(i, 6)));
+        element(sb, "creator", encode(text(i + 1, 2)));
+        element(sb, "creator", encode(text(i + 2, 2)));
+        element(sb, "subject", encode(text(i + 3, 1)));
+        element(sb, "subject", encode(text(i + 4, 1)));
+        element(sb, "description", encode(text(i + 5, 40)));
+        element(sb, "date", datestamp(i).substring(0, 10));
+        element(sb, "identifier", "http://oaicat.oclc.org/bench/" + i);
+        element(sb, "rights", "Copyright &amp; all rights reserved");
+        sb.append("</item>");
+        return sb.toString();
+    }
+
+    /**
+     * Get an XMLFileOAICatalog source file holding the specified number of
+     * records.
+     *
+     * @param count the number of records
+     * @return the UTF-8 bytes of the file
+     */
+    public static byte[] recordsFile(int count) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<records xmlns=\"http://www.openarchives.org/OAI/2.0/\" xmlns:pears=\"http://www.oclc.org/pears/\">\n");
+        for (int i = 0; i < count; ++i) {
+            sb.append("<record><header>");
+            sb.append("<identifier>").append(identifier(i)).append("</identifier>");
+            sb.append("<datestamp>").append(datestamp(i)).append("</datestamp>");
+            for (String setSpec : setSpecs(i)) {
+                sb.append("<setSpec>").append(setSpec).append("</setSpec>");
+            }
+            sb.append("</header><pears:recordid>").append(i).append("</pears:recordid>");
+            sb.append("<metadata>").append(item(i)).append("</metadata></record>\n");
+        }
+        sb.append("</records>\n");
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Parse a source file the way XMLFileOAICatalog does.
+     *
+     * @param file the UTF-8 bytes of the file
+     * @return the handler holding the native records
+     * @throws Exception the file couldn't be parsed
+     */
+    public static RecordStringHandler parse(byte[] file) throws Exception {
+        RecordStringHandler rsh = new RecordStringHandler();
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+        SAXParser saxParser = factory.newSAXParser();
+        saxParser.parse(new ByteArrayInputStream(file), rsh);
+        return rsh;
+    }
+
+    /**
+     * Get the native records of XMLFileOAICatalog, in record number order.
+     *
+     * @param count the number of records
+     * @return the native records
+     * @throws Exception the records couldn't be parsed
+     */
+    public static List<Object> nativeRecords(int count) throws Exception {
+        Map<String, Object> records = parse(recordsFile(count)).getNativeRecords();
+        List<Object> result = new ArrayList<Object>(count);
+        for (int i = 0; i < count; ++i) {
+            result.add(records.get(String.valueOf(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Get a row as JDBCOAICatalog hands it to JDBC2oai_dc: the column labels
+     * mapped to their values, repeated values joined with ";".
+     *
+     * @param i the record number
+     * @return the row
+     */
+    public static HashMap<String, Object> row(int i) {
+        HashMap<String, Object> row = new HashMap<String, Object>();
+        row.put("id", String.valueOf(i));
+        row.put("modified", datestamp(i));
+        row.put("title", text(i, 6));
+        row.put("creator", text(i + 1, 2) + ";" + text(i + 2, 2));
+        row.put("subject", text(i + 3, 1) + ";" + text(i + 4, 1));
+        row.put("description", text(i + 5, 40));
+        row.put("date", datestamp(i).substring(0, 10));
+        row.put("identifier", "http://oaicat.oclc.org/bench/" + i);
+        row.put("rights", "Copyright & all rights reserved");
+        return row;
+    }
+
+    /**
+     * Copy a stylesheet bundled with the benchmarks to a temporary file, since
+     * the XSLT crosswalks load their stylesheet from a file name. A name that
+     * isn't bundled is taken as the path of a stylesheet on disk.
+     *
+     * @param name the stylesheet name (e.g. "oai_dc.xsl") or path
+     * @return the path of the stylesheet
+     * @throws IOException the stylesheet couldn't be copied
+     */
+    public static String stylesheet(String name) throws IOException {
+        InputStream in = BenchmarkData.class.getResourceAsStream(name);
+        if (in == null) {
+            if (!new File(name).isFile()) {
+                throw new IOException("stylesheet not found: " + name);
+            }
+            return name;
+        }
+        File file = File.createTempFile("oaicat-bench-", ".xsl");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        return file.getPath();
+    }
+
+    private static void element(StringBuilder sb, String name, String value) {
+        sb.append('<').append(name).append('>').append(value).append("</").append(name).append('>');
+    }
+
+    private static String encode(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
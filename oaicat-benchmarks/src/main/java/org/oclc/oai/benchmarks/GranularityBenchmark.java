@@ -0,0 +1,98 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.oclc.oai.server.catalog.AbstractCatalog;
+import org.oclc.oai.server.verb.BadArgumentException;
+
+/**
+ * AbstractCatalog.toFinestFrom and toFinestUntil, which every selective
+ * ListRecords and ListIdentifiers request goes through. The arguments are
+ * day granularity dates, widened to the "granularity" of the catalog.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GranularityBenchmark {
+
+    /** 0 for YYYY-MM-DD, 1 for YYYY-MM-DDThh:mm:ssZ */
+    @Param({ "0", "1" })
+    public int granularity;
+
+    private AbstractCatalog catalog;
+
+    /**
+     * A catalog with nothing in it: only the granularity conversions are used.
+     */
+    private static class EmptyCatalog extends AbstractCatalog {
+        public Map<String, Object> listSets() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, Object> listSets(String resumptionToken) {
+            throw new UnsupportedOperationException();
+        }
+
+        public List getSchemaLocations(String identifier) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, Object> listIdentifiers(String from, String until, String set, String metadataPrefix) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, Object> listIdentifiers(String resumptionToken) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String getRecord(String identifier, String metadataPrefix) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        catalog = new EmptyCatalog();
+        catalog.setSupportedGranularityOffset(granularity);
+    }
+
+    @Benchmark
+    public String toFinestFrom() throws BadArgumentException {
+        return catalog.toFinestFrom("2010-05-01");
+    }
+
+    @Benchmark
+    public String toFinestUntil() throws BadArgumentException {
+        return catalog.toFinestUntil("2010-05-31");
+    }
+}
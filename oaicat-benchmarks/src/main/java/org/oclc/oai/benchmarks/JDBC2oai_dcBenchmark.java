@@ -0,0 +1,74 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.oclc.oai.server.crosswalk.JDBC2oai_dc;
+
+/**
+ * JDBC2oai_dc.createMetadata on rows as JDBCOAICatalog reads them, with
+ * repeated creators and subjects split on the configured separator. Each
+ * operation renders the next of 1000 rows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JDBC2oai_dcBenchmark {
+
+    private static final int ROWS = 1000;
+
+    private JDBC2oai_dc crosswalk;
+    private List<Object> rows;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Properties properties = new Properties();
+        properties.setProperty("JDBC2oai_dc.dcTitleLabel", "title");
+        properties.setProperty("JDBC2oai_dc.dcCreatorLabel", "creator");
+        properties.setProperty("JDBC2oai_dc.dcSubjectLabel", "subject");
+        properties.setProperty("JDBC2oai_dc.dcDescriptionLabel", "description");
+        properties.setProperty("JDBC2oai_dc.dcDateLabel", "date");
+        properties.setProperty("JDBC2oai_dc.dcIdentifierLabel", "identifier");
+        properties.setProperty("JDBC2oai_dc.dcRightsLabel", "rights");
+        properties.setProperty("JDBC2oai_dc.separator", ";");
+        crosswalk = new JDBC2oai_dc(properties);
+        rows = new ArrayList<Object>(ROWS);
+        for (int i = 0; i < ROWS; ++i) {
+            rows.add(BenchmarkData.row(i));
+        }
+    }
+
+    @Benchmark
+    public String createMetadata() {
+        Object row = rows.get(next);
+        next = (next + 1) % ROWS;
+        return crosswalk.createMetadata(row);
+    }
+}
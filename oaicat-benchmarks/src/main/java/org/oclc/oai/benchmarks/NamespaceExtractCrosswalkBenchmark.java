@@ -0,0 +1,81 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.oclc.oai.server.crosswalk.Crosswalk;
+import org.oclc.oai.server.crosswalk.NamespaceExtractCrosswalk;
+import org.oclc.oai.server.crosswalk.XSLTCrosswalk;
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+
+/**
+ * Copying the native item out of a record: NamespaceExtractCrosswalk, which
+ * streams the element's events to the output, against XSLTCrosswalk running
+ * identity.xsl, the way the Copy* crosswalks do it. Both produce the same
+ * pears:item for the same records, so the scores can be compared directly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NamespaceExtractCrosswalkBenchmark {
+
+    private static final int RECORDS = 1000;
+
+    private Crosswalk namespaceExtract;
+    private Crosswalk xslt;
+    private List<Object> nativeRecords;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("NamespaceExtractCrosswalk.item.schemaLocation", BenchmarkData.ITEM_SCHEMA_LOCATION);
+        properties.setProperty("NamespaceExtractCrosswalk.item.localName", "item");
+        namespaceExtract = new NamespaceExtractCrosswalk("item", properties);
+        properties.setProperty("XSLTCrosswalk.schemaLocation", BenchmarkData.ITEM_SCHEMA_LOCATION);
+        properties.setProperty("XSLTCrosswalk.xsltName", BenchmarkData.stylesheet("identity.xsl"));
+        xslt = new XSLTCrosswalk(properties);
+        nativeRecords = BenchmarkData.nativeRecords(RECORDS);
+    }
+
+    @Benchmark
+    public String namespaceExtract() throws CannotDisseminateFormatException {
+        return namespaceExtract.createMetadata(nextRecord());
+    }
+
+    @Benchmark
+    public String xslt() throws CannotDisseminateFormatException {
+        return xslt.createMetadata(nextRecord());
+    }
+
+    private Object nextRecord() {
+        Object nativeItem = nativeRecords.get(next);
+        next = (next + 1) % RECORDS;
+        return nativeItem;
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.oclc.oai.server.catalog.RecordFactory;
+import org.oclc.oai.server.catalog.XMLFileRecordFactory;
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+
+/**
+ * RecordFactory.createHeader and create, on the native records of
+ * XMLFileOAICatalog. The oai_dc crosswalk is an XSLTCrosswalk without a
+ * stylesheet, which returns the metadata as is, so the scores are the cost
+ * of the RecordFactory itself; see XSLTCrosswalkBenchmark for the cost of a
+ * transformation. Each operation renders the next of 1000 records.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordFactoryBenchmark {
+
+    private static final int RECORDS = 1000;
+
+    private RecordFactory recordFactory;
+    private List<Object> nativeRecords;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("Crosswalks.oai_dc", "org.oclc.oai.server.crosswalk.XSLTCrosswalk");
+        properties.setProperty("XSLTCrosswalk.schemaLocation", BenchmarkData.OAI_DC_SCHEMA_LOCATION);
+        recordFactory = new XMLFileRecordFactory(properties);
+        nativeRecords = BenchmarkData.nativeRecords(RECORDS);
+    }
+
+    private Object nextRecord() {
+        Object nativeItem = nativeRecords.get(next);
+        next = (next + 1) % RECORDS;
+        return nativeItem;
+    }
+
+    @Benchmark
+    public String[] createHeader() {
+        return recordFactory.createHeader(nextRecord());
+    }
+
+    @Benchmark
+    public String create() throws CannotDisseminateFormatException {
+        return recordFactory.create(nextRecord(), BenchmarkData.OAI_DC_SCHEMA_LOCATION, "oai_dc");
+    }
+}
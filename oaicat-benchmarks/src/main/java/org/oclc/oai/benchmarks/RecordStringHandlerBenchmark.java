@@ -0,0 +1,59 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.oclc.oai.server.catalog.helpers.RecordStringHandler;
+
+/**
+ * RecordStringHandler, the SAX handler XMLFileOAICatalog loads its source
+ * file with. One operation parses a whole file of the specified number of
+ * records, so divide the score (and the allocation) by that number to get
+ * the cost per record.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordStringHandlerBenchmark {
+
+    @Param({ "100" })
+    public int records;
+
+    private byte[] file;
+
+    @Setup
+    public void setup() {
+        file = BenchmarkData.recordsFile(records);
+    }
+
+    @Benchmark
+    public Map<String, Object> parse() throws Exception {
+        RecordStringHandler rsh = BenchmarkData.parse(file);
+        return rsh.getNativeRecords();
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.oclc.oai.server.verb.ServerVerb;
+import org.oclc.oai.util.Datestamp;
+
+/**
+ * ServerVerb.createResponseDate, called once per response, and the Datestamp
+ * parsing and formatting done for every from, until and header datestamp.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseDateBenchmark {
+
+    private final Date date = new Date(1287360000000L);
+
+    private long millis = 1287360000000L;
+
+    @Benchmark
+    public String createResponseDate() {
+        return ServerVerb.createResponseDate(date);
+    }
+
+    @Benchmark
+    public String formatDatestamp() {
+        millis += 1000;
+        return Datestamp.format(millis, true);
+    }
+
+    @Benchmark
+    public long parseDatestamp() {
+        return Datestamp.parse("2010-10-18T00:00:00Z");
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.oclc.oai.server.crosswalk.XSLTCrosswalk;
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+
+/**
+ * XSLTCrosswalk.createMetadata, once per stylesheet. OAICat doesn't ship
+ * the stylesheets of its XSLT crosswalks, so two representative ones are
+ * bundled: oai_dc.xsl maps the native items to oai_dc, as configured for
+ * XSLToai_dcCrosswalk, and identity.xsl copies them, which gives the fixed
+ * cost of a transformation. To measure the stylesheets of a deployment,
+ * pass their paths, e.g. "-p stylesheet=/etc/oaicat/marc21.xsl".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class XSLTCrosswalkBenchmark {
+
+    private static final int RECORDS = 1000;
+
+    @Param({ "oai_dc.xsl", "identity.xsl" })
+    public String stylesheet;
+
+    private XSLTCrosswalk crosswalk;
+    private List<Object> nativeRecords;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("XSLTCrosswalk.schemaLocation", BenchmarkData.OAI_DC_SCHEMA_LOCATION);
+        properties.setProperty("XSLTCrosswalk.xsltName", BenchmarkData.stylesheet(stylesheet));
+        crosswalk = new XSLTCrosswalk(properties);
+        nativeRecords = BenchmarkData.nativeRecords(RECORDS);
+    }
+
+    @Benchmark
+    public String createMetadata() throws CannotDisseminateFormatException {
+        Object nativeItem = nativeRecords.get(next);
+        next = (next + 1) % RECORDS;
+        return crosswalk.createMetadata(nativeItem);
+    }
+}
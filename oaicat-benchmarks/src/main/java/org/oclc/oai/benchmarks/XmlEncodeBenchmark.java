@@ -0,0 +1,62 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.oclc.oai.util.OAIUtil;
+
+/**
+ * OAIUtil.xmlEncode, called for every identifier, setSpec and field value
+ * written to a response. "plain" text has nothing to escape, "markup" has
+ * an ampersand and angle brackets, and "description" is a long abstract.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XmlEncodeBenchmark {
+
+    @Param({ "plain", "markup", "description" })
+    public String text;
+
+    private String value;
+
+    @Setup
+    public void setup() {
+        if ("plain".equals(text)) {
+            value = BenchmarkData.text(1, 6);
+        } else if ("markup".equals(text)) {
+            value = BenchmarkData.text(0, 6) + " " + BenchmarkData.text(4, 6);
+        } else {
+            value = BenchmarkData.text(5, 200);
+        }
+    }
+
+    @Benchmark
+    public String xmlEncode() {
+        return OAIUtil.xmlEncode(value);
+    }
+}
@@ -0,0 +1,21 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!-- Maps the native items of the benchmark records to oai_dc -->
+<xsl:stylesheet version="1.0"
+        xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+        xmlns:pears="http://www.oclc.org/pears/"
+        xmlns:oai_dc="http://www.openarchives.org/OAI/2.0/oai_dc/"
+        xmlns:dc="http://purl.org/dc/elements/1.1/"
+        xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"
+        exclude-result-prefixes="pears">
+    <xsl:output method="xml" omit-xml-declaration="yes"/>
+    <xsl:template match="/pears:item">
+        <oai_dc:dc xsi:schemaLocation="http://www.openarchives.org/OAI/2.0/oai_dc/ http://www.openarchives.org/OAI/2.0/oai_dc.xsd">
+            <xsl:apply-templates select="pears:title|pears:creator|pears:subject|pears:description|pears:date|pears:identifier|pears:rights"/>
+        </oai_dc:dc>
+    </xsl:template>
+    <xsl:template match="pears:*">
+        <xsl:element name="dc:{local-name()}">
+            <xsl:value-of select="."/>
+        </xsl:element>
+    </xsl:template>
+</xsl:stylesheet>
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics.jfr;
+
+import org.oclc.oai.server.metrics.Phase;
+import org.oclc.oai.server.metrics.PhaseListener;
+
+/**
+ * JFRPhaseListener emits Java Flight Recorder events (category "OAICat")
+ * for the verbs, the catalog calls, the crosswalks and the JDBC statements.
+ * While no recording has the events enabled, each call costs an
+ * allocation the JIT usually removes. Install it with
+ * <pre>
+ * OAIHandler.phaseListener=org.oclc.oai.server.metrics.jfr.JFRPhaseListener
+ * </pre>
+ * and record with e.g. jcmd [pid] JFR.start settings=profile. Requires a
+ * JVM with the jdk.jfr module (OpenJDK 11, or 8u262 and later), and the
+ * oaicat-jfr jar next to oaicat's.
+ */
+public class JFRPhaseListener implements PhaseListener {
+
+    public Object verbStarted(String verb) {
+        VerbEvent event = new VerbEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.operation = verb;
+        event.begin();
+        return event;
+    }
+
+    public void verbEnded(Object event, String metadataPrefix, int count, long bytes) {
+        commit((OAIEvent) event, metadataPrefix, count, bytes);
+    }
+
+    public Object phaseStarted(Phase phase, String operation) {
+        OAIEvent event;
+        switch (phase) {
+        case CATALOG:
+            event = new CatalogEvent();
+            break;
+        case CROSSWALK:
+            event = new CrosswalkEvent();
+            break;
+        case JDBC:
+            event = new JDBCEvent();
+            break;
+        default:
+            return null;
+        }
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.operation = operation;
+        event.begin();
+        return event;
+    }
+
+    public void phaseEnded(Object event, String metadataPrefix, int count, long bytes) {
+        commit((OAIEvent) event, metadataPrefix, count, bytes);
+    }
+
+    private static void commit(OAIEvent event, String metadataPrefix, int count, long bytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.metadataPrefix = metadataPrefix;
+            event.count = count;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * The fields common to the OAICat flight recorder events.
+ */
+@Category("OAICat")
+@StackTrace(false)
+abstract class OAIEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Metadata Prefix")
+    String metadataPrefix;
+
+    @Label("Identifier Count")
+    int count;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
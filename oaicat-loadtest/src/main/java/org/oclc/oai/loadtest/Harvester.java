@@ -0,0 +1,188 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A simulated harvester. It repeatedly harvests the whole repository (or,
+ * for backends with sets, sometimes a single set) with ListRecords, following
+ * the resumptionTokens to the end, then asks for a few records at random
+ * with GetRecord, as a harvester refreshing individual records would. A 503
+ * is honoured by waiting for its Retry-After, as a well-behaved harvester
+ * does, and counted as throttled.
+ */
+public class Harvester implements Runnable {
+
+    private static final Pattern RESUMPTION_TOKEN = Pattern.compile("<resumptionToken[^>]*>([^<]+)</resumptionToken>");
+    private static final Pattern ERROR = Pattern.compile("<error code=\"([^\"]*)\"");
+
+    /** Longest wait on a Retry-After, so that a test always ends */
+    private static final int MAX_RETRY_AFTER = 10;
+
+    private final String baseURL;
+    private final SyntheticRepository repository;
+    private final LoadReport report;
+    private final Random random;
+    private final long deadline;
+    private final int harvests;
+    private final int getRecords;
+    private final double setRatio;
+
+    /**
+     * @param baseURL the OAIHandler URL
+     * @param repository the repository being harvested
+     * @param report where to record the results
+     * @param seed the seed of this harvester's choices
+     * @param deadline when to stop, in milliseconds since the epoch
+     * @param harvests the number of harvests to run, or 0 to run until the deadline
+     * @param getRecords the number of GetRecord requests after each harvest
+     * @param setRatio the proportion of harvests restricted to a set
+     */
+    public Harvester(String baseURL, SyntheticRepository repository, LoadReport report, long seed,
+                     long deadline, int harvests, int getRecords, double setRatio) {
+        this.baseURL = baseURL;
+        this.repository = repository;
+        this.report = report;
+        this.random = new Random(seed);
+        this.deadline = deadline;
+        this.harvests = harvests;
+        this.getRecords = getRecords;
+        this.setRatio = repository.hasSets() ? setRatio : 0;
+    }
+
+    public void run() {
+        try {
+            for (int n = 0; (harvests == 0 || n < harvests) && !isOver(); ++n) {
+                String set = null;
+                if (random.nextDouble() < setRatio) {
+                    set = SyntheticRepository.SETS[random.nextInt(SyntheticRepository.SETS.length)];
+                }
+                harvest(set);
+                for (int i = 0; i < getRecords && !isOver(); ++i) {
+                    String identifier = repository.getOAIIdentifier(random.nextInt(repository.getRecordCount()));
+                    request("GetRecord", "verb=GetRecord&metadataPrefix=oai_dc&identifier=" + encode(identifier));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isOver() {
+        return harvests == 0 && System.currentTimeMillis() >= deadline;
+    }
+
+    private void harvest(String set) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        String query = "verb=ListRecords&metadataPrefix=oai_dc";
+        if (set != null) {
+            query += "&set=" + set;
+        }
+        String response = request("ListRecords", query);
+        while (response != null) {
+            Matcher matcher = RESUMPTION_TOKEN.matcher(response);
+            if (!matcher.find()) {
+                report.harvest(System.currentTimeMillis() - start);
+                return;
+            }
+            if (isOver()) {
+                return;
+            }
+            response = request("ListRecords", "verb=ListRecords&resumptionToken=" + encode(matcher.group(1)));
+        }
+    }
+
+    /**
+     * Send a request, retrying after a 503.
+     *
+     * @param verb the verb, for the report
+     * @param query the query string
+     * @return the response, or null if it was an error
+     * @throws InterruptedException the harvester was stopped while waiting
+     */
+    private String request(String verb, String query) throws InterruptedException {
+        while (true) {
+            long start = System.currentTimeMillis();
+            try {
+                // the streams are read to the end and closed, so the connection is kept alive
+                HttpURLConnection connection = (HttpURLConnection) new URL(baseURL + "?" + query).openConnection();
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    report.throttled();
+                    drain(connection.getErrorStream());
+                    int retryAfter = connection.getHeaderFieldInt("Retry-After", 1);
+                    Thread.sleep(1000L * Math.max(1, Math.min(MAX_RETRY_AFTER, retryAfter)));
+                    continue;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    drain(connection.getErrorStream());
+                    report.error(verb, "HTTP " + status);
+                    return null;
+                }
+                byte[] bytes = drain(connection.getInputStream());
+                report.request(verb, System.currentTimeMillis() - start, bytes.length);
+                String response = new String(bytes, "UTF-8");
+                Matcher error = ERROR.matcher(response);
+                if (error.find()) {
+                    report.error(verb, error.group(1));
+                    return null;
+                }
+                report.records(count(response, "<record>"));
+                return response;
+            } catch (IOException e) {
+                report.error(verb, e.getClass().getSimpleName());
+                return null;
+            }
+        }
+    }
+
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in == null) {
+            return out.toByteArray();
+        }
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static int count(String s, String fragment) {
+        int count = 0;
+        for (int i = s.indexOf(fragment); i >= 0; i = s.indexOf(fragment, i + fragment.length())) {
+            ++count;
+        }
+        return count;
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
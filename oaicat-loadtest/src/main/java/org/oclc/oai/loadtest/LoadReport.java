@@ -0,0 +1,211 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.loadtest;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The results of a load test: the latency of every request by verb, the
+ * harvests completed, and heap and open resumptionToken counts sampled once
+ * a second while the harvesters run. The OAICat server runs in the same JVM,
+ * so the heap is the server's plus the harvesters'; the token count is read
+ * from the OAIMetrics MBean.
+ */
+public class LoadReport {
+
+    private final Map<String, Latencies> latencies = new TreeMap<String, Latencies>();
+    private final Map<String, AtomicLong> errors = new TreeMap<String, AtomicLong>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong harvests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final Latencies harvestMillis = new Latencies();
+
+    private final ObjectName metricsName;
+    private long startMillis;
+    private long endMillis;
+    private volatile boolean sampling = false;
+    private Thread sampler;
+    private long maxHeapUsed = 0;
+    private long lastHeapUsed = 0;
+    private int maxOpenTokens = 0;
+    private int lastOpenTokens = 0;
+
+    /**
+     * A growable list of latencies, sorted for the percentiles once the test is over.
+     */
+    private static class Latencies {
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        private synchronized void add(long millis) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = millis;
+        }
+
+        private synchronized long[] sorted() {
+            long[] result = Arrays.copyOf(values, size);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    /**
+     * @param metricsName the name OAIMetrics was registered under
+     */
+    public LoadReport(String metricsName) {
+        try {
+            this.metricsName = new ObjectName("org.oclc.oai:type=OAIMetrics,name=" + ObjectName.quote(metricsName));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(metricsName);
+        }
+    }
+
+    public void request(String verb, long millis, int bytes) {
+        Latencies list;
+        synchronized (latencies) {
+            list = latencies.get(verb);
+            if (list == null) {
+                list = new Latencies();
+                latencies.put(verb, list);
+            }
+        }
+        list.add(millis);
+        this.bytes.addAndGet(bytes);
+    }
+
+    public void records(int count) {
+        records.addAndGet(count);
+    }
+
+    public void harvest(long millis) {
+        harvests.incrementAndGet();
+        harvestMillis.add(millis);
+    }
+
+    public void throttled() {
+        throttled.incrementAndGet();
+    }
+
+    /**
+     * Count an error response.
+     *
+     * @param verb the verb of the request
+     * @param code the OAI error code or HTTP status
+     */
+    public void error(String verb, String code) {
+        String key = verb + " " + code;
+        synchronized (errors) {
+            AtomicLong count = errors.get(key);
+            if (count == null) {
+                count = new AtomicLong();
+                errors.put(key, count);
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Start the clock and the heap and token sampler.
+     */
+    public void start() {
+        startMillis = System.currentTimeMillis();
+        sampling = true;
+        sampler = new Thread("LoadReport sampler") {
+            public void run() {
+                while (sampling) {
+                    sample();
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public void stop() {
+        endMillis = System.currentTimeMillis();
+        sampling = false;
+        sampler.interrupt();
+        sample();
+    }
+
+    private synchronized void sample() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        lastHeapUsed = memory.getHeapMemoryUsage().getUsed();
+        maxHeapUsed = Math.max(maxHeapUsed, lastHeapUsed);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            lastOpenTokens = ((Integer) server.getAttribute(metricsName, "OpenResumptionTokenCount")).intValue();
+            maxOpenTokens = Math.max(maxOpenTokens, lastOpenTokens);
+        } catch (Exception e) {
+            lastOpenTokens = -1;
+        }
+    }
+
+    public synchronized void print(PrintStream out) {
+        double seconds = Math.max(1, endMillis - startMillis) / 1000.0;
+        long requests = 0;
+        out.println();
+        out.printf("%-16s %8s %8s %8s %8s %8s %8s%n", "verb", "count", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        synchronized (latencies) {
+            for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+                long[] sorted = entry.getValue().sorted();
+                requests += sorted.length;
+                printLine(out, entry.getKey(), sorted, seconds);
+            }
+        }
+        printLine(out, "(harvest)", harvestMillis.sorted(), seconds);
+        out.println();
+        out.printf("duration          %.1f s%n", seconds);
+        out.printf("requests          %d (%.1f/s)%n", requests, requests / seconds);
+        out.printf("records           %d (%.1f/s)%n", records.get(), records.get() / seconds);
+        out.printf("bytes             %d (%.1f MB/s)%n", bytes.get(), bytes.get() / seconds / (1024 * 1024));
+        out.printf("harvests          %d%n", harvests.get());
+        out.printf("throttled (503)   %d%n", throttled.get());
+        out.printf("heap used         %d MB max, %d MB at the end%n", maxHeapUsed >> 20, lastHeapUsed >> 20);
+        out.printf("open tokens       %d max, %d at the end%n", maxOpenTokens, lastOpenTokens);
+        synchronized (errors) {
+            for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+                out.printf("error             %s: %d%n", entry.getKey(), entry.getValue().get());
+            }
+        }
+    }
+
+    private static void printLine(PrintStream out, String name, long[] sorted, double seconds) {
+        out.printf("%-16s %8d %8.1f %8d %8d %8d %8d%n", name, sorted.length, sorted.length / seconds,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
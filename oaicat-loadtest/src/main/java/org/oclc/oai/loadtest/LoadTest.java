@@ -0,0 +1,151 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.loadtest;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import org.oclc.oai.server.OAIHandler;
+
+/**
+ * Runs OAIHandler in an embedded Jetty against a SyntheticRepository and
+ * drives concurrent harvesters through it, then prints throughput, latency
+ * percentiles by verb, heap and open resumptionToken counts. Everything runs
+ * on the loopback interface, in one JVM.
+ * <p/>
+ * The arguments are name=value pairs:
+ * <pre>
+ * backend=file|jdbc|sru|synthetic   the catalog to test (file)
+ * records=10000                     the size of the repository
+ * recordBytes=1000                  the approximate size of a record's metadata
+ * maxListSize=100                   the records per ListRecords page
+ * harvesters=8                      the number of concurrent harvesters
+ * duration=60                       how long to run, in seconds
+ * harvests=0                        harvests per harvester; if not 0, run them all instead of for a duration
+ * getRecords=20                     GetRecord requests after each harvest
+ * setRatio=0.25                     the proportion of harvests restricted to a set (not file)
+ * port=0                            the port of the OAICat server (any free port)
+ * </pre>
+ * Any other argument with a dot in its name, e.g.
+ * OAIHandler.admission.ListRecords.maxConcurrent=4, is added to the OAICat
+ * properties, so that a change can be measured with and without its option.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Properties options = new Properties();
+        Properties overrides = new Properties();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("usage: LoadTest [name=value]...");
+                System.exit(1);
+            }
+            String name = arg.substring(0, eq);
+            (name.indexOf('.') < 0 ? options : overrides).setProperty(name, arg.substring(eq + 1));
+        }
+        String backend = options.getProperty("backend", "file");
+        int records = Integer.parseInt(options.getProperty("records", "10000"));
+        int recordBytes = Integer.parseInt(options.getProperty("recordBytes", "1000"));
+        int maxListSize = Integer.parseInt(options.getProperty("maxListSize", "100"));
+        int harvesters = Integer.parseInt(options.getProperty("harvesters", "8"));
+        int duration = Integer.parseInt(options.getProperty("duration", "60"));
+        int harvests = Integer.parseInt(options.getProperty("harvests", "0"));
+        int getRecords = Integer.parseInt(options.getProperty("getRecords", "20"));
+        double setRatio = Double.parseDouble(options.getProperty("setRatio", "0.25"));
+        int port = Integer.parseInt(options.getProperty("port", "0"));
+
+        SyntheticRepository repository = new SyntheticRepository(backend, records, recordBytes);
+        File workDir = File.createTempFile("oaicat-loadtest-", "");
+        workDir.delete();
+        workDir.mkdirs();
+        String jdbcURL = "jdbc:h2:mem:oaicat-loadtest;DB_CLOSE_DELAY=-1";
+        System.out.println("Creating " + records + " records (" + backend + ")");
+        repository.create(workDir, jdbcURL);
+
+        Server sruServer = null;
+        String sruURL = null;
+        if ("sru".equals(backend)) {
+            sruServer = new Server(new InetSocketAddress("127.0.0.1", 0));
+            ServletContextHandler sruContext = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+            sruContext.addServlet(new ServletHolder(new SRUStubServlet(repository)), "/sru");
+            sruServer.setHandler(sruContext);
+            sruServer.start();
+            sruURL = "http://127.0.0.1:" + getPort(sruServer) + "/sru";
+        }
+
+        Properties properties = repository.getProperties(workDir, jdbcURL, sruURL, maxListSize);
+        for (Enumeration names = overrides.propertyNames(); names.hasMoreElements();) {
+            String name = (String) names.nextElement();
+            properties.setProperty(name, overrides.getProperty(name));
+        }
+
+        Server server = new Server(new InetSocketAddress("127.0.0.1", port));
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/oaicat");
+        context.setAttribute(OAIHandler.PROPERTIES_SERVLET_CONTEXT_ATTRIBUTE, properties);
+        ServletHolder holder = new ServletHolder(new OAIHandler());
+        holder.setInitOrder(0);
+        context.addServlet(holder, "/OAIHandler");
+        server.setHandler(context);
+        server.start();
+        String baseURL = "http://127.0.0.1:" + getPort(server) + "/oaicat/OAIHandler";
+        System.out.println("OAIHandler at " + baseURL);
+
+        LoadReport report = new LoadReport(properties.getProperty("OAIMetrics.name"));
+        long deadline = System.currentTimeMillis() + duration * 1000L;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < harvesters; ++i) {
+            Harvester harvester = new Harvester(baseURL, repository, report, i, deadline, harvests, getRecords, setRatio);
+            threads.add(new Thread(harvester, "Harvester " + i));
+        }
+        System.out.println("Running " + harvesters + " harvesters "
+                + (harvests == 0 ? "for " + duration + " s" : "for " + harvests + " harvests each"));
+        report.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report.stop();
+        report.print(System.out);
+
+        server.stop();
+        if (sruServer != null) {
+            sruServer.stop();
+        }
+        delete(workDir);
+    }
+
+    private static int getPort(Server server) {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.loadtest;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A local SRU server for SRUOAICatalog, answering from a SyntheticRepository.
+ * It implements only what SRUOAICatalog and NodeRecordFactory ask for: the
+ * explain record listing oai_dc, the schema it points to, and searchRetrieve
+ * on oai.datestamp ranges, oai.set, oai.identifier and cql.resultSetId.
+ * <p/>
+ * The result sets are stateless: their id is the query itself (from, until
+ * and set separated by underscores), so any number of harvests can be in
+ * progress without the stub holding anything.
+ */
+public class SRUStubServlet extends HttpServlet {
+
+    private static final String SRW_NS = "http://www.loc.gov/zing/srw/";
+    private static final String OAI_NS = "http://www.openarchives.org/OAI/2.0/";
+    private static final String HEADER_SCHEMA = "http://www.openarchives.org/OAI/2.0/#header";
+    private static final String DC_SCHEMA = "info:srw/schema/1/dc-v1.1";
+
+    private static final Pattern FROM = Pattern.compile("oai\\.datestamp>=\"([^\"]*)\"");
+    private static final Pattern UNTIL = Pattern.compile("oai\\.datestamp<=\"([^\"]*)\"");
+    private static final Pattern SET = Pattern.compile("oai\\.set=\"([^\"]*)\"");
+    private static final Pattern IDENTIFIER = Pattern.compile("oai\\.identifier exact \"[^\"]*:(\\d+)\"");
+    private static final Pattern RESULT_SET = Pattern.compile("cql\\.resultSetId=(\\S*)");
+
+    private final SyntheticRepository repository;
+
+    /** The days of the records, precomputed for the range queries */
+    private final String[] days;
+
+    public SRUStubServlet(SyntheticRepository repository) {
+        this.repository = repository;
+        days = new String[repository.getRecordCount()];
+        for (int i = 0; i < days.length; ++i) {
+            days[i] = repository.getDay(i);
+        }
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/xml; charset=UTF-8");
+        StringBuilder sb = new StringBuilder();
+        if (request.getParameter("schema") != null) {
+            sb.append("<xsd:schema xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"");
+            sb.append(" targetNamespace=\"http://www.openarchives.org/OAI/2.0/oai_dc/\"/>");
+        } else if ("searchRetrieve".equals(request.getParameter("operation"))) {
+            searchRetrieve(request, sb);
+        } else {
+            explain(request, sb);
+        }
+        response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+    }
+
+    private void explain(HttpServletRequest request, StringBuilder sb) {
+        sb.append("<srw:explainResponse xmlns:srw=\"").append(SRW_NS).append("\">");
+        sb.append("<srw:version>1.1</srw:version><srw:record><srw:recordSchema>http://explain.z3950.org/dtd/2.0/</srw:recordSchema>");
+        sb.append("<srw:recordPacking>xml</srw:recordPacking><srw:recordData>");
+        sb.append("<explain xmlns=\"http://explain.z3950.org/dtd/2.0/\"><schemaInfo>");
+        sb.append("<schema identifier=\"").append(DC_SCHEMA).append("\" name=\"oai_dc\" location=\"");
+        sb.append(request.getRequestURL()).append("?schema=oai_dc\"/>");
+        sb.append("</schemaInfo></explain></srw:recordData></srw:record></srw:explainResponse>");
+    }
+
+    private void searchRetrieve(HttpServletRequest request, StringBuilder sb) {
+        String query = request.getParameter("query");
+        if (query == null) {
+            query = "";
+        }
+        String recordSchema = request.getParameter("recordSchema");
+        int startRecord = getInt(request, "startRecord", 1);
+        int maximumRecords = getInt(request, "maximumRecords", 10);
+        boolean headers = HEADER_SCHEMA.equals(recordSchema);
+
+        sb.append("<srw:searchRetrieveResponse xmlns:srw=\"").append(SRW_NS).append("\">");
+        sb.append("<srw:version>1.1</srw:version>");
+
+        Matcher identifier = IDENTIFIER.matcher(query);
+        if (identifier.find()) {
+            int i = Integer.parseInt(identifier.group(1));
+            boolean exists = i < repository.getRecordCount();
+            sb.append("<srw:numberOfRecords>").append(exists ? 1 : 0).append("</srw:numberOfRecords>");
+            if (exists) {
+                sb.append("<srw:records>");
+                appendRecord(sb, i, headers, 1);
+                sb.append("</srw:records>");
+            }
+            sb.append("</srw:searchRetrieveResponse>");
+            return;
+        }
+
+        String from;
+        String until;
+        String set;
+        Matcher resultSet = RESULT_SET.matcher(query);
+        if (resultSet.find()) {
+            String[] parts = resultSet.group(1).split("_", -1);
+            from = parts[0];
+            until = parts[1];
+            set = parts[2];
+        } else {
+            from = group(FROM, query);
+            until = group(UNTIL, query);
+            set = group(SET, query);
+        }
+        boolean selective = from.length() > 0 || until.length() > 0 || set.length() > 0;
+
+        // find the records at positions startRecord.. of the result set
+        StringBuilder records = new StringBuilder();
+        int position = 0;
+        int returned = 0;
+        int total = 0;
+        if (!selective) {
+            total = repository.getRecordCount();
+            for (int i = startRecord - 1; i < total && returned < maximumRecords; ++i) {
+                appendRecord(records, i, headers, i + 1);
+                ++returned;
+            }
+        } else {
+            for (int i = 0; i < days.length; ++i) {
+                if (matches(i, from, until, set)) {
+                    ++position;
+                    if (position >= startRecord && returned < maximumRecords) {
+                        appendRecord(records, i, headers, position);
+                        ++returned;
+                    }
+                }
+            }
+            total = position;
+        }
+        sb.append("<srw:numberOfRecords>").append(total).append("</srw:numberOfRecords>");
+        sb.append("<srw:resultSetId>").append(from).append('_').append(until).append('_').append(set).append("</srw:resultSetId>");
+        sb.append("<srw:resultSetIdleTime>600</srw:resultSetIdleTime>");
+        sb.append("<srw:records>").append(records).append("</srw:records>");
+        int next = startRecord + returned;
+        if (returned > 0 && next <= total) {
+            sb.append("<srw:nextRecordPosition>").append(next).append("</srw:nextRecordPosition>");
+        }
+        sb.append("</srw:searchRetrieveResponse>");
+    }
+
+    private boolean matches(int i, String from, String until, String set) {
+        String day = days[i];
+        if (from.length() > 0 && day.compareTo(from.substring(0, Math.min(10, from.length()))) < 0) {
+            return false;
+        }
+        if (until.length() > 0 && day.compareTo(until.substring(0, Math.min(10, until.length()))) > 0) {
+            return false;
+        }
+        return set.length() == 0 || set.equals(repository.getSetSpec(i));
+    }
+
+    private void appendRecord(StringBuilder sb, int i, boolean header, int position) {
+        sb.append("<srw:record><srw:recordSchema>").append(header ? HEADER_SCHEMA : DC_SCHEMA).append("</srw:recordSchema>");
+        sb.append("<srw:recordPacking>xml</srw:recordPacking><srw:recordData>");
+        if (header) {
+            sb.append("<oai:header xmlns:oai=\"").append(OAI_NS).append("\">");
+            sb.append("<oai:identifier>").append(repository.getOAIIdentifier(i)).append("</oai:identifier>");
+            sb.append("<oai:datestamp>").append(days[i]).append("</oai:datestamp>");
+            sb.append("<oai:setSpec>").append(repository.getSetSpec(i)).append("</oai:setSpec>");
+            sb.append("</oai:header>");
+        } else {
+            sb.append(repository.getOaiDc(i, false));
+        }
+        sb.append("</srw:recordData><srw:recordPosition>").append(position).append("</srw:recordPosition></srw:record>");
+    }
+
+    private static String group(Pattern pattern, String query) {
+        Matcher matcher = pattern.matcher(query);
+        return matcher.find() ? matcher.group(1) : "";
+    }
+
+    private static int getInt(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        return value == null || value.length() == 0 ? defaultValue : Integer.parseInt(value);
+    }
+}
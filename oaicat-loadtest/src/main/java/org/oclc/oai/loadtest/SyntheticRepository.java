@@ -0,0 +1,348 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+import java.util.TimeZone;
+
+/**
+ * A synthetic repository, generated from the record number so that every run
+ * serves the same records, and the OAICat configuration that exposes it
+ * through one of four backends:
+ * <ul>
+ * <li>file: one oai_dc file per record, in directories of 1000, served by
+ * FileSystemOAICatalog;</li>
+ * <li>jdbc: an in-memory H2 database served by JDBCOAICatalog, with sets;</li>
+ * <li>sru: SRUStubServlet, served by SRUOAICatalog and NodeRecordFactory;</li>
+ * <li>synthetic: SyntheticOAICatalog, which generates its own records (with
+ * the same identifiers and sets, but its own metadata and datestamps).</li>
+ * </ul>
+ */
+public class SyntheticRepository {
+
+    static final String REPOSITORY_IDENTIFIER = "loadtest.oaicat.org";
+
+    static final String OAI_DC_SCHEMA_LOCATION =
+            "http://www.openarchives.org/OAI/2.0/oai_dc/ http://www.openarchives.org/OAI/2.0/oai_dc.xsd";
+
+    /** Datestamps are spread over ten years from this day */
+    private static final long FIRST_DAY = 1262304000000L; // 2010-01-01
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static final String[] WORDS = {
+            "catalog", "harvest", "metadata", "library", "archive", "record", "digital", "collection",
+            "history", "science", "journal", "thesis", "map", "manuscript", "survey", "edition"
+    };
+
+    static final String[] SETS = { "books", "theses", "maps", "serials" };
+
+    private final String backend;
+    private final int recordCount;
+    private final int recordBytes;
+
+    /**
+     * @param backend "file", "jdbc", "sru" or "synthetic"
+     * @param recordCount the number of records
+     * @param recordBytes the approximate size of the metadata of a record
+     */
+    public SyntheticRepository(String backend, int recordCount, int recordBytes) {
+        if (!"file".equals(backend) && !"jdbc".equals(backend) && !"sru".equals(backend) && !"synthetic".equals(backend)) {
+            throw new IllegalArgumentException("unknown backend: " + backend);
+        }
+        this.backend = backend;
+        this.recordCount = recordCount;
+        this.recordBytes = recordBytes;
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Does the backend support selective harvesting by set?
+     *
+     * @return true for all the backends but file
+     */
+    public boolean hasSets() {
+        return !"file".equals(backend);
+    }
+
+    /**
+     * Get the local identifier of a record, as the backend's catalog sees it.
+     *
+     * @param i the record number
+     * @return the local identifier
+     */
+    public String getLocalIdentifier(int i) {
+        if ("file".equals(backend)) {
+            return "d" + (i / 1000) + "/" + i;
+        }
+        return String.valueOf(i);
+    }
+
+    /**
+     * Get the identifier to ask GetRecord for.
+     *
+     * @param i the record number
+     * @return the OAI identifier
+     */
+    public String getOAIIdentifier(int i) {
+        return "oai:" + REPOSITORY_IDENTIFIER + ":" + getLocalIdentifier(i);
+    }
+
+    public long getDatestamp(int i) {
+        return FIRST_DAY + ((i * 7919L) % 3650) * DAY;
+    }
+
+    public String getDay(int i) {
+        return format("yyyy-MM-dd", getDatestamp(i));
+    }
+
+    public String getSetSpec(int i) {
+        return SETS[i % SETS.length];
+    }
+
+    public String getTitle(int i) {
+        return words(i, 6);
+    }
+
+    public String getCreator(int i) {
+        return words(i + 1, 2);
+    }
+
+    public String getSubject(int i) {
+        return words(i + 2, 1) + "; " + words(i + 3, 1);
+    }
+
+    /**
+     * Get the description, padded so that the record reaches its size.
+     *
+     * @param i the record number
+     * @return the description
+     */
+    public String getDescription(int i) {
+        int words = Math.max(1, (recordBytes - 300) / 8);
+        return words(i + 4, words);
+    }
+
+    /**
+     * Get the oai_dc metadata of a record.
+     *
+     * @param i the record number
+     * @param declaration true to start with an XML declaration
+     * @return the oai_dc:dc element
+     */
+    public String getOaiDc(int i, boolean declaration) {
+        StringBuilder sb = new StringBuilder();
+        if (declaration) {
+            sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        }
+        sb.append("<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\"");
+        sb.append(" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"");
+        sb.append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        sb.append(" xsi:schemaLocation=\"").append(OAI_DC_SCHEMA_LOCATION).append("\">\n");
+        sb.append("<dc:title>").append(getTitle(i)).append("</dc:title>\n");
+        sb.append("<dc:creator>").append(getCreator(i)).append("</dc:creator>\n");
+        sb.append("<dc:subject>").append(getSubject(i)).append("</dc:subject>\n");
+        sb.append("<dc:description>").append(getDescription(i)).append("</dc:description>\n");
+        sb.append("<dc:date>").append(getDay(i)).append("</dc:date>\n");
+        sb.append("<dc:identifier>").append(getOAIIdentifier(i)).append("</dc:identifier>\n");
+        sb.append("</oai_dc:dc>\n");
+        return sb.toString();
+    }
+
+    /**
+     * Create the backend's storage, if it has any.
+     *
+     * @param workDir the directory for the file backend
+     * @param jdbcURL the database URL for the jdbc backend
+     * @throws IOException the files couldn't be written
+     * @throws SQLException the database couldn't be loaded
+     */
+    public void create(File workDir, String jdbcURL) throws IOException, SQLException {
+        if ("file".equals(backend)) {
+            writeFiles(workDir);
+        } else if ("jdbc".equals(backend)) {
+            loadDatabase(jdbcURL);
+        }
+    }
+
+    private void writeFiles(File homeDir) throws IOException {
+        for (int i = 0; i < recordCount; ++i) {
+            File file = new File(homeDir, getLocalIdentifier(i) + ".xml");
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(getOaiDc(i, true).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            // FileSystemOAICatalog takes the datestamp from the modification time
+            file.setLastModified(getDatestamp(i));
+        }
+    }
+
+    private void loadDatabase(String jdbcURL) throws SQLException {
+        Connection con = DriverManager.getConnection(jdbcURL, "sa", "");
+        try {
+            Statement stmt = con.createStatement();
+            stmt.execute("CREATE TABLE records (id INT PRIMARY KEY, modified TIMESTAMP, title VARCHAR(255),"
+                    + " creator VARCHAR(255), subject VARCHAR(255), description CLOB)");
+            stmt.execute("CREATE INDEX records_modified ON records (modified)");
+            stmt.execute("CREATE TABLE record_sets (id INT, setSpec VARCHAR(32))");
+            stmt.execute("CREATE INDEX record_sets_id ON record_sets (id)");
+            stmt.execute("CREATE TABLE sets (setSpec VARCHAR(32), setName VARCHAR(255))");
+            for (String setSpec : SETS) {
+                stmt.execute("INSERT INTO sets VALUES ('" + setSpec + "', 'All the " + setSpec + "')");
+            }
+            stmt.close();
+            PreparedStatement insertRecord = con.prepareStatement("INSERT INTO records VALUES (?, ?, ?, ?, ?, ?)");
+            PreparedStatement insertSet = con.prepareStatement("INSERT INTO record_sets VALUES (?, ?)");
+            for (int i = 0; i < recordCount; ++i) {
+                insertRecord.setInt(1, i);
+                insertRecord.setTimestamp(2, new Timestamp(getDatestamp(i)));
+                insertRecord.setString(3, getTitle(i));
+                insertRecord.setString(4, getCreator(i));
+                insertRecord.setString(5, getSubject(i));
+                insertRecord.setString(6, getDescription(i));
+                insertRecord.addBatch();
+                insertSet.setInt(1, i);
+                insertSet.setString(2, getSetSpec(i));
+                insertSet.addBatch();
+                if (i % 1000 == 999) {
+                    insertRecord.executeBatch();
+                    insertSet.executeBatch();
+                }
+            }
+            insertRecord.executeBatch();
+            insertSet.executeBatch();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Get the OAICat configuration of the backend.
+     *
+     * @param workDir the directory holding the files of the file backend
+     * @param jdbcURL the database URL of the jdbc backend
+     * @param sruURL the URL of the SRU stub for the sru backend
+     * @param maxListSize the number of records per ListRecords page
+     * @return the properties to give OAIHandler
+     */
+    public Properties getProperties(File workDir, String jdbcURL, String sruURL, int maxListSize) {
+        Properties properties = new Properties();
+        properties.setProperty("AbstractCatalog.secondsToLive", "3600");
+        properties.setProperty("Identify.repositoryName", "OAICat load test (" + backend + ")");
+        properties.setProperty("Identify.adminEmail", "mailto:loadtest@localhost");
+        properties.setProperty("Identify.earliestDatestamp", "2010-01-01");
+        properties.setProperty("Identify.deletedRecord", "no");
+        properties.setProperty("Identify.repositoryIdentifier", REPOSITORY_IDENTIFIER);
+        properties.setProperty("Identify.sampleIdentifier", getOAIIdentifier(0));
+        properties.setProperty("OAIMetrics.enabled", "true");
+        properties.setProperty("OAIMetrics.name", "loadtest");
+        String size = String.valueOf(maxListSize);
+        if ("file".equals(backend)) {
+            properties.setProperty("AbstractCatalog.oaiCatalogClassName", "org.oclc.oai.server.catalog.FileSystemOAICatalog");
+            properties.setProperty("AbstractCatalog.recordFactoryClassName", "org.oclc.oai.server.catalog.FileRecordFactory");
+            properties.setProperty("AbstractCatalog.granularity", "YYYY-MM-DDThh:mm:ssZ");
+            properties.setProperty("FileSystemOAICatalog.homeDir", workDir.getPath());
+            properties.setProperty("FileSystemOAICatalog.hideExtension", "true");
+            properties.setProperty("FileSystemOAICatalog.maxListSize", size);
+            properties.setProperty("FileRecordFactory.repositoryIdentifier", REPOSITORY_IDENTIFIER);
+            properties.setProperty("Crosswalks.oai_dc", "org.oclc.oai.server.crosswalk.FileMap2oai_dc");
+        } else if ("jdbc".equals(backend)) {
+            properties.setProperty("AbstractCatalog.oaiCatalogClassName", "org.oclc.oai.server.catalog.JDBCOAICatalog");
+            properties.setProperty("AbstractCatalog.recordFactoryClassName", "org.oclc.oai.server.catalog.JDBCRecordFactory");
+            properties.setProperty("AbstractCatalog.granularity", "YYYY-MM-DD");
+            properties.setProperty("JDBCOAICatalog.jdbcDriverName", "org.h2.Driver");
+            properties.setProperty("JDBCOAICatalog.jdbcURL", jdbcURL);
+            properties.setProperty("JDBCOAICatalog.jdbcLogin", "sa");
+            properties.setProperty("JDBCOAICatalog.jdbcPasswd", "");
+            properties.setProperty("JDBCOAICatalog.dateFormat", "UTC");
+            properties.setProperty("JDBCOAICatalog.maxListSize", size);
+            properties.setProperty("JDBCOAICatalog.rangeQuery",
+                    "SELECT * FROM records WHERE modified >= '\\f' AND modified <= '\\u' ORDER BY id");
+            properties.setProperty("JDBCOAICatalog.rangeSetQuery",
+                    "SELECT records.* FROM records, record_sets WHERE records.id = record_sets.id"
+                            + " AND modified >= '\\f' AND modified <= '\\u' AND setSpec = '\\s' ORDER BY records.id");
+            properties.setProperty("JDBCOAICatalog.identifierQuery", "SELECT * FROM records WHERE id = \\i");
+            properties.setProperty("JDBCOAICatalog.setSpecQuery", "SELECT setSpec FROM record_sets WHERE id = \\i");
+            properties.setProperty("JDBCOAICatalog.setSpecItemLabel", "RECORD_SETS.SETSPEC");
+            properties.setProperty("JDBCOAICatalog.setQuery", "SELECT setSpec, setName FROM sets");
+            properties.setProperty("JDBCOAICatalog.setSpecListLabel", "SETS.SETSPEC");
+            properties.setProperty("JDBCOAICatalog.setNameLabel", "SETS.SETNAME");
+            properties.setProperty("JDBCRecordFactory.repositoryIdentifier", REPOSITORY_IDENTIFIER);
+            properties.setProperty("JDBCRecordFactory.identifierLabel", "RECORDS.ID");
+            properties.setProperty("JDBCRecordFactory.datestampLabel", "RECORDS.MODIFIED");
+            properties.setProperty("Crosswalks.oai_dc", "org.oclc.oai.server.crosswalk.JDBC2oai_dc");
+            properties.setProperty("JDBC2oai_dc.dcTitleLabel", "RECORDS.TITLE");
+            properties.setProperty("JDBC2oai_dc.dcCreatorLabel", "RECORDS.CREATOR");
+            properties.setProperty("JDBC2oai_dc.dcSubjectLabel", "RECORDS.SUBJECT");
+            properties.setProperty("JDBC2oai_dc.dcDescriptionLabel", "RECORDS.DESCRIPTION");
+            properties.setProperty("JDBC2oai_dc.dcDateLabel", "RECORDS.MODIFIED");
+            properties.setProperty("JDBC2oai_dc.separator", "; ");
+        } else if ("synthetic".equals(backend)) {
+            properties.setProperty("AbstractCatalog.oaiCatalogClassName", "org.oclc.oai.server.catalog.SyntheticOAICatalog");
+            properties.setProperty("AbstractCatalog.recordFactoryClassName", "org.oclc.oai.server.catalog.SyntheticRecordFactory");
+            properties.setProperty("AbstractCatalog.granularity", "YYYY-MM-DD");
+            properties.setProperty("SyntheticOAICatalog.recordCount", String.valueOf(recordCount));
+            properties.setProperty("SyntheticOAICatalog.recordBytes", String.valueOf(recordBytes));
+            properties.setProperty("SyntheticOAICatalog.earliestDatestamp", "2010-01-01");
+            properties.setProperty("SyntheticOAICatalog.latestDatestamp", "2019-12-31");
+            properties.setProperty("SyntheticOAICatalog.sets", "books,theses,maps,serials");
+            properties.setProperty("SyntheticOAICatalog.maxListSize", size);
+            properties.setProperty("SyntheticRecordFactory.repositoryIdentifier", REPOSITORY_IDENTIFIER);
+            properties.setProperty("Crosswalks.oai_dc", "org.oclc.oai.server.crosswalk.Synthetic2oai_dc");
+        } else {
+            properties.setProperty("AbstractCatalog.oaiCatalogClassName", "org.oclc.oai.server.catalog.SRUOAICatalog");
+            properties.setProperty("AbstractCatalog.recordFactoryClassName", "org.oclc.oai.server.catalog.NodeRecordFactory");
+            properties.setProperty("AbstractCatalog.granularity", "YYYY-MM-DD");
+            properties.setProperty("SRUOAICatalog.sruURL", sruURL);
+            properties.setProperty("SRUOAICatalog.maxListSize", size);
+        }
+        return properties;
+    }
+
+    private static String words(int i, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int w = 0; w < count; ++w) {
+            if (w > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[(i * 7 + w * 3) % WORDS.length]);
+        }
+        return sb.toString();
+    }
+
+    static String format(String pattern, long millis) {
+        SimpleDateFormat formatter = new SimpleDateFormat(pattern);
+        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return formatter.format(new Date(millis));
+    }
+}
@@ -26,6 +26,10 @@ import org.oclc.oai.server.verb.NoMetadataFormatsException;
  * your changes to areas identified by "YOUR CODE GOES HERE" comments. In truth, though,
  * you can do things however you want, as long as the non-private methods return
  * what they're supposed to.
+ * <p/>
+ * To try OAICat out, or to load-test it, with more than these two records,
+ * use org.oclc.oai.server.catalog.SyntheticOAICatalog, which generates a
+ * repository of any size from a seed.
  *
  * @author Jeffrey A. Young, OCLC Online Computer Library Center
  */
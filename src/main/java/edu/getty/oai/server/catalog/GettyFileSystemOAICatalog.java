@@ -31,7 +31,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 import org.oclc.oai.server.verb.BadResumptionTokenException;
@@ -42,6 +41,7 @@ import org.oclc.oai.server.verb.BadArgumentException;
 import org.oclc.oai.server.verb.NoMetadataFormatsException;
 import org.oclc.oai.server.verb.NoSetHierarchyException;
 import org.oclc.oai.server.verb.NoItemsMatchException;
+import org.oclc.oai.util.Datestamp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,7 +58,6 @@ public class GettyFileSystemOAICatalog extends AbstractCatalog {
     /** Class logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(GettyFileSystemOAICatalog.class);
 
-    private SimpleDateFormat dateFormatter = new SimpleDateFormat();
     protected String homeDir;
     private Map<String, Object> fileDateMap = new HashMap<String, Object>();
     private Map<String, Object> setMap = new HashMap<String, Object>();
@@ -69,7 +68,6 @@ public class GettyFileSystemOAICatalog extends AbstractCatalog {
     public GettyFileSystemOAICatalog(Properties properties) throws IOException {
         String temp;
 
-        dateFormatter.applyPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
         temp = properties.getProperty("GettyFileSystemOAICatalog.maxListSize");
         if (temp == null) {
             throw new IllegalArgumentException("GettyFileSystemOAICatalog." +
@@ -198,7 +196,7 @@ public class GettyFileSystemOAICatalog extends AbstractCatalog {
     }
 
     private String date2OAIDatestamp(Date date) {
-        return dateFormatter.format(date);
+        return Datestamp.format(date.getTime(), true);
     }
 
     private Map<String, Object> getNativeHeader(String path) throws IOException {
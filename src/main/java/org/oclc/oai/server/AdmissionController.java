@@ -0,0 +1,262 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AdmissionController limits the number of requests of each verb that run
+ * concurrently, so that a few harvesters running parallel ListRecords can't
+ * take every container thread and database connection. A request over the
+ * limit waits a bounded time in a bounded queue for a permit; if it doesn't
+ * get one it is answered with a 503 and a Retry-After header, as recommended
+ * by the OAI-PMH guidelines for flow control.
+ * <p/>
+ * The limits are configured per verb; verbs without a limit, such as
+ * Identify, are always admitted:
+ * <pre>
+ * OAIHandler.admission.ListRecords.maxConcurrent=8
+ * OAIHandler.admission.ListIdentifiers.maxConcurrent=8
+ * OAIHandler.admission.maxQueue=16
+ * OAIHandler.admission.maxWaitMillis=5000
+ * </pre>
+ * Optionally, the limited verbs are also turned away while heap usage
+ * (OAIHandler.admission.maxHeapRatio) or their average latency
+ * (OAIHandler.admission.maxLatencyMillis) is above a threshold.
+ */
+public class AdmissionController {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionController.class);
+
+    private static final String PROPERTY_PREFIX = "OAIHandler.admission.";
+
+    /** Weight of the latest request in the moving average latency */
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    private static final int MAX_RETRY_AFTER = 3600;
+
+    private final Map<String, VerbLimit> limits = new HashMap<String, VerbLimit>();
+    private final int maxQueue;
+    private final long maxWaitMillis;
+    private final double maxHeapRatio;
+    private final long maxLatencyMillis;
+    private final int sheddingRetryAfter;
+
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+
+    private static class VerbLimit {
+        private final String verb;
+        private final int maxConcurrent;
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private volatile double averageMillis = 0;
+
+        private VerbLimit(String verb, int maxConcurrent) {
+            this.verb = verb;
+            this.maxConcurrent = maxConcurrent;
+            this.permits = new Semaphore(maxConcurrent, true);
+        }
+
+        private synchronized void recordLatency(long millis) {
+            averageMillis = averageMillis == 0 ? millis : averageMillis + LATENCY_WEIGHT * (millis - averageMillis);
+        }
+    }
+
+    /**
+     * A permit to run a request. Release it when the response has been written.
+     */
+    public class Permit {
+        private final VerbLimit limit;
+        private final long start = System.currentTimeMillis();
+        private boolean released = false;
+
+        private Permit(VerbLimit limit) {
+            this.limit = limit;
+        }
+
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (limit != null) {
+                limit.recordLatency(System.currentTimeMillis() - start);
+                limit.permits.release();
+            }
+        }
+    }
+
+    /**
+     * Construct a controller from the OAIHandler.admission.* properties.
+     *
+     * @param properties the repository properties
+     */
+    public AdmissionController(Properties properties) {
+        Enumeration propNames = properties.propertyNames();
+        while (propNames.hasMoreElements()) {
+            String propertyName = (String) propNames.nextElement();
+            if (propertyName.startsWith(PROPERTY_PREFIX) && propertyName.endsWith(".maxConcurrent")) {
+                String verb = propertyName.substring(PROPERTY_PREFIX.length(), propertyName.length() - ".maxConcurrent".length());
+                int maxConcurrent = Integer.parseInt(properties.getProperty(propertyName));
+                if (maxConcurrent > 0) {
+                    limits.put(verb, new VerbLimit(verb, maxConcurrent));
+                    LOGGER.debug("AdmissionController: " + verb + ".maxConcurrent=" + maxConcurrent);
+                }
+            }
+        }
+        maxQueue = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxQueue", "0"));
+        maxWaitMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxWaitMillis", "0"));
+        maxHeapRatio = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "maxHeapRatio", "0"));
+        maxLatencyMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxLatencyMillis", "0"));
+        sheddingRetryAfter = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "retryAfter", "60"));
+    }
+
+    /**
+     * Create the controller described by the properties.
+     *
+     * @param properties the repository properties
+     * @return a new controller, or null if no verb is limited
+     */
+    public static AdmissionController factory(Properties properties) {
+        AdmissionController controller = new AdmissionController(properties);
+        if (controller.limits.isEmpty()) {
+            return null;
+        }
+        return controller;
+    }
+
+    /**
+     * Wait for a permit to run a request of the specified verb.
+     *
+     * @param verb the verb parameter of the request (may be null)
+     * @return a permit, or null if the request must be turned away
+     */
+    public Permit admit(String verb) {
+        VerbLimit limit = verb == null ? null : limits.get(verb);
+        if (limit == null) {
+            admittedCount.incrementAndGet();
+            return new Permit(null);
+        }
+        if (isOverloaded(limit)) {
+            shedCount.incrementAndGet();
+            rejectedCount.incrementAndGet();
+            return null;
+        }
+        if (limit.permits.tryAcquire()) {
+            admittedCount.incrementAndGet();
+            return new Permit(limit);
+        }
+        if (limit.waiting.incrementAndGet() > maxQueue || maxWaitMillis <= 0) {
+            limit.waiting.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            return null;
+        }
+        try {
+            if (limit.permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                admittedCount.incrementAndGet();
+                return new Permit(limit);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            limit.waiting.decrementAndGet();
+        }
+        rejectedCount.incrementAndGet();
+        return null;
+    }
+
+    private boolean isOverloaded(VerbLimit limit) {
+        // only while requests are running, so that the average gets a chance to recover
+        if (maxLatencyMillis > 0 && limit.averageMillis > maxLatencyMillis
+                && limit.permits.availablePermits() < limit.maxConcurrent) {
+            return true;
+        }
+        if (maxHeapRatio > 0) {
+            Runtime rt = Runtime.getRuntime();
+            double used = rt.totalMemory() - rt.freeMemory();
+            if (used / rt.maxMemory() > maxHeapRatio) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Estimate when a turned-away request of the specified verb is likely to
+     * be admitted: the time needed to drain the requests running and waiting
+     * ahead of it, based on the verb's average latency.
+     *
+     * @param verb the verb parameter of the request
+     * @return the number of seconds for the Retry-After header
+     */
+    public int getRetryAfter(String verb) {
+        VerbLimit limit = verb == null ? null : limits.get(verb);
+        if (limit == null) {
+            return sheddingRetryAfter;
+        }
+        if (isOverloaded(limit)) {
+            return sheddingRetryAfter;
+        }
+        double backlog = (double) (limit.maxConcurrent + limit.waiting.get()) / limit.maxConcurrent;
+        long seconds = (long) Math.ceil(backlog * limit.averageMillis / 1000.0);
+        return (int) Math.max(1, Math.min(MAX_RETRY_AFTER, seconds));
+    }
+
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    /**
+     * Get the number of requests of the verb currently running.
+     *
+     * @param verb the verb
+     * @return the running requests, or -1 if the verb isn't limited
+     */
+    public int getRunning(String verb) {
+        VerbLimit limit = limits.get(verb);
+        return limit == null ? -1 : limit.maxConcurrent - limit.permits.availablePermits();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("AdmissionController: ");
+        sb.append("admitted=").append(admittedCount.get());
+        sb.append(" rejected=").append(rejectedCount.get());
+        sb.append(" shed=").append(shedCount.get());
+        for (VerbLimit limit : limits.values()) {
+            sb.append(" ").append(limit.verb).append("=");
+            sb.append(limit.maxConcurrent - limit.permits.availablePermits()).append("/").append(limit.maxConcurrent);
+            sb.append("+").append(limit.waiting.get());
+            sb.append(" (").append((long) limit.averageMillis).append("ms)");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AsyncLogWriter hands log lines to a background thread, so that the
+ * request threads never wait for the appenders' I/O. When the queue is
+ * full the line is dropped and counted rather than blocking the request.
+ */
+public class AsyncLogWriter {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncLogWriter.class);
+
+    private final Logger target;
+    private final BlockingQueue<String> queue;
+    private final Thread thread;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Start a writer.
+     *
+     * @param loggerName the name of the logger the lines are written to at INFO level
+     * @param capacity the maximum number of lines waiting to be written
+     */
+    public AsyncLogWriter(String loggerName, int capacity) {
+        this.target = LoggerFactory.getLogger(loggerName);
+        this.queue = new ArrayBlockingQueue<String>(capacity);
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "AsyncLogWriter-" + loggerName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a line. Never blocks.
+     *
+     * @param line the line to log
+     */
+    public void write(String line) {
+        if (!queue.offer(line)) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private void drain() {
+        while (running || !queue.isEmpty()) {
+            try {
+                String line = queue.poll(1, TimeUnit.SECONDS);
+                if (line != null) {
+                    target.info(line);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (RuntimeException e) {
+                LOGGER.error("An Exception occured", e);
+            }
+        }
+    }
+
+    /**
+     * Write the queued lines and stop the thread.
+     */
+    public void stop() {
+        running = false;
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (droppedCount.get() > 0) {
+            LOGGER.warn("AsyncLogWriter: dropped " + droppedCount.get() + " lines");
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * HarvestSessionTracker follows a harvest from its first ListRecords (or
+ * ListIdentifiers) request through the resumptionTokens issued along the
+ * way, up to the page without a resumptionToken, and logs the whole session
+ * as one structured (JSON) line: client, verb, metadataPrefix, set, pages,
+ * records, bytes, total and per-page latency. Sessions whose next token
+ * isn't requested within HarvestSessionTracker.timeoutSeconds are logged as
+ * abandoned.
+ * <p/>
+ * The lines go to the HarvestSessionTracker.logger logger (default
+ * org.oclc.oai.server.HarvestSessions) through an AsyncLogWriter. With
+ * HarvestSessionTracker.accessLog=true every request is also logged, as a
+ * structured line, to the org.oclc.oai.server.AccessLog logger.
+ */
+public class HarvestSessionTracker {
+
+    private final long timeoutMillis;
+    private final int maxSessions;
+    private final AsyncLogWriter sessionLog;
+    private final AsyncLogWriter accessLog;
+
+    /**
+     * Sessions waiting for their next page, by client address and the
+     * resumptionToken issued last, least recently active first. A catalog with
+     * stateless resumptionTokens issues the same token to every client making
+     * the same request, so the token alone doesn't identify a session.
+     */
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>();
+
+    private static class Session {
+        private final String client;
+        private final String userAgent;
+        private final String verb;
+        private final String metadataPrefix;
+        private final String set;
+        private final long start;
+        private long lastActivity;
+        private int pages = 0;
+        private long records = 0;
+        private long bytes = 0;
+        private long pageMillis = 0;
+        private long maxPageMillis = 0;
+        private int errors = 0;
+
+        private Session(HttpServletRequest request, long start) {
+            this.client = request.getRemoteAddr();
+            this.userAgent = request.getHeader("User-Agent");
+            this.verb = request.getParameter("verb");
+            this.metadataPrefix = request.getParameter("metadataPrefix");
+            this.set = request.getParameter("set");
+            this.start = start;
+        }
+    }
+
+    /**
+     * Construct a tracker from the HarvestSessionTracker.* properties.
+     *
+     * @param properties the repository properties
+     */
+    public HarvestSessionTracker(Properties properties) {
+        timeoutMillis = Long.parseLong(properties.getProperty("HarvestSessionTracker.timeoutSeconds", "3600")) * 1000;
+        maxSessions = Integer.parseInt(properties.getProperty("HarvestSessionTracker.maxSessions", "10000"));
+        int queueSize = Integer.parseInt(properties.getProperty("HarvestSessionTracker.queueSize", "10000"));
+        sessionLog = new AsyncLogWriter(properties.getProperty("HarvestSessionTracker.logger", "org.oclc.oai.server.HarvestSessions"),
+                queueSize);
+        if ("true".equals(properties.getProperty("HarvestSessionTracker.accessLog"))) {
+            accessLog = new AsyncLogWriter(properties.getProperty("HarvestSessionTracker.accessLogger", "org.oclc.oai.server.AccessLog"),
+                    queueSize);
+        } else {
+            accessLog = null;
+        }
+    }
+
+    /**
+     * Create the tracker described by the properties.
+     *
+     * @param properties the repository properties
+     * @return a new tracker, or null if HarvestSessionTracker.enabled isn't true
+     */
+    public static HarvestSessionTracker factory(Properties properties) {
+        if (!"true".equals(properties.getProperty("HarvestSessionTracker.enabled"))) {
+            return null;
+        }
+        return new HarvestSessionTracker(properties);
+    }
+
+    /**
+     * Account for a request whose response has been written. The list verbs
+     * leave the resumptionToken they issued and the number of records in the
+     * OAIHandler.resumptionToken and OAIHandler.recordCount request attributes.
+     *
+     * @param request the request
+     * @param status the HTTP status of the response
+     * @param bytes the uncompressed size of the response (-1 if unknown)
+     * @param millis the request latency
+     */
+    public void requestCompleted(HttpServletRequest request, int status, long bytes, long millis) {
+        long now = System.currentTimeMillis();
+        String verb = request.getParameter("verb");
+        Integer recordCount = (Integer) request.getAttribute("OAIHandler.recordCount");
+        if (accessLog != null) {
+            StringBuilder sb = new StringBuilder("{");
+            appendField(sb, "client", request.getRemoteAddr());
+            appendField(sb, "userAgent", request.getHeader("User-Agent"));
+            appendField(sb, "verb", verb);
+            appendField(sb, "metadataPrefix", request.getParameter("metadataPrefix"));
+            appendField(sb, "set", request.getParameter("set"));
+            appendField(sb, "resumptionToken", request.getParameter("resumptionToken"));
+            appendField(sb, "status", status);
+            appendField(sb, "records", recordCount == null ? -1 : recordCount.intValue());
+            appendField(sb, "bytes", bytes);
+            appendField(sb, "millis", millis);
+            accessLog.write(sb.append("}").toString());
+        }
+        if (!"ListRecords".equals(verb) && !"ListIdentifiers".equals(verb)) {
+            return;
+        }
+        String oldToken = request.getParameter("resumptionToken");
+        String newToken = (String) request.getAttribute("OAIHandler.resumptionToken");
+        List<Session> finished = new ArrayList<Session>();
+        Session session = null;
+        synchronized (sessions) {
+            if (oldToken != null) {
+                session = sessions.remove(request.getRemoteAddr() + " " + oldToken);
+            }
+            if (session == null) {
+                // a new harvest, or one whose earlier pages we didn't see
+                session = new Session(request, now - millis);
+            }
+            ++session.pages;
+            if (recordCount != null) {
+                session.records += recordCount.intValue();
+            }
+            if (bytes > 0) {
+                session.bytes += bytes;
+            }
+            session.pageMillis += millis;
+            session.maxPageMillis = Math.max(session.maxPageMillis, millis);
+            if (status >= 400) {
+                ++session.errors;
+            }
+            session.lastActivity = now;
+            if (newToken != null && newToken.length() > 0) {
+                sessions.put(request.getRemoteAddr() + " " + newToken, session);
+                session = null;
+            }
+            // expire the sessions that have been waiting too long, oldest first
+            Iterator<Session> iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                Session waiting = iterator.next();
+                if (now - waiting.lastActivity < timeoutMillis && sessions.size() <= maxSessions) {
+                    break;
+                }
+                iterator.remove();
+                finished.add(waiting);
+            }
+        }
+        if (session != null) {
+            log(session, "complete", now);
+        }
+        for (Session waiting : finished) {
+            log(waiting, "abandoned", now);
+        }
+    }
+
+    private void log(Session session, String outcome, long now) {
+        StringBuilder sb = new StringBuilder("{");
+        appendField(sb, "outcome", outcome);
+        appendField(sb, "client", session.client);
+        appendField(sb, "userAgent", session.userAgent);
+        appendField(sb, "verb", session.verb);
+        appendField(sb, "metadataPrefix", session.metadataPrefix);
+        appendField(sb, "set", session.set);
+        appendField(sb, "pages", session.pages);
+        appendField(sb, "records", session.records);
+        appendField(sb, "bytes", session.bytes);
+        appendField(sb, "errors", session.errors);
+        appendField(sb, "totalMillis", session.lastActivity - session.start);
+        appendField(sb, "pageMillis", session.pageMillis);
+        appendField(sb, "avgPageMillis", session.pageMillis / session.pages);
+        appendField(sb, "maxPageMillis", session.maxPageMillis);
+        sessionLog.write(sb.append("}").toString());
+    }
+
+    private static void appendField(StringBuilder sb, String name, long value) {
+        if (sb.length() > 1) {
+            sb.append(",");
+        }
+        sb.append("\"").append(name).append("\":").append(value);
+    }
+
+    private static void appendField(StringBuilder sb, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        if (sb.length() > 1) {
+            sb.append(",");
+        }
+        sb.append("\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append("\"");
+    }
+
+    /**
+     * Log the sessions still open and stop the writers.
+     */
+    public void stop() {
+        long now = System.currentTimeMillis();
+        List<Session> open;
+        synchronized (sessions) {
+            open = new ArrayList<Session>(sessions.values());
+            sessions.clear();
+        }
+        for (Session session : open) {
+            log(session, "open", now);
+        }
+        sessionLog.stop();
+        if (accessLog != null) {
+            accessLog.stop();
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.oclc.oai.util.OAIUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HarvesterScheduler keeps one harvester from starving the others. Each
+ * request is attributed to a client: a request carrying a resumptionToken
+ * belongs to the client the token was issued to, other requests, and those
+ * carrying a token issued to several clients, are identified by IP address
+ * and/or User-Agent (HarvesterScheduler.clientKey).
+ * <p/>
+ * Every client is rate-limited by a token bucket; a request that would have
+ * to wait more than HarvesterScheduler.maxWaitMillis for its tokens is turned
+ * away with a 503 and a Retry-After header. When HarvesterScheduler.maxConcurrent
+ * is set, the requests waiting for one of the slots are then served in
+ * weighted fair queuing order, so that a client with many requests in flight
+ * doesn't get more than its share.
+ * <p/>
+ * Clients are matched to classes, each with its own rate, burst and weight:
+ * <pre>
+ * HarvesterScheduler.classes=partners
+ * HarvesterScheduler.class.partners.ipPattern=192\.168\..*
+ * HarvesterScheduler.class.partners.ratePerSecond=20
+ * HarvesterScheduler.class.partners.weight=4
+ * HarvesterScheduler.class.default.ratePerSecond=2
+ * HarvesterScheduler.class.default.burst=10
+ * </pre>
+ * HarvesterScheduler.cost.[verb] sets the number of tokens (and the share of
+ * the fair queue) used by each verb. Defaults to 1.
+ * <p/>
+ * The Servlet 2.5 API has no asynchronous requests, so a delayed or queued
+ * request holds its container thread while it waits. No more than
+ * HarvesterScheduler.maxWaiting requests wait at once; beyond that, requests
+ * that would have to wait are turned away at once, so that throttled
+ * harvesters can't tie up the container's thread pool. The tokens of a
+ * request that is turned away after they were reserved are given back.
+ * <p/>
+ * OAIHandler schedules the requests in doGet rather than in its filterRequest
+ * hook: the ticket has to be released once the response has been written,
+ * the requests turned away must reach the metrics and the
+ * HarvestSessionTracker, and filterRequest is left for deployments to
+ * override without disabling the scheduler.
+ */
+public class HarvesterScheduler {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvesterScheduler.class);
+
+    private static final String PROPERTY_PREFIX = "HarvesterScheduler.";
+
+    private final String clientKey;
+    private final int maxConcurrent;
+    private final long maxWaitMillis;
+    private final int maxWaiting;
+    private final int maxClients;
+    private final Properties properties;
+    private final List<ClientClass> clientClasses = new ArrayList<ClientClass>();
+    private final ClientClass defaultClass;
+
+    /** Clients by id, least recently seen first */
+    private final LinkedHashMap<String, Client> clients;
+    /** Client id by the resumptionTokens issued to it, "" for a token issued to several clients */
+    private final LinkedHashMap<String, String> lineage;
+
+    /** Fair queuing state, guarded by this */
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+    private int running = 0;
+    private double virtualTime = 0;
+    private long sequence = 0;
+
+    /** Number of requests sleeping for tokens or queued for a slot */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private static class ClientClass {
+        private final String name;
+        private final Pattern ipPattern;
+        private final Pattern userAgentPattern;
+        private final double ratePerSecond;
+        private final double burst;
+        private final double weight;
+
+        private ClientClass(String name, Properties properties) {
+            String prefix = PROPERTY_PREFIX + "class." + name + ".";
+            this.name = name;
+            String ip = properties.getProperty(prefix + "ipPattern");
+            String userAgent = properties.getProperty(prefix + "userAgentPattern");
+            this.ipPattern = ip == null ? null : Pattern.compile(ip);
+            this.userAgentPattern = userAgent == null ? null : Pattern.compile(userAgent, Pattern.CASE_INSENSITIVE);
+            this.ratePerSecond = Double.parseDouble(properties.getProperty(prefix + "ratePerSecond", "0"));
+            this.burst = Double.parseDouble(properties.getProperty(prefix + "burst", Double.toString(Math.max(1, ratePerSecond))));
+            this.weight = Double.parseDouble(properties.getProperty(prefix + "weight", "1"));
+        }
+
+        private boolean matches(String ip, String userAgent) {
+            if (ipPattern == null && userAgentPattern == null) {
+                return false;
+            }
+            if (ipPattern != null && (ip == null || !ipPattern.matcher(ip).matches())) {
+                return false;
+            }
+            if (userAgentPattern != null && (userAgent == null || !userAgentPattern.matcher(userAgent).find())) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** Per-client state and statistics, guarded by the client */
+    private static class Client {
+        private final String id;
+        private final ClientClass clientClass;
+        private double tokens;
+        private long lastRefill = System.currentTimeMillis();
+        private long lastSeen;
+        private double lastFinishTag = 0;
+        private long requestCount = 0;
+        private long delayedCount = 0;
+        private long rejectedCount = 0;
+        private long waitMillis = 0;
+        private int inFlight = 0;
+
+        private Client(String id, ClientClass clientClass) {
+            this.id = id;
+            this.clientClass = clientClass;
+            this.tokens = clientClass.burst;
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final double startTag;
+        private final double finishTag;
+        private final long sequence;
+
+        private Waiter(double startTag, double finishTag, long sequence) {
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Waiter other) {
+            if (finishTag != other.finishTag) {
+                return finishTag < other.finishTag ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * The outcome of scheduling a request. An admitted request must release
+     * its ticket when the response has been written.
+     */
+    public class Ticket {
+        private final Client client;
+        private final boolean admitted;
+        private final int retryAfter;
+        private final boolean holdsSlot;
+
+        private Ticket(Client client, boolean admitted, int retryAfter, boolean holdsSlot) {
+            this.client = client;
+            this.admitted = admitted;
+            this.retryAfter = retryAfter;
+            this.holdsSlot = holdsSlot;
+        }
+
+        public boolean isAdmitted() {
+            return admitted;
+        }
+
+        /**
+         * Get the number of seconds a rejected client should wait.
+         *
+         * @return the Retry-After value
+         */
+        public int getRetryAfter() {
+            return retryAfter;
+        }
+
+        public String getClientId() {
+            return client.id;
+        }
+
+        /**
+         * Give the slot back, and remember the resumptionToken issued to the
+         * client (if any) so its next request is attributed to the same client.
+         *
+         * @param request the request, carrying the OAIHandler.resumptionToken attribute set by the verb
+         */
+        public void release(HttpServletRequest request) {
+            synchronized (client) {
+                --client.inFlight;
+            }
+            String resumptionToken = (String) request.getAttribute("OAIHandler.resumptionToken");
+            if (resumptionToken != null && resumptionToken.length() > 0) {
+                synchronized (lineage) {
+                    // a catalog with stateless resumptionTokens issues the same
+                    // token to every client making the same request
+                    String previous = lineage.get(resumptionToken);
+                    lineage.put(resumptionToken, previous == null || previous.equals(client.id) ? client.id : "");
+                }
+            }
+            if (holdsSlot) {
+                synchronized (HarvesterScheduler.this) {
+                    --running;
+                    HarvesterScheduler.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Construct a scheduler from the HarvesterScheduler.* properties.
+     *
+     * @param properties the repository properties
+     */
+    public HarvesterScheduler(Properties properties) {
+        this.properties = properties;
+        clientKey = properties.getProperty(PROPERTY_PREFIX + "clientKey", "ip");
+        maxConcurrent = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxConcurrent", "0"));
+        maxWaitMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxWaitMillis", "10000"));
+        maxWaiting = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxWaiting", "20"));
+        maxClients = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxClients", "10000"));
+        String classList = properties.getProperty(PROPERTY_PREFIX + "classes");
+        if (classList != null) {
+            StringTokenizer tokenizer = new StringTokenizer(classList, ", ");
+            while (tokenizer.hasMoreTokens()) {
+                clientClasses.add(new ClientClass(tokenizer.nextToken(), properties));
+            }
+        }
+        defaultClass = new ClientClass("default", properties);
+        clients = new LinkedHashMap<String, Client>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Client> eldest) {
+                return size() > maxClients;
+            }
+        };
+        lineage = new LinkedHashMap<String, String>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxClients * 4;
+            }
+        };
+    }
+
+    /**
+     * Create the scheduler described by the properties.
+     *
+     * @param properties the repository properties
+     * @return a new scheduler, or null if HarvesterScheduler.enabled isn't true
+     */
+    public static HarvesterScheduler factory(Properties properties) {
+        if (!"true".equals(properties.getProperty(PROPERTY_PREFIX + "enabled"))) {
+            return null;
+        }
+        HarvesterScheduler scheduler = new HarvesterScheduler(properties);
+        LOGGER.debug("HarvesterScheduler.factory: clientKey=" + scheduler.clientKey + " maxConcurrent=" + scheduler.maxConcurrent
+                + " classes=" + scheduler.clientClasses.size());
+        return scheduler;
+    }
+
+    /**
+     * Identify the client that sent the request.
+     *
+     * @param request the request
+     * @return the client id
+     */
+    private String identify(HttpServletRequest request) {
+        String resumptionToken = request.getParameter("resumptionToken");
+        if (resumptionToken != null) {
+            synchronized (lineage) {
+                String clientId = lineage.get(resumptionToken);
+                if (clientId != null && clientId.length() > 0) {
+                    return clientId;
+                }
+            }
+        }
+        String ip = request.getRemoteAddr();
+        String userAgent = request.getHeader("User-Agent");
+        if ("userAgent".equals(clientKey)) {
+            return userAgent == null ? ip : userAgent;
+        } else if ("ipAndUserAgent".equals(clientKey)) {
+            return ip + " " + userAgent;
+        }
+        return ip;
+    }
+
+    private Client getClient(String id, HttpServletRequest request) {
+        synchronized (clients) {
+            Client client = clients.get(id);
+            if (client == null) {
+                ClientClass clientClass = defaultClass;
+                String ip = request.getRemoteAddr();
+                String userAgent = request.getHeader("User-Agent");
+                for (ClientClass candidate : clientClasses) {
+                    if (candidate.matches(ip, userAgent)) {
+                        clientClass = candidate;
+                        break;
+                    }
+                }
+                client = new Client(id, clientClass);
+                clients.put(id, client);
+            }
+            return client;
+        }
+    }
+
+    private double getCost(String verb) {
+        if (verb == null) {
+            return 1;
+        }
+        return Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "cost." + verb, "1"));
+    }
+
+    /**
+     * Rate-limit and queue the request. Blocks until the request may run,
+     * or returns a ticket that isn't admitted.
+     *
+     * @param request the request
+     * @return the ticket
+     */
+    public Ticket schedule(HttpServletRequest request) {
+        Client client = getClient(identify(request), request);
+        double cost = getCost(request.getParameter("verb"));
+        long start = System.currentTimeMillis();
+
+        // token bucket
+        long delay = 0;
+        synchronized (client) {
+            ++client.requestCount;
+            client.lastSeen = start;
+            ClientClass clientClass = client.clientClass;
+            if (clientClass.ratePerSecond > 0) {
+                client.tokens = Math.min(clientClass.burst,
+                        client.tokens + (start - client.lastRefill) * clientClass.ratePerSecond / 1000.0);
+                client.lastRefill = start;
+                if (client.tokens < cost) {
+                    delay = (long) Math.ceil((cost - client.tokens) * 1000.0 / clientClass.ratePerSecond);
+                    if (delay > maxWaitMillis) {
+                        ++client.rejectedCount;
+                        return new Ticket(client, false, (int) Math.max(1, (delay + 999) / 1000), false);
+                    }
+                    ++client.delayedCount;
+                }
+                // reserve the tokens now, so concurrent requests queue up behind this one
+                client.tokens -= cost;
+            }
+            ++client.inFlight;
+        }
+        if (delay > 0) {
+            if (!startWaiting()) {
+                return reject(client, cost, delay);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        // weighted fair queuing between clients
+        boolean holdsSlot = false;
+        if (maxConcurrent > 0) {
+            holdsSlot = acquireSlot(client, cost, start + delay + maxWaitMillis);
+            if (!holdsSlot) {
+                return reject(client, cost, maxWaitMillis);
+            }
+        }
+        synchronized (client) {
+            client.waitMillis += System.currentTimeMillis() - start;
+        }
+        return new Ticket(client, true, 0, holdsSlot);
+    }
+
+    /**
+     * Count a request that is about to wait.
+     *
+     * @return false if HarvesterScheduler.maxWaiting requests are already waiting
+     */
+    private boolean startWaiting() {
+        if (waiting.incrementAndGet() > maxWaiting && maxWaiting > 0) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Turn away a request that was counted in flight, giving back the tokens
+     * reserved for it.
+     */
+    private Ticket reject(Client client, double cost, long retryMillis) {
+        synchronized (client) {
+            if (client.clientClass.ratePerSecond > 0) {
+                client.tokens = Math.min(client.clientClass.burst, client.tokens + cost);
+            }
+            --client.inFlight;
+            ++client.rejectedCount;
+        }
+        return new Ticket(client, false, (int) Math.max(1, (retryMillis + 999) / 1000), false);
+    }
+
+    /**
+     * Wait for a slot, serving the waiters in increasing virtual finish time.
+     *
+     * @return false if the deadline passed, or if the request would have to
+     * wait while HarvesterScheduler.maxWaiting requests are already waiting
+     */
+    private synchronized boolean acquireSlot(Client client, double cost, long deadline) {
+        if (waiters.isEmpty() && running < maxConcurrent) {
+            ++running;
+            synchronized (client) {
+                double startTag = Math.max(virtualTime, client.lastFinishTag);
+                client.lastFinishTag = startTag + cost / client.clientClass.weight;
+                virtualTime = Math.max(virtualTime, startTag);
+            }
+            return true;
+        }
+        if (!startWaiting()) {
+            return false;
+        }
+        double startTag;
+        synchronized (client) {
+            startTag = Math.max(virtualTime, client.lastFinishTag);
+            client.lastFinishTag = startTag + cost / client.clientClass.weight;
+        }
+        Waiter waiter = new Waiter(startTag, startTag + cost / client.clientClass.weight, sequence++);
+        waiters.add(waiter);
+        try {
+            while (waiters.peek() != waiter || running >= maxConcurrent) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            waiters.poll();
+            ++running;
+            virtualTime = Math.max(virtualTime, waiter.startTag);
+            // the next waiter may be able to start too
+            notifyAll();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting.decrementAndGet();
+            if (waiters.remove(waiter)) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Describe the throttling of every known client as XML.
+     *
+     * @return a &lt;harvesters&gt; element
+     */
+    public String toXML() {
+        List<Client> snapshot;
+        synchronized (clients) {
+            snapshot = new ArrayList<Client>(clients.values());
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("<harvesters");
+        synchronized (this) {
+            sb.append(" running=\"").append(running).append("\"");
+            sb.append(" waiting=\"").append(waiters.size()).append("\"");
+        }
+        sb.append(" waitingThreads=\"").append(waiting.get()).append("\"");
+        sb.append(">");
+        for (Client client : snapshot) {
+            synchronized (client) {
+                sb.append("<harvester id=\"").append(OAIUtil.xmlEncode(client.id).replaceAll("\"", "&quot;")).append("\"");
+                sb.append(" class=\"").append(OAIUtil.xmlEncode(client.clientClass.name)).append("\"");
+                sb.append(" requests=\"").append(client.requestCount).append("\"");
+                sb.append(" delayed=\"").append(client.delayedCount).append("\"");
+                sb.append(" rejected=\"").append(client.rejectedCount).append("\"");
+                sb.append(" inFlight=\"").append(client.inFlight).append("\"");
+                sb.append(" waitMillis=\"").append(client.waitMillis).append("\"");
+                sb.append(" tokens=\"").append((long) client.tokens).append("\"");
+                sb.append(" lastSeen=\"").append(client.lastSeen).append("\"");
+                sb.append("/>");
+            }
+        }
+        sb.append("</harvesters>");
+        return sb.toString();
+    }
+}
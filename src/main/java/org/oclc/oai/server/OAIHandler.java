@@ -14,6 +14,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
@@ -38,7 +39,15 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.oclc.oai.server.catalog.AbstractCatalog;
+import org.oclc.oai.server.catalog.PreRenderer;
+import org.oclc.oai.server.metrics.OAIMetrics;
+import org.oclc.oai.server.metrics.Phase;
+import org.oclc.oai.server.metrics.PhaseListener;
+import org.oclc.oai.server.metrics.PhaseSpan;
+import org.oclc.oai.server.metrics.PhaseTimer;
 import org.oclc.oai.server.verb.OAIInternalServerError;
+import org.oclc.oai.server.verb.OAIServiceUnavailableException;
+import org.oclc.oai.server.verb.ResponseBuffer;
 import org.oclc.oai.server.verb.ServerVerb;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -127,6 +136,43 @@ public class OAIHandler extends HttpServlet {
         }
     }
 
+    /**
+     * destroy is called when the Servlet is taken out of service. Release the
+     * resources that outlive a request, such as the pre-renderers, the
+     * rendered record caches, the metrics MBeans, the session log and the
+     * catalogs.
+     */
+    public void destroy() {
+        for (Object value : attributesMap.values()) {
+            if (value instanceof Map) {
+                HarvestSessionTracker sessionTracker = (HarvestSessionTracker) ((Map) value).get("OAIHandler.sessionTracker");
+                if (sessionTracker != null) {
+                    sessionTracker.stop();
+                }
+                OAIMetrics metrics = (OAIMetrics) ((Map) value).get("OAIHandler.metrics");
+                if (metrics != null) {
+                    metrics.unregister();
+                }
+                ReadAhead readAhead = (ReadAhead) ((Map) value).get("OAIHandler.readAhead");
+                if (readAhead != null) {
+                    readAhead.close();
+                }
+                PreRenderer preRenderer = (PreRenderer) ((Map) value).get("OAIHandler.preRenderer");
+                if (preRenderer != null) {
+                    preRenderer.stop();
+                }
+                AbstractCatalog abstractCatalog = (AbstractCatalog) ((Map) value).get("OAIHandler.catalog");
+                if (abstractCatalog != null) {
+                    if (abstractCatalog.getRecordFactory().getRecordCache() != null) {
+                        abstractCatalog.getRecordFactory().getRecordCache().close();
+                    }
+                    abstractCatalog.close();
+                }
+            }
+        }
+        super.destroy();
+    }
+
     public Map<String, Object> getAttributes(Properties properties) throws Throwable {
         Map<String, Object> attributes = new HashMap<String, Object>();
         Enumeration attrNames = getServletContext().getAttributeNames();
@@ -136,6 +182,11 @@ public class OAIHandler extends HttpServlet {
         }
         attributes.put("OAIHandler.properties", properties);
 
+        String phaseListenerClassName = properties.getProperty("OAIHandler.phaseListener");
+        if (phaseListenerClassName != null) {
+            // there's only one listener per JVM; the last repository loaded wins
+            PhaseSpan.setListener((PhaseListener) Class.forName(phaseListenerClassName).getDeclaredConstructor().newInstance());
+        }
         String missingVerbClassName = properties.getProperty("OAIHandler.missingVerbClassName", "org.oclc.oai.server.verb.BadVerb");
         Class missingVerbClass = Class.forName(missingVerbClassName);
         attributes.put("OAIHandler.missingVerbClass", missingVerbClass);
@@ -143,6 +194,35 @@ public class OAIHandler extends HttpServlet {
             attributes.put("OAIHandler.version", VERSION);
             AbstractCatalog abstractCatalog = AbstractCatalog.factory(properties, getServletContext());
             attributes.put("OAIHandler.catalog", abstractCatalog);
+            HarvesterScheduler harvesterScheduler = HarvesterScheduler.factory(properties);
+            if (harvesterScheduler != null) {
+                attributes.put("OAIHandler.harvesterScheduler", harvesterScheduler);
+            }
+            AdmissionController admissionController = AdmissionController.factory(properties);
+            if (admissionController != null) {
+                attributes.put("OAIHandler.admissionController", admissionController);
+            }
+            RequestCoalescer requestCoalescer = RequestCoalescer.factory(properties);
+            if (requestCoalescer != null) {
+                attributes.put("OAIHandler.requestCoalescer", requestCoalescer);
+            }
+            ReadAhead readAhead = ReadAhead.factory(properties);
+            if (readAhead != null) {
+                attributes.put("OAIHandler.readAhead", readAhead);
+            }
+            HarvestSessionTracker sessionTracker = HarvestSessionTracker.factory(properties);
+            if (sessionTracker != null) {
+                attributes.put("OAIHandler.sessionTracker", sessionTracker);
+            }
+            OAIMetrics metrics = OAIMetrics.factory(properties, abstractCatalog);
+            if (metrics != null) {
+                attributes.put("OAIHandler.metrics", metrics);
+            }
+            PreRenderer preRenderer = PreRenderer.factory(properties, abstractCatalog);
+            if (preRenderer != null) {
+                preRenderer.start();
+                attributes.put("OAIHandler.preRenderer", preRenderer);
+            }
         }
         boolean forceRender = false;
         if ("true".equals(properties.getProperty("OAIHandler.forceRender"))) {
@@ -245,17 +325,50 @@ public class OAIHandler extends HttpServlet {
         if (monitor) {
             then = new Date();
         }
-
-        Enumeration headerNames = request.getHeaderNames();
-        LOGGER.debug("OAIHandler.doGet: ");
-        while (headerNames.hasMoreElements()) {
-            String headerName = (String) headerNames.nextElement();
-            LOGGER.debug(headerName + ":" + request.getHeader(headerName));
+        OAIMetrics metrics = (OAIMetrics) attributes.get("OAIHandler.metrics");
+        HarvestSessionTracker sessionTracker = (HarvestSessionTracker) attributes.get("OAIHandler.sessionTracker");
+        long start = System.currentTimeMillis();
+        if (metrics != null) {
+            PhaseTimer.begin();
+        }
+        int status = HttpServletResponse.SC_OK;
+        long responseBytes = -1;
+
+        // throttle the harvester first, so it doesn't hold a verb permit while it waits.
+        // This isn't done in filterRequest: the ticket is released once the response
+        // is written, and the requests turned away are counted below like the others.
+        HarvesterScheduler harvesterScheduler = (HarvesterScheduler) attributes.get("OAIHandler.harvesterScheduler");
+        HarvesterScheduler.Ticket ticket = null;
+        if (!serviceUnavailable && harvesterScheduler != null) {
+            ticket = harvesterScheduler.schedule(request);
+        }
+        AdmissionController admissionController = (AdmissionController) attributes.get("OAIHandler.admissionController");
+        AdmissionController.Permit permit = null;
+        if (!serviceUnavailable && admissionController != null && (ticket == null || ticket.isAdmitted())) {
+            permit = admissionController.admit(request.getParameter("verb"));
         }
 
         if (serviceUnavailable) {
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
             response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Sorry. This server is down for maintenance");
+        } else if (ticket != null && !ticket.isAdmitted()) {
+            response.setHeader("Retry-After", Integer.toString(ticket.getRetryAfter()));
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests from " + ticket.getClientId() + ". Please retry later");
+            LOGGER.debug("OAIHandler.doGet: throttled " + ticket.getClientId());
+        } else if (admissionController != null && permit == null) {
+            String verb = request.getParameter("verb");
+            response.setHeader("Retry-After", Integer.toString(admissionController.getRetryAfter(verb)));
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent " + verb + " requests. Please retry later");
+            LOGGER.debug("OAIHandler.doGet: turned away " + verb + ". " + admissionController);
+            if (ticket != null) {
+                ticket.release(request);
+            }
         } else {
+            RequestCoalescer requestCoalescer = (RequestCoalescer) attributes.get("OAIHandler.requestCoalescer");
+            RequestCoalescer.Flight flight = null;
+            ReadAhead readAhead = (ReadAhead) attributes.get("OAIHandler.readAhead");
             try {
                 String userAgent = request.getHeader("User-Agent");
                 if (userAgent == null) {
@@ -270,26 +383,122 @@ public class OAIHandler extends HttpServlet {
                         serverTransformer = transformer;
                     }
                 }
-                String result = getResult(attributes, request, response, serverTransformer, serverVerbs, extensionVerbs, extensionPath);
+                Object result = null;
+                if (readAhead != null && !extensionPath.equals(request.getPathInfo())) {
+                    // the page may have been computed while the previous one was sent
+                    result = readAhead.take(request, response, serverTransformer != null);
+                }
+                if (result == null && requestCoalescer != null && !extensionPath.equals(request.getPathInfo())) {
+                    flight = requestCoalescer.join(request, serverTransformer != null);
+                }
+                if (flight != null && !flight.isLeader()) {
+                    // share the response of an identical request in progress
+                    result = flight.await(request, response);
+                    if (result == null) {
+                        flight = null;
+                    }
+                }
+                if (flight != null && flight.isLeader()) {
+                    try {
+                        result = getResponse(attributes, flight.wrap(request), flight.wrap(response), serverTransformer, serverVerbs, extensionVerbs,
+                                extensionPath);
+                    } finally {
+                        flight.complete(result);
+                    }
+                } else if (result == null) {
+                    result = getResponse(attributes, request, response, serverTransformer, serverVerbs, extensionVerbs, extensionPath);
+                }
 
-                Writer out = getWriter(request, response);
-                out.write(result);
-                out.close();
+                if (result instanceof ResponseBuffer) {
+                    ResponseBuffer buffer = (ResponseBuffer) result;
+                    responseBytes = buffer.size();
+                    try {
+                        String encodings = request.getHeader("Accept-Encoding");
+                        if (encodings != null && encodings.indexOf("gzip") != -1) {
+                            // splice in the records' pre-compressed gzip members
+                            response.setHeader("Content-Encoding", "gzip");
+                            OutputStream out = response.getOutputStream();
+                            Phase previous = PhaseTimer.enter(Phase.COMPRESSION);
+                            try {
+                                buffer.writeGzipTo(out);
+                                out.close();
+                            } finally {
+                                PhaseTimer.exit(previous);
+                            }
+                        } else {
+                            OutputStream out = getOutputStream(request, response);
+                            Phase previous = PhaseTimer.enter(getWritePhase(response));
+                            try {
+                                buffer.writeTo(out);
+                                out.close();
+                            } finally {
+                                PhaseTimer.exit(previous);
+                            }
+                        }
+                    } finally {
+                        // a shared buffer is released by the last request to leave the flight
+                        if (flight == null) {
+                            buffer.release();
+                        }
+                    }
+                } else {
+                    String xml = (String) result;
+                    responseBytes = getUTF8Length(xml);
+                    Writer out = getWriter(request, response);
+                    Phase previous = PhaseTimer.enter(getWritePhase(response));
+                    try {
+                        out.write(xml);
+                        out.close();
+                    } finally {
+                        PhaseTimer.exit(previous);
+                    }
+                }
+                if (readAhead != null) {
+                    readAhead.schedule(attributes, request, response, serverTransformer, serverVerbs, extensionVerbs, extensionPath);
+                }
             } catch (FileNotFoundException e) {
                 LOGGER.error("SC_NOT_FOUND: ", e);
+                status = HttpServletResponse.SC_NOT_FOUND;
                 response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
             } catch (TransformerException e) {
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
                 response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            } catch (OAIServiceUnavailableException e) {
+                LOGGER.debug("SC_SERVICE_UNAVAILABLE: " + e.getMessage());
+                response.setHeader("Retry-After", Integer.toString(e.getRetryAfter()));
+                status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
             } catch (OAIInternalServerError e) {
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
                 response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
             } catch (SocketException e) {
                 LOGGER.debug(e.getMessage());
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
                 response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
             } catch (Throwable e) {
                 LOGGER.error("An Exception occured", e);
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
                 response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            } finally {
+                if (flight != null) {
+                    flight.leave();
+                }
+                if (permit != null) {
+                    permit.release();
+                }
+                if (ticket != null) {
+                    ticket.release(request);
+                }
             }
         }
+        long millis = System.currentTimeMillis() - start;
+        if (metrics != null) {
+            long[] nanos = PhaseTimer.end();
+            metrics.record(request.getParameter("verb"), request.getParameter("metadataPrefix"), status, responseBytes, millis, nanos);
+        }
+        if (sessionTracker != null) {
+            sessionTracker.requestCompleted(request, status, responseBytes, millis);
+        }
         if (monitor) {
             StringBuilder reqUri = new StringBuilder(request.getRequestURI().toString());
             String queryString = request.getQueryString();   // d=789
@@ -331,24 +540,19 @@ public class OAIHandler extends HttpServlet {
     public static String getResult(Map<String, Object> attributes, HttpServletRequest request, HttpServletResponse response, Transformer serverTransformer,
             Map<String, Class<?>> serverVerbs, Map<String, Class<?>> extensionVerbs, String extensionPath) throws Throwable {
         try {
-            boolean isExtensionVerb = extensionPath.equals(request.getPathInfo());
             String verb = request.getParameter("verb");
             LOGGER.debug("OAIHandler.g<etResult: verb=>" + verb + "<");
             String result;
-            Class verbClass = null;
-            if (isExtensionVerb) {
-                verbClass = extensionVerbs.get(verb);
-            } else {
-                verbClass = serverVerbs.get(verb);
-            }
-            if (verbClass == null) {
-                verbClass = (Class) attributes.get("OAIHandler.missingVerbClass");
-            }
+            Class verbClass = getVerbClass(attributes, request, serverVerbs, extensionVerbs, extensionPath);
             Method construct = verbClass.getMethod("construct", new Class[]{HashMap.class, HttpServletRequest.class, HttpServletResponse.class, Transformer.class});
+            PhaseSpan span = PhaseSpan.startVerb(verb);
+            result = null;
             try {
                 result = (String) construct.invoke(null, new Object[]{attributes, request, response, serverTransformer});
             } catch (InvocationTargetException e) {
                 throw e.getTargetException();
+            } finally {
+                span.end(request.getParameter("metadataPrefix"), -1, result == null ? -1 : getUTF8Length(result));
             }
             LOGGER.debug(result);
             return result;
@@ -359,6 +563,120 @@ public class OAIHandler extends HttpServlet {
         }
     }
 
+    /**
+     * Like getResult, except that a verb with a constructBuffer method, such
+     * as ListRecords or GetRecord, builds its response as UTF-8 bytes when it
+     * isn't rendered on the server.
+     *
+     * @return a ResponseBuffer, to be released by the caller, or the String from getResult
+     */
+    public static Object getResponse(Map<String, Object> attributes, HttpServletRequest request, HttpServletResponse response, Transformer serverTransformer,
+            Map<String, Class<?>> serverVerbs, Map<String, Class<?>> extensionVerbs, String extensionPath) throws Throwable {
+        Method constructBuffer = null;
+        if (serverTransformer == null) {
+            try {
+                constructBuffer = getVerbClass(attributes, request, serverVerbs, extensionVerbs, extensionPath).getMethod("constructBuffer",
+                        new Class[]{HashMap.class, HttpServletRequest.class, HttpServletResponse.class});
+            } catch (NoSuchMethodException e) {
+                // only construct
+            }
+        }
+        if (constructBuffer == null) {
+            return getResult(attributes, request, response, serverTransformer, serverVerbs, extensionVerbs, extensionPath);
+        }
+        String verb = request.getParameter("verb");
+        LOGGER.debug("OAIHandler.getResponse: verb=>" + verb + "<");
+        PhaseSpan span = PhaseSpan.startVerb(verb);
+        ResponseBuffer result = null;
+        try {
+            result = (ResponseBuffer) constructBuffer.invoke(null, new Object[]{attributes, request, response});
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        } catch (IllegalAccessException e) {
+            throw new OAIInternalServerError(e.getMessage());
+        } finally {
+            if (result == null) {
+                span.end(request.getParameter("metadataPrefix"), -1, -1);
+            } else {
+                span.end(request.getParameter("metadataPrefix"), result.getFragmentCount(), result.size());
+            }
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(result.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Find the class implementing the requested verb.
+     */
+    private static Class getVerbClass(Map<String, Object> attributes, HttpServletRequest request, Map<String, Class<?>> serverVerbs,
+            Map<String, Class<?>> extensionVerbs, String extensionPath) {
+        String verb = request.getParameter("verb");
+        Class verbClass = null;
+        if (extensionPath.equals(request.getPathInfo())) {
+            verbClass = extensionVerbs.get(verb);
+        } else {
+            verbClass = serverVerbs.get(verb);
+        }
+        if (verbClass == null) {
+            verbClass = (Class) attributes.get("OAIHandler.missingVerbClass");
+        }
+        return verbClass;
+    }
+
+    /**
+     * Count the bytes of a String encoded as UTF-8, without encoding it.
+     */
+    private static long getUTF8Length(String s) {
+        long length = 0;
+        int n = s.length();
+        for (int i = 0; i < n; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Which phase is writing the response in? Call after the stream has been chosen.
+     *
+     * @param response the servlet's response information
+     * @return COMPRESSION if the response is compressed, SERIALIZATION otherwise
+     */
+    private static Phase getWritePhase(HttpServletResponse response) {
+        return response.containsHeader("Content-Encoding") ? Phase.COMPRESSION : Phase.SERIALIZATION;
+    }
+
+    /**
+     * Get a response OutputStream depending on acceptable encodings
+     *
+     * @param request the servlet's request information
+     * @param response the servlet's response information
+     * @throws IOException an I/O error occurred
+     */
+    public static OutputStream getOutputStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String encodings = request.getHeader("Accept-Encoding");
+        LOGGER.debug("encodings=" + encodings);
+        if (encodings != null && encodings.indexOf("gzip") != -1) {
+            response.setHeader("Content-Encoding", "gzip");
+            return new GZIPOutputStream(response.getOutputStream());
+        } else if (encodings != null && encodings.indexOf("deflate") != -1) {
+            response.setHeader("Content-Encoding", "deflate");
+            return new DeflaterOutputStream(response.getOutputStream());
+        }
+        return response.getOutputStream();
+    }
+
     /**
      * Get a response Writer depending on acceptable encodings
      *
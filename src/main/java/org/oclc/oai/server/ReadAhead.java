@@ -0,0 +1,594 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.xml.transform.Transformer;
+
+import org.oclc.oai.server.verb.ResponseBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ReadAhead computes the next page of a list while the harvester is still
+ * receiving the current one. Harvesters nearly always ask for the
+ * resumptionToken of a page as soon as they get it, so when a response
+ * carries a resumptionToken the request for it is run on a background thread,
+ * and its response is kept until the harvester asks for it or
+ * OAIHandler.readAhead.ttlMillis has passed:
+ * <pre>
+ * OAIHandler.readAhead.verbs=ListRecords ListIdentifiers
+ * OAIHandler.readAhead.threads=2
+ * OAIHandler.readAhead.maxEntries=32
+ * OAIHandler.readAhead.maxBytes=33554432
+ * </pre>
+ * A request that arrives while its page is being computed waits for it, for
+ * no longer than OAIHandler.readAhead.maxWaitMillis. Pages that aren't asked
+ * for in time, or that don't fit in maxEntries or maxBytes, are dropped; the
+ * harvester's request then runs the resumptionToken again, so don't read
+ * ahead with a catalog whose resumptionTokens can only be used once, such as
+ * FileSystemOAICatalog.
+ */
+public class ReadAhead {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReadAhead.class);
+
+    private static final String PROPERTY_PREFIX = "OAIHandler.readAhead.";
+
+    /** Entry states, guarded by entries */
+    private static final int BUFFERED = 0;
+    private static final int TAKEN = 1;
+    private static final int DROPPED = 2;
+
+    private final Set<String> verbs = new HashSet<String>();
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final long maxWaitMillis;
+    private final ThreadPoolExecutor workers;
+
+    /** Pages by key, oldest first, guarded by itself */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    /** Size of the computed pages in entries, guarded by entries */
+    private long bufferedBytes = 0;
+
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong lateCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /** The next page of a list, being computed or waiting to be taken */
+    private class Entry implements Runnable {
+        private final String key;
+        private final Map<String, Object> attributes;
+        private final PrefetchRequest request;
+        private final PrefetchResponse response;
+        private final Transformer serverTransformer;
+        private final Map<String, Class<?>> serverVerbs;
+        private final Map<String, Class<?>> extensionVerbs;
+        private final String extensionPath;
+        private final long created = System.currentTimeMillis();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Future<?> future;
+
+        // guarded by entries
+        private int state = BUFFERED;
+        private boolean completed = false;
+        private Object result;
+        private int size;
+
+        private Entry(String key, Map<String, Object> attributes, PrefetchRequest request, HttpServletResponse response, Transformer serverTransformer,
+                Map<String, Class<?>> serverVerbs, Map<String, Class<?>> extensionVerbs, String extensionPath) {
+            this.key = key;
+            this.attributes = attributes;
+            this.request = request;
+            this.response = new PrefetchResponse(response);
+            this.serverTransformer = serverTransformer;
+            this.serverVerbs = serverVerbs;
+            this.extensionVerbs = extensionVerbs;
+            this.extensionPath = extensionPath;
+        }
+
+        public void run() {
+            Object pageResult = null;
+            try {
+                synchronized (entries) {
+                    if (state == DROPPED) {
+                        return;
+                    }
+                }
+                pageResult = OAIHandler.getResponse(attributes, request, response, serverTransformer, serverVerbs, extensionVerbs, extensionPath);
+            } catch (Throwable e) {
+                failureCount.incrementAndGet();
+                LOGGER.debug("ReadAhead: " + key + " failed", e);
+            } finally {
+                completed(this, pageResult);
+            }
+        }
+    }
+
+    /**
+     * A copy of the arguments and URL of the harvester's request, for running
+     * the next page after the request has been recycled by the container.
+     * The verbs only use the parameters, the URL and the attributes.
+     */
+    private static class PrefetchRequest extends HttpServletRequestWrapper {
+        private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        private final String requestURL;
+        private final String pathInfo;
+        private final Map<String, Object> requestAttributes = new HashMap<String, Object>();
+
+        private PrefetchRequest(HttpServletRequest request, String verb, String resumptionToken) {
+            super(request);
+            parameters.put("verb", new String[]{verb});
+            parameters.put("resumptionToken", new String[]{resumptionToken});
+            requestURL = request.getRequestURL().toString();
+            pathInfo = request.getPathInfo();
+        }
+
+        public String getParameter(String name) {
+            String[] values = parameters.get(name);
+            return values == null ? null : values[0];
+        }
+
+        public String[] getParameterValues(String name) {
+            return parameters.get(name);
+        }
+
+        public Enumeration getParameterNames() {
+            return Collections.enumeration(parameters.keySet());
+        }
+
+        public Map getParameterMap() {
+            return Collections.unmodifiableMap(parameters);
+        }
+
+        public StringBuffer getRequestURL() {
+            return new StringBuffer(requestURL);
+        }
+
+        public String getPathInfo() {
+            return pathInfo;
+        }
+
+        public String getQueryString() {
+            return null;
+        }
+
+        public String getHeader(String name) {
+            return null;
+        }
+
+        public Object getAttribute(String name) {
+            synchronized (requestAttributes) {
+                return requestAttributes.get(name);
+            }
+        }
+
+        public Enumeration getAttributeNames() {
+            synchronized (requestAttributes) {
+                return Collections.enumeration(new ArrayList<String>(requestAttributes.keySet()));
+            }
+        }
+
+        public void setAttribute(String name, Object o) {
+            synchronized (requestAttributes) {
+                requestAttributes.put(name, o);
+            }
+        }
+
+        public void removeAttribute(String name) {
+            synchronized (requestAttributes) {
+                requestAttributes.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Records the content type and status set by the verb, without touching
+     * the harvester's response, which may already have been recycled.
+     */
+    private static class PrefetchResponse extends HttpServletResponseWrapper {
+        private volatile String contentType;
+        private volatile int status = HttpServletResponse.SC_OK;
+        private final Map<String, String> headers = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+        private PrefetchResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        public void setContentType(String type) {
+            contentType = type;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public void setCharacterEncoding(String charset) {
+        }
+
+        public void setStatus(int sc) {
+            status = sc;
+        }
+
+        public void sendError(int sc) {
+            status = sc;
+        }
+
+        public void sendError(int sc, String msg) {
+            status = sc;
+        }
+
+        public void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        public void addHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        public boolean containsHeader(String name) {
+            return headers.containsKey(name);
+        }
+
+        public ServletOutputStream getOutputStream() {
+            throw new IllegalStateException("ReadAhead responses are returned, not written");
+        }
+
+        public PrintWriter getWriter() {
+            throw new IllegalStateException("ReadAhead responses are returned, not written");
+        }
+    }
+
+    /**
+     * Construct a read-ahead buffer from the OAIHandler.readAhead.* properties.
+     *
+     * @param properties the repository properties
+     */
+    public ReadAhead(Properties properties) {
+        String temp = properties.getProperty(PROPERTY_PREFIX + "verbs", "").trim();
+        if (temp.length() > 0) {
+            verbs.addAll(Arrays.asList(temp.split("[\\s,]+")));
+        }
+        int threads = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "threads", "2"));
+        maxEntries = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxEntries", "32"));
+        maxBytes = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxBytes", Integer.toString(32 * 1024 * 1024)));
+        ttlMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "ttlMillis", "30000"));
+        maxWaitMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxWaitMillis", "10000"));
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, maxEntries)),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ReadAhead-worker-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+        LOGGER.debug("ReadAhead: verbs=" + verbs + " threads=" + threads + " maxEntries=" + maxEntries + " maxBytes=" + maxBytes);
+    }
+
+    /**
+     * Create the read-ahead buffer described by the properties.
+     *
+     * @param properties the repository properties
+     * @return a new buffer, or null if no verb is read ahead
+     */
+    public static ReadAhead factory(Properties properties) {
+        String temp = properties.getProperty(PROPERTY_PREFIX + "verbs");
+        if (temp == null || temp.trim().length() == 0) {
+            return null;
+        }
+        return new ReadAhead(properties);
+    }
+
+    /**
+     * Start computing the page for the resumptionToken of a response that has
+     * just been sent.
+     *
+     * @param attributes the repository attributes
+     * @param request the servlet's request information, with the resumptionToken set by the verb
+     * @param response the servlet's response information
+     * @param serverTransformer the server-side stylesheet used for the request, or null
+     * @param serverVerbs the OAI-PMH verbs
+     * @param extensionVerbs the extension verbs
+     * @param extensionPath the path of the extension verbs
+     */
+    public void schedule(Map<String, Object> attributes, HttpServletRequest request, HttpServletResponse response, Transformer serverTransformer,
+            Map<String, Class<?>> serverVerbs, Map<String, Class<?>> extensionVerbs, String extensionPath) {
+        String verb = request.getParameter("verb");
+        Object resumptionToken = request.getAttribute("OAIHandler.resumptionToken");
+        if (verb == null || !verbs.contains(verb) || !(resumptionToken instanceof String) || ((String) resumptionToken).length() == 0
+                || extensionPath.equals(request.getPathInfo())) {
+            return;
+        }
+        String key = getKey(request.getPathInfo(), serverTransformer != null, verb, (String) resumptionToken);
+        PrefetchRequest prefetchRequest = new PrefetchRequest(request, verb, (String) resumptionToken);
+        Entry entry = new Entry(key, attributes, prefetchRequest, response, serverTransformer, serverVerbs, extensionVerbs, extensionPath);
+        synchronized (entries) {
+            expire();
+            if (entries.containsKey(key)) {
+                return;
+            }
+            if (entries.size() >= maxEntries) {
+                skippedCount.incrementAndGet();
+                return;
+            }
+            entries.put(key, entry);
+        }
+        try {
+            entry.future = workers.submit(entry);
+            scheduledCount.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            skippedCount.incrementAndGet();
+            drop(entry);
+        }
+    }
+
+    /**
+     * Take the page read ahead for this request, waiting for it if it is
+     * still being computed. The content type and request attributes set by
+     * the verb are copied to the request and response.
+     *
+     * @param request the servlet's request information
+     * @param response the servlet's response information
+     * @param transformed true if the response is rendered by the server-side stylesheet
+     * @return the ResponseBuffer or String of the page, owned by the caller, or null if the request must be run
+     */
+    public Object take(HttpServletRequest request, HttpServletResponse response, boolean transformed) {
+        String verb = request.getParameter("verb");
+        String resumptionToken = request.getParameter("resumptionToken");
+        if (verb == null || !verbs.contains(verb) || resumptionToken == null || request.getParameterMap().size() != 2) {
+            return null;
+        }
+        String key = getKey(request.getPathInfo(), transformed, verb, resumptionToken);
+        Entry entry;
+        synchronized (entries) {
+            expire();
+            entry = entries.remove(key);
+            if (entry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            entry.state = TAKEN;
+            if (entry.completed) {
+                bufferedBytes -= entry.size;
+            }
+        }
+        boolean completed = false;
+        try {
+            completed = entry.done.await(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!completed) {
+            synchronized (entries) {
+                if (!entry.completed) {
+                    // let the worker release the page when it is done
+                    entry.state = DROPPED;
+                    lateCount.incrementAndGet();
+                    return null;
+                }
+            }
+        }
+        if (entry.result == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        synchronized (entry.request.requestAttributes) {
+            for (Map.Entry<String, Object> attribute : entry.request.requestAttributes.entrySet()) {
+                request.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+        if (entry.response.contentType != null) {
+            response.setContentType(entry.response.contentType);
+        }
+        if (entry.response.status != HttpServletResponse.SC_OK) {
+            response.setStatus(entry.response.status);
+        }
+        synchronized (entry.response.headers) {
+            for (Map.Entry<String, String> header : entry.response.headers.entrySet()) {
+                response.setHeader(header.getKey(), header.getValue());
+            }
+        }
+        return entry.result;
+    }
+
+    private void completed(Entry entry, Object result) {
+        List<Object> released = new ArrayList<Object>();
+        synchronized (entries) {
+            entry.completed = true;
+            entry.result = result;
+            if (result instanceof ResponseBuffer) {
+                entry.size = ((ResponseBuffer) result).size();
+            } else if (result != null) {
+                entry.size = ((String) result).length();
+            }
+            if (entry.state == DROPPED) {
+                released.add(result);
+            } else if (entry.state == BUFFERED) {
+                if (result == null) {
+                    entries.remove(entry.key);
+                } else {
+                    bufferedBytes += entry.size;
+                    // evict the oldest pages, including this one if it doesn't fit on its own
+                    Iterator<Entry> iterator = entries.values().iterator();
+                    while (bufferedBytes > maxBytes && iterator.hasNext()) {
+                        Entry oldest = iterator.next();
+                        if (oldest.completed) {
+                            iterator.remove();
+                            oldest.state = DROPPED;
+                            bufferedBytes -= oldest.size;
+                            released.add(oldest.result);
+                            evictedCount.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+        entry.done.countDown();
+        release(released);
+    }
+
+    /**
+     * Drop the pages that have been waiting longer than ttlMillis.
+     * Called with entries locked.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.created <= ttlMillis) {
+                break;
+            }
+            iterator.remove();
+            expiredCount.incrementAndGet();
+            dropLocked(entry);
+        }
+    }
+
+    private void drop(Entry entry) {
+        synchronized (entries) {
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+            }
+            dropLocked(entry);
+        }
+    }
+
+    private void dropLocked(Entry entry) {
+        entry.state = DROPPED;
+        if (entry.completed) {
+            bufferedBytes -= entry.size;
+            if (entry.result instanceof ResponseBuffer) {
+                ((ResponseBuffer) entry.result).release();
+            }
+        } else if (entry.future != null) {
+            // a page that hasn't started is never computed; a running one is released when done
+            entry.future.cancel(false);
+        }
+    }
+
+    private static void release(List<Object> results) {
+        for (Object result : results) {
+            if (result instanceof ResponseBuffer) {
+                ((ResponseBuffer) result).release();
+            }
+        }
+    }
+
+    private static String getKey(String pathInfo, boolean transformed, String verb, String resumptionToken) {
+        StringBuilder sb = new StringBuilder();
+        if (pathInfo != null) {
+            sb.append(pathInfo);
+        }
+        sb.append(transformed ? "?html" : "?xml");
+        sb.append('\n').append(verb).append('\n').append(resumptionToken);
+        return sb.toString();
+    }
+
+    /**
+     * Stop the workers and drop the pages.
+     */
+    public void close() {
+        workers.shutdownNow();
+        synchronized (entries) {
+            for (Entry entry : new ArrayList<Entry>(entries.values())) {
+                dropLocked(entry);
+            }
+            entries.clear();
+        }
+    }
+
+    public long getScheduledCount() {
+        return scheduledCount.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Get the proportion of requests for a resumptionToken that were served
+     * from the buffer.
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long requests = hits + missCount.get() + lateCount.get();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public long getBufferedBytes() {
+        synchronized (entries) {
+            return bufferedBytes;
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ReadAhead: ");
+        sb.append("scheduled=").append(scheduledCount.get());
+        sb.append(" skipped=").append(skippedCount.get());
+        sb.append(" hits=").append(hitCount.get());
+        sb.append(" misses=").append(missCount.get());
+        sb.append(" late=").append(lateCount.get());
+        sb.append(" expired=").append(expiredCount.get());
+        sb.append(" evicted=").append(evictedCount.get());
+        sb.append(" failures=").append(failureCount.get());
+        sb.append(" hitRate=").append(Math.round(getHitRate() * 100)).append("%");
+        synchronized (entries) {
+            sb.append(" entries=").append(entries.size());
+            sb.append(" bytes=").append(bufferedBytes);
+        }
+        return sb.toString();
+    }
+}
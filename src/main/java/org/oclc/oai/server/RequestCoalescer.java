@@ -0,0 +1,362 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.oclc.oai.server.verb.ResponseBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RequestCoalescer lets identical requests that arrive together share a
+ * single response. When a harvesting schedule fires, dozens of clients ask
+ * for the same Identify or ListMetadataFormats within a few milliseconds; the
+ * first of them (the leader) runs the verb, and the others (the followers)
+ * wait for its response and write it to their own client instead of querying
+ * the catalog again.
+ * <p/>
+ * Requests are identical when they have the same path, the same arguments,
+ * in any order, and get the same server-side rendering. Only the verbs in
+ * OAIHandler.coalescing.verbs are coalesced:
+ * <pre>
+ * OAIHandler.coalescing.verbs=Identify ListMetadataFormats
+ * OAIHandler.coalescing.maxWaitMillis=10000
+ * </pre>
+ * A follower that has waited OAIHandler.coalescing.maxWaitMillis, or whose
+ * leader failed, runs the request on its own.
+ * <p/>
+ * ListRecords, ListIdentifiers and ListSets requests are only coalesced when
+ * they carry a resumptionToken, that is when one harvest sends the same
+ * request again. The first page of a list usually carries a resumptionToken,
+ * which belongs to the harvest that asked for it: sharing it would merge the
+ * harvests in HarvesterScheduler and HarvestSessionTracker, and break
+ * catalogs whose resumptionTokens can only be used once. Those requests run
+ * on their own rather than wait for a response they couldn't use.
+ */
+public class RequestCoalescer {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    private static final String PROPERTY_PREFIX = "OAIHandler.coalescing.";
+
+    private final Set<String> verbs = new HashSet<String>();
+    private final long maxWaitMillis;
+
+    /** Responses being computed by key, guarded by itself */
+    private final Map<String, Shared> flights = new HashMap<String, Shared>();
+
+    private final AtomicLong leaderCount = new AtomicLong();
+    private final AtomicLong followerCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong firstPageCount = new AtomicLong();
+
+    /** Verbs whose response may carry a resumptionToken */
+    private static final Set<String> LIST_VERBS = new HashSet<String>(Arrays.asList(new String[]{"ListRecords", "ListIdentifiers", "ListSets"}));
+
+    /** A response being computed, and the requests waiting for it */
+    private static class Shared {
+        private final String key;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // set by the leader before done is counted down
+        private Object result;
+        private String contentType;
+        private int status = HttpServletResponse.SC_OK;
+        private final Map<String, String> headers = new LinkedHashMap<String, String>();
+        private final Map<String, Object> requestAttributes = new LinkedHashMap<String, Object>();
+
+        /** Number of requests that haven't left yet, guarded by flights */
+        private int holders = 1;
+
+        private Shared(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A request's seat on a shared computation of a response. Everyone who
+     * joined must leave() once their response has been written; the last one
+     * out releases the ResponseBuffer.
+     */
+    public class Flight {
+        private final Shared shared;
+        private final boolean leader;
+        private boolean left = false;
+
+        private Flight(Shared shared, boolean leader) {
+            this.shared = shared;
+            this.leader = leader;
+        }
+
+        /**
+         * Does this request compute the response?
+         *
+         * @return true for the leader, false for the followers
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Wrap the leader's request, so that the attributes set by the verb
+         * are passed on to the followers.
+         *
+         * @param request the leader's request
+         * @return the request to hand to the verb
+         */
+        public HttpServletRequest wrap(HttpServletRequest request) {
+            return new HttpServletRequestWrapper(request) {
+                public void setAttribute(String name, Object o) {
+                    shared.requestAttributes.put(name, o);
+                    super.setAttribute(name, o);
+                }
+            };
+        }
+
+        /**
+         * Wrap the leader's response, so that the content type, status and
+         * headers set by the verb are passed on to the followers.
+         *
+         * @param response the leader's response
+         * @return the response to hand to the verb
+         */
+        public HttpServletResponse wrap(HttpServletResponse response) {
+            return new HttpServletResponseWrapper(response) {
+                public void setContentType(String type) {
+                    shared.contentType = type;
+                    super.setContentType(type);
+                }
+
+                public void setStatus(int sc) {
+                    shared.status = sc;
+                    super.setStatus(sc);
+                }
+
+                public void setHeader(String name, String value) {
+                    shared.headers.put(name, value);
+                    super.setHeader(name, value);
+                }
+            };
+        }
+
+        /**
+         * Hand the response over to the followers. Must be called by the
+         * leader, even if the verb failed.
+         *
+         * @param result the ResponseBuffer or String returned by the verb, or null if it failed
+         */
+        public void complete(Object result) {
+            shared.result = result;
+            synchronized (flights) {
+                if (flights.get(shared.key) == shared) {
+                    flights.remove(shared.key);
+                }
+            }
+            shared.done.countDown();
+        }
+
+        /**
+         * Wait for the leader's response and copy its state to this follower's
+         * request and response.
+         *
+         * @param request the follower's request
+         * @param response the follower's response
+         * @return the shared response, or null if this follower left and must run the request on its own
+         * (the leader timed out or failed)
+         */
+        public Object await(HttpServletRequest request, HttpServletResponse response) {
+            boolean completed = false;
+            try {
+                completed = shared.done.await(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!completed || shared.result == null) {
+                if (!completed) {
+                    timeoutCount.incrementAndGet();
+                } else {
+                    failureCount.incrementAndGet();
+                }
+                LOGGER.debug("RequestCoalescer: running " + shared.key + " on its own");
+                leave();
+                return null;
+            }
+            for (Map.Entry<String, Object> entry : shared.requestAttributes.entrySet()) {
+                request.setAttribute(entry.getKey(), entry.getValue());
+            }
+            if (shared.contentType != null) {
+                response.setContentType(shared.contentType);
+            }
+            if (shared.status != HttpServletResponse.SC_OK) {
+                response.setStatus(shared.status);
+            }
+            for (Map.Entry<String, String> entry : shared.headers.entrySet()) {
+                response.setHeader(entry.getKey(), entry.getValue());
+            }
+            return shared.result;
+        }
+
+        /**
+         * Leave the flight, once the response has been written. Later calls
+         * are ignored.
+         */
+        public void leave() {
+            boolean last;
+            synchronized (flights) {
+                if (left) {
+                    return;
+                }
+                left = true;
+                last = --shared.holders == 0;
+            }
+            if (last && shared.result instanceof ResponseBuffer) {
+                ((ResponseBuffer) shared.result).release();
+            }
+        }
+    }
+
+    /**
+     * Construct a coalescer from the OAIHandler.coalescing.* properties.
+     *
+     * @param properties the repository properties
+     */
+    public RequestCoalescer(Properties properties) {
+        String temp = properties.getProperty(PROPERTY_PREFIX + "verbs", "").trim();
+        if (temp.length() > 0) {
+            verbs.addAll(Arrays.asList(temp.split("[\\s,]+")));
+        }
+        maxWaitMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxWaitMillis", "10000"));
+        LOGGER.debug("RequestCoalescer: verbs=" + verbs + " maxWaitMillis=" + maxWaitMillis);
+    }
+
+    /**
+     * Create the coalescer described by the properties.
+     *
+     * @param properties the repository properties
+     * @return a new coalescer, or null if no verb is coalesced
+     */
+    public static RequestCoalescer factory(Properties properties) {
+        RequestCoalescer coalescer = new RequestCoalescer(properties);
+        if (coalescer.verbs.isEmpty()) {
+            return null;
+        }
+        return coalescer;
+    }
+
+    /**
+     * Join the computation of the response to an identical request, or start
+     * one if there is none.
+     *
+     * @param request the servlet's request information
+     * @param transformed true if the response is rendered by the server-side stylesheet
+     * @return a seat on the flight, or null if the request isn't coalesced
+     */
+    public Flight join(HttpServletRequest request, boolean transformed) {
+        String verb = request.getParameter("verb");
+        if (verb == null || !verbs.contains(verb)) {
+            return null;
+        }
+        if (LIST_VERBS.contains(verb) && request.getParameter("resumptionToken") == null) {
+            // the response would hand the same resumptionToken to different harvests
+            firstPageCount.incrementAndGet();
+            return null;
+        }
+        String key = getKey(request, transformed);
+        synchronized (flights) {
+            Shared shared = flights.get(key);
+            if (shared != null) {
+                shared.holders++;
+                followerCount.incrementAndGet();
+                return new Flight(shared, false);
+            }
+            shared = new Shared(key);
+            flights.put(key, shared);
+            leaderCount.incrementAndGet();
+            return new Flight(shared, true);
+        }
+    }
+
+    /**
+     * Normalize the request: the path and the arguments sorted by name.
+     */
+    private static String getKey(HttpServletRequest request, boolean transformed) {
+        StringBuilder sb = new StringBuilder();
+        if (request.getPathInfo() != null) {
+            sb.append(request.getPathInfo());
+        }
+        sb.append(transformed ? "?html" : "?xml");
+        Map<String, String[]> parameters = new TreeMap<String, String[]>(request.getParameterMap());
+        try {
+            for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+                for (String value : entry.getValue()) {
+                    sb.append('&').append(URLEncoder.encode(entry.getKey(), "UTF-8"));
+                    sb.append('=').append(URLEncoder.encode(value, "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        return sb.toString();
+    }
+
+    public long getLeaderCount() {
+        return leaderCount.get();
+    }
+
+    public long getFollowerCount() {
+        return followerCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getFirstPageCount() {
+        return firstPageCount.get();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RequestCoalescer: ");
+        sb.append("leaders=").append(leaderCount.get());
+        sb.append(" followers=").append(followerCount.get());
+        sb.append(" timeouts=").append(timeoutCount.get());
+        sb.append(" failures=").append(failureCount.get());
+        sb.append(" firstPages=").append(firstPageCount.get());
+        synchronized (flights) {
+            sb.append(" inFlight=").append(flights.size());
+        }
+        return sb.toString();
+    }
+}
@@ -11,13 +11,19 @@
 
 package org.oclc.oai.server.catalog;
 
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
 
 import javax.servlet.ServletContext;
 
 import org.oclc.oai.server.crosswalk.Crosswalks;
+import org.oclc.oai.server.metrics.Phase;
+import org.oclc.oai.server.metrics.PhaseSpan;
 import org.oclc.oai.server.verb.BadArgumentException;
 import org.oclc.oai.server.verb.BadResumptionTokenException;
 import org.oclc.oai.server.verb.CannotDisseminateFormatException;
@@ -27,6 +33,7 @@ import org.oclc.oai.server.verb.NoMetadataFormatsException;
 import org.oclc.oai.server.verb.NoSetHierarchyException;
 import org.oclc.oai.server.verb.OAIInternalServerError;
 import org.oclc.oai.server.verb.ServerVerb;
+import org.oclc.oai.util.Datestamp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,6 +58,15 @@ public abstract class AbstractCatalog {
     /** optional property to limit the life of resumptionTokens (<0 indicates no limit) */
     private int millisecondsToLive = -1;
 
+    /** optional property to end a ListRecords page once it holds this many bytes (<=0 indicates no limit) */
+    private long maxPageBytes = 0;
+
+    /** optional property to end a ListRecords page once it has taken this long to build (<=0 indicates no limit) */
+    private long maxPageMillis = 0;
+
+    /** How the ListRecords pages were ended */
+    private final PageBudget.Stats pageStats = new PageBudget.Stats();
+
     /** Index into VALID_GRANULARITIES and FROM_GRANULARITIES */
     private int supportedGranularityOffset = -1;
 
@@ -97,6 +113,34 @@ public abstract class AbstractCatalog {
         return millisecondsToLive;
     }
 
+    /**
+     * Start a ListRecords page, limited by the optional AbstractCatalog.maxPageBytes
+     * and AbstractCatalog.maxPageMillis properties.
+     *
+     * @return the budget to check in the page loop
+     */
+    public PageBudget startPage() {
+        return new PageBudget(maxPageBytes, maxPageMillis, pageStats);
+    }
+
+    /**
+     * get the page-size decisions made so far
+     *
+     * @return the page statistics
+     */
+    public PageBudget.Stats getPageStats() {
+        return pageStats;
+    }
+
+    /**
+     * get the number of resumptionTokens whose result set is held in memory
+     *
+     * @return the number of open resumptionTokens, or -1 if the catalog doesn't keep any
+     */
+    public int getOpenResumptionTokenCount() {
+        return -1;
+    }
+
     public void setRecordFactory(RecordFactory recordFactory) {
         this.recordFactory = recordFactory;
     }
@@ -171,7 +215,7 @@ public abstract class AbstractCatalog {
                 case 7: // YYYY-MM
                     sb.append("-");
                 case 8: // YYYY-MM-
-                    sb.append("31");
+                    sb.append(getLastDay(sb));
                     break;
 
                 case 6: // YYYY-M
@@ -218,6 +262,26 @@ public abstract class AbstractCatalog {
         return until;
     }
 
+    /**
+     * Get the last day of the month of a YYYY-MM- until, so that it stays a
+     * valid date.
+     *
+     * @param yearMonth the YYYY-MM- prefix
+     * @return the last day of the month, or 31 if the month is invalid and the until will be rejected anyway
+     */
+    private static String getLastDay(CharSequence yearMonth) {
+        try {
+            int year = Integer.parseInt(yearMonth.subSequence(0, 4).toString());
+            int month = Integer.parseInt(yearMonth.subSequence(5, 7).toString());
+            if (month >= 1 && month <= 12) {
+                return Integer.toString(Datestamp.daysInMonth(year, month));
+            }
+        } catch (NumberFormatException e) {
+            // rejected by isValidGranularity
+        }
+        return "31";
+    }
+
     /**
      * Does the specified date conform to the supported granularity of this repository?
      *
@@ -228,37 +292,7 @@ public abstract class AbstractCatalog {
         if (date.length() > VALID_GRANULARITIES[supportedGranularityOffset].length()) {
             return false;
         }
-
-        if (date.length() < VALID_GRANULARITIES[0].length()
-                || !Character.isDigit(date.charAt(0)) // YYYY
-                || !Character.isDigit(date.charAt(1))
-                || !Character.isDigit(date.charAt(2))
-                || !Character.isDigit(date.charAt(3))
-                || date.charAt(4) != '-'
-                || !Character.isDigit(date.charAt(5)) // MM
-                || !Character.isDigit(date.charAt(6))
-                || date.charAt(7) != '-'
-                || !Character.isDigit(date.charAt(8)) // DD
-                || !Character.isDigit(date.charAt(9))) {
-            return false;
-        }
-
-        if (date.length() > VALID_GRANULARITIES[0].length()) {
-            if (date.charAt(10) != 'T'
-                    || date.charAt(date.length() - 1) != 'Z'
-                    || !Character.isDigit(date.charAt(11)) // hh
-                    || !Character.isDigit(date.charAt(12))
-                    || date.charAt(13) != ':'
-                    || !Character.isDigit(date.charAt(14)) // mm
-                    || !Character.isDigit(date.charAt(15))
-                    || date.charAt(16) != ':'
-                    || !Character.isDigit(date.charAt(17)) // ss
-                    || !Character.isDigit(date.charAt(18))) {
-                return false;
-            }
-        }
-
-        return true;
+        return Datestamp.parse(date) != Datestamp.INVALID;
     }
 
     /**
@@ -340,6 +374,14 @@ public abstract class AbstractCatalog {
             if (secondsToLive != null) {
                 oaiCatalog.millisecondsToLive = Integer.parseInt(secondsToLive) * 1000;
             }
+            String maxPageBytes = properties.getProperty("AbstractCatalog.maxPageBytes");
+            if (maxPageBytes != null) {
+                oaiCatalog.maxPageBytes = Long.parseLong(maxPageBytes);
+            }
+            String maxPageMillis = properties.getProperty("AbstractCatalog.maxPageMillis");
+            if (maxPageMillis != null) {
+                oaiCatalog.maxPageMillis = Long.parseLong(maxPageMillis);
+            }
             String granularity = properties.getProperty("AbstractCatalog.granularity");
             for (int i = 0; granularity != null && i < VALID_GRANULARITIES.length; ++i) {
                 if (granularity.equalsIgnoreCase(VALID_GRANULARITIES[i])) {
@@ -424,6 +466,32 @@ public abstract class AbstractCatalog {
      */
     public abstract String getRecord(String identifier, String metadataPrefix) throws IdDoesNotExistException, CannotDisseminateFormatException, OAIInternalServerError;
 
+    /**
+     * Retrieve the specified record as UTF-8 bytes. The default implementation
+     * encodes the result of getRecord; catalogs whose records come out of the
+     * RenderedRecordCache should override it to avoid the round trip through
+     * a String.
+     *
+     * @param identifier the OAI identifier.
+     * @param metadataPrefix The metadata prefix.
+     * @return the UTF-8 encoded record, or null if getRecord returned null.
+     * @throws IdDoesNotExistException The specified identifier doesn't exist.
+     * @throws CannotDisseminateFormatException The identifier exists, but doesn't support the specified metadataPrefix.
+     * @throws OAIInternalServerError signals an http status code 500 problem
+     */
+    public byte[] getRecordBytes(String identifier, String metadataPrefix) throws IdDoesNotExistException, CannotDisseminateFormatException, OAIInternalServerError {
+        String record = getRecord(identifier, metadataPrefix);
+        if (record == null) {
+            return null;
+        }
+        try {
+            return record.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError(e.getMessage());
+        }
+    }
+
     /**
      * Retrieve the specified metadata for the specified identifier.
      *
@@ -540,6 +608,23 @@ public abstract class AbstractCatalog {
         return resumptionMap;
     }
 
+    /**
+     * Execute a query, timed as the JDBC phase of the request.
+     *
+     * @param stmt the statement
+     * @param sql the query
+     * @return the ResultSet
+     * @throws SQLException the query failed
+     */
+    protected static ResultSet executeQuery(Statement stmt, String sql) throws SQLException {
+        PhaseSpan span = PhaseSpan.start(Phase.JDBC, sql);
+        try {
+            return stmt.executeQuery(sql);
+        } finally {
+            span.end();
+        }
+    }
+
     /** close the repository */
     public abstract void close();
 }
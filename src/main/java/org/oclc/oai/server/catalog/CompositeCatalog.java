@@ -0,0 +1,891 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.oclc.oai.server.verb.BadArgumentException;
+import org.oclc.oai.server.verb.BadResumptionTokenException;
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+import org.oclc.oai.server.verb.IdDoesNotExistException;
+import org.oclc.oai.server.verb.NoItemsMatchException;
+import org.oclc.oai.server.verb.NoMetadataFormatsException;
+import org.oclc.oai.server.verb.NoSetHierarchyException;
+import org.oclc.oai.server.verb.OAIInternalServerError;
+import org.oclc.oai.util.Datestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CompositeCatalog serves the records of several child catalogs as one
+ * repository, for collections split across databases or directory trees.
+ * The children are listed in CompositeCatalog.children, and each one is
+ * created by AbstractCatalog.factory with the properties of the repository
+ * overridden by the CompositeCatalog.[name].* properties, for instance
+ * CompositeCatalog.books.AbstractCatalog.oaiCatalogClassName.
+ * <p/>
+ * A list request asks every child for a page in parallel and merges the
+ * pages by datestamp, with a priority queue holding the next item of each
+ * child, so the result is in datestamp order if each child lists in
+ * datestamp order; a child whose page runs out is asked for its next one
+ * before the merge goes on. The resumptionToken holds the position of every
+ * child: the resumptionToken of its current page and the number of items of
+ * that page already listed. The current pages are kept in a small LRU cache,
+ * so the children are only asked again for a page, and must accept the same
+ * resumptionToken twice, if it has been evicted or the server restarted.
+ * <p/>
+ * GetRecord, ListMetadataFormats and GetMetadata go to the child whose
+ * CompositeCatalog.[name].identifierPrefix starts the identifier, or else to
+ * the children without an identifierPrefix in parallel, the first of them
+ * in CompositeCatalog.children order that has the record winning.
+ */
+public class CompositeCatalog extends AbstractCatalog {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompositeCatalog.class);
+
+    /** Position of a child with nothing left to list */
+    private static final String DONE = "-";
+
+    private final List<Child> children = new ArrayList<Child>();
+    private final int maxListSize;
+    private final long timeoutMillis;
+    private final ExecutorService workers;
+
+    /** The pages being listed, by cacheKey() */
+    private final Map<String, Page> pages;
+
+    private static class Child {
+        private final int index;
+        private final String name;
+        private final AbstractCatalog catalog;
+        private final String identifierPrefix;
+
+        private Child(int index, String name, AbstractCatalog catalog, String identifierPrefix) {
+            this.index = index;
+            this.name = name;
+            this.catalog = catalog;
+            this.identifierPrefix = identifierPrefix;
+        }
+    }
+
+    /** The arguments of a list request */
+    private static class Query {
+        private final boolean records;
+        private final String from;
+        private final String until;
+        private final String set;
+        private final String metadataPrefix;
+
+        private Query(boolean records, String from, String until, String set, String metadataPrefix) {
+            this.records = records;
+            this.from = from;
+            this.until = until;
+            this.set = set;
+            this.metadataPrefix = metadataPrefix;
+        }
+    }
+
+    /** A page of headers or records returned by a child */
+    private static class Page {
+        private final Child child;
+        /** The resumptionToken that returned it, "" for the first page */
+        private final String token;
+        /** The header or record Objects */
+        private final List<Object> items;
+        /** The identifiers of the headers, or null for records */
+        private final List<String> identifiers;
+        private final long[] datestamps;
+        /** The resumptionToken of the next page, or null */
+        private final String nextToken;
+
+        private Page(Child child, String token, List<Object> items, List<String> identifiers, String nextToken) {
+            this.child = child;
+            this.token = token;
+            this.items = items;
+            this.identifiers = identifiers;
+            this.nextToken = nextToken;
+            datestamps = new long[items.size()];
+            for (int i = 0; i < datestamps.length; ++i) {
+                datestamps[i] = getDatestamp(items.get(i));
+            }
+        }
+    }
+
+    /** The position of a child in the merge */
+    private static class Head {
+        private Page page;
+        private int position;
+
+        private Head(Page page, int position) {
+            this.page = page;
+            this.position = position;
+        }
+
+        private boolean hasItem() {
+            return position < page.items.size();
+        }
+
+        private long datestamp() {
+            return page.datestamps[position];
+        }
+    }
+
+    private static final Comparator<Head> HEAD_ORDER = new Comparator<Head>() {
+        public int compare(Head h1, Head h2) {
+            long d1 = h1.datestamp();
+            long d2 = h2.datestamp();
+            if (d1 != d2) {
+                return d1 < d2 ? -1 : 1;
+            }
+            return h1.page.child.index - h2.page.child.index;
+        }
+    };
+
+    public CompositeCatalog(Properties properties, ServletContext context) throws Throwable {
+        String temp = properties.getProperty("CompositeCatalog.maxListSize");
+        if (temp == null) {
+            throw new IllegalArgumentException("CompositeCatalog.maxListSize is missing from the properties file");
+        }
+        maxListSize = Integer.parseInt(temp);
+        timeoutMillis = Long.parseLong(properties.getProperty("CompositeCatalog.timeoutSeconds", "60")) * 1000L;
+        final int maxPages = Integer.parseInt(properties.getProperty("CompositeCatalog.maxCachedPages", "64"));
+        pages = new LinkedHashMap<String, Page>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+                return size() > maxPages;
+            }
+        };
+
+        temp = properties.getProperty("CompositeCatalog.children");
+        if (temp == null || temp.trim().length() == 0) {
+            throw new IllegalArgumentException("CompositeCatalog.children is missing from the properties file");
+        }
+        String[] names = temp.trim().split("[\\s,]+");
+        for (int i = 0; i < names.length; ++i) {
+            Properties childProperties = getChildProperties(properties, names[i]);
+            if (getClass().getName().equals(childProperties.getProperty("AbstractCatalog.oaiCatalogClassName"))) {
+                throw new IllegalArgumentException("CompositeCatalog." + names[i] + ".AbstractCatalog.oaiCatalogClassName is missing from the properties file");
+            }
+            AbstractCatalog catalog = AbstractCatalog.factory(childProperties, context);
+            children.add(new Child(i, names[i], catalog, properties.getProperty("CompositeCatalog." + names[i] + ".identifierPrefix")));
+            LOGGER.info("CompositeCatalog: child " + names[i] + " is a " + catalog.getClass().getName());
+        }
+
+        int threads = Integer.parseInt(properties.getProperty("CompositeCatalog.threads", String.valueOf(children.size())));
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CompositeCatalog-worker-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        LOGGER.debug("in CompositeCatalog(): maxListSize=" + maxListSize + " children=" + children.size() + " threads=" + threads);
+    }
+
+    /**
+     * The RecordFactory cache of the repository isn't passed on to the
+     * children: their caches would all open the same RecordFactory.diskCacheDir
+     * and overwrite each other's segments. A child only gets a cache from its
+     * own CompositeCatalog.[name].RecordFactory.* properties.
+     *
+     * @return the properties of the repository, overridden by the CompositeCatalog.[name].* properties
+     */
+    private static Properties getChildProperties(Properties properties, String name) {
+        String prefix = "CompositeCatalog." + name + ".";
+        Properties childProperties = new Properties();
+        Enumeration propNames = properties.propertyNames();
+        while (propNames.hasMoreElements()) {
+            String propertyName = (String) propNames.nextElement();
+            if (propertyName.equals("RecordFactory.cacheMaxBytes") || propertyName.startsWith("RecordFactory.diskCache")) {
+                continue;
+            }
+            childProperties.setProperty(propertyName, properties.getProperty(propertyName));
+        }
+        propNames = properties.propertyNames();
+        while (propNames.hasMoreElements()) {
+            String propertyName = (String) propNames.nextElement();
+            if (propertyName.startsWith(prefix)) {
+                childProperties.setProperty(propertyName.substring(prefix.length()), properties.getProperty(propertyName));
+            }
+        }
+        return childProperties;
+    }
+
+    /**
+     * @return the child catalogs, in CompositeCatalog.children order
+     */
+    public List<AbstractCatalog> getChildren() {
+        List<AbstractCatalog> catalogs = new ArrayList<AbstractCatalog>();
+        for (Child child : children) {
+            catalogs.add(child.catalog);
+        }
+        return catalogs;
+    }
+
+    public int getOpenResumptionTokenCount() {
+        int count = -1;
+        for (Child child : children) {
+            int childCount = child.catalog.getOpenResumptionTokenCount();
+            if (childCount >= 0) {
+                count = Math.max(count, 0) + childCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Retrieve a list of Identifiers that satisfy the criteria parameters
+     *
+     * @param from beginning date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param until ending date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param set set name or null if no set is desired
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return a Map object containing an optional "resumptionMap" and "headers" and "identifiers" Iterators.
+     */
+    public Map<String, Object> listIdentifiers(String from, String until, String set, String metadataPrefix)
+            throws BadArgumentException, CannotDisseminateFormatException, NoItemsMatchException, NoSetHierarchyException, OAIInternalServerError {
+        return list(new Query(false, from, until, set, metadataPrefix));
+    }
+
+    /**
+     * Retrieve the next set of Identifiers associated with the resumptionToken
+     *
+     * @param resumptionToken a token from a previous listIdentifiers() result
+     * @return a Map object containing an optional "resumptionMap" and "headers" and "identifiers" Iterators.
+     */
+    public Map<String, Object> listIdentifiers(String resumptionToken) throws BadResumptionTokenException, OAIInternalServerError {
+        return list(false, resumptionToken);
+    }
+
+    /**
+     * Retrieve a list of records that satisfy the specified criteria
+     *
+     * @param from beginning date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param until ending date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param set set name or null if no set is desired
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return a Map object containing an optional "resumptionMap" and a "records" Iterator.
+     */
+    public Map<String, Object> listRecords(String from, String until, String set, String metadataPrefix)
+            throws BadArgumentException, CannotDisseminateFormatException, NoItemsMatchException, NoSetHierarchyException, OAIInternalServerError {
+        return list(new Query(true, from, until, set, metadataPrefix));
+    }
+
+    /**
+     * Retrieve the next set of records associated with the resumptionToken
+     *
+     * @param resumptionToken a token from a previous listRecords() result
+     * @return a Map object containing an optional "resumptionMap" and a "records" Iterator.
+     */
+    public Map<String, Object> listRecords(String resumptionToken) throws BadResumptionTokenException, OAIInternalServerError {
+        return list(true, resumptionToken);
+    }
+
+    /** Start a list: every child is at the start of its first page. */
+    private Map<String, Object> list(Query query)
+            throws BadArgumentException, CannotDisseminateFormatException, NoItemsMatchException, NoSetHierarchyException, OAIInternalServerError {
+        String[] tokens = new String[children.size()];
+        int[] positions = new int[children.size()];
+        for (int i = 0; i < tokens.length; ++i) {
+            tokens[i] = "";
+        }
+        try {
+            return list(query, tokens, positions, 0);
+        } catch (BadResumptionTokenException e) {
+            throw new OAIInternalServerError("a child refused its own resumptionToken");
+        }
+    }
+
+    /** Resume a list from the positions of the children in the resumptionToken. */
+    private Map<String, Object> list(boolean records, String resumptionToken) throws BadResumptionTokenException, OAIInternalServerError {
+        String[] fields = resumptionToken.split("!", -1);
+        if (fields.length != 5 + children.size()) {
+            throw new BadResumptionTokenException();
+        }
+        try {
+            int cursor = Integer.parseInt(fields[0]);
+            Query query = new Query(records, decode(fields[1]), decode(fields[2]), decode(fields[3]), decode(fields[4]));
+            String[] tokens = new String[children.size()];
+            int[] positions = new int[children.size()];
+            for (int i = 0; i < tokens.length; ++i) {
+                String field = fields[5 + i];
+                if (!DONE.equals(field)) {
+                    int dot = field.indexOf('.');
+                    positions[i] = Integer.parseInt(field.substring(0, dot));
+                    tokens[i] = URLDecoder.decode(field.substring(dot + 1), "UTF-8");
+                    if (positions[i] < 0) {
+                        throw new BadResumptionTokenException();
+                    }
+                }
+            }
+            return list(query, tokens, positions, cursor);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            throw new BadResumptionTokenException();
+        } catch (StringIndexOutOfBoundsException e) {
+            throw new BadResumptionTokenException();
+        } catch (BadArgumentException e) {
+            throw new BadResumptionTokenException();
+        } catch (CannotDisseminateFormatException e) {
+            throw new BadResumptionTokenException();
+        } catch (NoItemsMatchException e) {
+            throw new BadResumptionTokenException();
+        } catch (NoSetHierarchyException e) {
+            throw new BadResumptionTokenException();
+        }
+    }
+
+    /**
+     * Merge a page from the children.
+     *
+     * @param tokens the resumptionToken of the current page of each child, "" for its first page, or null if it is done
+     * @param positions the number of items of the current page of each child already listed
+     * @param cursor the number of items listed before this page
+     */
+    private Map<String, Object> list(Query query, String[] tokens, int[] positions, int cursor)
+            throws BadArgumentException, BadResumptionTokenException, CannotDisseminateFormatException,
+            NoItemsMatchException, NoSetHierarchyException, OAIInternalServerError {
+        // the current page of every child, fetched in parallel unless it is cached
+        Map<Integer, Future<Page>> futures = new HashMap<Integer, Future<Page>>();
+        Page[] current = new Page[children.size()];
+        for (Child child : children) {
+            String token = tokens[child.index];
+            if (token != null) {
+                synchronized (pages) {
+                    current[child.index] = pages.get(cacheKey(query, child, token));
+                }
+                if (current[child.index] == null) {
+                    futures.put(Integer.valueOf(child.index), submitFetch(query, child, token));
+                }
+            }
+        }
+        Exception refusal = null;
+        int refusals = 0;
+        for (Map.Entry<Integer, Future<Page>> entry : futures.entrySet()) {
+            try {
+                current[entry.getKey().intValue()] = get(entry.getValue(), children.get(entry.getKey().intValue()));
+            } catch (CannotDisseminateFormatException e) {
+                refusal = e;
+                refusals++;
+            } catch (NoSetHierarchyException e) {
+                refusal = e;
+                refusals++;
+            }
+        }
+        // a child without the metadataPrefix or the sets has nothing to list, unless none has them
+        if (refusal != null && refusals == futures.size() && futures.size() == children.size()) {
+            if (refusal instanceof CannotDisseminateFormatException) {
+                throw (CannotDisseminateFormatException) refusal;
+            }
+            throw (NoSetHierarchyException) refusal;
+        }
+
+        PriorityQueue<Head> queue = new PriorityQueue<Head>(Math.max(1, children.size()), HEAD_ORDER);
+        Head[] heads = new Head[children.size()];
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i] != null) {
+                if (positions[i] > current[i].items.size()) {
+                    throw new BadResumptionTokenException();
+                }
+                heads[i] = new Head(current[i], positions[i]);
+                if (advance(query, heads[i])) {
+                    queue.add(heads[i]);
+                }
+            }
+        }
+
+        List<Object> items = new ArrayList<Object>();
+        List<String> identifiers = new ArrayList<String>();
+        PageBudget budget = query.records ? startPage() : null;
+        while (items.size() < maxListSize && !queue.isEmpty() && (budget == null || !budget.isExhausted())) {
+            Head head = queue.poll();
+            Object item = head.page.items.get(head.position);
+            items.add(item);
+            if (budget != null) {
+                budget.add(item);
+            } else {
+                identifiers.add(head.page.identifiers.get(head.position));
+            }
+            head.position++;
+            if (advance(query, head)) {
+                queue.add(head);
+            }
+        }
+        if (items.isEmpty()) {
+            throw new NoItemsMatchException();
+        }
+
+        StringBuilder resumptionTokenSb = new StringBuilder();
+        resumptionTokenSb.append(cursor + items.size()).append('!');
+        resumptionTokenSb.append(encode(query.from)).append('!');
+        resumptionTokenSb.append(encode(query.until)).append('!');
+        resumptionTokenSb.append(encode(query.set)).append('!');
+        resumptionTokenSb.append(encode(query.metadataPrefix));
+        boolean more = false;
+        synchronized (pages) {
+            for (int i = 0; i < heads.length; ++i) {
+                resumptionTokenSb.append('!');
+                Head head = heads[i];
+                if (head == null || !head.hasItem()) {
+                    resumptionTokenSb.append(DONE);
+                    continue;
+                }
+                more = true;
+                pages.put(cacheKey(query, head.page.child, head.page.token), head.page);
+                resumptionTokenSb.append(head.position).append('.').append(encode(head.page.token));
+            }
+        }
+        if (budget != null) {
+            budget.finish(items.size(), more);
+        }
+
+        Map<String, Object> listMap = new HashMap<String, Object>();
+        if (more) {
+            listMap.put("resumptionMap", getResumptionMap(resumptionTokenSb.toString(), -1, cursor));
+        }
+        if (query.records) {
+            listMap.put("records", items.iterator());
+        } else {
+            List<String> headers = new ArrayList<String>(items.size());
+            for (Object item : items) {
+                headers.add((String) item);
+            }
+            listMap.put("headers", headers.iterator());
+            listMap.put("identifiers", identifiers.iterator());
+        }
+        return listMap;
+    }
+
+    /**
+     * Move past the end of the pages of a child, fetching the next ones.
+     *
+     * @return false if the child has nothing left to list
+     */
+    private boolean advance(Query query, Head head) throws BadResumptionTokenException, OAIInternalServerError {
+        while (!head.hasItem() && head.page.nextToken != null) {
+            try {
+                head.page = get(submitFetch(query, head.page.child, head.page.nextToken), head.page.child);
+            } catch (OAIInternalServerError e) {
+                throw e;
+            } catch (BadResumptionTokenException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new OAIInternalServerError("CompositeCatalog: child " + head.page.child.name + " failed: " + e);
+            }
+            head.position = 0;
+        }
+        return head.hasItem();
+    }
+
+    private static String cacheKey(Query query, Child child, String token) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(query.records ? 'R' : 'I').append(child.index).append('!');
+        if (token.length() == 0) {
+            sb.append(query.from).append('!').append(query.until).append('!').append(query.set).append('!').append(query.metadataPrefix);
+        } else {
+            sb.append(token);
+        }
+        return sb.toString();
+    }
+
+    private Future<Page> submitFetch(final Query query, final Child child, final String token) {
+        return workers.submit(new Callable<Page>() {
+            public Page call() throws Exception {
+                return fetch(query, child, token);
+            }
+        });
+    }
+
+    /** Ask a child for a page. */
+    private static Page fetch(Query query, Child child, String token) throws Exception {
+        Map<String, Object> map;
+        try {
+            if (token.length() == 0) {
+                if (query.records) {
+                    map = child.catalog.listRecords(query.from, query.until, query.set, query.metadataPrefix);
+                } else {
+                    map = child.catalog.listIdentifiers(query.from, query.until, query.set, query.metadataPrefix);
+                }
+            } else if (query.records) {
+                map = child.catalog.listRecords(token);
+            } else {
+                map = child.catalog.listIdentifiers(token);
+            }
+        } catch (NoItemsMatchException e) {
+            return new Page(child, token, new ArrayList<Object>(), new ArrayList<String>(), null);
+        }
+        List<Object> items = new ArrayList<Object>();
+        List<String> identifiers = null;
+        Iterator iterator = (Iterator) map.get(query.records ? "records" : "headers");
+        while (iterator.hasNext()) {
+            items.add(iterator.next());
+        }
+        if (!query.records) {
+            identifiers = new ArrayList<String>();
+            iterator = (Iterator) map.get("identifiers");
+            while (iterator.hasNext()) {
+                identifiers.add((String) iterator.next());
+            }
+        }
+        String nextToken = (String) map.get("resumptionToken");
+        Map resumptionMap = (Map) map.get("resumptionMap");
+        if (resumptionMap != null) {
+            nextToken = (String) resumptionMap.get("resumptionToken");
+        }
+        return new Page(child, token, items, identifiers, nextToken);
+    }
+
+    /**
+     * Wait for a page, rethrowing the OAI exceptions of the child.
+     */
+    private Page get(Future<Page> future, Child child)
+            throws BadArgumentException, BadResumptionTokenException, CannotDisseminateFormatException,
+            NoSetHierarchyException, OAIInternalServerError {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new OAIInternalServerError("CompositeCatalog: child " + child.name + " didn't answer within " + timeoutMillis + "ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new OAIInternalServerError("CompositeCatalog: interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BadArgumentException) {
+                throw (BadArgumentException) cause;
+            } else if (cause instanceof BadResumptionTokenException) {
+                throw (BadResumptionTokenException) cause;
+            } else if (cause instanceof CannotDisseminateFormatException) {
+                throw (CannotDisseminateFormatException) cause;
+            } else if (cause instanceof NoSetHierarchyException) {
+                throw (NoSetHierarchyException) cause;
+            } else if (cause instanceof OAIInternalServerError) {
+                throw (OAIInternalServerError) cause;
+            }
+            LOGGER.error("CompositeCatalog: child " + child.name + " failed", cause);
+            throw new OAIInternalServerError("CompositeCatalog: child " + child.name + " failed: " + cause);
+        }
+    }
+
+    /**
+     * Find the datestamp in a header or a record.
+     *
+     * @return the datestamp, or Datestamp.INVALID, which comes first
+     */
+    private static long getDatestamp(Object item) {
+        String s;
+        if (item instanceof RenderedRecord || item instanceof byte[]) {
+            byte[] bytes = item instanceof RenderedRecord ? ((RenderedRecord) item).getBytes() : (byte[]) item;
+            int start = indexOf(bytes, DATESTAMP_START);
+            if (start < 0) {
+                return Datestamp.INVALID;
+            }
+            int length = 0;
+            start += DATESTAMP_START.length;
+            while (start + length < bytes.length && bytes[start + length] != '<') {
+                length++;
+            }
+            try {
+                s = new String(bytes, start, length, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            String record = String.valueOf(item);
+            int start = record.indexOf("<datestamp>");
+            int end = record.indexOf("</datestamp>", start);
+            if (start < 0 || end < 0) {
+                return Datestamp.INVALID;
+            }
+            s = record.substring(start + "<datestamp>".length(), end);
+        }
+        return Datestamp.parse(s.trim());
+    }
+
+    private static final byte[] DATESTAMP_START = {'<', 'd', 'a', 't', 'e', 's', 't', 'a', 'm', 'p', '>'};
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; ++i) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String encode(String s) {
+        try {
+            return s == null ? "" : URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String s) throws UnsupportedEncodingException {
+        return s.length() == 0 ? null : URLDecoder.decode(s, "UTF-8");
+    }
+
+    /** A request for a record, sent to the children that may have it */
+    private interface Lookup<T> {
+        T lookup(AbstractCatalog catalog) throws Exception;
+    }
+
+    /**
+     * Send a lookup to the child whose identifierPrefix matches the
+     * identifier, or else to every child without an identifierPrefix.
+     *
+     * @return the result of the first child, in CompositeCatalog.children order, that has the record
+     * @throws Exception IdDoesNotExistException if no child has it, or the exception of the first child that failed otherwise
+     */
+    private <T> T route(String identifier, final Lookup<T> lookup) throws Exception {
+        List<Child> candidates = new ArrayList<Child>();
+        for (Child child : children) {
+            if (child.identifierPrefix != null && identifier.startsWith(child.identifierPrefix)) {
+                candidates = Collections.singletonList(child);
+                break;
+            } else if (child.identifierPrefix == null) {
+                candidates.add(child);
+            }
+        }
+        if (candidates.size() == 1) {
+            return lookup.lookup(candidates.get(0).catalog);
+        }
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (final Child child : candidates) {
+            futures.add(workers.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    return lookup.lookup(child.catalog);
+                }
+            }));
+        }
+        Exception failure = null;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                return futures.get(i).get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (failure == null && !(e.getCause() instanceof IdDoesNotExistException)) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            } catch (TimeoutException e) {
+                if (failure == null) {
+                    failure = new OAIInternalServerError("CompositeCatalog: child " + candidates.get(i).name + " didn't answer within " + timeoutMillis + "ms");
+                }
+            } finally {
+                futures.get(i).cancel(true);
+            }
+        }
+        for (Future<T> future : futures) {
+            future.cancel(true);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        throw new IdDoesNotExistException(identifier);
+    }
+
+    /**
+     * Retrieve the specified metadata for the specified oaiIdentifier
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return the Record object containing the result.
+     * @throws CannotDisseminateFormatException signals an http status code 400 problem
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     * @throws OAIInternalServerError signals an http status code 500 problem
+     */
+    public String getRecord(final String oaiIdentifier, final String metadataPrefix)
+            throws IdDoesNotExistException, CannotDisseminateFormatException, OAIInternalServerError {
+        try {
+            return route(oaiIdentifier, new Lookup<String>() {
+                public String lookup(AbstractCatalog catalog) throws Exception {
+                    return catalog.getRecord(oaiIdentifier, metadataPrefix);
+                }
+            });
+        } catch (IdDoesNotExistException e) {
+            throw e;
+        } catch (CannotDisseminateFormatException e) {
+            throw e;
+        } catch (OAIInternalServerError e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError(e.toString());
+        }
+    }
+
+    /**
+     * Retrieve the specified record as UTF-8 bytes, from the child that has it.
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return the UTF-8 encoded record.
+     * @throws CannotDisseminateFormatException signals an http status code 400 problem
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     * @throws OAIInternalServerError signals an http status code 500 problem
+     */
+    public byte[] getRecordBytes(final String oaiIdentifier, final String metadataPrefix)
+            throws IdDoesNotExistException, CannotDisseminateFormatException, OAIInternalServerError {
+        try {
+            return route(oaiIdentifier, new Lookup<byte[]>() {
+                public byte[] lookup(AbstractCatalog catalog) throws Exception {
+                    return catalog.getRecordBytes(oaiIdentifier, metadataPrefix);
+                }
+            });
+        } catch (IdDoesNotExistException e) {
+            throw e;
+        } catch (CannotDisseminateFormatException e) {
+            throw e;
+        } catch (OAIInternalServerError e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError(e.toString());
+        }
+    }
+
+    /**
+     * Retrieve the specified metadata for the specified identifier.
+     *
+     * @param oaiIdentifier the OAI identifier.
+     * @param metadataPrefix The metadata prefix.
+     * @return the String containing the result record.
+     * @throws OAIInternalServerError signals an http status code 500 problem.
+     * @throws CannotDisseminateFormatException The identifier exists, but doesn't support the specified metadataPrefix.
+     * @throws IdDoesNotExistException The identifier does not exist.
+     */
+    public String getMetadata(final String oaiIdentifier, final String metadataPrefix)
+            throws OAIInternalServerError, IdDoesNotExistException, CannotDisseminateFormatException {
+        try {
+            return route(oaiIdentifier, new Lookup<String>() {
+                public String lookup(AbstractCatalog catalog) throws Exception {
+                    return catalog.getMetadata(oaiIdentifier, metadataPrefix);
+                }
+            });
+        } catch (IdDoesNotExistException e) {
+            throw e;
+        } catch (CannotDisseminateFormatException e) {
+            throw e;
+        } catch (OAIInternalServerError e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError(e.toString());
+        }
+    }
+
+    /**
+     * Retrieve a list of schemaLocation values associated with the specified
+     * oaiIdentifier.
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @return a List<String> containing schemaLocation Strings
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     * @throws NoMetadataFormatsException the record has no metadata formats
+     * @throws OAIInternalServerError signals an http status code 500 problem
+     */
+    public List getSchemaLocations(final String oaiIdentifier) throws IdDoesNotExistException, NoMetadataFormatsException, OAIInternalServerError {
+        try {
+            return route(oaiIdentifier, new Lookup<List>() {
+                public List lookup(AbstractCatalog catalog) throws Exception {
+                    return catalog.getSchemaLocations(oaiIdentifier);
+                }
+            });
+        } catch (IdDoesNotExistException e) {
+            throw e;
+        } catch (NoMetadataFormatsException e) {
+            throw e;
+        } catch (OAIInternalServerError e) {
+            throw e;
+        } catch (Exception e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError(e.toString());
+        }
+    }
+
+    /**
+     * The sets of all the children, without duplicates, in one response.
+     */
+    public Map<String, Object> listSets() throws NoSetHierarchyException, OAIInternalServerError {
+        Set<Object> sets = new LinkedHashSet<Object>();
+        boolean hierarchy = false;
+        for (Child child : children) {
+            try {
+                Map<String, Object> listSetsMap = child.catalog.listSets();
+                while (listSetsMap != null) {
+                    hierarchy = true;
+                    Iterator iterator = (Iterator) listSetsMap.get("sets");
+                    while (iterator.hasNext()) {
+                        sets.add(iterator.next());
+                    }
+                    Map resumptionMap = (Map) listSetsMap.get("resumptionMap");
+                    String resumptionToken = resumptionMap == null ? null : (String) resumptionMap.get("resumptionToken");
+                    listSetsMap = resumptionToken == null ? null : child.catalog.listSets(resumptionToken);
+                }
+            } catch (NoSetHierarchyException e) {
+                // this child has no sets
+            } catch (BadResumptionTokenException e) {
+                throw new OAIInternalServerError("CompositeCatalog: child " + child.name + " refused its own resumptionToken");
+            }
+        }
+        if (!hierarchy) {
+            throw new NoSetHierarchyException();
+        }
+        Map<String, Object> listSetsMap = new HashMap<String, Object>();
+        listSetsMap.put("sets", sets.iterator());
+        return listSetsMap;
+    }
+
+    public Map<String, Object> listSets(String resumptionToken) throws BadResumptionTokenException {
+        throw new BadResumptionTokenException();
+    }
+
+    /** stop the workers and close the children */
+    public void close() {
+        workers.shutdownNow();
+        for (Child child : children) {
+            child.catalog.close();
+        }
+    }
+}
@@ -0,0 +1,880 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DiskRecordCache is the disk-backed tier of the RenderedRecordCache. Rendered
+ * records are appended as UTF-8 bytes to fixed-size, memory-mapped segment files,
+ * so a hit costs a page-cache read instead of a crosswalk, and the content
+ * survives a redeploy. When a segment is full, the hash, offset and length of
+ * its entries are written to an index file next to it (segment-N.idx), from
+ * which the offset index is rebuilt when the cache is opened; only the
+ * segment being appended to, and a full segment whose index file is missing
+ * or damaged, are scanned.
+ * <p/>
+ * Each entry is laid out as
+ * <pre>
+ * int length | int crc32 | short keyLength | key | short datestampLength | datestamp | int valueLength | value
+ * </pre>
+ * where length is written last, so an entry cut short by a crash is detected
+ * (length 0 or bad crc) and ignores the rest of its segment. The crc of an
+ * entry loaded from an index file is only checked when the entry is read; an
+ * entry that fails the check is dropped and rendered again. Superseded entries
+ * stay in their segment until a background task copies the live entries of
+ * mostly-dead segments forward and deletes them. When the cache outgrows
+ * RecordFactory.diskCacheMaxBytes, the oldest segment is dropped as a whole.
+ * <p/>
+ * The offset index stays on the heap: two longs per slot, at most 60% of the
+ * slots used, i.e. between 27 and 54 bytes per entry (about 500MB for ten
+ * million entries). RecordFactory.diskCacheMaxEntries bounds it by dropping
+ * the oldest segments, like RecordFactory.diskCacheMaxBytes. Keys are told
+ * apart by their 64-bit hash, and by the key stored in the entry when two
+ * hashes are equal, so colliding keys both stay cached.
+ */
+public class DiskRecordCache {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskRecordCache.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int ENTRY_HEADER = 8;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final int maxEntries;
+    private final double compactionRatio;
+
+    /** Segments by id, oldest first. The last one is the one being appended to. */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private final LocationIndex index = new LocationIndex();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private ScheduledExecutorService compactor;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int writeOffset = 0;
+        private long liveBytes = 0;
+
+        private Segment(int id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        private void close() {
+            try {
+                buffer.force();
+                raf.close();
+            } catch (IOException e) {
+                LOGGER.warn("DiskRecordCache: couldn't close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Open (or create) the cache stored in the specified directory.
+     *
+     * @param directory the directory containing the segment files
+     * @param segmentBytes the size of each segment file
+     * @param maxBytes the maximum disk footprint of all the segments (<=0 for no limit)
+     * @param compactionRatio segments whose live/used ratio drops below this value are compacted
+     * @param compactionSeconds the interval between compaction runs (<=0 to disable compaction)
+     * @throws IOException the directory or one of the segments can't be opened
+     */
+    public DiskRecordCache(File directory, int segmentBytes, long maxBytes, double compactionRatio, int compactionSeconds)
+            throws IOException {
+        this(directory, segmentBytes, maxBytes, -1, compactionRatio, compactionSeconds);
+    }
+
+    /**
+     * Open (or create) the cache stored in the specified directory.
+     *
+     * @param directory the directory containing the segment files
+     * @param segmentBytes the size of each segment file
+     * @param maxBytes the maximum disk footprint of all the segments (<=0 for no limit)
+     * @param maxEntries the maximum number of entries in the heap index (<=0 for no limit)
+     * @param compactionRatio segments whose live/used ratio drops below this value are compacted
+     * @param compactionSeconds the interval between compaction runs (<=0 to disable compaction)
+     * @throws IOException the directory or one of the segments can't be opened
+     */
+    public DiskRecordCache(File directory, int segmentBytes, long maxBytes, int maxEntries, double compactionRatio,
+            int compactionSeconds) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.compactionRatio = compactionRatio;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("DiskRecordCache: couldn't create " + directory);
+        }
+        load();
+        if (compactionSeconds > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DiskRecordCache-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    compact();
+                }
+            }, compactionSeconds, compactionSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Create the cache described by the RecordFactory.diskCache* properties.
+     *
+     * @param properties the repository properties
+     * @return a new cache, or null if RecordFactory.diskCacheDir isn't set
+     * @throws IOException the cache directory can't be opened
+     */
+    public static DiskRecordCache factory(Properties properties) throws IOException {
+        String dir = properties.getProperty("RecordFactory.diskCacheDir");
+        if (dir == null) {
+            return null;
+        }
+        int segmentBytes = Integer.parseInt(properties.getProperty("RecordFactory.diskCacheSegmentBytes", "67108864"));
+        long maxBytes = Long.parseLong(properties.getProperty("RecordFactory.diskCacheMaxBytes", "-1"));
+        int maxEntries = Integer.parseInt(properties.getProperty("RecordFactory.diskCacheMaxEntries", "-1"));
+        double compactionRatio = Double.parseDouble(properties.getProperty("RecordFactory.diskCacheCompactionRatio", "0.5"));
+        int compactionSeconds = Integer.parseInt(properties.getProperty("RecordFactory.diskCacheCompactionSeconds", "300"));
+        LOGGER.debug("DiskRecordCache.factory: dir=" + dir + " segmentBytes=" + segmentBytes + " maxBytes=" + maxBytes
+                + " maxEntries=" + maxEntries);
+        return new DiskRecordCache(new File(dir), segmentBytes, maxBytes, maxEntries, compactionRatio, compactionSeconds);
+    }
+
+    /**
+     * Map the existing segments and rebuild the index from their index files,
+     * or from their content when they have none.
+     */
+    private void load() throws IOException {
+        String[] names = directory.list();
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].startsWith(SEGMENT_PREFIX) && names[i].endsWith(SEGMENT_SUFFIX)) {
+                ids.add(Integer.valueOf(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+        int scanned = 0;
+        for (int i = 0; i < ids.size(); ++i) {
+            int id = ids.get(i).intValue();
+            Segment segment = new Segment(id, segmentFile(id), segmentBytes);
+            segments.put(Integer.valueOf(id), segment);
+            boolean full = i < ids.size() - 1;
+            if (full && readIndexFile(segment)) {
+                continue;
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = 0;
+            int length;
+            while ((length = entryLength(buffer, offset)) > 0) {
+                String key = readKey(buffer, offset);
+                index(key, hash(key), segment, offset, length);
+                offset += length;
+            }
+            segment.writeOffset = offset;
+            if (full) {
+                writeIndexFile(segment);
+            }
+            ++scanned;
+        }
+        if (segments.isEmpty()) {
+            newSegment(0);
+        }
+        LOGGER.debug("DiskRecordCache: scanned " + scanned + " segment(s)");
+        LOGGER.info("DiskRecordCache: opened " + directory + " with " + segments.size() + " segment(s) and " + index.size() + " entries");
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%08d", Integer.valueOf(id)) + SEGMENT_SUFFIX);
+    }
+
+    private File indexFile(int id) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%08d", Integer.valueOf(id)) + INDEX_SUFFIX);
+    }
+
+    /**
+     * Write the index file of a full segment: its write offset, then the hash,
+     * offset and length of each entry, then a crc32 of all that. The file is
+     * written under a temporary name and renamed, so it is either complete or
+     * missing.
+     */
+    private void writeIndexFile(Segment segment) throws IOException {
+        File file = indexFile(segment.id);
+        File temp = new File(directory, file.getName() + ".tmp");
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        try {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            out.writeInt(segment.writeOffset);
+            int offset = 0;
+            int length;
+            while (offset < segment.writeOffset && (length = buffer.getInt(offset)) > 0) {
+                out.writeLong(hash(readKey(buffer, offset)));
+                out.writeInt(offset);
+                out.writeInt(length);
+                offset += length;
+            }
+            out.writeLong(-1L);
+            out.writeInt((int) checked.getChecksum().getValue());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            LOGGER.warn("DiskRecordCache: couldn't write " + file);
+        }
+    }
+
+    /**
+     * Index the entries of a full segment from its index file, without
+     * reading the segment.
+     *
+     * @return false if the index file is missing or damaged
+     */
+    private boolean readIndexFile(Segment segment) throws IOException {
+        File file = indexFile(segment.id);
+        if (!file.isFile()) {
+            return false;
+        }
+        List<long[]> entries = new ArrayList<long[]>();
+        int writeOffset;
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            writeOffset = in.readInt();
+            long hash;
+            while ((hash = in.readLong()) != -1L) {
+                entries.add(new long[] { hash, in.readInt(), in.readInt() });
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected || writeOffset > segment.buffer.limit()) {
+                LOGGER.warn("DiskRecordCache: " + file + " is damaged, scanning the segment");
+                return false;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("DiskRecordCache: couldn't read " + file + ", scanning the segment", e);
+            return false;
+        } finally {
+            in.close();
+        }
+        for (long[] entry : entries) {
+            index(null, entry[0], segment, (int) entry[1], (int) entry[2]);
+        }
+        segment.writeOffset = writeOffset;
+        return true;
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id), segmentBytes);
+        segments.put(Integer.valueOf(id), segment);
+        return segment;
+    }
+
+    /**
+     * Get the total length of the entry at the specified offset.
+     *
+     * @return the entry length, or 0 if there's no valid entry there
+     */
+    private static int entryLength(ByteBuffer buffer, int offset) {
+        if (offset + ENTRY_HEADER > buffer.limit()) {
+            return 0;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= ENTRY_HEADER || offset + length > buffer.limit()) {
+            return 0;
+        }
+        byte[] payload = new byte[length - ENTRY_HEADER];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + ENTRY_HEADER);
+        source.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            return 0;
+        }
+        return length;
+    }
+
+    private static String readKey(ByteBuffer buffer, int offset) throws UnsupportedEncodingException {
+        return readString(buffer, offset + ENTRY_HEADER);
+    }
+
+    /**
+     * @return the string, or null if it would run past the end of the buffer
+     */
+    private static String readString(ByteBuffer buffer, int offset) throws UnsupportedEncodingException {
+        if (offset < 0 || offset + 2 > buffer.limit()) {
+            return null;
+        }
+        int length = buffer.getShort(offset) & 0xFFFF;
+        if (offset + 2 + length > buffer.limit()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset + 2);
+        b.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Point the index at a new entry, superseding the previous entry of the key.
+     *
+     * @param key the key of the entry, or null to read it from the segment if needed
+     */
+    private void index(String key, long hash, Segment segment, int offset, int length) throws UnsupportedEncodingException {
+        long location = location(segment.id, offset);
+        int slot = index.first(hash);
+        if (slot >= 0) {
+            // the hash is known: only read the keys if it may be a collision
+            if (key == null) {
+                key = readKey(segment.buffer, offset);
+                if (key == null) {
+                    return;
+                }
+            }
+            slot = find(key, hash);
+        }
+        if (slot >= 0) {
+            long old = index.location(slot);
+            Segment oldSegment = segments.get(Integer.valueOf(segmentId(old)));
+            if (oldSegment != null) {
+                oldSegment.liveBytes -= oldSegment.buffer.getInt(offsetOf(old));
+            }
+            index.set(slot, location);
+        } else {
+            index.insert(hash, location);
+        }
+        segment.liveBytes += length;
+    }
+
+    /**
+     * Find the index slot of the key, comparing the keys stored in the
+     * entries whose hash is the same.
+     *
+     * @return the slot, or -1 if the key isn't indexed
+     */
+    private int find(String key, long hash) throws UnsupportedEncodingException {
+        for (int slot = index.first(hash); slot >= 0; slot = index.next(hash, slot)) {
+            long location = index.location(slot);
+            Segment segment = segments.get(Integer.valueOf(segmentId(location)));
+            if (segment != null && key.equals(readKey(segment.buffer, offsetOf(location)))) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read the payload of an entry: everything after the header, if it
+     * matches its crc32.
+     *
+     * @return the payload, or null if the entry is damaged
+     */
+    private static ByteBuffer readPayload(ByteBuffer buffer, int offset) {
+        int length = entryLength(buffer, offset);
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(offset + length).position(offset + ENTRY_HEADER);
+        return payload.slice();
+    }
+
+    /** Drop a damaged entry from the index, unless it was superseded meanwhile. */
+    private void discard(String key, long location) {
+        LOGGER.warn("DiskRecordCache: the entry of " + key + " in segment " + segmentId(location) + " is damaged");
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            if (slot >= 0 && index.location(slot) == location) {
+                index.remove(slot);
+            }
+        } catch (UnsupportedEncodingException e) {
+            LOGGER.error("An Exception occured", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /** 64-bit FNV-1a hash of the key; 0 is reserved for empty index slots. */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Look up the UTF-8 bytes stored for the key.
+     *
+     * @param key the cache key
+     * @param datestamp the current datestamp of the native record
+     * @return the stored bytes, or null if missing or rendered for another datestamp
+     */
+    public byte[] get(String key, String datestamp) {
+        long damaged = -1;
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            if (slot >= 0) {
+                long location = index.location(slot);
+                ByteBuffer payload = readPayload(segments.get(Integer.valueOf(segmentId(location))).buffer, offsetOf(location));
+                if (payload == null) {
+                    damaged = location;
+                } else {
+                    int offset = 2 + (payload.getShort(0) & 0xFFFF);
+                    if (datestamp.equals(readString(payload, offset))) {
+                        offset += 2 + (payload.getShort(offset) & 0xFFFF);
+                        byte[] value = new byte[payload.getInt(offset)];
+                        payload.position(offset + 4);
+                        payload.get(value);
+                        hitCount.incrementAndGet();
+                        return value;
+                    }
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            LOGGER.error("An Exception occured", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (damaged != -1) {
+            discard(key, damaged);
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Is the key stored for this datestamp? Unlike get, this doesn't copy the
+     * value or count as a hit or a miss, but it does check the crc of the entry.
+     *
+     * @param key the cache key
+     * @param datestamp the current datestamp of the native record
+     * @return true if get would return the value
+     */
+    public boolean contains(String key, String datestamp) {
+        long damaged = -1;
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            if (slot >= 0) {
+                long location = index.location(slot);
+                ByteBuffer payload = readPayload(segments.get(Integer.valueOf(segmentId(location))).buffer, offsetOf(location));
+                if (payload == null) {
+                    damaged = location;
+                } else {
+                    return datestamp.equals(readString(payload, 2 + (payload.getShort(0) & 0xFFFF)));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            LOGGER.error("An Exception occured", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (damaged != -1) {
+            discard(key, damaged);
+        }
+        return false;
+    }
+
+    /**
+     * Append the UTF-8 bytes for the key, superseding any previous entry.
+     *
+     * @param key the cache key
+     * @param datestamp the datestamp of the native record the value was rendered from
+     * @param value the UTF-8 encoded value
+     */
+    public void put(String key, String datestamp, byte[] value) {
+        try {
+            byte[] keyBytes = key.getBytes("UTF-8");
+            byte[] datestampBytes = datestamp.getBytes("UTF-8");
+            int length = ENTRY_HEADER + 2 + keyBytes.length + 2 + datestampBytes.length + 4 + value.length;
+            if (length > segmentBytes || keyBytes.length > 0xFFFF || datestampBytes.length > 0xFFFF) {
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                append(key, keyBytes, datestampBytes, value, length);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            LOGGER.error("DiskRecordCache: couldn't store " + key, e);
+        }
+    }
+
+    /**
+     * Supersede the entry of the key, if any, with an empty one that no
+     * datestamp matches, so the removal survives a restart.
+     *
+     * @param key the cache key
+     */
+    public void remove(String key) {
+        try {
+            byte[] keyBytes = key.getBytes("UTF-8");
+            lock.writeLock().lock();
+            try {
+                if (find(key, hash(key)) >= 0) {
+                    append(key, keyBytes, new byte[0], new byte[0], ENTRY_HEADER + 2 + keyBytes.length + 2 + 4);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            LOGGER.error("DiskRecordCache: couldn't remove " + key, e);
+        }
+    }
+
+    /** Append an entry. The caller must hold the write lock. */
+    private void append(String key, byte[] keyBytes, byte[] datestampBytes, byte[] value, int length) throws IOException {
+        Segment segment = segments.get(segments.lastKey());
+        if (segment.writeOffset + length > segmentBytes) {
+            segment.buffer.force();
+            writeIndexFile(segment);
+            segment = newSegment(segment.id + 1);
+            enforceLimits();
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = segment.writeOffset;
+        buffer.position(offset + ENTRY_HEADER);
+        buffer.putShort((short) keyBytes.length).put(keyBytes);
+        buffer.putShort((short) datestampBytes.length).put(datestampBytes);
+        buffer.putInt(value.length).put(value);
+
+        byte[] payload = new byte[length - ENTRY_HEADER];
+        buffer.position(offset + ENTRY_HEADER);
+        buffer.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, length);
+
+        segment.writeOffset += length;
+        index(key, hash(key), segment, offset, length);
+    }
+
+    /**
+     * Drop the oldest segments until the cache fits in maxBytes and its index
+     * in maxEntries. The caller must hold the write lock.
+     */
+    private void enforceLimits() {
+        while (segments.size() > 1 && ((maxBytes > 0 && (long) segments.size() * segmentBytes > maxBytes)
+                || (maxEntries > 0 && index.size() > maxEntries))) {
+            dropSegment(segments.get(segments.firstKey()));
+        }
+    }
+
+    private void dropSegment(Segment segment) {
+        segments.remove(Integer.valueOf(segment.id));
+        index.removeSegment(segment.id);
+        segment.close();
+        if (!segment.file.delete()) {
+            LOGGER.warn("DiskRecordCache: couldn't delete " + segment.file);
+        }
+        File indexFile = indexFile(segment.id);
+        if (indexFile.exists() && !indexFile.delete()) {
+            LOGGER.warn("DiskRecordCache: couldn't delete " + indexFile);
+        }
+    }
+
+    /**
+     * Copy the live entries of mostly-dead segments to the current segment and
+     * delete them. Runs on the background compactor thread.
+     */
+    public void compact() {
+        List<Segment> candidates = new ArrayList<Segment>();
+        lock.readLock().lock();
+        try {
+            Integer current = segments.lastKey();
+            for (Segment segment : segments.values()) {
+                if (segment.id != current.intValue() && segment.liveBytes < compactionRatio * segment.writeOffset) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Segment segment : candidates) {
+            lock.writeLock().lock();
+            try {
+                if (!segments.containsKey(Integer.valueOf(segment.id))) {
+                    continue;
+                }
+                ByteBuffer buffer = segment.buffer.duplicate();
+                int offset = 0;
+                int length;
+                // the crc is checked, so that a damaged entry isn't copied forward as a valid one
+                while (offset < segment.writeOffset && (length = entryLength(buffer, offset)) > 0) {
+                    String key = readKey(buffer, offset);
+                    int slot = find(key, hash(key));
+                    if (slot >= 0 && index.location(slot) == location(segment.id, offset)) {
+                        int keyLength = buffer.getShort(offset + ENTRY_HEADER) & 0xFFFF;
+                        int datestampOffset = offset + ENTRY_HEADER + 2 + keyLength;
+                        int datestampLength = buffer.getShort(datestampOffset) & 0xFFFF;
+                        byte[] datestampBytes = new byte[datestampLength];
+                        buffer.position(datestampOffset + 2);
+                        buffer.get(datestampBytes);
+                        byte[] value = new byte[buffer.getInt()];
+                        buffer.get(value);
+                        append(key, key.getBytes("UTF-8"), datestampBytes, value, length);
+                    }
+                    offset += length;
+                }
+                if (segments.containsKey(Integer.valueOf(segment.id))) {
+                    dropSegment(segment);
+                }
+                compactionCount.incrementAndGet();
+                LOGGER.debug("DiskRecordCache.compact: compacted segment " + segment.id);
+            } catch (IOException e) {
+                LOGGER.error("DiskRecordCache: couldn't compact segment " + segment.id, e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /** Stop the compactor and flush the segments. */
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    public int getSize() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("DiskRecordCache: ");
+        sb.append("dir=").append(directory);
+        sb.append(" entries=").append(getSize());
+        sb.append(" segments=").append(getSegmentCount());
+        sb.append(" hits=").append(hitCount);
+        sb.append(" misses=").append(missCount);
+        sb.append(" compactions=").append(compactionCount);
+        return sb.toString();
+    }
+
+    /**
+     * Open-addressing map from key hash to packed (segment, offset) location,
+     * held in two primitive arrays so that millions of entries don't cost
+     * millions of objects. Keys whose hashes collide get a slot each; the
+     * cache tells them apart by the keys stored in their entries.
+     */
+    private static class LocationIndex {
+        private long[] hashes = new long[1 << 16];
+        private long[] locations = new long[1 << 16];
+        private int size = 0;
+
+        private int slot(long hash) {
+            long h = hash ^ (hash >>> 29);
+            return (int) (h & (hashes.length - 1));
+        }
+
+        /**
+         * @return the first slot holding the hash, or -1
+         */
+        int first(long hash) {
+            return scan(hash, slot(hash));
+        }
+
+        /**
+         * @return the next slot after this one holding the hash, or -1
+         */
+        int next(long hash, int slot) {
+            return scan(hash, (slot + 1) & (hashes.length - 1));
+        }
+
+        private int scan(long hash, int i) {
+            int mask = hashes.length - 1;
+            for (; hashes[i] != 0; i = (i + 1) & mask) {
+                if (hashes[i] == hash) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        long location(int slot) {
+            return locations[slot];
+        }
+
+        void set(int slot, long location) {
+            locations[slot] = location;
+        }
+
+        /** Add an entry, even if the hash is already present. */
+        void insert(long hash, long location) {
+            if (size * 10 >= hashes.length * 6) {
+                resize();
+            }
+            int mask = hashes.length - 1;
+            int i = slot(hash);
+            while (hashes[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            locations[i] = location;
+            ++size;
+        }
+
+        void remove(int i) {
+            int mask = hashes.length - 1;
+            // backward-shift deletion keeps the probe sequences intact without tombstones
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (hashes[j] == 0) {
+                    break;
+                }
+                int k = slot(hashes[j]);
+                if ((j > i && (k <= i || k > j)) || (j < i && k <= i && k > j)) {
+                    hashes[i] = hashes[j];
+                    locations[i] = locations[j];
+                    i = j;
+                }
+            }
+            hashes[i] = 0;
+            locations[i] = 0;
+            --size;
+        }
+
+        void removeSegment(int segmentId) {
+            int i = 0;
+            while (i < hashes.length) {
+                if (hashes[i] != 0 && segmentId(locations[i]) == segmentId) {
+                    // another entry may have been shifted into this slot
+                    remove(i);
+                } else {
+                    ++i;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void resize() {
+            long[] oldHashes = hashes;
+            long[] oldLocations = locations;
+            hashes = new long[oldHashes.length * 2];
+            locations = new long[oldLocations.length * 2];
+            size = 0;
+            for (int i = 0; i < oldHashes.length; ++i) {
+                if (oldHashes[i] != 0) {
+                    insert(oldHashes[i], oldLocations[i]);
+                }
+            }
+        }
+    }
+}
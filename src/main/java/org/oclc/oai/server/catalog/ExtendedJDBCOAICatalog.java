@@ -250,7 +250,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
         try {
             con = startConnection();
             Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(populateIdentifierQuery(oaiIdentifier));
+            ResultSet rs = executeQuery(stmt, populateIdentifierQuery(oaiIdentifier));
             /*
              * Let your recordFactory decide which schemaLocations
              * (i.e. metadataFormats) it can produce from the record.
@@ -548,7 +548,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set, 0, maxListSize));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set, 0, maxListSize));
 
             int count;
 
@@ -668,7 +668,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some more records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set, oldCount, maxListSize));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set, oldCount, maxListSize));
             int count;
 
             /* load the headers and identifiers ArrayLists. */
@@ -750,7 +750,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
             con = startConnection();
             Statement stmt = con.createStatement();
             ResultSet rs =
-                    stmt.executeQuery(populateIdentifierQuery(oaiIdentifier));
+                    executeQuery(stmt, populateIdentifierQuery(oaiIdentifier));
             if (!rs.next()) {
                 endConnection(con);
                 throw new IdDoesNotExistException(oaiIdentifier);
@@ -800,7 +800,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set, 0, maxListSize));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set, 0, maxListSize));
 
             int count;
 
@@ -913,7 +913,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some more records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set,
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set,
                     oldCount, maxListSize));
 
             int count;
@@ -1037,7 +1037,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
                 con = startConnection();
                 /* Get some records from your database */
                 Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-                ResultSet rs = stmt.executeQuery(setQuery);
+                ResultSet rs = executeQuery(stmt, setQuery);
                 rs.last();
                 int numRows = rs.getRow();
                 rs.beforeFirst();
@@ -1185,7 +1185,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
                 RecordFactory rf = getRecordFactory();
                 String oaiIdentifier = rf.getOAIIdentifier(nativeItem);
                 Statement stmt = con.createStatement();
-                ResultSet rs = stmt.executeQuery(populateSetSpecQuery(oaiIdentifier));
+                ResultSet rs = executeQuery(stmt, populateSetSpecQuery(oaiIdentifier));
                 while (rs.next()) {
                     Map<String, Object> setMap = getColumnValues(rs);
                     setSpecs.add(setMap.get(setSpecItemLabel).toString());
@@ -1217,7 +1217,7 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
                 RecordFactory rf = getRecordFactory();
                 String oaiIdentifier = rf.getOAIIdentifier(nativeItem);
                 Statement stmt = con.createStatement();
-                ResultSet rs = stmt.executeQuery(populateAboutQuery(oaiIdentifier));
+                ResultSet rs = executeQuery(stmt, populateAboutQuery(oaiIdentifier));
                 while (rs.next()) {
                     Map<String, Object> aboutMap = getColumnValues(rs);
                     abouts.add((String) aboutMap.get(aboutValueLabel));
@@ -1305,6 +1305,15 @@ public class ExtendedJDBCOAICatalog extends AbstractCatalog {
         return (String) setItem.get(setDescriptionLabel);
     }
 
+    /**
+     * get the number of resumptionTokens whose result set is held in memory
+     *
+     * @return the number of open resumptionTokens
+     */
+    public int getOpenResumptionTokenCount() {
+        return resumptionResults.size();
+    }
+
     /** close the repository */
     public void close() {
         try {
@@ -15,7 +15,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 import org.oclc.oai.server.verb.BadResumptionTokenException;
@@ -25,6 +24,7 @@ import org.oclc.oai.server.verb.NoItemsMatchException;
 import org.oclc.oai.server.verb.NoMetadataFormatsException;
 import org.oclc.oai.server.verb.NoSetHierarchyException;
 import org.oclc.oai.server.verb.OAIInternalServerError;
+import org.oclc.oai.util.Datestamp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,9 +40,10 @@ public class FileSystemOAICatalog extends AbstractCatalog {
     /** Class logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemOAICatalog.class);
 
-    private SimpleDateFormat dateFormatter = new SimpleDateFormat();
     protected String homeDir;
-    private Map<String, Object> fileDateMap = new HashMap<String, Object>();
+    /** The localIdentifiers of the files, sorted, and the datestamps of the files */
+    private String[] localIdentifiers;
+    private long[] datestamps;
     private Map<String, Object> resumptionResults = new HashMap<String, Object>();
     private int maxListSize;
     private boolean hideExtension = false;
@@ -50,7 +51,6 @@ public class FileSystemOAICatalog extends AbstractCatalog {
     public FileSystemOAICatalog(Properties properties) {
         String temp;
 
-        dateFormatter.applyPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
         temp = properties.getProperty("FileSystemOAICatalog.maxListSize");
         if (temp == null) {
             throw new IllegalArgumentException("FileSystemOAICatalog." +
@@ -71,19 +71,27 @@ public class FileSystemOAICatalog extends AbstractCatalog {
 
         File homeFile = new File(homeDir);
         int homeDirLen = homeFile.getPath().length() + 1;
-        loadFileMap(homeDirLen, homeFile);
+        Map<String, Long> fileDateMap = new TreeMap<String, Long>();
+        loadFileMap(homeDirLen, homeFile, fileDateMap);
+        localIdentifiers = new String[fileDateMap.size()];
+        datestamps = new long[fileDateMap.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : fileDateMap.entrySet()) {
+            localIdentifiers[i] = entry.getKey();
+            datestamps[i] = entry.getValue();
+            ++i;
+        }
     }
 
-    private void loadFileMap(int homeDirLen, File currentDir) {
+    private void loadFileMap(int homeDirLen, File currentDir, Map<String, Long> fileDateMap) {
         String[] list = currentDir.list();
         for (int i = 0; i < list.length; ++i) {
             File child = new File(currentDir, list[i]);
             if (child.isDirectory()) {
-                loadFileMap(homeDirLen, child);
+                loadFileMap(homeDirLen, child, fileDateMap);
             } else if (isMetadataFile(child)) {
                 String localIdentifier = file2LocalIdentifier(homeDirLen, child);
-                String datestamp = date2OAIDatestamp(new Date(child.lastModified()));
-                fileDateMap.put(localIdentifier, datestamp);
+                fileDateMap.put(localIdentifier, Datestamp.truncate(child.lastModified(), true));
             }
         }
     }
@@ -128,18 +136,26 @@ public class FileSystemOAICatalog extends AbstractCatalog {
         return new File(homeDir, fileName);
     }
 
-    private String date2OAIDatestamp(Date date) {
-        return dateFormatter.format(date);
+    /**
+     * @return the index of the first file at or after start whose datestamp
+     *         is between from and until, or datestamps.length if there is none
+     */
+    private int nextMatch(int start, long from, long until) {
+        int i = start;
+        while (i < datestamps.length && (datestamps[i] < from || datestamps[i] > until)) {
+            ++i;
+        }
+        return i;
     }
 
     private Map<String, Object> getNativeHeader(String localIdentifier) {
-        Map<String, Object> recordMap = null;
-        if (fileDateMap.containsKey(localIdentifier)) {
-            recordMap = new HashMap();
-            recordMap.put("localIdentifier", localIdentifier);
-            recordMap.put("lastModified", fileDateMap.get(localIdentifier));
-            return recordMap;
+        int i = localIdentifier == null ? -1 : Arrays.binarySearch(localIdentifiers, localIdentifier);
+        if (i < 0) {
+            return null;
         }
+        Map<String, Object> recordMap = new HashMap<String, Object>();
+        recordMap.put("localIdentifier", localIdentifier);
+        recordMap.put("lastModified", Datestamp.format(datestamps[i], true));
         return recordMap;
     }
 
@@ -192,6 +208,35 @@ public class FileSystemOAICatalog extends AbstractCatalog {
         }
     }
 
+    /**
+     * Retrieve the specified record as UTF-8 bytes, straight from the
+     * RenderedRecordCache when possible.
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return the UTF-8 encoded record.
+     * @throws CannotDisseminateFormatException signals an http status code 400 problem
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     * @throws OAIInternalServerError signals an http status code 500 problem
+     */
+    public byte[] getRecordBytes(String oaiIdentifier, String metadataPrefix) throws IdDoesNotExistException, CannotDisseminateFormatException,
+            OAIInternalServerError {
+        Map<String, Object> nativeItem = null;
+        try {
+            String localIdentifier
+                    = getRecordFactory().fromOAIIdentifier(oaiIdentifier);
+
+            nativeItem = getNativeRecord(localIdentifier);
+            if (nativeItem == null) {
+                throw new IdDoesNotExistException(oaiIdentifier);
+            }
+            return constructRenderedRecord(nativeItem, metadataPrefix).getBytes();
+        } catch (IOException e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError("Database Failure");
+        }
+    }
+
 
     /**
      * Retrieve a list of schemaLocation values associated with the specified
@@ -239,19 +284,18 @@ public class FileSystemOAICatalog extends AbstractCatalog {
         Map<String, Object> listIdentifiersMap = new HashMap<String, Object>();
         List<String> headers = new ArrayList<String>();
         List<String> identifiers = new ArrayList<String>();
-        Iterator iterator = fileDateMap.entrySet().iterator();
-        int numRows = fileDateMap.entrySet().size();
+        long fromMillis = Datestamp.parse(from);
+        long untilMillis = Datestamp.parseUntil(until);
+        int numRows = datestamps.length;
         int count = 0;
-        while (count < maxListSize && iterator.hasNext()) {
-            Map.Entry entryDateMap = (Map.Entry) iterator.next();
-            String fileDate = (String) entryDateMap.getValue();
-            if (fileDate.compareTo(from) >= 0 && fileDate.compareTo(until) <= 0) {
-                Map<String, Object> nativeHeader = getNativeHeader((String) entryDateMap.getKey());
-                String[] header = getRecordFactory().createHeader(nativeHeader);
-                headers.add(header[0]);
-                identifiers.add(header[1]);
-                count++;
-            }
+        int i = nextMatch(0, fromMillis, untilMillis);
+        while (count < maxListSize && i < datestamps.length) {
+            Map<String, Object> nativeHeader = getNativeHeader(localIdentifiers[i]);
+            String[] header = getRecordFactory().createHeader(nativeHeader);
+            headers.add(header[0]);
+            identifiers.add(header[1]);
+            count++;
+            i = nextMatch(i + 1, fromMillis, untilMillis);
         }
 
         if (count == 0) {
@@ -259,9 +303,9 @@ public class FileSystemOAICatalog extends AbstractCatalog {
         }
 
         /* decide if you're done */
-        if (iterator.hasNext()) {
+        if (i < datestamps.length) {
             String resumptionId = getRSName();
-            resumptionResults.put(resumptionId, iterator);
+            resumptionResults.put(resumptionId, new ListPosition(i, fromMillis, untilMillis));
 
             /*****************************************************************
              * Construct the resumptionToken String however you see fit.
@@ -320,30 +364,31 @@ public class FileSystemOAICatalog extends AbstractCatalog {
         }
 
         /* Get some more records from your database */
-        Iterator iterator = (Iterator) resumptionResults.remove(resumptionId);
-        if (iterator == null) {
+        ListPosition position = (ListPosition) resumptionResults.remove(resumptionId);
+        if (position == null) {
             LOGGER.debug("FileSystemOAICatalog.listIdentifiers: reuse of old resumptionToken?");
-            iterator = fileDateMap.entrySet().iterator();
-            for (int i = 0; i < oldCount; ++i) {
-                iterator.next();
+            if (oldCount < 0 || oldCount > datestamps.length) {
+                throw new BadResumptionTokenException();
             }
+            position = new ListPosition(oldCount, Long.MIN_VALUE, Long.MAX_VALUE);
         }
+        int i = nextMatch(position.next, position.from, position.until);
 
         /* load the headers and identifiers ArrayLists. */
         int count = 0;
-        while (count < maxListSize && iterator.hasNext()) {
-            Map.Entry entryDateMap = (Map.Entry) iterator.next();
-            Map<String, Object> nativeHeader = getNativeHeader((String) entryDateMap.getKey());
+        while (count < maxListSize && i < datestamps.length) {
+            Map<String, Object> nativeHeader = getNativeHeader(localIdentifiers[i]);
             String[] header = getRecordFactory().createHeader(nativeHeader);
             headers.add(header[0]);
             identifiers.add(header[1]);
             count++;
+            i = nextMatch(i + 1, position.from, position.until);
         }
 
         /* decide if you're done. */
-        if (iterator.hasNext()) {
+        if (i < datestamps.length) {
             resumptionId = getRSName();
-            resumptionResults.put(resumptionId, iterator);
+            resumptionResults.put(resumptionId, new ListPosition(i, position.from, position.until));
 
             /*****************************************************************
              * Construct the resumptionToken String however you see fit.
@@ -393,6 +438,23 @@ public class FileSystemOAICatalog extends AbstractCatalog {
         return getRecordFactory().create(nativeItem, schemaURL, metadataPrefix, setSpecs, abouts);
     }
 
+    /**
+     * Same as constructRecord, but returns the UTF-8 encoded record and,
+     * if already computed, its gzip member.
+     */
+    private RenderedRecord constructRenderedRecord(Map<String, Object> nativeItem, String metadataPrefix) throws CannotDisseminateFormatException {
+        String schemaURL = null;
+        Iterator setSpecs = getSetSpecs(nativeItem);
+        Iterator abouts = getAbouts(nativeItem);
+
+        if (metadataPrefix != null) {
+            if ((schemaURL = getCrosswalks().getSchemaURL(metadataPrefix)) == null) {
+                throw new CannotDisseminateFormatException(metadataPrefix);
+            }
+        }
+        return getRecordFactory().createRendered(nativeItem, schemaURL, metadataPrefix, setSpecs, abouts);
+    }
+
     /**
      * get an Iterator containing the setSpecs for the nativeItem
      *
@@ -426,35 +488,37 @@ public class FileSystemOAICatalog extends AbstractCatalog {
             throws CannotDisseminateFormatException, OAIInternalServerError, NoItemsMatchException {
         purge(); // clean out old resumptionTokens
         Map<String, Object> listRecordsMap = new HashMap<String, Object>();
-        List<String> records = new ArrayList<String>();
-        Iterator iterator = fileDateMap.entrySet().iterator();
-        int numRows = fileDateMap.entrySet().size();
+        List<Object> records = new ArrayList<Object>();
+        long fromMillis = Datestamp.parse(from);
+        long untilMillis = Datestamp.parseUntil(until);
+        int numRows = datestamps.length;
         int count = 0;
-        while (count < maxListSize && iterator.hasNext()) {
-            Map.Entry entryDateMap = (Map.Entry) iterator.next();
-            String fileDate = (String) entryDateMap.getValue();
-            if (fileDate.compareTo(from) >= 0
-                    && fileDate.compareTo(until) <= 0) {
-                try {
-                    Map<String, Object> nativeItem = getNativeRecord((String) entryDateMap.getKey());
-                    String record = constructRecord(nativeItem, metadataPrefix);
-                    records.add(record);
-                    count++;
-                } catch (IOException e) {
-                    LOGGER.error("An Exception occured", e);
-                    throw new OAIInternalServerError(e.getMessage());
-                }
+        int i = nextMatch(0, fromMillis, untilMillis);
+        PageBudget budget = startPage();
+        while (count < maxListSize && !budget.isExhausted() && i < datestamps.length) {
+            try {
+                Map<String, Object> nativeItem = getNativeRecord(localIdentifiers[i]);
+                RenderedRecord record = constructRenderedRecord(nativeItem, metadataPrefix);
+                records.add(record);
+                budget.add(record);
+                count++;
+            } catch (IOException e) {
+                LOGGER.error("An Exception occured", e);
+                throw new OAIInternalServerError(e.getMessage());
             }
+            i = nextMatch(i + 1, fromMillis, untilMillis);
         }
 
         if (count == 0) {
             throw new NoItemsMatchException();
         }
 
+        budget.finish(count, i < datestamps.length);
+
         /* decide if you're done */
-        if (iterator.hasNext()) {
+        if (i < datestamps.length) {
             String resumptionId = getRSName();
-            resumptionResults.put(resumptionId, iterator);
+            resumptionResults.put(resumptionId, new ListPosition(i, fromMillis, untilMillis));
 
             /*****************************************************************
              * Construct the resumptionToken String however you see fit.
@@ -491,7 +555,7 @@ public class FileSystemOAICatalog extends AbstractCatalog {
     public Map<String, Object> listRecords(String resumptionToken) throws BadResumptionTokenException {
         purge(); // clean out old resumptionTokens
         Map<String, Object> listRecordsMap = new HashMap<String, Object>();
-        List<String> records = new ArrayList<String>();
+        List<Object> records = new ArrayList<Object>();
 
         /**********************************************************************
          * parse your resumptionToken and look it up in the resumptionResults,
@@ -512,23 +576,25 @@ public class FileSystemOAICatalog extends AbstractCatalog {
         }
 
         /* Get some more records from your database */
-        Iterator iterator = (Iterator) resumptionResults.remove(resumptionId);
-        if (iterator == null) {
+        ListPosition position = (ListPosition) resumptionResults.remove(resumptionId);
+        if (position == null) {
             LOGGER.debug("FileSystemOAICatalog.listRecords: reuse of old resumptionToken?");
-            iterator = fileDateMap.entrySet().iterator();
-            for (int i = 0; i < oldCount; ++i) {
-                iterator.next();
+            if (oldCount < 0 || oldCount > datestamps.length) {
+                throw new BadResumptionTokenException();
             }
+            position = new ListPosition(oldCount, Long.MIN_VALUE, Long.MAX_VALUE);
         }
+        int i = nextMatch(position.next, position.from, position.until);
 
         /* load the records ArrayLists. */
         int count = 0;
-        while (count < maxListSize && iterator.hasNext()) {
-            Map.Entry entryDateMap = (Map.Entry) iterator.next();
+        PageBudget budget = startPage();
+        while (count < maxListSize && !budget.isExhausted() && i < datestamps.length) {
             try {
-                Map<String, Object> nativeItem = getNativeRecord((String) entryDateMap.getKey());
-                String record = constructRecord(nativeItem, metadataPrefix);
+                Map<String, Object> nativeItem = getNativeRecord(localIdentifiers[i]);
+                RenderedRecord record = constructRenderedRecord(nativeItem, metadataPrefix);
                 records.add(record);
+                budget.add(record);
                 count++;
             } catch (CannotDisseminateFormatException e) {
                 /* the client hacked the resumptionToken beyond repair */
@@ -537,12 +603,15 @@ public class FileSystemOAICatalog extends AbstractCatalog {
                 /* the file is probably missing */
                 throw new BadResumptionTokenException();
             }
+            i = nextMatch(i + 1, position.from, position.until);
         }
 
+        budget.finish(count, i < datestamps.length);
+
         /* decide if you're done. */
-        if (iterator.hasNext()) {
+        if (i < datestamps.length) {
             resumptionId = getRSName();
-            resumptionResults.put(resumptionId, iterator);
+            resumptionResults.put(resumptionId, new ListPosition(i, position.from, position.until));
 
             /*****************************************************************
              * Construct the resumptionToken String however you see fit.
@@ -579,9 +648,31 @@ public class FileSystemOAICatalog extends AbstractCatalog {
     }
 
 
+    /**
+     * get the number of resumptionTokens whose result set is held in memory
+     *
+     * @return the number of open resumptionTokens
+     */
+    public int getOpenResumptionTokenCount() {
+        return resumptionResults.size();
+    }
+
     /** close the repository */
     public void close() {}
 
+    /** Where a list stopped, kept in resumptionResults for the next page */
+    private static class ListPosition {
+        private final int next;
+        private final long from;
+        private final long until;
+
+        private ListPosition(int next, long from, long until) {
+            this.next = next;
+            this.from = from;
+            this.until = until;
+        }
+    }
+
 
     /** Purge tokens that are older than the time-to-live. */
     private void purge() {
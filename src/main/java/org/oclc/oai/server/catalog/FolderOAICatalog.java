@@ -14,7 +14,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
@@ -61,7 +60,6 @@ public class FolderOAICatalog extends AbstractCatalog {
     /** Class logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(FolderOAICatalog.class);
 
-    private SimpleDateFormat dateFormatter = new SimpleDateFormat();
     protected String homeDir;
     private Map<String, Object> datestampMap = new HashMap<String, Object>();
     private Map<String, Object> identifierMap = new HashMap<String, Object>();
@@ -75,7 +73,6 @@ public class FolderOAICatalog extends AbstractCatalog {
         this.context = context;
         String temp;
 
-        dateFormatter.applyPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
         temp = properties.getProperty("NewFileSystemOAICatalog.maxListSize");
         if (temp == null) {
             throw new IllegalArgumentException("NewFileSystemOAICatalog. maxListSize is missing from the properties file");
@@ -696,6 +693,15 @@ public class FolderOAICatalog extends AbstractCatalog {
     }
 
 
+    /**
+     * get the number of resumptionTokens whose result set is held in memory
+     *
+     * @return the number of open resumptionTokens
+     */
+    public int getOpenResumptionTokenCount() {
+        return resumptionResults.size();
+    }
+
     /** close the repository */
     public void close() {
     }
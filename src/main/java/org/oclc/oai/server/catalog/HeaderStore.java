@@ -0,0 +1,572 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.oclc.oai.util.Datestamp;
+
+/**
+ * HeaderStore is a read-only index of the headers of a catalog (identifier,
+ * datestamp, deleted flag and setSpecs) kept in columns of direct ByteBuffers,
+ * outside the garbage-collected heap. It costs a few tens of bytes per record
+ * instead of the HashMaps and Strings of an in-memory catalog, so catalogs of
+ * tens of millions of records can be indexed and scanned without growing the
+ * heap.
+ * <p/>
+ * Records are numbered in the UTF-8 byte order of their identifiers, which
+ * are front-coded in blocks of BLOCK_SIZE: point lookups are a binary search
+ * on the first identifier of each block followed by a scan of one block.
+ * <p/>
+ * Range scans go through a second order, by datestamp: a position in that
+ * order is stable for the life of the store, so it can be put in a
+ * resumptionToken instead of keeping the result set in memory.
+ * <p/>
+ * Only absolute gets are used on the buffers, so a HeaderStore can be read
+ * by any number of threads. Build it with a HeaderStore.Builder.
+ */
+public class HeaderStore {
+
+    /** Identifiers per front-coded block */
+    private static final int BLOCK_SIZE = 16;
+
+    /** Longest identifier, in UTF-8 bytes, that fits in the two-byte length encoding */
+    private static final int MAX_IDENTIFIER_BYTES = 0x7fff;
+
+    private static final byte FLAG_DELETED = 1;
+    private static final byte FLAG_DAY_GRANULARITY = 2;
+
+    private final int size;
+    private final int maxIdentifierBytes;
+    /** Front-coded identifiers: [shared prefix length][suffix length][suffix] */
+    private final ByteBuffer identifiers;
+    /** Offset in identifiers of the first entry of each block */
+    private final IntBuffer blockOffsets;
+    private final LongBuffer datestamps;
+    private final ByteBuffer flags;
+    /** Start of the set ids of each record in setIds, plus the end of the last one */
+    private final IntBuffer setOffsets;
+    private final IntBuffer setIds;
+    /** Record numbers sorted by datestamp */
+    private final IntBuffer byDatestamp;
+    private final String[] setSpecs;
+    private final Map<String, Integer> setSpecIds;
+
+    private HeaderStore(Builder builder) {
+        size = builder.identifiers.size();
+        int[] order = new int[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        final List<byte[]> keys = builder.identifiers;
+        sort(order, new IntOrder() {
+            int compare(int a, int b) {
+                return compareBytes(keys.get(a), keys.get(b));
+            }
+        });
+
+        int identifierBytes = 0;
+        int maxBytes = 0;
+        for (int i = 0; i < size; ++i) {
+            byte[] key = keys.get(order[i]);
+            if (i > 0 && compareBytes(keys.get(order[i - 1]), key) == 0) {
+                throw new IllegalArgumentException("duplicate identifier " + decode(key, key.length));
+            }
+            int shared = i % BLOCK_SIZE == 0 ? 0 : sharedPrefix(keys.get(order[i - 1]), key);
+            identifierBytes += lengthSize(shared) + lengthSize(key.length - shared) + key.length - shared;
+            maxBytes = Math.max(maxBytes, key.length);
+        }
+        maxIdentifierBytes = maxBytes;
+        identifiers = ByteBuffer.allocateDirect(identifierBytes);
+        blockOffsets = ByteBuffer.allocateDirect(4 * ((size + BLOCK_SIZE - 1) / BLOCK_SIZE)).asIntBuffer();
+        datestamps = ByteBuffer.allocateDirect(8 * size).asLongBuffer();
+        flags = ByteBuffer.allocateDirect(size);
+        setOffsets = ByteBuffer.allocateDirect(4 * (size + 1)).asIntBuffer();
+        setIds = ByteBuffer.allocateDirect(4 * builder.setIdCount).asIntBuffer();
+        byDatestamp = ByteBuffer.allocateDirect(4 * size).asIntBuffer();
+
+        int offset = 0;
+        int setOffset = 0;
+        final long[] sortedDatestamps = new long[size];
+        for (int i = 0; i < size; ++i) {
+            int added = order[i];
+            byte[] key = keys.get(added);
+            int shared = 0;
+            if (i % BLOCK_SIZE == 0) {
+                blockOffsets.put(i / BLOCK_SIZE, offset);
+            } else {
+                shared = sharedPrefix(keys.get(order[i - 1]), key);
+            }
+            offset = writeLength(offset, shared);
+            offset = writeLength(offset, key.length - shared);
+            for (int j = shared; j < key.length; ++j) {
+                identifiers.put(offset++, key[j]);
+            }
+            sortedDatestamps[i] = builder.datestamps[added];
+            datestamps.put(i, builder.datestamps[added]);
+            flags.put(i, builder.flags[added]);
+            setOffsets.put(i, setOffset);
+            for (int j = builder.setOffsets[added]; j < builder.setOffsets[added + 1]; ++j) {
+                setIds.put(setOffset++, builder.setIds[j]);
+            }
+        }
+        setOffsets.put(size, setOffset);
+
+        int[] dateOrder = new int[size];
+        for (int i = 0; i < size; ++i) {
+            dateOrder[i] = i;
+        }
+        // a stable sort, so records with the same datestamp stay in identifier order
+        sort(dateOrder, new IntOrder() {
+            int compare(int a, int b) {
+                long x = sortedDatestamps[a];
+                long y = sortedDatestamps[b];
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < size; ++i) {
+            byDatestamp.put(i, dateOrder[i]);
+        }
+
+        setSpecs = builder.setSpecs.toArray(new String[builder.setSpecs.size()]);
+        setSpecIds = new HashMap<String, Integer>(builder.setSpecIds);
+    }
+
+    /**
+     * get the number of records
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Look up a record.
+     *
+     * @param identifier the identifier given to the Builder
+     * @return the record number, or -1 if there is no such record
+     */
+    public int indexOf(String identifier) {
+        if (identifier == null) {
+            return -1;
+        }
+        byte[] key = encode(identifier);
+        int record = ceiling(key);
+        return record < size && compareTo(record, key) == 0 ? record : -1;
+    }
+
+    /**
+     * Find the first record whose identifier is equal to or follows the
+     * specified one. The records whose identifiers start with a prefix are
+     * ceiling(prefix) and the ones that follow it, in order.
+     *
+     * @param identifier an identifier or an identifier prefix
+     * @return the record number, or size() if there is none
+     */
+    public int ceiling(String identifier) {
+        return ceiling(encode(identifier));
+    }
+
+    /**
+     * get the identifier of a record
+     *
+     * @param record the record number
+     * @return the identifier
+     */
+    public String getIdentifier(int record) {
+        byte[] key = new byte[maxIdentifierBytes];
+        return decode(key, readIdentifier(record, key));
+    }
+
+    /**
+     * get the datestamp of a record
+     *
+     * @param record the record number
+     * @return the datestamp, as a Datestamp
+     */
+    public long getDatestamp(int record) {
+        return datestamps.get(record);
+    }
+
+    /**
+     * Format the datestamp of a record at the granularity it was added with.
+     *
+     * @param record the record number
+     * @return the YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ datestamp
+     */
+    public String formatDatestamp(int record) {
+        return Datestamp.format(datestamps.get(record), (flags.get(record) & FLAG_DAY_GRANULARITY) == 0);
+    }
+
+    /**
+     * Is the record deleted?
+     *
+     * @param record the record number
+     * @return true if the record is deleted
+     */
+    public boolean isDeleted(int record) {
+        return (flags.get(record) & FLAG_DELETED) != 0;
+    }
+
+    /**
+     * get the setSpecs of a record
+     *
+     * @param record the record number
+     * @return the setSpecs, in the order they were added
+     */
+    public List<String> getSetSpecs(int record) {
+        int start = setOffsets.get(record);
+        int end = setOffsets.get(record + 1);
+        if (start == end) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>(end - start);
+        for (int i = start; i < end; ++i) {
+            result.add(setSpecs[setIds.get(i)]);
+        }
+        return result;
+    }
+
+    /**
+     * get the number used by the store for a setSpec
+     *
+     * @param setSpec the setSpec
+     * @return the set id to pass to isInSet() and next(), or -1 if no record is in the set
+     */
+    public int getSetId(String setSpec) {
+        Integer setId = setSpecIds.get(setSpec);
+        return setId == null ? -1 : setId;
+    }
+
+    /**
+     * Is the record in the set?
+     *
+     * @param record the record number
+     * @param setId the set id returned by getSetId()
+     * @return true if one of the setSpecs of the record is the set
+     */
+    public boolean isInSet(int record, int setId) {
+        for (int i = setOffsets.get(record), end = setOffsets.get(record + 1); i < end; ++i) {
+            if (setIds.get(i) == setId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start a range scan.
+     *
+     * @param from the earliest datestamp of the range
+     * @return the position, in datestamp order, of the first record at or after from
+     */
+    public int lowerBound(long from) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (datestamps.get(byDatestamp.get(middle)) < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Continue a range scan.
+     *
+     * @param position a position in datestamp order
+     * @param until the latest datestamp of the range
+     * @param setId the set the records must be in, or -1 for all records
+     * @return the first position at or after the specified one whose record
+     *         is in the range and in the set, or size() if there is none
+     */
+    public int next(int position, long until, int setId) {
+        for (int i = position; i < size; ++i) {
+            int record = byDatestamp.get(i);
+            if (datestamps.get(record) > until) {
+                return size;
+            }
+            if (setId < 0 || isInSet(record, setId)) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * get the record at a position of a range scan
+     *
+     * @param position a position in datestamp order
+     * @return the record number
+     */
+    public int getRecord(int position) {
+        return byDatestamp.get(position);
+    }
+
+    private int ceiling(byte[] key) {
+        // last block whose first identifier is <= key
+        int low = 0;
+        int high = (size + BLOCK_SIZE - 1) / BLOCK_SIZE - 1;
+        if (high < 0 || compareTo(0, key) >= 0) {
+            return 0;
+        }
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (compareTo(middle * BLOCK_SIZE, key) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        byte[] current = new byte[maxIdentifierBytes];
+        int offset = blockOffsets.get(low);
+        for (int record = low * BLOCK_SIZE; record < Math.min(size, (low + 1) * BLOCK_SIZE); ++record) {
+            int shared = readLength(offset);
+            offset += lengthSize(shared);
+            int suffix = readLength(offset);
+            offset += lengthSize(suffix);
+            for (int i = 0; i < suffix; ++i) {
+                current[shared + i] = identifiers.get(offset++);
+            }
+            if (compareBytes(current, shared + suffix, key, key.length) >= 0) {
+                return record;
+            }
+        }
+        return Math.min(size, (low + 1) * BLOCK_SIZE);
+    }
+
+    /**
+     * Compare the identifier of a record with a key, without decoding the
+     * block when the record is the first of one.
+     */
+    private int compareTo(int record, byte[] key) {
+        if (record % BLOCK_SIZE == 0) {
+            int offset = blockOffsets.get(record / BLOCK_SIZE) + 1; // shared prefix length is 0
+            int length = readLength(offset);
+            offset += lengthSize(length);
+            for (int i = 0; i < length && i < key.length; ++i) {
+                int c = (identifiers.get(offset + i) & 0xff) - (key[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return length - key.length;
+        }
+        byte[] current = new byte[maxIdentifierBytes];
+        return compareBytes(current, readIdentifier(record, current), key, key.length);
+    }
+
+    /**
+     * @return the length of the identifier of the record, copied into key
+     */
+    private int readIdentifier(int record, byte[] key) {
+        int offset = blockOffsets.get(record / BLOCK_SIZE);
+        int length = 0;
+        for (int i = record - record % BLOCK_SIZE; i <= record; ++i) {
+            int shared = readLength(offset);
+            offset += lengthSize(shared);
+            int suffix = readLength(offset);
+            offset += lengthSize(suffix);
+            for (int j = 0; j < suffix; ++j) {
+                key[shared + j] = identifiers.get(offset++);
+            }
+            length = shared + suffix;
+        }
+        return length;
+    }
+
+    private int readLength(int offset) {
+        int b = identifiers.get(offset) & 0xff;
+        if (b < 0x80) {
+            return b;
+        }
+        return (b & 0x7f) << 8 | identifiers.get(offset + 1) & 0xff;
+    }
+
+    private int writeLength(int offset, int length) {
+        if (length < 0x80) {
+            identifiers.put(offset, (byte) length);
+            return offset + 1;
+        }
+        identifiers.put(offset, (byte) (0x80 | length >> 8));
+        identifiers.put(offset + 1, (byte) length);
+        return offset + 2;
+    }
+
+    private static int lengthSize(int length) {
+        return length < 0x80 ? 1 : 2;
+    }
+
+    private static int sharedPrefix(byte[] a, byte[] b) {
+        int i = 0;
+        while (i < a.length && i < b.length && a[i] == b[i]) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        return compareBytes(a, a.length, b, b.length);
+    }
+
+    private static int compareBytes(byte[] a, int aLength, byte[] b, int bLength) {
+        for (int i = 0; i < aLength && i < bLength; ++i) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private static byte[] encode(String identifier) {
+        try {
+            return identifier.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(byte[] key, int length) {
+        try {
+            return new String(key, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private abstract static class IntOrder {
+        abstract int compare(int a, int b);
+    }
+
+    /** Stable merge sort of an int[] in the specified order */
+    private static void sort(int[] a, IntOrder order) {
+        int[] from = a;
+        int[] to = new int[a.length];
+        for (int width = 1; width < a.length; width *= 2) {
+            for (int start = 0; start < a.length; start += 2 * width) {
+                int middle = Math.min(start + width, a.length);
+                int end = Math.min(start + 2 * width, a.length);
+                int i = start;
+                int j = middle;
+                for (int k = start; k < end; ++k) {
+                    if (i < middle && (j >= end || order.compare(from[i], from[j]) <= 0)) {
+                        to[k] = from[i++];
+                    } else {
+                        to[k] = from[j++];
+                    }
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != a) {
+            System.arraycopy(from, 0, a, 0, a.length);
+        }
+    }
+
+    /**
+     * Collects the headers of a HeaderStore, in any order. The Builder keeps
+     * them on the heap until build() is called, and can be dropped afterwards.
+     */
+    public static class Builder {
+        private final List<byte[]> identifiers = new ArrayList<byte[]>();
+        private long[] datestamps = new long[1024];
+        private byte[] flags = new byte[1024];
+        private int[] setOffsets = new int[1025];
+        private int[] setIds = new int[1024];
+        private int setIdCount = 0;
+        private final List<String> setSpecs = new ArrayList<String>();
+        private final Map<String, Integer> setSpecIds = new HashMap<String, Integer>();
+
+        /**
+         * Add a record.
+         *
+         * @param identifier the identifier of the record, unique in the store
+         * @param datestamp a YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ datestamp
+         * @param deleted is the record deleted?
+         * @param recordSetSpecs the setSpecs of the record, or null if it isn't in any set
+         * @return this Builder
+         * @throws IllegalArgumentException the datestamp or the identifier is invalid
+         */
+        public Builder add(String identifier, String datestamp, boolean deleted, Collection<String> recordSetSpecs) {
+            long millis = Datestamp.parse(datestamp);
+            if (millis == Datestamp.INVALID) {
+                throw new IllegalArgumentException("invalid datestamp " + datestamp + " for " + identifier);
+            }
+            byte[] key = encode(identifier);
+            if (key.length > MAX_IDENTIFIER_BYTES) {
+                throw new IllegalArgumentException("identifier too long: " + identifier);
+            }
+            int record = identifiers.size();
+            if (record == datestamps.length) {
+                datestamps = grow(datestamps);
+                byte[] newFlags = new byte[2 * flags.length];
+                System.arraycopy(flags, 0, newFlags, 0, record);
+                flags = newFlags;
+                int[] newSetOffsets = new int[2 * record + 1];
+                System.arraycopy(setOffsets, 0, newSetOffsets, 0, record + 1);
+                setOffsets = newSetOffsets;
+            }
+            identifiers.add(key);
+            datestamps[record] = millis;
+            flags[record] = (byte) ((deleted ? FLAG_DELETED : 0) | (datestamp.length() == 10 ? FLAG_DAY_GRANULARITY : 0));
+            if (recordSetSpecs != null) {
+                for (String setSpec : recordSetSpecs) {
+                    Integer setId = setSpecIds.get(setSpec);
+                    if (setId == null) {
+                        setId = setSpecs.size();
+                        setSpecs.add(setSpec);
+                        setSpecIds.put(setSpec, setId);
+                    }
+                    if (setIdCount == setIds.length) {
+                        int[] newSetIds = new int[2 * setIds.length];
+                        System.arraycopy(setIds, 0, newSetIds, 0, setIdCount);
+                        setIds = newSetIds;
+                    }
+                    setIds[setIdCount++] = setId;
+                }
+            }
+            setOffsets[record + 1] = setIdCount;
+            return this;
+        }
+
+        /**
+         * Build the store.
+         *
+         * @return the HeaderStore
+         * @throws IllegalArgumentException two records have the same identifier
+         */
+        public HeaderStore build() {
+            return new HeaderStore(this);
+        }
+
+        private static long[] grow(long[] a) {
+            long[] result = new long[2 * a.length];
+            System.arraycopy(a, 0, result, 0, a.length);
+            return result;
+        }
+    }
+}
@@ -259,7 +259,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
         try {
             con = startConnection();
             Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(populateIdentifierQuery(oaiIdentifier));
+            ResultSet rs = executeQuery(stmt, populateIdentifierQuery(oaiIdentifier));
             /*
              * Let your recordFactory decide which schemaLocations
              * (i.e. metadataFormats) it can produce from the record.
@@ -530,7 +530,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set, 0, maxListSize));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set, 0, maxListSize));
 
             int count;
 
@@ -646,7 +646,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some more records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set, oldCount, maxListSize));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set, oldCount, maxListSize));
             int count;
 
             /* load the headers and identifiers ArrayLists. */
@@ -724,7 +724,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
             con = startConnection();
             Statement stmt = con.createStatement();
             ResultSet rs =
-                    stmt.executeQuery(populateIdentifierQuery(oaiIdentifier));
+                    executeQuery(stmt, populateIdentifierQuery(oaiIdentifier));
             if (!rs.next()) {
                 endConnection(con);
                 throw new IdDoesNotExistException(oaiIdentifier);
@@ -772,7 +772,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
             /* Get some records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
                     ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set, 0, maxListSize));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set, 0, maxListSize));
 
             int count;
 
@@ -880,7 +880,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some more records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set, oldCount, maxListSize));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set, oldCount, maxListSize));
 
             int count;
 
@@ -994,7 +994,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
                 con = startConnection();
                 /* Get some records from your database */
                 Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-                ResultSet rs = stmt.executeQuery(setQuery);
+                ResultSet rs = executeQuery(stmt, setQuery);
                 rs.last();
                 int numRows = rs.getRow();
                 rs.beforeFirst();
@@ -1144,7 +1144,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
                 RecordFactory rf = getRecordFactory();
                 String oaiIdentifier = rf.getOAIIdentifier(nativeItem);
                 Statement stmt = con.createStatement();
-                ResultSet rs = stmt.executeQuery(populateSetSpecQuery(oaiIdentifier));
+                ResultSet rs = executeQuery(stmt, populateSetSpecQuery(oaiIdentifier));
                 while (rs.next()) {
                     Map<String, Object> setMap = getColumnValues(rs);
                     setSpecs.add(setMap.get(setSpecItemLabel).toString());
@@ -1176,7 +1176,7 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
                 RecordFactory rf = getRecordFactory();
                 String oaiIdentifier = rf.getOAIIdentifier(nativeItem);
                 Statement stmt = con.createStatement();
-                ResultSet rs = stmt.executeQuery(populateAboutQuery(oaiIdentifier));
+                ResultSet rs = executeQuery(stmt, populateAboutQuery(oaiIdentifier));
                 while (rs.next()) {
                     Map<String, Object> aboutMap = getColumnValues(rs);
                     abouts.add((String) aboutMap.get(aboutValueLabel));
@@ -1264,6 +1264,15 @@ public class JDBCLimitedOAICatalog extends AbstractCatalog {
         return (String) setItem.get(setDescriptionLabel);
     }
 
+    /**
+     * get the number of resumptionTokens whose result set is held in memory
+     *
+     * @return the number of open resumptionTokens
+     */
+    public int getOpenResumptionTokenCount() {
+        return resumptionResults.size();
+    }
+
     /** close the repository */
     public void close() {
         try {
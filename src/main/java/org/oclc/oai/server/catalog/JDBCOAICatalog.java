@@ -266,7 +266,7 @@ public class JDBCOAICatalog extends AbstractCatalog {
         try {
             con = startConnection();
             Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(populateIdentifierQuery(oaiIdentifier));
+            ResultSet rs = executeQuery(stmt, populateIdentifierQuery(oaiIdentifier));
             /*
              * Let your recordFactory decide which schemaLocations
              * (i.e. metadataFormats) it can produce from the record.
@@ -529,7 +529,7 @@ public class JDBCOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set));
             rs.last();
             int numRows = rs.getRow();
             if (numRows == 0) {
@@ -692,7 +692,7 @@ public class JDBCOAICatalog extends AbstractCatalog {
         try {
             con = startConnection();
             Statement stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(populateIdentifierQuery(oaiIdentifier));
+            ResultSet rs = executeQuery(stmt, populateIdentifierQuery(oaiIdentifier));
             if (!rs.next()) {
                 endConnection(con);
                 throw new IdDoesNotExistException(oaiIdentifier);
@@ -739,7 +739,7 @@ public class JDBCOAICatalog extends AbstractCatalog {
             con = startConnection();
             /* Get some records from your database */
             Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(populateRangeQuery(from, until, set));
+            ResultSet rs = executeQuery(stmt, populateRangeQuery(from, until, set));
             rs.last();
             int numRows = rs.getRow();
             if (numRows == 0) {
@@ -748,14 +748,18 @@ public class JDBCOAICatalog extends AbstractCatalog {
             }
             rs.beforeFirst();
             int count;
+            PageBudget budget = startPage();
 
             /* load the records ArrayList */
-            for (count = 0; count < maxListSize && rs.next(); ++count) {
+            for (count = 0; count < maxListSize && !budget.isExhausted() && rs.next(); ++count) {
                 Map<String, Object> nativeItem = getColumnValues(rs);
                 String record = constructRecord(nativeItem, metadataPrefix);
                 records.add(record);
+                budget.add(record);
             }
 
+            budget.finish(count, count < numRows);
+
             /* decide if you're done */
             if (count < numRows) {
                 String resumptionId = getResumptionId();
@@ -839,19 +843,23 @@ public class JDBCOAICatalog extends AbstractCatalog {
             }
 
             int count;
+            PageBudget budget = startPage();
 
             /* load the headers and identifiers ArrayLists. */
-            for (count = 0; count < maxListSize && rs.next(); ++count) {
+            for (count = 0; count < maxListSize && !budget.isExhausted() && rs.next(); ++count) {
                 try {
                     Map<String, Object> nativeItem = getColumnValues(rs);
                     String record = constructRecord(nativeItem, metadataPrefix);
                     records.add(record);
+                    budget.add(record);
                 } catch (CannotDisseminateFormatException e) {
                     /* the client hacked the resumptionToken beyond repair */
                     throw new BadResumptionTokenException();
                 }
             }
 
+            budget.finish(count, oldCount + count < numRows);
+
             /* decide if you're done */
             if (oldCount + count < numRows) {
                 /*****************************************************************
@@ -934,7 +942,7 @@ public class JDBCOAICatalog extends AbstractCatalog {
 
                 /* Get some records from your database */
                 Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-                ResultSet rs = stmt.executeQuery(setQuery);
+                ResultSet rs = executeQuery(stmt, setQuery);
                 rs.last();
                 int numRows = rs.getRow();
                 rs.beforeFirst();
@@ -1088,7 +1096,7 @@ public class JDBCOAICatalog extends AbstractCatalog {
                 RecordFactory rf = getRecordFactory();
                 String oaiIdentifier = rf.getOAIIdentifier(nativeItem);
                 Statement stmt = con.createStatement();
-                ResultSet rs = stmt.executeQuery(populateSetSpecQuery(oaiIdentifier));
+                ResultSet rs = executeQuery(stmt, populateSetSpecQuery(oaiIdentifier));
                 while (rs.next()) {
                     Map<String, Object> setMap = getColumnValues(rs);
                     setSpecs.add(setMap.get(setSpecItemLabel).toString());
@@ -1120,7 +1128,7 @@ public class JDBCOAICatalog extends AbstractCatalog {
                 RecordFactory rf = getRecordFactory();
                 String oaiIdentifier = rf.getOAIIdentifier(nativeItem);
                 Statement stmt = con.createStatement();
-                ResultSet rs = stmt.executeQuery(populateAboutQuery(oaiIdentifier));
+                ResultSet rs = executeQuery(stmt, populateAboutQuery(oaiIdentifier));
                 while (rs.next()) {
                     Map<String, Object> aboutMap = getColumnValues(rs);
                     abouts.add((String) aboutMap.get(aboutValueLabel));
@@ -1206,6 +1214,15 @@ public class JDBCOAICatalog extends AbstractCatalog {
         return (String) setItem.get(setDescriptionLabel);
     }
 
+    /**
+     * get the number of resumptionTokens whose result set is held in memory
+     *
+     * @return the number of open resumptionTokens
+     */
+    public int getOpenResumptionTokenCount() {
+        return resumptionResults.size();
+    }
+
     /** close the repository */
     public void close() {
         try {
@@ -0,0 +1,488 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.oclc.oai.server.crosswalk.CrosswalkItem;
+import org.oclc.oai.server.verb.BadArgumentException;
+import org.oclc.oai.server.verb.BadResumptionTokenException;
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+import org.oclc.oai.server.verb.IdDoesNotExistException;
+import org.oclc.oai.server.verb.NoItemsMatchException;
+import org.oclc.oai.server.verb.NoMetadataFormatsException;
+import org.oclc.oai.server.verb.NoSetHierarchyException;
+import org.oclc.oai.util.Datestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LogStructuredOAICatalog is an implementation of AbstractCatalog backed by a
+ * LogStructuredStore in LogStructuredOAICatalog.dir: the records are kept in
+ * datestamp order, so a ListRecords is a sequential read of the store, and
+ * they are added, replaced or deleted through getStore() without rescanning
+ * anything; ingest() does the same and drops the cached renderings of the
+ * records, for the Ingest extension verb. The resumptionTokens hold the datestamp and identifier of the next
+ * record: they are stateless, never expire and survive a restart.
+ * <p/>
+ * If LogStructuredOAICatalog.importDir is set, its files are loaded when the
+ * catalog is created, as FileSystemOAICatalog would serve them: the local
+ * identifier is the path of the file, the datestamp its modification time and
+ * the metadata its content. Files already in the store with the same or a
+ * later datestamp are skipped, so this also picks up the files changed since
+ * the last start.
+ * <p/>
+ * The records are HashMaps with the keys localIdentifier, datestamp, setSpecs,
+ * deleted and recordBytes; use LogStructuredRecordFactory with crosswalks that
+ * read recordBytes, such as FileMap2oai_dc.
+ */
+public class LogStructuredOAICatalog extends AbstractCatalog {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogStructuredOAICatalog.class);
+
+    private final LogStructuredStore store;
+    private final int maxListSize;
+    private final boolean seconds;
+    private final List<String> sets;
+
+    /** The number of files written to the store at once by the import */
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    public LogStructuredOAICatalog(Properties properties) throws IOException {
+        String temp = properties.getProperty("LogStructuredOAICatalog.maxListSize");
+        if (temp == null) {
+            throw new IllegalArgumentException("LogStructuredOAICatalog.maxListSize is missing from the properties file");
+        }
+        maxListSize = Integer.parseInt(temp);
+        seconds = "YYYY-MM-DDThh:mm:ssZ".equalsIgnoreCase(properties.getProperty("AbstractCatalog.granularity"));
+        sets = getSets(properties);
+        store = LogStructuredStore.factory(properties);
+
+        String importDir = properties.getProperty("LogStructuredOAICatalog.importDir");
+        if (importDir != null) {
+            File importFile = new File(importDir);
+            LogStructuredStore.Batch batch = new LogStructuredStore.Batch();
+            int count = importFiles(importFile.getPath().length() + 1, importFile, batch);
+            store.write(batch);
+            store.flush();
+            LOGGER.info("LogStructuredOAICatalog: imported " + count + " file(s) from " + importDir);
+        }
+        LOGGER.debug("in LogStructuredOAICatalog(): maxListSize=" + maxListSize + " store=" + store);
+    }
+
+    private static List<String> getSets(Properties properties) {
+        Map<String, String> treeMap = new TreeMap<String, String>();
+        String propertyPrefix = "Sets.";
+        Enumeration propNames = properties.propertyNames();
+        while (propNames.hasMoreElements()) {
+            String propertyName = (String) propNames.nextElement();
+            if (propertyName.startsWith(propertyPrefix)) {
+                treeMap.put(propertyName, properties.getProperty(propertyName));
+            }
+        }
+        return new ArrayList<String>(treeMap.values());
+    }
+
+    /**
+     * @return the number of files added to batch, or written to the store when it was full
+     */
+    private int importFiles(int importDirLen, File currentDir, LogStructuredStore.Batch batch) throws IOException {
+        String[] list = currentDir.list();
+        if (list == null) {
+            throw new IOException("LogStructuredOAICatalog: couldn't read " + currentDir);
+        }
+        int count = 0;
+        for (int i = 0; i < list.length; ++i) {
+            File child = new File(currentDir, list[i]);
+            if (child.isDirectory()) {
+                if (!"CVS".equals(child.getName())) {
+                    count += importFiles(importDirLen, child, batch);
+                }
+                continue;
+            }
+            String localIdentifier = child.getPath().substring(importDirLen).replace(File.separatorChar, '/');
+            long datestamp = Datestamp.truncate(child.lastModified(), seconds);
+            LogStructuredStore.Entry entry = store.get(localIdentifier);
+            if (entry == null || entry.getDatestamp() < datestamp) {
+                byte[] buffer = new byte[(int) child.length()];
+                BufferedInputStream bis = new BufferedInputStream(new FileInputStream(child));
+                try {
+                    int offset = 0;
+                    int n;
+                    while (offset < buffer.length && (n = bis.read(buffer, offset, buffer.length - offset)) > 0) {
+                        offset += n;
+                    }
+                } finally {
+                    bis.close();
+                }
+                batch.put(localIdentifier, datestamp, Collections.<String>emptyList(), buffer);
+                count++;
+                if (batch.size() >= IMPORT_BATCH_SIZE) {
+                    store.write(batch);
+                    batch.clear();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the store, to add, replace or delete records while the catalog is
+     * serving them.
+     *
+     * @return the store
+     */
+    public LogStructuredStore getStore() {
+        return store;
+    }
+
+    /**
+     * Write a batch to the store and drop the cached renderings of its
+     * records, so harvesters see the changes as soon as this returns.
+     *
+     * @param batch the records to add, replace or delete
+     * @return the local identifiers written, without the deletions of records that don't exist
+     * @throws IOException the batch couldn't be written: none of it was applied
+     */
+    public List<String> ingest(LogStructuredStore.Batch batch) throws IOException {
+        List<String> localIdentifiers = store.write(batch);
+        RenderedRecordCache cache = getRecordFactory().getRecordCache();
+        if (cache != null && !localIdentifiers.isEmpty()) {
+            List<String> metadataPrefixes = new ArrayList<String>();
+            Iterator<Map.Entry<String, CrosswalkItem>> iterator = getCrosswalks().iterator();
+            while (iterator.hasNext()) {
+                metadataPrefixes.add(iterator.next().getKey());
+            }
+            Map<String, Object> nativeItem = new HashMap<String, Object>();
+            for (String localIdentifier : localIdentifiers) {
+                nativeItem.put("localIdentifier", localIdentifier);
+                cache.invalidate(getRecordFactory().getOAIIdentifier(nativeItem), metadataPrefixes);
+            }
+        }
+        return localIdentifiers;
+    }
+
+    /**
+     * @return the datestamp of a record written now, at the granularity of the repository
+     */
+    public long currentDatestamp() {
+        return Datestamp.truncate(System.currentTimeMillis(), seconds);
+    }
+
+    private Map<String, Object> getNativeHeader(LogStructuredStore.Entry entry) {
+        Map<String, Object> nativeItem = new HashMap<String, Object>();
+        nativeItem.put("localIdentifier", entry.getIdentifier());
+        nativeItem.put("datestamp", Datestamp.format(entry.getDatestamp(), seconds));
+        nativeItem.put("setSpecs", entry.getSetSpecs());
+        nativeItem.put("deleted", Boolean.valueOf(entry.isDeleted()));
+        return nativeItem;
+    }
+
+    private Map<String, Object> getNativeRecord(LogStructuredStore.Entry entry) {
+        Map<String, Object> nativeItem = getNativeHeader(entry);
+        if (!entry.isDeleted()) {
+            nativeItem.put("recordBytes", entry.getMetadata());
+        }
+        return nativeItem;
+    }
+
+    /**
+     * @return the current version of the record, or null if there is no such record
+     */
+    private LogStructuredStore.Entry getEntry(String oaiIdentifier) {
+        String localIdentifier = getRecordFactory().fromOAIIdentifier(oaiIdentifier);
+        return localIdentifier == null ? null : store.get(localIdentifier);
+    }
+
+    /**
+     * Retrieve the specified metadata for the specified oaiIdentifier
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return the Record object containing the result.
+     * @throws CannotDisseminateFormatException signals an http status code 400 problem
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     */
+    public String getRecord(String oaiIdentifier, String metadataPrefix) throws IdDoesNotExistException, CannotDisseminateFormatException {
+        LogStructuredStore.Entry entry = getEntry(oaiIdentifier);
+        if (entry == null) {
+            throw new IdDoesNotExistException(oaiIdentifier);
+        }
+        return getRecordFactory().create(getNativeRecord(entry), getSchemaURL(metadataPrefix), metadataPrefix, null, null);
+    }
+
+    /**
+     * Retrieve the specified record as UTF-8 bytes, straight from the
+     * RenderedRecordCache when possible.
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return the UTF-8 encoded record.
+     * @throws CannotDisseminateFormatException signals an http status code 400 problem
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     */
+    public byte[] getRecordBytes(String oaiIdentifier, String metadataPrefix) throws IdDoesNotExistException, CannotDisseminateFormatException {
+        LogStructuredStore.Entry entry = getEntry(oaiIdentifier);
+        if (entry == null) {
+            throw new IdDoesNotExistException(oaiIdentifier);
+        }
+        return getRecordFactory().createBytes(getNativeRecord(entry), getSchemaURL(metadataPrefix), metadataPrefix, null, null);
+    }
+
+    /**
+     * Retrieve a list of schemaLocation values associated with the specified
+     * oaiIdentifier.
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @return a List<String> containing schemaLocation Strings
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     * @throws NoMetadataFormatsException the record is deleted
+     */
+    public List<String> getSchemaLocations(String oaiIdentifier) throws IdDoesNotExistException, NoMetadataFormatsException {
+        LogStructuredStore.Entry entry = getEntry(oaiIdentifier);
+        if (entry == null) {
+            throw new IdDoesNotExistException(oaiIdentifier);
+        }
+        return getRecordFactory().getSchemaLocations(getNativeRecord(entry));
+    }
+
+    private String getSchemaURL(String metadataPrefix) throws CannotDisseminateFormatException {
+        String schemaURL = null;
+        if (metadataPrefix != null) {
+            if ((schemaURL = getCrosswalks().getSchemaURL(metadataPrefix)) == null) {
+                throw new CannotDisseminateFormatException(metadataPrefix);
+            }
+        }
+        return schemaURL;
+    }
+
+    /**
+     * Retrieve a list of Identifiers that satisfy the criteria parameters
+     *
+     * @param from beginning date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param until ending date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param set set name or null if no set is desired
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return a Map object containing an optional "resumptionMap" and "headers" and "identifiers" Iterators.
+     */
+    public Map<String, Object> listIdentifiers(String from, String until, String set, String metadataPrefix)
+            throws BadArgumentException, CannotDisseminateFormatException, NoItemsMatchException, NoSetHierarchyException {
+        getSchemaURL(metadataPrefix);
+        return listIdentifiers(new Cursor(from, until, set, metadataPrefix));
+    }
+
+    /**
+     * Retrieve the next set of Identifiers associated with the resumptionToken
+     *
+     * @param resumptionToken a token from a previous listIdentifiers() result
+     * @return a Map object containing an optional "resumptionMap" and "headers" and "identifiers" Iterators.
+     */
+    public Map<String, Object> listIdentifiers(String resumptionToken) throws BadResumptionTokenException {
+        try {
+            return listIdentifiers(new Cursor(resumptionToken));
+        } catch (NoItemsMatchException e) {
+            throw new BadResumptionTokenException();
+        }
+    }
+
+    private Map<String, Object> listIdentifiers(Cursor cursor) throws NoItemsMatchException {
+        Map<String, Object> listIdentifiersMap = new HashMap<String, Object>();
+        List<String> headers = new ArrayList<String>();
+        List<String> identifiers = new ArrayList<String>();
+        List<LogStructuredStore.Entry> entries = cursor.scan();
+        int count = 0;
+        while (count < maxListSize && count < entries.size()) {
+            String[] header = getRecordFactory().createHeader(getNativeHeader(entries.get(count)));
+            headers.add(header[0]);
+            identifiers.add(header[1]);
+            count++;
+        }
+        if (count == 0) {
+            throw new NoItemsMatchException();
+        }
+        if (count < entries.size()) {
+            listIdentifiersMap.put("resumptionMap", cursor.getResumptionMap(entries.get(count), count));
+        }
+        listIdentifiersMap.put("headers", headers.iterator());
+        listIdentifiersMap.put("identifiers", identifiers.iterator());
+        return listIdentifiersMap;
+    }
+
+    /**
+     * Retrieve a list of records that satisfy the specified criteria
+     *
+     * @param from beginning date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param until ending date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param set set name or null if no set is desired
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return a Map object containing an optional "resumptionMap" and a "records" Iterator.
+     */
+    public Map<String, Object> listRecords(String from, String until, String set, String metadataPrefix)
+            throws BadArgumentException, CannotDisseminateFormatException, NoItemsMatchException, NoSetHierarchyException {
+        getSchemaURL(metadataPrefix);
+        return listRecords(new Cursor(from, until, set, metadataPrefix));
+    }
+
+    /**
+     * Retrieve the next set of records associated with the resumptionToken
+     *
+     * @param resumptionToken a token from a previous listRecords() result
+     * @return a Map object containing an optional "resumptionMap" and a "records" Iterator.
+     */
+    public Map<String, Object> listRecords(String resumptionToken) throws BadResumptionTokenException {
+        try {
+            return listRecords(new Cursor(resumptionToken));
+        } catch (NoItemsMatchException e) {
+            throw new BadResumptionTokenException();
+        } catch (CannotDisseminateFormatException e) {
+            /* the client hacked the resumptionToken beyond repair */
+            throw new BadResumptionTokenException();
+        }
+    }
+
+    private Map<String, Object> listRecords(Cursor cursor) throws CannotDisseminateFormatException, NoItemsMatchException {
+        Map<String, Object> listRecordsMap = new HashMap<String, Object>();
+        List<Object> records = new ArrayList<Object>();
+        String schemaURL = getSchemaURL(cursor.metadataPrefix);
+        List<LogStructuredStore.Entry> entries = cursor.scan();
+        int count = 0;
+        PageBudget budget = startPage();
+        while (count < maxListSize && !budget.isExhausted() && count < entries.size()) {
+            RenderedRecord record = getRecordFactory().createRendered(getNativeRecord(entries.get(count)), schemaURL,
+                    cursor.metadataPrefix, null, null);
+            records.add(record);
+            budget.add(record);
+            count++;
+        }
+        if (count == 0) {
+            throw new NoItemsMatchException();
+        }
+        budget.finish(count, count < entries.size());
+        if (count < entries.size()) {
+            listRecordsMap.put("resumptionMap", cursor.getResumptionMap(entries.get(count), count));
+        }
+        listRecordsMap.put("records", records.iterator());
+        return listRecordsMap;
+    }
+
+    /**
+     * The position of a list request in the store, and its resumptionToken.
+     * A token is datestamp!identifier!until!cursor!metadataPrefix!set, where
+     * datestamp and identifier are those of the next record, the identifier
+     * is URL encoded and the datestamps are Datestamps.
+     */
+    private class Cursor {
+        private final long datestamp;
+        private final String identifier;
+        private final long until;
+        private final int cursor;
+        private final String metadataPrefix;
+        private final String set;
+
+        private Cursor(String from, String until, String set, String metadataPrefix)
+                throws BadArgumentException, NoSetHierarchyException {
+            if (set != null && sets.isEmpty()) {
+                throw new NoSetHierarchyException();
+            }
+            this.datestamp = Datestamp.parse(from);
+            this.until = Datestamp.parseUntil(until);
+            if (datestamp == Datestamp.INVALID || this.until == Datestamp.INVALID) {
+                throw new BadArgumentException();
+            }
+            this.identifier = "";
+            this.cursor = 0;
+            this.metadataPrefix = metadataPrefix;
+            this.set = set;
+        }
+
+        private Cursor(String resumptionToken) throws BadResumptionTokenException {
+            String[] tokens = resumptionToken.split("!", 6);
+            if (tokens.length != 6) {
+                throw new BadResumptionTokenException();
+            }
+            try {
+                datestamp = Long.parseLong(tokens[0]);
+                identifier = URLDecoder.decode(tokens[1], "UTF-8");
+                until = Long.parseLong(tokens[2]);
+                cursor = Integer.parseInt(tokens[3]);
+            } catch (NumberFormatException e) {
+                throw new BadResumptionTokenException();
+            } catch (IllegalArgumentException e) {
+                throw new BadResumptionTokenException();
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            metadataPrefix = tokens[4];
+            set = tokens[5].length() == 0 ? null : tokens[5];
+            if (cursor < 0) {
+                throw new BadResumptionTokenException();
+            }
+        }
+
+        /**
+         * @return up to maxListSize+1 records from the position of the cursor
+         */
+        private List<LogStructuredStore.Entry> scan() {
+            return store.scan(datestamp, identifier, until, set, maxListSize);
+        }
+
+        private Map<String, String> getResumptionMap(LogStructuredStore.Entry next, int count) {
+            StringBuilder resumptionTokenSb = new StringBuilder();
+            resumptionTokenSb.append(next.getDatestamp()).append('!');
+            try {
+                resumptionTokenSb.append(URLEncoder.encode(next.getIdentifier(), "UTF-8")).append('!');
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            resumptionTokenSb.append(until).append('!');
+            resumptionTokenSb.append(cursor + count).append('!');
+            resumptionTokenSb.append(metadataPrefix).append('!');
+            if (set != null) {
+                resumptionTokenSb.append(set);
+            }
+            return LogStructuredOAICatalog.this.getResumptionMap(resumptionTokenSb.toString(), -1, cursor);
+        }
+    }
+
+    public Map<String, Object> listSets() throws NoSetHierarchyException {
+        if (sets.isEmpty()) {
+            throw new NoSetHierarchyException();
+        }
+        Map<String, Object> listSetsMap = new HashMap<String, Object>();
+        listSetsMap.put("sets", sets.iterator());
+        return listSetsMap;
+    }
+
+    public Map<String, Object> listSets(String resumptionToken) throws BadResumptionTokenException {
+        throw new BadResumptionTokenException();
+    }
+
+    /** flush the store and stop its background task */
+    public void close() {
+        store.close();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * LogStructuredRecordFactory converts the HashMap "items" of
+ * LogStructuredOAICatalog to "record" Strings. The metadata is left to the
+ * crosswalks, under the recordBytes key, as FileMap2oai_dc expects it. The OAI
+ * identifiers are oai:[LogStructuredRecordFactory.repositoryIdentifier]:[local identifier].
+ */
+public class LogStructuredRecordFactory extends RecordFactory {
+    private String repositoryIdentifier;
+
+    /**
+     * Construct a LogStructuredRecordFactory capable of producing the Crosswalk(s)
+     * specified in the properties file.
+     *
+     * @param properties Contains information to configure the factory:
+     *                   specifically, the names of the crosswalk(s) supported
+     * @throws IllegalArgumentException Something is wrong with the argument.
+     */
+    public LogStructuredRecordFactory(Properties properties) throws IllegalArgumentException {
+        super(properties);
+        repositoryIdentifier = properties.getProperty("LogStructuredRecordFactory.repositoryIdentifier");
+        if (repositoryIdentifier == null) {
+            throw new IllegalArgumentException("LogStructuredRecordFactory.repositoryIdentifier is missing from the properties file");
+        }
+    }
+
+    /**
+     * Utility method to parse the 'local identifier' from the OAI identifier
+     *
+     * @param identifier OAI identifier (e.g. oai:oaicat.oclc.org:ID/12345)
+     * @return local identifier (e.g. ID/12345), or null if the identifier isn't from this repository.
+     */
+    public String fromOAIIdentifier(String identifier) {
+        String prefix = "oai:" + repositoryIdentifier + ":";
+        if (identifier == null || !identifier.startsWith(prefix)) {
+            return null;
+        }
+        return identifier.substring(prefix.length());
+    }
+
+    /**
+     * Construct an OAI identifier from the native item
+     *
+     * @param nativeItem native Item object
+     * @return OAI identifier
+     */
+    public String getOAIIdentifier(Object nativeItem) {
+        return "oai:" + repositoryIdentifier + ":" + getLocalIdentifier(nativeItem);
+    }
+
+    public String getLocalIdentifier(Object nativeItem) {
+        return (String) ((Map) nativeItem).get("localIdentifier");
+    }
+
+    public String getDatestamp(Object nativeItem) {
+        return (String) ((Map) nativeItem).get("datestamp");
+    }
+
+    public Iterator getSetSpecs(Object nativeItem) {
+        List setSpecs = (List) ((Map) nativeItem).get("setSpecs");
+        return setSpecs == null || setSpecs.isEmpty() ? null : setSpecs.iterator();
+    }
+
+    public Iterator getAbouts(Object nativeItem) {
+        return null;
+    }
+
+    public boolean isDeleted(Object nativeItem) {
+        return Boolean.TRUE.equals(((Map) nativeItem).get("deleted"));
+    }
+
+    public String quickCreate(Object nativeItem, String schemaLocation, String metadataPrefix) {
+        // Don't perform quick creates
+        return null;
+    }
+}
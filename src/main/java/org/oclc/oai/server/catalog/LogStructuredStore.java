@@ -0,0 +1,1384 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LogStructuredStore is an embedded record store laid out for the access
+ * pattern of OAI-PMH: range scans by datestamp, lookups by identifier and
+ * frequent appends. Writes go to an in-memory table, which is flushed to a new
+ * immutable segment file when it outgrows memtableBytes, or every flushSeconds.
+ * A segment holds its records sorted by datestamp and identifier, so a harvest
+ * is a sequential read, then an identifier index of which every 16th key is
+ * kept in memory, and a Bloom filter that lets lookups skip the segments that
+ * don't hold the identifier.
+ * <p/>
+ * Newer segments supersede older ones: a range scan merges the memtable and
+ * the segments, and skips the records that a newer source holds too. Deleted
+ * records are kept as tombstones, reported by OAI with status="deleted". When
+ * there are more than maxSegments segments, a background task merges the run
+ * of newest segments that fits in maxSegmentBytes into one, dropping the
+ * superseded records, and the tombstones too if dropDeleted is set and the run
+ * includes the oldest segment.
+ * <p/>
+ * A segment file is laid out as
+ * <pre>
+ * records | identifier index | sparse indexes | Bloom filter | footer
+ * </pre>
+ * with each record as
+ * <pre>
+ * int length | long datestamp | byte flags | short identifierLength | identifier
+ *     | short setCount | (short setSpecLength | setSpec)* | int metadataLength | metadata
+ * </pre>
+ * Segments are written to a temporary file, synced and renamed, so they are
+ * never seen half written. A merged segment gets a new id, and its footer
+ * records the range of ids it supersedes. The writes that haven't been
+ * flushed yet are kept in a log, segment-[id].log, appended and synced for
+ * each Batch before it is applied to the memtable; the log of a memtable is
+ * deleted once its segment is written, and replayed into a segment if the
+ * JVM died before that.
+ */
+public class LogStructuredStore {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogStructuredStore.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int LOG_RECORD_HEADER = 8;
+    private static final int MAGIC = 0x4f414954;
+    private static final int FOOTER = 28;
+    private static final int SPARSE_INTERVAL = 16;
+    private static final int FLAG_DELETED = 1;
+
+    /** Longest identifier or setSpec, in UTF-8 bytes, that fits in the two-byte length encoding */
+    private static final int MAX_STRING_BYTES = 0xffff;
+
+    /** Newest segment first: by the newest id they hold, then merged segments before the ones they supersede */
+    private static final Comparator<Segment> NEWEST_FIRST = new Comparator<Segment>() {
+        public int compare(Segment a, Segment b) {
+            if (a.lastId != b.lastId) {
+                return a.lastId > b.lastId ? -1 : 1;
+            }
+            return a.id > b.id ? -1 : a.id == b.id ? 0 : 1;
+        }
+    };
+
+    private static final Comparator<Entry> DATESTAMP_ORDER = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return LogStructuredStore.compare(a.datestamp, a.identifier, b.datestamp, b.identifier);
+        }
+    };
+
+    private final File directory;
+    private final long memtableBytes;
+    private final int maxSegments;
+    private final long maxSegmentBytes;
+    private final int bloomBitsPerKey;
+    private final boolean dropDeleted;
+
+    /** The writes since the last flush */
+    private Memtable memtable;
+    /** The memtable being written to a segment, if any */
+    private Memtable flushing = null;
+    /** The segments, oldest first; replaced, never modified */
+    private List<Segment> segments = new ArrayList<Segment>();
+    private int nextSegmentId = 0;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object flushLock = new Object();
+    /** Held while appending to the log of the memtable, and while replacing the memtable */
+    private final Object logLock = new Object();
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private ScheduledExecutorService compactor;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong bloomSkipCount = new AtomicLong();
+
+    /** A version of a record: its header and, unless it's a tombstone, its metadata. */
+    public static class Entry {
+        private final String identifier;
+        private final long datestamp;
+        private final boolean deleted;
+        private final List<String> setSpecs;
+        private final byte[] metadata;
+        private final ByteBuffer buffer;
+        private final int metadataOffset;
+        private final int metadataLength;
+
+        private Entry(String identifier, long datestamp, boolean deleted, List<String> setSpecs, byte[] metadata) {
+            this.identifier = identifier;
+            this.datestamp = datestamp;
+            this.deleted = deleted;
+            this.setSpecs = setSpecs;
+            this.metadata = metadata;
+            this.buffer = null;
+            this.metadataOffset = 0;
+            this.metadataLength = metadata.length;
+        }
+
+        private Entry(String identifier, long datestamp, boolean deleted, List<String> setSpecs,
+                      ByteBuffer buffer, int metadataOffset, int metadataLength) {
+            this.identifier = identifier;
+            this.datestamp = datestamp;
+            this.deleted = deleted;
+            this.setSpecs = setSpecs;
+            this.metadata = null;
+            this.buffer = buffer;
+            this.metadataOffset = metadataOffset;
+            this.metadataLength = metadataLength;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * @return the datestamp, as a Datestamp
+         */
+        public long getDatestamp() {
+            return datestamp;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public List<String> getSetSpecs() {
+            return setSpecs;
+        }
+
+        /**
+         * Get the metadata, read from the segment if the record was flushed.
+         *
+         * @return the metadata bytes, empty for a tombstone
+         */
+        public byte[] getMetadata() {
+            if (metadata != null) {
+                return metadata;
+            }
+            byte[] bytes = new byte[metadataLength];
+            ByteBuffer b = buffer.duplicate();
+            b.position(metadataOffset);
+            b.get(bytes);
+            return bytes;
+        }
+
+        /** A rough estimate of the heap used by the entry in a memtable */
+        private int size() {
+            int size = 64 + 2 * identifier.length() + metadataLength;
+            for (String setSpec : setSpecs) {
+                size += 40 + 2 * setSpec.length();
+            }
+            return size;
+        }
+    }
+
+    /** The writes since the last flush, and their log */
+    private static class Memtable {
+        /** The id of the segment it will be flushed to */
+        private final int id;
+        private final File logFile;
+        private final RandomAccessFile log;
+        private final Map<String, Entry> byIdentifier = new HashMap<String, Entry>();
+        private final TreeSet<Entry> byDatestamp = new TreeSet<Entry>(DATESTAMP_ORDER);
+        private long bytes = 0;
+
+        private Memtable(int id, File logFile) throws IOException {
+            this.id = id;
+            this.logFile = logFile;
+            this.log = logFile == null ? null : new RandomAccessFile(logFile, "rw");
+        }
+
+        /** Append a batch to the log and sync it. */
+        private void append(byte[] record) throws IOException {
+            FileChannel channel = log.getChannel();
+            long start = channel.position();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // a torn batch would end the replay before the batches written after it
+                channel.truncate(start);
+                channel.position(start);
+                throw e;
+            }
+        }
+
+        private void closeLog() {
+            try {
+                if (log != null) {
+                    log.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("LogStructuredStore: couldn't close " + logFile, e);
+            }
+        }
+
+        private void put(Entry entry) {
+            Entry old = byIdentifier.put(entry.identifier, entry);
+            if (old != null) {
+                byDatestamp.remove(old);
+                bytes -= old.size();
+            }
+            byDatestamp.add(entry);
+            bytes += entry.size();
+        }
+
+        private boolean isEmpty() {
+            return byIdentifier.isEmpty();
+        }
+    }
+
+    /**
+     * Writes to apply together with write(Batch): once it returns, they are
+     * all visible and they survive a crash; if the JVM dies before, none of
+     * them does.
+     */
+    public static class Batch {
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        /**
+         * Add or replace a record.
+         *
+         * @param identifier the local identifier
+         * @param datestamp the datestamp of this version of the record, as a Datestamp
+         * @param setSpecs the sets of the record
+         * @param metadata the native metadata, handed to the crosswalks as recordBytes
+         * @throws IllegalArgumentException the identifier or a setSpec is too long
+         */
+        public void put(String identifier, long datestamp, List<String> setSpecs, byte[] metadata) {
+            checkLength(identifier);
+            for (String setSpec : setSpecs) {
+                checkLength(setSpec);
+            }
+            entries.add(new Entry(identifier, datestamp, false, new ArrayList<String>(setSpecs), metadata));
+        }
+
+        /**
+         * Replace a record with a tombstone, which keeps its sets so that
+         * selective harvesters see the deletion. Deleting a record that
+         * doesn't exist, or is already deleted, does nothing.
+         *
+         * @param identifier the local identifier
+         * @param datestamp the datestamp of the deletion, as a Datestamp
+         */
+        public void delete(String identifier, long datestamp) {
+            entries.add(new Entry(identifier, datestamp, true, null, new byte[0]));
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        /** Remove the writes, to reuse the batch once it is written. */
+        public void clear() {
+            entries.clear();
+        }
+    }
+
+    /** An immutable segment file, mapped read-only. */
+    private static class Segment {
+        private final int id;
+        /** The oldest and newest segments merged into this one: it supersedes the segments firstId to lastId */
+        private final int firstId;
+        private final int lastId;
+        private final File file;
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int dataEnd;
+        private final int indexEnd;
+        private final int bloomOffset;
+        private final int bloomHashes;
+        private final long bloomBits;
+        private final long[] sparseDatestamps;
+        private final String[] sparseDatestampIdentifiers;
+        private final int[] sparseDataOffsets;
+        private final String[] sparseIdentifiers;
+        private final int[] sparseIndexOffsets;
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                if (length < FOOTER || length > Integer.MAX_VALUE) {
+                    throw new IOException("LogStructuredStore: " + file + " isn't a segment");
+                }
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } finally {
+                raf.close();
+            }
+            int footer = buffer.limit() - FOOTER;
+            if (buffer.getInt(footer + 24) != MAGIC) {
+                throw new IOException("LogStructuredStore: " + file + " isn't a segment");
+            }
+            dataEnd = buffer.getInt(footer);
+            indexEnd = buffer.getInt(footer + 4);
+            bloomOffset = buffer.getInt(footer + 8);
+            count = buffer.getInt(footer + 12);
+            firstId = buffer.getInt(footer + 16);
+            lastId = buffer.getInt(footer + 20);
+
+            int offset = indexEnd;
+            int n = buffer.getInt(offset);
+            offset += 4;
+            sparseDatestamps = new long[n];
+            sparseDatestampIdentifiers = new String[n];
+            sparseDataOffsets = new int[n];
+            for (int i = 0; i < n; ++i) {
+                sparseDatestamps[i] = buffer.getLong(offset);
+                sparseDatestampIdentifiers[i] = readString(buffer, offset + 8);
+                offset = skipString(buffer, offset + 8);
+                sparseDataOffsets[i] = buffer.getInt(offset);
+                offset += 4;
+            }
+            n = buffer.getInt(offset);
+            offset += 4;
+            sparseIdentifiers = new String[n];
+            sparseIndexOffsets = new int[n];
+            for (int i = 0; i < n; ++i) {
+                sparseIdentifiers[i] = readString(buffer, offset);
+                offset = skipString(buffer, offset);
+                sparseIndexOffsets[i] = buffer.getInt(offset);
+                offset += 4;
+            }
+            bloomHashes = buffer.getInt(bloomOffset);
+            bloomBits = 64L * buffer.getInt(bloomOffset + 4);
+        }
+
+        private long length() {
+            return buffer.limit();
+        }
+
+        private boolean mightContain(String identifier) {
+            long hash = hash(identifier);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < bloomHashes; ++i) {
+                int combined = h1 + i * h2;
+                long bit = (combined < 0 ? ~combined : combined) % bloomBits;
+                if ((buffer.getLong(bloomOffset + 8 + 8 * (int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the record with the identifier, or null if this segment doesn't hold it
+         */
+        private Entry get(String identifier) {
+            int i = floor(sparseIdentifiers, identifier);
+            if (i < 0) {
+                return null;
+            }
+            int offset = sparseIndexOffsets[i];
+            for (int j = 0; j < SPARSE_INTERVAL && offset < indexEnd; ++j) {
+                int c = readString(buffer, offset).compareTo(identifier);
+                offset = skipString(buffer, offset);
+                if (c == 0) {
+                    return read(buffer.getInt(offset));
+                } else if (c > 0) {
+                    return null;
+                }
+                offset += 4;
+            }
+            return null;
+        }
+
+        /**
+         * @return the offset of the first record at or after the datestamp and identifier,
+         *         or dataEnd if there is none
+         */
+        private int seek(long datestamp, String identifier) {
+            int low = 0;
+            int high = sparseDatestamps.length - 1;
+            int i = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(sparseDatestamps[mid], sparseDatestampIdentifiers[mid], datestamp, identifier) <= 0) {
+                    i = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            int offset = i < 0 ? 0 : sparseDataOffsets[i];
+            while (offset < dataEnd
+                    && compare(buffer.getLong(offset + 4), readString(buffer, offset + 13), datestamp, identifier) < 0) {
+                offset += buffer.getInt(offset);
+            }
+            return offset;
+        }
+
+        private Entry read(int offset) {
+            return readEntry(buffer, offset);
+        }
+    }
+
+    private static Entry readEntry(ByteBuffer buffer, int offset) {
+        long datestamp = buffer.getLong(offset + 4);
+        boolean deleted = (buffer.get(offset + 12) & FLAG_DELETED) != 0;
+        String identifier = readString(buffer, offset + 13);
+        offset = skipString(buffer, offset + 13);
+        int setCount = buffer.getShort(offset) & 0xffff;
+        offset += 2;
+        List<String> setSpecs = new ArrayList<String>(setCount);
+        for (int i = 0; i < setCount; ++i) {
+            setSpecs.add(readString(buffer, offset));
+            offset = skipString(buffer, offset);
+        }
+        int metadataLength = buffer.getInt(offset);
+        return new Entry(identifier, datestamp, deleted, setSpecs, buffer, offset + 4, metadataLength);
+    }
+
+    /** A source of records in datestamp order for a Merge */
+    private abstract static class Source {
+        private Entry head;
+
+        abstract Entry next();
+
+        abstract boolean contains(String identifier);
+
+        final void advance() {
+            head = next();
+        }
+    }
+
+    private static class MemtableSource extends Source {
+        private final Memtable table;
+        private final Iterator<Entry> iterator;
+
+        private MemtableSource(Memtable table, long datestamp, String identifier) {
+            this.table = table;
+            Entry from = new Entry(identifier, datestamp, false, Collections.<String>emptyList(), new byte[0]);
+            this.iterator = table.byDatestamp.tailSet(from, true).iterator();
+            advance();
+        }
+
+        Entry next() {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        boolean contains(String identifier) {
+            return table.byIdentifier.containsKey(identifier);
+        }
+    }
+
+    private class SegmentSource extends Source {
+        private final Segment segment;
+        private int offset;
+
+        private SegmentSource(Segment segment, long datestamp, String identifier) {
+            this.segment = segment;
+            this.offset = segment.seek(datestamp, identifier);
+            advance();
+        }
+
+        Entry next() {
+            if (offset >= segment.dataEnd) {
+                return null;
+            }
+            Entry entry = segment.read(offset);
+            offset += segment.buffer.getInt(offset);
+            return entry;
+        }
+
+        boolean contains(String identifier) {
+            return getFromSegment(segment, identifier) != null;
+        }
+    }
+
+    /**
+     * A merge of sources in datestamp order, which skips the records that a
+     * newer source holds too. The sources are given newest first.
+     */
+    private static class Merge {
+        private final List<Source> sources;
+        private final PriorityQueue<Source> queue;
+
+        private Merge(final List<Source> sources) {
+            this.sources = sources;
+            this.queue = new PriorityQueue<Source>(Math.max(1, sources.size()), new Comparator<Source>() {
+                public int compare(Source a, Source b) {
+                    int c = DATESTAMP_ORDER.compare(a.head, b.head);
+                    return c != 0 ? c : sources.indexOf(a) - sources.indexOf(b);
+                }
+            });
+            for (Source source : sources) {
+                if (source.head != null) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        /**
+         * @return the next current record, or null at the end
+         */
+        private Entry next() {
+            while (!queue.isEmpty()) {
+                Source source = queue.poll();
+                Entry entry = source.head;
+                source.advance();
+                if (source.head != null) {
+                    queue.add(source);
+                }
+                if (isCurrent(entry, source)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private boolean isCurrent(Entry entry, Source source) {
+            for (Source newer : sources) {
+                if (newer == source) {
+                    return true;
+                }
+                if (newer.contains(entry.identifier)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Open (or create) the store in the specified directory.
+     *
+     * @param directory the directory containing the segment files
+     * @param memtableBytes the size of the memtable that triggers a flush
+     * @param maxSegments the segment count above which segments are merged
+     * @param maxSegmentBytes the largest segment built by merging
+     * @param bloomBitsPerKey the size of the Bloom filters, in bits per record
+     * @param dropDeleted true to drop the tombstones when merging the oldest segment
+     * @param flushSeconds the interval between flushes of the memtable (<=0 to flush only when it's full)
+     * @throws IOException the directory or one of the segments can't be opened
+     */
+    public LogStructuredStore(File directory, long memtableBytes, int maxSegments, long maxSegmentBytes,
+                              int bloomBitsPerKey, boolean dropDeleted, int flushSeconds) throws IOException {
+        this.directory = directory;
+        this.memtableBytes = memtableBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE);
+        this.bloomBitsPerKey = Math.max(1, bloomBitsPerKey);
+        this.dropDeleted = dropDeleted;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("LogStructuredStore: couldn't create " + directory);
+        }
+        load();
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LogStructuredStore-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (flushSeconds > 0) {
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flushAndCompact();
+                }
+            }, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Create the store described by the LogStructuredOAICatalog.* properties.
+     *
+     * @param properties the repository properties
+     * @return a new store
+     * @throws IOException the store directory can't be opened
+     */
+    public static LogStructuredStore factory(Properties properties) throws IOException {
+        String dir = properties.getProperty("LogStructuredOAICatalog.dir");
+        if (dir == null) {
+            throw new IllegalArgumentException("LogStructuredOAICatalog.dir is missing from the properties file");
+        }
+        long memtableBytes = Long.parseLong(properties.getProperty("LogStructuredOAICatalog.memtableBytes", "4194304"));
+        int maxSegments = Integer.parseInt(properties.getProperty("LogStructuredOAICatalog.maxSegments", "8"));
+        long maxSegmentBytes = Long.parseLong(properties.getProperty("LogStructuredOAICatalog.maxSegmentBytes", "1073741824"));
+        int bloomBitsPerKey = Integer.parseInt(properties.getProperty("LogStructuredOAICatalog.bloomBitsPerKey", "10"));
+        boolean dropDeleted = Boolean.valueOf(properties.getProperty("LogStructuredOAICatalog.dropDeleted", "false")).booleanValue();
+        int flushSeconds = Integer.parseInt(properties.getProperty("LogStructuredOAICatalog.flushSeconds", "60"));
+        LOGGER.debug("LogStructuredStore.factory: dir=" + dir + " memtableBytes=" + memtableBytes + " maxSegments=" + maxSegments);
+        return new LogStructuredStore(new File(dir), memtableBytes, maxSegments, maxSegmentBytes, bloomBitsPerKey,
+                dropDeleted, flushSeconds);
+    }
+
+    /**
+     * Map the existing segments, and delete the ones that a merged segment
+     * supersedes but that weren't deleted before the JVM died.
+     */
+    private void load() throws IOException {
+        String[] names = directory.list();
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].startsWith(SEGMENT_PREFIX) && names[i].endsWith(SEGMENT_SUFFIX)) {
+                ids.add(Integer.valueOf(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length())));
+            } else if (names[i].startsWith(SEGMENT_PREFIX) && names[i].endsWith(TEMP_SUFFIX)) {
+                new File(directory, names[i]).delete();
+            }
+        }
+        List<Segment> found = new ArrayList<Segment>();
+        for (Integer id : ids) {
+            found.add(new Segment(id.intValue(), segmentFile(id.intValue())));
+            nextSegmentId = Math.max(nextSegmentId, id.intValue() + 1);
+        }
+        Collections.sort(found, NEWEST_FIRST);
+        int supersededFrom = Integer.MAX_VALUE;
+        for (Segment segment : found) {
+            if (segment.lastId >= supersededFrom) {
+                LOGGER.info("LogStructuredStore: deleting superseded " + segment.file);
+                segment.file.delete();
+                continue;
+            }
+            segments.add(0, segment);
+            supersededFrom = segment.firstId;
+        }
+        replayLogs(names);
+        memtable = newMemtable();
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count;
+        }
+        LOGGER.info("LogStructuredStore: opened " + directory + " with " + segments.size() + " segment(s) and " + count + " records");
+    }
+
+    /**
+     * Write the logs of the memtables that weren't flushed before the JVM
+     * died to segments, in order, and delete them.
+     */
+    private void replayLogs(String[] names) throws IOException {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].startsWith(SEGMENT_PREFIX) && names[i].endsWith(LOG_SUFFIX)) {
+                ids.add(Integer.valueOf(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+        // a memtable that failed to flush kept its log and put its records back in the next
+        // memtable, so the records of a log older than the newest flushed memtable are in a
+        // segment already, and the others are replayed in order
+        int newest = segments.isEmpty() ? -1 : segments.get(segments.size() - 1).lastId;
+        for (Integer id : ids) {
+            File logFile = logFile(id.intValue());
+            if (id.intValue() > newest) {
+                Memtable table = new Memtable(id.intValue(), null);
+                int batches = readLog(logFile, table);
+                if (!table.isEmpty()) {
+                    Segment segment = writeSegment(table);
+                    segments.add(segment);
+                    LOGGER.info("LogStructuredStore: replayed " + batches + " batch(es) of " + logFile + " into " + segment.file);
+                }
+                nextSegmentId = Math.max(nextSegmentId, id.intValue() + 1);
+            }
+            if (!logFile.delete()) {
+                throw new IOException("LogStructuredStore: couldn't delete " + logFile);
+            }
+        }
+        if (!ids.isEmpty()) {
+            syncDirectory();
+        }
+    }
+
+    /**
+     * Read the batches of a log into a memtable. A batch cut short by a crash
+     * (bad length or crc) ends the log.
+     *
+     * @return the number of batches read
+     */
+    private static int readLog(File logFile, Memtable table) throws IOException {
+        byte[] bytes = new byte[(int) logFile.length()];
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int offset = 0;
+        int batches = 0;
+        while (offset + LOG_RECORD_HEADER <= bytes.length) {
+            int length = buffer.getInt(offset);
+            if (length < LOG_RECORD_HEADER || offset + length > bytes.length) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, offset + LOG_RECORD_HEADER, length - LOG_RECORD_HEADER);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            for (int entry = offset + LOG_RECORD_HEADER; entry < offset + length; entry += buffer.getInt(entry)) {
+                table.put(readEntry(buffer, entry));
+            }
+            offset += length;
+            batches++;
+        }
+        if (offset < bytes.length) {
+            LOGGER.warn("LogStructuredStore: ignoring the last " + (bytes.length - offset) + " bytes of " + logFile);
+        }
+        return batches;
+    }
+
+    /** Create a memtable and its log. The caller must hold logLock and the write lock, or be load(). */
+    private Memtable newMemtable() throws IOException {
+        int id = nextSegmentId++;
+        return new Memtable(id, logFile(id));
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%08d", Integer.valueOf(id)) + SEGMENT_SUFFIX);
+    }
+
+    private File logFile(int id) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%08d", Integer.valueOf(id)) + LOG_SUFFIX);
+    }
+
+    /**
+     * Add or replace a record, as a Batch of one.
+     *
+     * @param identifier the local identifier
+     * @param datestamp the datestamp of this version of the record, as a Datestamp
+     * @param setSpecs the sets of the record
+     * @param metadata the native metadata, handed to the crosswalks as recordBytes
+     * @throws IOException the log couldn't be written
+     */
+    public void put(String identifier, long datestamp, List<String> setSpecs, byte[] metadata) throws IOException {
+        Batch batch = new Batch();
+        batch.put(identifier, datestamp, setSpecs, metadata);
+        write(batch);
+    }
+
+    /**
+     * Replace a record with a tombstone, as a Batch of one.
+     *
+     * @param identifier the local identifier
+     * @param datestamp the datestamp of the deletion, as a Datestamp
+     * @return false if there is no such record
+     * @throws IOException the log couldn't be written
+     */
+    public boolean delete(String identifier, long datestamp) throws IOException {
+        Batch batch = new Batch();
+        batch.delete(identifier, datestamp);
+        return write(batch).size() == 1;
+    }
+
+    private static void checkLength(String s) {
+        if (encode(s).length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("longer than " + MAX_STRING_BYTES + " bytes: " + s);
+        }
+    }
+
+    /**
+     * Apply a batch: append it to the log, sync the log and add it to the memtable.
+     *
+     * @param batch the writes
+     * @return the identifiers written, without the deletions of records that don't exist
+     * @throws IOException the log couldn't be written: none of the batch was applied
+     */
+    public List<String> write(Batch batch) throws IOException {
+        // give the tombstones the sets of the records they delete
+        Map<String, Entry> current = new HashMap<String, Entry>();
+        List<Entry> entries = new ArrayList<Entry>(batch.entries.size());
+        for (Entry entry : batch.entries) {
+            Entry previous = current.containsKey(entry.identifier) ? current.get(entry.identifier) : get(entry.identifier);
+            if (entry.deleted) {
+                if (previous == null || previous.deleted) {
+                    continue;
+                }
+                entry = new Entry(entry.identifier, entry.datestamp, true, previous.setSpecs, entry.metadata);
+            }
+            current.put(entry.identifier, entry);
+            entries.add(entry);
+        }
+        List<String> identifiers = new ArrayList<String>(entries.size());
+        if (entries.isEmpty()) {
+            return identifiers;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        for (Entry entry : entries) {
+            writeEntry(out, entry);
+            identifiers.add(entry.identifier);
+        }
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, LOG_RECORD_HEADER, record.length - LOG_RECORD_HEADER);
+        ByteBuffer.wrap(record).putInt(0, record.length).putInt(4, (int) crc.getValue());
+
+        long memtableSize;
+        synchronized (logLock) {
+            Memtable table = memtable;
+            table.append(record);
+            lock.writeLock().lock();
+            try {
+                for (Entry entry : entries) {
+                    table.put(entry);
+                }
+                memtableSize = table.bytes;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        batchCount.incrementAndGet();
+        if (memtableSize >= 2 * memtableBytes) {
+            // the compactor doesn't keep up: make the writers wait for it
+            flush();
+        } else if (memtableSize >= memtableBytes && flushScheduled.compareAndSet(false, true)) {
+            compactor.execute(new Runnable() {
+                public void run() {
+                    flushScheduled.set(false);
+                    flushAndCompact();
+                }
+            });
+        }
+        return identifiers;
+    }
+
+    /**
+     * Get the current version of a record.
+     *
+     * @param identifier the local identifier
+     * @return the record, or tombstone, or null if there is no such record
+     */
+    public Entry get(String identifier) {
+        lock.readLock().lock();
+        try {
+            Entry entry = memtable.byIdentifier.get(identifier);
+            if (entry == null && flushing != null) {
+                entry = flushing.byIdentifier.get(identifier);
+            }
+            for (int i = segments.size() - 1; entry == null && i >= 0; --i) {
+                entry = getFromSegment(segments.get(i), identifier);
+            }
+            return entry;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Entry getFromSegment(Segment segment, String identifier) {
+        if (!segment.mightContain(identifier)) {
+            bloomSkipCount.incrementAndGet();
+            return null;
+        }
+        return segment.get(identifier);
+    }
+
+    /**
+     * Read the current records in datestamp order, starting at a position
+     * returned by a previous scan.
+     *
+     * @param datestamp the datestamp of the first record
+     * @param identifier the identifier of the first record ("" for the first
+     *        record of the datestamp)
+     * @param until the last datestamp of the range
+     * @param setSpec only return the records in this set, or null
+     * @param max the maximum number of records to return
+     * @return up to max+1 records: the one after the max first is where the next scan starts
+     */
+    public List<Entry> scan(long datestamp, String identifier, long until, String setSpec, int max) {
+        List<Entry> entries = new ArrayList<Entry>();
+        lock.readLock().lock();
+        try {
+            List<Source> sources = new ArrayList<Source>();
+            sources.add(new MemtableSource(memtable, datestamp, identifier));
+            if (flushing != null) {
+                sources.add(new MemtableSource(flushing, datestamp, identifier));
+            }
+            for (int i = segments.size() - 1; i >= 0; --i) {
+                sources.add(new SegmentSource(segments.get(i), datestamp, identifier));
+            }
+            Merge merge = new Merge(sources);
+            Entry entry;
+            while (entries.size() <= max && (entry = merge.next()) != null && entry.datestamp <= until) {
+                if (setSpec == null || entry.setSpecs.contains(setSpec)) {
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    private void flushAndCompact() {
+        try {
+            flush();
+            compact();
+        } catch (Throwable t) {
+            LOGGER.error("LogStructuredStore: flush or compaction failed", t);
+        }
+    }
+
+    /**
+     * Write the memtable to a new segment.
+     *
+     * @throws IOException the segment couldn't be written
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            Memtable table;
+            synchronized (logLock) {
+                lock.writeLock().lock();
+                try {
+                    if (memtable.isEmpty()) {
+                        return;
+                    }
+                    table = memtable;
+                    memtable = newMemtable();
+                    flushing = table;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            Segment segment = null;
+            try {
+                segment = writeSegment(table);
+            } finally {
+                lock.writeLock().lock();
+                try {
+                    if (segment != null) {
+                        List<Segment> newSegments = new ArrayList<Segment>(segments);
+                        newSegments.add(segment);
+                        segments = newSegments;
+                    } else {
+                        // put the records back under the ones written meanwhile; their log
+                        // is kept, and replayed into a segment older than theirs after a crash
+                        for (Entry entry : table.byIdentifier.values()) {
+                            if (!memtable.byIdentifier.containsKey(entry.identifier)) {
+                                memtable.put(entry);
+                            }
+                        }
+                    }
+                    flushing = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            table.closeLog();
+            if (!table.logFile.delete()) {
+                LOGGER.warn("LogStructuredStore: couldn't delete " + table.logFile);
+            }
+            syncDirectory();
+            flushCount.incrementAndGet();
+            LOGGER.debug("LogStructuredStore: flushed " + segment.count + " records to " + segment.file);
+        }
+    }
+
+    /**
+     * Merge the newest segments if there are more than maxSegments.
+     *
+     * @throws IOException the merged segment couldn't be written
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            List<Segment> snapshot;
+            lock.readLock().lock();
+            try {
+                snapshot = segments;
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (snapshot.size() <= maxSegments) {
+                return;
+            }
+            int first = snapshot.size();
+            long bytes = 0;
+            while (first > 0 && bytes + snapshot.get(first - 1).length() <= maxSegmentBytes) {
+                bytes += snapshot.get(--first).length();
+            }
+            if (snapshot.size() - first < 2) {
+                LOGGER.warn("LogStructuredStore: " + snapshot.size() + " segments, but the newest two are bigger than maxSegmentBytes");
+                return;
+            }
+            final List<Segment> run = snapshot.subList(first, snapshot.size());
+            final boolean dropTombstones = dropDeleted && first == 0;
+            List<Source> sources = new ArrayList<Source>();
+            for (int i = run.size() - 1; i >= 0; --i) {
+                sources.add(new SegmentSource(run.get(i), Long.MIN_VALUE, ""));
+            }
+            final Merge merge = new Merge(sources);
+            // a new id, rather than replacing the newest segment of the run while it's mapped
+            int id;
+            synchronized (logLock) {
+                lock.writeLock().lock();
+                try {
+                    id = nextSegmentId++;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            Segment merged = writeSegment(id, run.get(0).firstId, run.get(run.size() - 1).lastId, new Source() {
+                Entry next() {
+                    Entry entry;
+                    while ((entry = merge.next()) != null && dropTombstones && entry.deleted) {
+                    }
+                    return entry;
+                }
+
+                boolean contains(String identifier) {
+                    return false;
+                }
+            });
+            lock.writeLock().lock();
+            try {
+                List<Segment> newSegments = new ArrayList<Segment>(segments);
+                int index = newSegments.indexOf(run.get(0));
+                newSegments.removeAll(run);
+                newSegments.add(index, merged);
+                segments = newSegments;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            long count = 0;
+            for (Segment segment : run) {
+                count += segment.count;
+                segment.file.delete();
+            }
+            syncDirectory();
+            compactionCount.incrementAndGet();
+            LOGGER.info("LogStructuredStore: merged " + run.size() + " segments with " + count + " records into "
+                    + merged.file + " with " + merged.count + " records");
+        }
+    }
+
+    /** Write a memtable to its segment and map it. */
+    private Segment writeSegment(Memtable table) throws IOException {
+        final Iterator<Entry> iterator = table.byDatestamp.iterator();
+        return writeSegment(table.id, table.id, table.id, new Source() {
+            Entry next() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+
+            boolean contains(String identifier) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Write a segment and map it.
+     *
+     * @param id the segment id
+     * @param firstId the oldest segment id it supersedes
+     * @param lastId the newest segment id it supersedes
+     * @param source the records, in datestamp order
+     */
+    private Segment writeSegment(int id, int firstId, int lastId, Source source) throws IOException {
+        File file = segmentFile(id);
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+        TreeMap<String, Integer> identifiers = new TreeMap<String, Integer>();
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            List<Entry> sparseEntries = new ArrayList<Entry>();
+            List<Integer> sparseOffsets = new ArrayList<Integer>();
+            Entry entry;
+            while ((entry = source.next()) != null) {
+                int offset = checkOffset(out.size(), temp);
+                if (identifiers.size() % SPARSE_INTERVAL == 0) {
+                    sparseEntries.add(entry);
+                    sparseOffsets.add(Integer.valueOf(offset));
+                }
+                identifiers.put(entry.identifier, Integer.valueOf(offset));
+                writeEntry(out, entry);
+            }
+            int dataEnd = checkOffset(out.size(), temp);
+
+            List<String> sparseIdentifiers = new ArrayList<String>();
+            List<Integer> sparseIndexOffsets = new ArrayList<Integer>();
+            int n = 0;
+            for (Map.Entry<String, Integer> identifier : identifiers.entrySet()) {
+                if (n++ % SPARSE_INTERVAL == 0) {
+                    sparseIdentifiers.add(identifier.getKey());
+                    sparseIndexOffsets.add(Integer.valueOf(out.size()));
+                }
+                writeBytes(out, encode(identifier.getKey()));
+                out.writeInt(identifier.getValue().intValue());
+            }
+            int indexEnd = checkOffset(out.size(), temp);
+
+            out.writeInt(sparseEntries.size());
+            for (int i = 0; i < sparseEntries.size(); ++i) {
+                out.writeLong(sparseEntries.get(i).datestamp);
+                writeBytes(out, encode(sparseEntries.get(i).identifier));
+                out.writeInt(sparseOffsets.get(i).intValue());
+            }
+            out.writeInt(sparseIdentifiers.size());
+            for (int i = 0; i < sparseIdentifiers.size(); ++i) {
+                writeBytes(out, encode(sparseIdentifiers.get(i)));
+                out.writeInt(sparseIndexOffsets.get(i).intValue());
+            }
+            int bloomOffset = checkOffset(out.size(), temp);
+
+            long[] bloom = new long[(int) Math.max(1, ((long) identifiers.size() * bloomBitsPerKey + 63) / 64)];
+            int bloomHashes = Math.max(1, (int) Math.round(bloomBitsPerKey * Math.log(2)));
+            long bloomBits = 64L * bloom.length;
+            for (String identifier : identifiers.keySet()) {
+                long hash = hash(identifier);
+                int h1 = (int) hash;
+                int h2 = (int) (hash >>> 32);
+                for (int i = 0; i < bloomHashes; ++i) {
+                    int combined = h1 + i * h2;
+                    long bit = (combined < 0 ? ~combined : combined) % bloomBits;
+                    bloom[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            out.writeInt(bloomHashes);
+            out.writeInt(bloom.length);
+            for (int i = 0; i < bloom.length; ++i) {
+                out.writeLong(bloom[i]);
+            }
+
+            out.writeInt(dataEnd);
+            out.writeInt(indexEnd);
+            out.writeInt(bloomOffset);
+            out.writeInt(identifiers.size());
+            out.writeInt(firstId);
+            out.writeInt(lastId);
+            out.writeInt(MAGIC);
+            checkOffset(out.size(), temp);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            fos.close();
+            temp.delete();
+            throw e;
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("LogStructuredStore: couldn't rename " + temp + " to " + file);
+            }
+        }
+        syncDirectory();
+        return new Segment(id, file);
+    }
+
+    /**
+     * Sync the directory, so that the renames and deletes in it survive a
+     * crash. Some platforms can't open a directory; there it's skipped.
+     */
+    private void syncDirectory() {
+        try {
+            DirectorySync.sync(directory);
+        } catch (IOException e) {
+            LOGGER.debug("LogStructuredStore: couldn't sync " + directory, e);
+        } catch (LinkageError e) {
+            // java.nio.file, needed to open a directory, came with Java 7
+        }
+    }
+
+    /** Linked on first use, so that only syncDirectory needs Java 7. */
+    private static class DirectorySync {
+        private static void sync(File directory) throws IOException {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        byte[] identifierBytes = encode(entry.identifier);
+        byte[] metadata = entry.getMetadata();
+        List<byte[]> setSpecs = new ArrayList<byte[]>();
+        int length = 4 + 8 + 1 + 2 + identifierBytes.length + 2 + 4 + metadata.length;
+        for (String setSpec : entry.setSpecs) {
+            byte[] setSpecBytes = encode(setSpec);
+            setSpecs.add(setSpecBytes);
+            length += 2 + setSpecBytes.length;
+        }
+        out.writeInt(length);
+        out.writeLong(entry.datestamp);
+        out.writeByte(entry.deleted ? FLAG_DELETED : 0);
+        writeBytes(out, identifierBytes);
+        out.writeShort(setSpecs.size());
+        for (byte[] setSpecBytes : setSpecs) {
+            writeBytes(out, setSpecBytes);
+        }
+        out.writeInt(metadata.length);
+        out.write(metadata);
+    }
+
+    private int checkOffset(int offset, File file) throws IOException {
+        if (offset == Integer.MAX_VALUE) {
+            throw new IOException("LogStructuredStore: " + file + " would be bigger than 2 GB");
+        }
+        return offset;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Flush the memtable and stop the background task. */
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            LOGGER.error("LogStructuredStore: couldn't flush the memtable", e);
+        }
+        synchronized (logLock) {
+            memtable.closeLog();
+            if (memtable.isEmpty()) {
+                memtable.logFile.delete();
+            }
+        }
+        LOGGER.info("LogStructuredStore: closed " + toString());
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String toString() {
+        long memtableSize;
+        lock.readLock().lock();
+        try {
+            memtableSize = memtable.byIdentifier.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return "LogStructuredStore[" + directory + ", segments=" + getSegmentCount() + ", memtable=" + memtableSize
+                + ", batches=" + batchCount.get() + ", flushes=" + flushCount.get() + ", compactions=" + compactionCount.get()
+                + ", bloomSkips=" + bloomSkipCount.get() + "]";
+    }
+
+    private static int compare(long datestamp1, String identifier1, long datestamp2, String identifier2) {
+        if (datestamp1 != datestamp2) {
+            return datestamp1 < datestamp2 ? -1 : 1;
+        }
+        return identifier1.compareTo(identifier2);
+    }
+
+    /**
+     * @return the index of the greatest key that is &lt;= the key, or -1
+     */
+    private static int floor(String[] keys, String key) {
+        int low = 0;
+        int high = keys.length - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) <= 0) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /** A 64 bit FNV-1a hash, mixed by the finalizer of MurmurHash3 */
+    private static long hash(String identifier) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < identifier.length(); ++i) {
+            h = (h ^ identifier.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static String readString(ByteBuffer buffer, int offset) {
+        int length = buffer.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset + 2);
+        b.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int skipString(ByteBuffer buffer, int offset) {
+        return offset + 2 + (buffer.getShort(offset) & 0xffff);
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -131,7 +131,7 @@ public class NewFileRecordFactory extends RecordFactory {
      * @throws IllegalArgumentException Something is wrong with the argument.
      */
     public boolean isDeleted(Object nativeItem) throws IllegalArgumentException {
-        return false;
+        return Boolean.TRUE.equals(((HashMap) nativeItem).get("deleted"));
     }
 
     /**
@@ -16,17 +16,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Properties;
-import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.List;
 
@@ -47,11 +43,15 @@ import org.oclc.oai.server.verb.NoItemsMatchException;
 import org.oclc.oai.server.verb.NoMetadataFormatsException;
 import org.oclc.oai.server.verb.NoSetHierarchyException;
 import org.oclc.oai.server.verb.OAIInternalServerError;
+import org.oclc.oai.util.Datestamp;
 
 
 /**
  * NewFileSystemOAICatalog is an implementation of AbstractCatalog interface
- * with the data sitting in a directory on a filesystem.
+ * with the data sitting in a directory on a filesystem. The headers of the
+ * files are indexed in a HeaderStore, outside the heap, and resumptionTokens
+ * hold the position of the list in the store, so no result set is kept in
+ * memory between requests.
  *
  * @author Jeff Young, OCLC Online Computer Library Center
  */
@@ -61,18 +61,14 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
     /** Class logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(NewFileSystemOAICatalog.class);
 
-    private SimpleDateFormat dateFormatter = new SimpleDateFormat();
     protected String homeDir;
-    protected Map<String, Object> fileDateMap = new HashMap<String, Object>();
-    private Map<String, Object> setMap = new HashMap<String, Object>();
-    private Map<String, Object> resumptionResults = new HashMap<String, Object>();
+    private HeaderStore headerStore;
     private int maxListSize;
     private List<String> sets = null;
 
     public NewFileSystemOAICatalog(Properties properties) throws IOException {
         String temp;
 
-        dateFormatter.applyPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
         temp = properties.getProperty("NewFileSystemOAICatalog.maxListSize");
         if (temp == null) {
             throw new IllegalArgumentException("NewFileSystemOAICatalog. maxListSize is missing from the properties file");
@@ -90,7 +86,9 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
 
         File homeFile = new File(homeDir);
         int homeDirLen = homeFile.getPath().length() + 1;
-        loadFileMap(homeDirLen, homeFile);
+        HeaderStore.Builder builder = new HeaderStore.Builder();
+        loadFileMap(homeDirLen, homeFile, builder);
+        headerStore = builder.build();
         sets = getSets(properties);
     }
 
@@ -107,7 +105,7 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
         return new ArrayList<String>(treeMap.values());
     }
 
-    private void loadFileMap(int homeDirLen, File currentDir) throws IOException {
+    private void loadFileMap(int homeDirLen, File currentDir, HeaderStore.Builder headers) throws IOException {
         try {
             String[] list = currentDir.list();
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
@@ -115,7 +113,7 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
             for (int i = 0; i < list.length; ++i) {
                 File child = new File(currentDir, list[i]);
                 if (child.isDirectory() && !"CVS".equals(child.getName())) {
-                    loadFileMap(homeDirLen, child);
+                    loadFileMap(homeDirLen, child, headers);
                 } else if (isMetadataFile(child)) {
                     String path = file2path(homeDirLen, child);
                     LOGGER.debug("parsing " + path);
@@ -126,17 +124,18 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
                     fis.close();
 
                     Node datestampNode = XPathAPI.selectSingleNode(doc, "/record/header/datestamp");
-                    fileDateMap.put(path, XPathAPI.eval(datestampNode, "string()").str());
+                    String datestamp = XPathAPI.eval(datestampNode, "string()").str();
+                    boolean deleted = "deleted".equals(XPathAPI.eval(doc, "/record/header/@status").str());
                     NodeList setNodes = XPathAPI.selectNodeList(doc, "/record/header/setSpec");
+                    List<String> setSpecs = new ArrayList<String>();
                     for (int j = 0; j < setNodes.getLength(); ++j) {
                         Node setSpecNode = setNodes.item(j);
-                        String setSpec = XPathAPI.eval(setSpecNode, "string()").str();
-                        List<String> setSpecList = (List<String>) setMap.get(setSpec);
-                        if (setSpecList == null) {
-                            setSpecList = new ArrayList<String>();
-                            setMap.put(setSpec, setSpecList);
-                        }
-                        setSpecList.add(path);
+                        setSpecs.add(XPathAPI.eval(setSpecNode, "string()").str());
+                    }
+                    try {
+                        headers.add(path, datestamp, deleted, setSpecs);
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.warn("skipping " + path + ": " + e.getMessage());
                     }
                 }
             }
@@ -180,34 +179,109 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
     }
 
     private Map<String, Object> getNativeHeader(String path) {
-        Map<String, Object> recordMap = null;
-        if (fileDateMap.containsKey(path)) {
-            recordMap = new HashMap<String, Object>();
-            recordMap.put("localIdentifier", path.substring(0, path.lastIndexOf(".")));
-            recordMap.put("lastModified", fileDateMap.get(path));
-            List<String> setSpecs = new ArrayList<String>();
-            for (String key : setMap.keySet()) {
-                List<String> identifierList = (List<String>) setMap.get(key);
-                if (identifierList.contains(path)) {
-                    setSpecs.add(key);
-                }
-            }
-            recordMap.put("setSpecs", setSpecs.iterator());
-            return recordMap;
+        int record = headerStore.indexOf(path);
+        return record < 0 ? null : getNativeHeader(record);
+    }
+
+    private Map<String, Object> getNativeHeader(int record) {
+        String path = headerStore.getIdentifier(record);
+        Map<String, Object> recordMap = new HashMap<String, Object>();
+        recordMap.put("localIdentifier", path.substring(0, path.lastIndexOf(".")));
+        recordMap.put("lastModified", headerStore.formatDatestamp(record));
+        recordMap.put("setSpecs", headerStore.getSetSpecs(record).iterator());
+        if (headerStore.isDeleted(record)) {
+            recordMap.put("deleted", Boolean.TRUE);
         }
         return recordMap;
     }
 
     private List<String> getExtensionList(String localIdentifier) {
         List<String> list = new ArrayList<String>();
-        for (Map.Entry<String, Object> entry : fileDateMap.entrySet()) {
-            if ((entry.getKey()).startsWith(localIdentifier)) {
-                list.add((entry.getKey()).substring(localIdentifier.length() + 1));
+        if (localIdentifier == null) {
+            return list;
+        }
+        String prefix = localIdentifier + ".";
+        for (int record = headerStore.ceiling(prefix); record < headerStore.size(); ++record) {
+            String path = headerStore.getIdentifier(record);
+            if (!path.startsWith(prefix)) {
+                break;
             }
+            list.add(path.substring(prefix.length()));
         }
         return list;
     }
 
+    /**
+     * @return the first position of the HeaderStore range scan at or after
+     *         the specified one whose record is a file of the metadataPrefix,
+     *         or headerStore.size() if there is none
+     */
+    private int nextMatch(int position, long until, int setId, String metadataPrefix) {
+        String extension = "." + metadataPrefix;
+        int size = headerStore.size();
+        for (int i = headerStore.next(position, until, setId); i < size; i = headerStore.next(i + 1, until, setId)) {
+            if (headerStore.getIdentifier(headerStore.getRecord(i)).endsWith(extension)) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The resumptionToken is position:cursor:numRows:metadataPrefix:until:set,
+     * where position is the next position of the HeaderStore range scan, until
+     * is a Datestamp and set is missing if the list isn't restricted to a set.
+     */
+    private static String createResumptionToken(int position, int cursor, int numRows, String metadataPrefix, long until, String set) {
+        StringBuilder resumptionTokenSb = new StringBuilder();
+        resumptionTokenSb.append(position);
+        resumptionTokenSb.append(":");
+        resumptionTokenSb.append(cursor);
+        resumptionTokenSb.append(":");
+        resumptionTokenSb.append(numRows);
+        resumptionTokenSb.append(":");
+        resumptionTokenSb.append(metadataPrefix);
+        resumptionTokenSb.append(":");
+        resumptionTokenSb.append(until);
+        if (set != null) {
+            resumptionTokenSb.append(":");
+            resumptionTokenSb.append(set);
+        }
+        return resumptionTokenSb.toString();
+    }
+
+    /** A parsed resumptionToken */
+    private class ResumptionToken {
+        private final int position;
+        private final int cursor;
+        private final int numRows;
+        private final String metadataPrefix;
+        private final long until;
+        private final int setId;
+        private final String set;
+
+        private ResumptionToken(String resumptionToken) throws BadResumptionTokenException {
+            String[] fields = resumptionToken.split(":", 6);
+            if (fields.length < 5) {
+                throw new BadResumptionTokenException();
+            }
+            try {
+                position = Integer.parseInt(fields[0]);
+                cursor = Integer.parseInt(fields[1]);
+                numRows = Integer.parseInt(fields[2]);
+                until = Long.parseLong(fields[4]);
+            } catch (NumberFormatException e) {
+                throw new BadResumptionTokenException();
+            }
+            metadataPrefix = fields[3];
+            set = fields.length == 6 ? fields[5] : null;
+            setId = set == null ? -1 : headerStore.getSetId(set);
+            if (position < 0 || position > headerStore.size() || (set != null && setId < 0)) {
+                throw new BadResumptionTokenException();
+            }
+        }
+    }
+
     private Map<String, Object> getNativeRecord(String path) throws IOException {
         Map<String, Object> recordMap = getNativeHeader(path);
         if (recordMap == null) {
@@ -256,6 +330,34 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
         }
     }
 
+    /**
+     * Retrieve the specified record as UTF-8 bytes, straight from the
+     * RenderedRecordCache when possible.
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return the UTF-8 encoded record.
+     * @throws CannotDisseminateFormatException signals an http status code 400 problem
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     * @throws OAIInternalServerError signals an http status code 500 problem
+     */
+    public byte[] getRecordBytes(String oaiIdentifier, String metadataPrefix)
+            throws IdDoesNotExistException, CannotDisseminateFormatException, OAIInternalServerError {
+        Map<String, Object> nativeItem;
+        try {
+            String localIdentifier = getRecordFactory().fromOAIIdentifier(oaiIdentifier);
+
+            nativeItem = getNativeRecord(localIdentifier + "." + metadataPrefix);
+            if (nativeItem == null) {
+                throw new IdDoesNotExistException(oaiIdentifier);
+            }
+            return constructRenderedRecord(nativeItem, metadataPrefix).getBytes();
+        } catch (IOException e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError("Database Failure");
+        }
+    }
+
 
     /**
      * Retrieve a list of schemaLocation values associated with the specified
@@ -297,27 +399,24 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
      *         problem
      */
     public Map<String, Object> listIdentifiers(String from, String until, String set, String metadataPrefix) throws NoItemsMatchException {
-        purge(); // clean out old resumptionTokens
         Map<String, Object> listIdentifiersMap = new HashMap<String, Object>();
         List<String> headers = new ArrayList<String>();
         List<String> identifiers = new ArrayList<String>();
-        Iterator iterator = fileDateMap.entrySet().iterator();
-        int numRows = fileDateMap.entrySet().size();
+        long untilMillis = Datestamp.parseUntil(until);
+        int setId = set == null ? -1 : headerStore.getSetId(set);
+        if (set != null && setId < 0) {
+            throw new NoItemsMatchException();
+        }
+        int numRows = headerStore.size();
         int count = 0;
-        ArrayList setIdentifiers = (ArrayList) setMap.get(set);
-        while (count < maxListSize && iterator.hasNext()) {
-            Map.Entry entryDateMap = (Map.Entry) iterator.next();
-            String fileDate = (String) entryDateMap.getValue();
-            String path = (String) entryDateMap.getKey();
-            if (fileDate.compareTo(from) >= 0
-                    && fileDate.compareTo(until) <= 0
-                    && (setIdentifiers == null || setIdentifiers.contains(path))) {
-                Map<String, Object> nativeHeader = getNativeHeader((String) entryDateMap.getKey());
-                String[] header = getRecordFactory().createHeader(nativeHeader);
-                headers.add(header[0]);
-                identifiers.add(header[1]);
-                count++;
-            }
+        int position = nextMatch(headerStore.lowerBound(Datestamp.parse(from)), untilMillis, setId, metadataPrefix);
+        while (count < maxListSize && position < numRows) {
+            Map<String, Object> nativeHeader = getNativeHeader(headerStore.getRecord(position));
+            String[] header = getRecordFactory().createHeader(nativeHeader);
+            headers.add(header[0]);
+            identifiers.add(header[1]);
+            count++;
+            position = nextMatch(position + 1, untilMillis, setId, metadataPrefix);
         }
 
         if (count == 0) {
@@ -325,36 +424,16 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
         }
 
         /* decide if you're done */
-        if (iterator.hasNext()) {
-            String resumptionId = getRSName();
-            resumptionResults.put(resumptionId, iterator);
-
-            /*****************************************************************
-             * Construct the resumptionToken String however you see fit.
-             *****************************************************************/
-            StringBuilder resumptionTokenSb = new StringBuilder();
-            resumptionTokenSb.append(resumptionId);
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(Integer.toString(count));
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(Integer.toString(numRows));
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(metadataPrefix);
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(set);
-
-            /*****************************************************************
-             * Use the following line if you wish to include the optional
-             * resumptionToken attributes in the response. Otherwise, use the
-             * line after it that I've commented out.
-             *****************************************************************/
-            listIdentifiersMap.put("resumptionMap", getResumptionMap(resumptionTokenSb.toString(), numRows, 0));
+        if (position < numRows) {
+            String resumptionToken = createResumptionToken(position, count, numRows, metadataPrefix, untilMillis, set);
+            listIdentifiersMap.put("resumptionMap", getResumptionMap(resumptionToken, numRows, 0));
         }
         listIdentifiersMap.put("headers", headers.iterator());
         listIdentifiersMap.put("identifiers", identifiers.iterator());
         return listIdentifiersMap;
     }
 
+
     /**
      * Retrieve the next set of Identifiers associated with the resumptionToken
      *
@@ -364,81 +443,28 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
      *         whether the identifier is deleted or not.
      */
     public Map<String, Object> listIdentifiers(String resumptionToken) throws BadResumptionTokenException {
-        purge(); // clean out old resumptionTokens
         Map<String, Object> listIdentifiersMap = new HashMap<String, Object>();
         List<String> headers = new ArrayList<String>();
         List<String> identifiers = new ArrayList<String>();
-
-        /**********************************************************************
-         * parse your resumptionToken and look it up in the resumptionResults,
-         * if necessary
-         **********************************************************************/
-        StringTokenizer tokenizer = new StringTokenizer(resumptionToken, ":");
-        String resumptionId;
-        int oldCount;
-        String metadataPrefix;
-        int numRows;
-        String set;
-        try {
-            resumptionId = tokenizer.nextToken();
-            oldCount = Integer.parseInt(tokenizer.nextToken());
-            numRows = Integer.parseInt(tokenizer.nextToken());
-            metadataPrefix = tokenizer.nextToken();
-            set = tokenizer.nextToken();
-        } catch (NoSuchElementException e) {
-            throw new BadResumptionTokenException();
-        }
-
-        /* Get some more records from your database */
-        Iterator iterator = (Iterator) resumptionResults.remove(resumptionId);
-        if (iterator == null) {
-            LOGGER.debug("NewFileSystemOAICatalog.listIdentifiers: reuse of old resumptionToken?");
-            iterator = fileDateMap.entrySet().iterator();
-            for (int i = 0; i < oldCount; ++i) {
-                iterator.next();
-            }
-        }
+        ResumptionToken token = new ResumptionToken(resumptionToken);
 
         /* load the headers and identifiers ArrayLists. */
+        int numRows = headerStore.size();
         int count = 0;
-        ArrayList setIdentifiers = (ArrayList) setMap.get(set);
-        while (count < maxListSize && iterator.hasNext()) {
-            Map.Entry entryDateMap = (Map.Entry) iterator.next();
-            String path = (String) entryDateMap.getKey();
-            if (setIdentifiers == null || setIdentifiers.contains(path)) {
-                Map<String, Object> nativeHeader = getNativeHeader((String) entryDateMap.getKey());
-                String[] header = getRecordFactory().createHeader(nativeHeader);
-                headers.add(header[0]);
-                identifiers.add(header[1]);
-                count++;
-            }
+        int position = nextMatch(token.position, token.until, token.setId, token.metadataPrefix);
+        while (count < maxListSize && position < numRows) {
+            Map<String, Object> nativeHeader = getNativeHeader(headerStore.getRecord(position));
+            String[] header = getRecordFactory().createHeader(nativeHeader);
+            headers.add(header[0]);
+            identifiers.add(header[1]);
+            count++;
+            position = nextMatch(position + 1, token.until, token.setId, token.metadataPrefix);
         }
 
         /* decide if you're done. */
-        if (iterator.hasNext()) {
-            resumptionId = getRSName();
-            resumptionResults.put(resumptionId, iterator);
-
-            /*****************************************************************
-             * Construct the resumptionToken String however you see fit.
-             *****************************************************************/
-            StringBuilder resumptionTokenSb = new StringBuilder();
-            resumptionTokenSb.append(resumptionId);
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(Integer.toString(oldCount + count));
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(Integer.toString(numRows));
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(metadataPrefix);
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(set);
-
-            /*****************************************************************
-             * Use the following line if you wish to include the optional
-             * resumptionToken attributes in the response. Otherwise, use the
-             * line after it that I've commented out.
-             *****************************************************************/
-            listIdentifiersMap.put("resumptionMap", getResumptionMap(resumptionTokenSb.toString(), numRows, oldCount));
+        if (position < numRows) {
+            String nextToken = createResumptionToken(position, token.cursor + count, numRows, token.metadataPrefix, token.until, token.set);
+            listIdentifiersMap.put("resumptionMap", getResumptionMap(nextToken, numRows, token.cursor));
         }
 
         listIdentifiersMap.put("headers", headers.iterator());
@@ -469,6 +495,23 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
         return getRecordFactory().create(nativeItem, schemaURL, metadataPrefix, setSpecs, abouts);
     }
 
+    /**
+     * Same as constructRecord, but returns the UTF-8 encoded record and,
+     * if already computed, its gzip member.
+     */
+    private RenderedRecord constructRenderedRecord(Map<String, Object> nativeItem, String metadataPrefix) throws CannotDisseminateFormatException {
+        String schemaURL = null;
+        Iterator setSpecs = getSetSpecs(nativeItem);
+        Iterator abouts = getAbouts(nativeItem);
+
+        if (metadataPrefix != null) {
+            if ((schemaURL = getCrosswalks().getSchemaURL(metadataPrefix)) == null) {
+                throw new CannotDisseminateFormatException(metadataPrefix);
+            }
+        }
+        return getRecordFactory().createRendered(nativeItem, schemaURL, metadataPrefix, setSpecs, abouts);
+    }
+
     /**
      * get an Iterator containing the setSpecs for the nativeItem
      *
@@ -502,61 +545,41 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
      */
     public Map<String, Object> listRecords(String from, String until, String set, String metadataPrefix)
             throws CannotDisseminateFormatException, OAIInternalServerError, NoItemsMatchException {
-        purge(); // clean out old resumptionTokens
         Map<String, Object> listRecordsMap = new HashMap<String, Object>();
-        List<String> records = new ArrayList<String>();
-        Iterator iterator = fileDateMap.entrySet().iterator();
-        int numRows = fileDateMap.entrySet().size();
+        List<Object> records = new ArrayList<Object>();
+        long untilMillis = Datestamp.parseUntil(until);
+        int setId = set == null ? -1 : headerStore.getSetId(set);
+        if (set != null && setId < 0) {
+            throw new NoItemsMatchException();
+        }
+        int numRows = headerStore.size();
         int count = 0;
-        ArrayList setIdentifiers = (ArrayList) setMap.get(set);
-        while (count < maxListSize && iterator.hasNext()) {
-            Map.Entry entryDateMap = (Map.Entry) iterator.next();
-            String fileDate = (String) entryDateMap.getValue();
-            String path = (String) entryDateMap.getKey();
-            String extension = path.substring(path.lastIndexOf(".") + 1);
-            if (fileDate.compareTo(from) >= 0 && fileDate.compareTo(until) <= 0
-                    && extension.equals(metadataPrefix) && (setIdentifiers == null || setIdentifiers.contains(path))) {
-                try {
-                    Map<String, Object> nativeItem = getNativeRecord((String) entryDateMap.getKey());
-                    String record = constructRecord(nativeItem, metadataPrefix);
-                    records.add(record);
-                    count++;
-                } catch (IOException e) {
-                    LOGGER.error("An Exception occured", e);
-                    throw new OAIInternalServerError(e.getMessage());
-                }
+        int position = nextMatch(headerStore.lowerBound(Datestamp.parse(from)), untilMillis, setId, metadataPrefix);
+        PageBudget budget = startPage();
+        while (count < maxListSize && !budget.isExhausted() && position < numRows) {
+            try {
+                Map<String, Object> nativeItem = getNativeRecord(headerStore.getIdentifier(headerStore.getRecord(position)));
+                RenderedRecord record = constructRenderedRecord(nativeItem, metadataPrefix);
+                records.add(record);
+                budget.add(record);
+                count++;
+            } catch (IOException e) {
+                LOGGER.error("An Exception occured", e);
+                throw new OAIInternalServerError(e.getMessage());
             }
+            position = nextMatch(position + 1, untilMillis, setId, metadataPrefix);
         }
 
         if (count == 0) {
             throw new NoItemsMatchException();
         }
 
-        /* decide if you're done */
-        if (iterator.hasNext()) {
-            String resumptionId = getRSName();
-            resumptionResults.put(resumptionId, iterator);
-
-            /*****************************************************************
-             * Construct the resumptionToken String however you see fit.
-             *****************************************************************/
-            StringBuilder resumptionTokenSb = new StringBuilder();
-            resumptionTokenSb.append(resumptionId);
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(Integer.toString(count));
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(Integer.toString(numRows));
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(metadataPrefix);
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(set);
+        budget.finish(count, position < numRows);
 
-            /*****************************************************************
-             * Use the following line if you wish to include the optional
-             * resumptionToken attributes in the response. Otherwise, use the
-             * line after it that I've commented out.
-             *****************************************************************/
-            listRecordsMap.put("resumptionMap", getResumptionMap(resumptionTokenSb.toString(), numRows, 0));
+        /* decide if you're done */
+        if (position < numRows) {
+            String resumptionToken = createResumptionToken(position, count, numRows, metadataPrefix, untilMillis, set);
+            listRecordsMap.put("resumptionMap", getResumptionMap(resumptionToken, numRows, 0));
         }
         listRecordsMap.put("records", records.iterator());
         return listRecordsMap;
@@ -571,87 +594,38 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
      *         The "records" Iterator contains a set of Records objects.
      */
     public Map<String, Object> listRecords(String resumptionToken) throws BadResumptionTokenException {
-        purge(); // clean out old resumptionTokens
         Map<String, Object> listRecordsMap = new HashMap<String, Object>();
-        List<String> records = new ArrayList<String>();
-
-        /**********************************************************************
-         * parse your resumptionToken and look it up in the resumptionResults,
-         * if necessary
-         **********************************************************************/
-        StringTokenizer tokenizer = new StringTokenizer(resumptionToken, ":");
-        String resumptionId;
-        int oldCount;
-        String metadataPrefix;
-        int numRows;
-        String set;
-        try {
-            resumptionId = tokenizer.nextToken();
-            oldCount = Integer.parseInt(tokenizer.nextToken());
-            numRows = Integer.parseInt(tokenizer.nextToken());
-            metadataPrefix = tokenizer.nextToken();
-            set = tokenizer.nextToken();
-        } catch (NoSuchElementException e) {
-            throw new BadResumptionTokenException();
-        }
-
-        /* Get some more records from your database */
-        Iterator iterator = (Iterator) resumptionResults.remove(resumptionId);
-        if (iterator == null) {
-            LOGGER.debug("NewFileSystemOAICatalog.listRecords: reuse of old resumptionToken?");
-            iterator = fileDateMap.entrySet().iterator();
-            for (int i = 0; i < oldCount; ++i) {
-                iterator.next();
-            }
-        }
+        List<Object> records = new ArrayList<Object>();
+        ResumptionToken token = new ResumptionToken(resumptionToken);
 
         /* load the records ArrayLists. */
+        int numRows = headerStore.size();
         int count = 0;
-        ArrayList setIdentifiers = (ArrayList) setMap.get(set);
-        while (count < maxListSize && iterator.hasNext()) {
-            Map.Entry entryDateMap = (Map.Entry) iterator.next();
-            String path = (String) entryDateMap.getKey();
-            if (setIdentifiers == null || setIdentifiers.contains(path)) {
-                try {
-                    Map<String, Object> nativeItem = getNativeRecord((String) entryDateMap.getKey());
-                    String record = constructRecord(nativeItem, metadataPrefix);
-                    records.add(record);
-                    count++;
-                } catch (CannotDisseminateFormatException e) {
-                    /* the client hacked the resumptionToken beyond repair */
-                    throw new BadResumptionTokenException();
-                } catch (IOException e) {
-                    /* the file is probably missing */
-                    throw new BadResumptionTokenException();
-                }
+        int position = nextMatch(token.position, token.until, token.setId, token.metadataPrefix);
+        PageBudget budget = startPage();
+        while (count < maxListSize && !budget.isExhausted() && position < numRows) {
+            try {
+                Map<String, Object> nativeItem = getNativeRecord(headerStore.getIdentifier(headerStore.getRecord(position)));
+                RenderedRecord record = constructRenderedRecord(nativeItem, token.metadataPrefix);
+                records.add(record);
+                budget.add(record);
+                count++;
+            } catch (CannotDisseminateFormatException e) {
+                /* the client hacked the resumptionToken beyond repair */
+                throw new BadResumptionTokenException();
+            } catch (IOException e) {
+                /* the file is probably missing */
+                throw new BadResumptionTokenException();
             }
+            position = nextMatch(position + 1, token.until, token.setId, token.metadataPrefix);
         }
 
-        /* decide if you're done. */
-        if (iterator.hasNext()) {
-            resumptionId = getRSName();
-            resumptionResults.put(resumptionId, iterator);
-
-            /*****************************************************************
-             * Construct the resumptionToken String however you see fit.
-             *****************************************************************/
-            StringBuilder resumptionTokenSb = new StringBuilder();
-            resumptionTokenSb.append(resumptionId);
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(Integer.toString(oldCount + count));
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(Integer.toString(numRows));
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(metadataPrefix);
-            resumptionTokenSb.append(":");
-            resumptionTokenSb.append(set);
+        budget.finish(count, position < numRows);
 
-            /*****************************************************************
-             * Use the following line if you wish to include the optional
-             * resumptionToken attributes in the response. Otherwise, use the
-             * line after it that I've commented out.
-             *****************************************************************/
-            listRecordsMap.put("resumptionMap", getResumptionMap(resumptionTokenSb.toString(), numRows, oldCount));
+        /* decide if you're done. */
+        if (position < numRows) {
+            String nextToken = createResumptionToken(position, token.cursor + count, numRows, token.metadataPrefix, token.until, token.set);
+            listRecordsMap.put("resumptionMap", getResumptionMap(nextToken, numRows, token.cursor));
         }
 
         listRecordsMap.put("records", records.iterator());
@@ -677,31 +651,4 @@ public class NewFileSystemOAICatalog extends AbstractCatalog {
     /** close the repository */
     public void close() {
     }
-
-
-    /** Purge tokens that are older than the time-to-live. */
-    private void purge() {
-        List<String> old = new ArrayList<String>();
-        Date then, now = new Date();
-
-        for (String key : resumptionResults.keySet()) {
-            then = new Date(Long.parseLong(key) + getMillisecondsToLive());
-            if (now.after(then)) {
-                old.add(key);
-            }
-        }
-        for (String key : old) {
-            resumptionResults.remove(key);
-        }
-    }
-
-    /**
-     * Use the current date as the basis for the resumptiontoken
-     *
-     * @return a long integer version of the current time
-     */
-    private synchronized static String getRSName() {
-        Date now = new Date();
-        return Long.toString(now.getTime());
-    }
 }
@@ -58,7 +58,7 @@ public class NewJDBCOAICatalog extends AbstractCatalog {
         public StatementResultSet(String query) throws SQLException {
             Connection con = getConnection();
             stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            rs = stmt.executeQuery(query);
+            rs = executeQuery(stmt, query);
         }
 
         public Statement getStatement() {
@@ -1268,6 +1268,15 @@ public class NewJDBCOAICatalog extends AbstractCatalog {
         return persistentConnection;
     }
 
+    /**
+     * get the number of resumptionTokens whose result set is held in memory
+     *
+     * @return the number of open resumptionTokens
+     */
+    public int getOpenResumptionTokenCount() {
+        return resumptionResults.size();
+    }
+
     /** close the repository */
     public void close() {
     }
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageBudget decides when a ListRecords page is full. A fixed maxListSize
+ * makes a page of Dublin Core records tiny and a page of full MARC or METS
+ * records enormous, so a catalog may also end the page as soon as the
+ * records added so far reach AbstractCatalog.maxPageBytes, or the page has
+ * taken AbstractCatalog.maxPageMillis to build. The page always gets at
+ * least one record, and the catalog issues a resumptionToken for the rest
+ * as it does when maxListSize is reached.
+ * <p/>
+ * A catalog loop looks like this:
+ * <pre>
+ * PageBudget budget = startPage();
+ * while (count &lt; maxListSize &amp;&amp; !budget.isExhausted() &amp;&amp; iterator.hasNext()) {
+ *     ...
+ *     budget.add(record);
+ * }
+ * budget.finish(count, iterator.hasNext());
+ * </pre>
+ */
+public class PageBudget {
+
+    private final long maxBytes;
+    private final long maxMillis;
+    private final Stats stats;
+    private final long start = System.currentTimeMillis();
+    private long bytes = 0;
+    private int records = 0;
+    private boolean endedByBytes = false;
+    private boolean endedByTime = false;
+
+    /**
+     * The page-size decisions of a catalog.
+     */
+    public static class Stats {
+        private final AtomicLong pageCount = new AtomicLong();
+        private final AtomicLong lastPageCount = new AtomicLong();
+        private final AtomicLong endedByCountCount = new AtomicLong();
+        private final AtomicLong endedByBytesCount = new AtomicLong();
+        private final AtomicLong endedByTimeCount = new AtomicLong();
+        private final AtomicLong recordCount = new AtomicLong();
+        private final AtomicLong byteCount = new AtomicLong();
+        private final AtomicLong millis = new AtomicLong();
+        private final AtomicLong maxPageBytes = new AtomicLong();
+
+        /** @return the number of pages built */
+        public long getPageCount() {
+            return pageCount.get();
+        }
+
+        /** @return the number of pages that completed a list */
+        public long getLastPageCount() {
+            return lastPageCount.get();
+        }
+
+        /** @return the number of pages ended by maxListSize */
+        public long getEndedByCountCount() {
+            return endedByCountCount.get();
+        }
+
+        /** @return the number of pages ended by the byte budget */
+        public long getEndedByBytesCount() {
+            return endedByBytesCount.get();
+        }
+
+        /** @return the number of pages ended by the time budget */
+        public long getEndedByTimeCount() {
+            return endedByTimeCount.get();
+        }
+
+        /** @return the number of records in all pages */
+        public long getRecordCount() {
+            return recordCount.get();
+        }
+
+        /** @return the number of bytes (or characters) in all pages */
+        public long getByteCount() {
+            return byteCount.get();
+        }
+
+        /** @return the time spent building all pages */
+        public long getMillis() {
+            return millis.get();
+        }
+
+        /** @return the size of the largest page */
+        public long getMaxPageBytes() {
+            return maxPageBytes.get();
+        }
+
+        public String toString() {
+            long pages = pageCount.get();
+            StringBuilder sb = new StringBuilder("PageBudget: ");
+            sb.append("pages=").append(pages);
+            sb.append(" last=").append(lastPageCount.get());
+            sb.append(" endedByCount=").append(endedByCountCount.get());
+            sb.append(" endedByBytes=").append(endedByBytesCount.get());
+            sb.append(" endedByTime=").append(endedByTimeCount.get());
+            if (pages > 0) {
+                sb.append(" avgRecords=").append(recordCount.get() / pages);
+                sb.append(" avgBytes=").append(byteCount.get() / pages);
+                sb.append(" avgMillis=").append(millis.get() / pages);
+            }
+            sb.append(" maxBytes=").append(maxPageBytes.get());
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Start a page.
+     *
+     * @param maxBytes the byte budget (<=0 indicates no limit)
+     * @param maxMillis the time budget (<=0 indicates no limit)
+     * @param stats where to record the decision when the page is finished
+     */
+    public PageBudget(long maxBytes, long maxMillis, Stats stats) {
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+        this.stats = stats;
+    }
+
+    /**
+     * Count a record added to the page.
+     *
+     * @param record a String, a byte[] or a RenderedRecord, as found in the "records" Iterator
+     */
+    public void add(Object record) {
+        ++records;
+        if (record instanceof RenderedRecord) {
+            bytes += ((RenderedRecord) record).getBytes().length;
+        } else if (record instanceof byte[]) {
+            bytes += ((byte[]) record).length;
+        } else if (record != null) {
+            // close enough for the mostly-ASCII metadata formats
+            bytes += record.toString().length();
+        }
+    }
+
+    /**
+     * Should the page end now? Never true before the first record, so
+     * that every page makes progress.
+     *
+     * @return true if the byte or time budget is spent
+     */
+    public boolean isExhausted() {
+        if (records == 0) {
+            return false;
+        }
+        if (maxBytes > 0 && bytes >= maxBytes) {
+            endedByBytes = true;
+            return true;
+        }
+        if (maxMillis > 0 && System.currentTimeMillis() - start >= maxMillis) {
+            endedByTime = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record how the page ended.
+     *
+     * @param count the number of records in the page
+     * @param more true if a resumptionToken is issued for the rest of the list
+     */
+    public void finish(int count, boolean more) {
+        if (stats == null) {
+            return;
+        }
+        stats.pageCount.incrementAndGet();
+        if (!more) {
+            stats.lastPageCount.incrementAndGet();
+        } else if (endedByBytes) {
+            stats.endedByBytesCount.incrementAndGet();
+        } else if (endedByTime) {
+            stats.endedByTimeCount.incrementAndGet();
+        } else {
+            stats.endedByCountCount.incrementAndGet();
+        }
+        stats.recordCount.addAndGet(count);
+        stats.byteCount.addAndGet(bytes);
+        stats.millis.addAndGet(System.currentTimeMillis() - start);
+        long max = stats.maxPageBytes.get();
+        while (bytes > max && !stats.maxPageBytes.compareAndSet(max, bytes)) {
+            max = stats.maxPageBytes.get();
+        }
+    }
+
+    /**
+     * Get the number of bytes (or characters) added to the page.
+     *
+     * @return the page size so far
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
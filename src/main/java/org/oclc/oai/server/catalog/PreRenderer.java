@@ -0,0 +1,278 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.oclc.oai.server.crosswalk.CrosswalkItem;
+import org.oclc.oai.server.verb.NoItemsMatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PreRenderer walks a catalog in the background and renders every record in
+ * every metadataPrefix listed in the Crosswalks, so that ListRecords and
+ * GetRecord find the result in the RenderedRecordCache instead of running the
+ * crosswalk while the harvester waits. Records whose rendering is already
+ * cached for their current datestamp are skipped, so after the first pass
+ * only modified records are crosswalked again. A miss still falls back to
+ * live crosswalking.
+ * <p/>
+ * The renderer is only useful with a persistent cache, i.e. with
+ * RecordFactory.diskCacheDir set, and is enabled with PreRenderer.enabled=true.
+ * A CompositeCatalog renders its records through its children, so each child
+ * with a cache of its own is walked instead of the composite.
+ * The records are rendered through AbstractCatalog.getRecord, so the catalog
+ * must tolerate concurrent getRecord calls when PreRenderer.threads is more
+ * than 1.
+ */
+public class PreRenderer {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreRenderer.class);
+
+    /** The catalogs walked: the catalog itself, or the children of a CompositeCatalog that have a cache */
+    private final List<AbstractCatalog> catalogs = new ArrayList<AbstractCatalog>();
+    private final int threads;
+    private final int intervalSeconds;
+
+    private Thread walker;
+    private ExecutorService workers;
+    private volatile boolean running = false;
+
+    private final AtomicLong renderedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private volatile long lastPassMillis = -1;
+
+    /**
+     * Construct a renderer for the catalog.
+     *
+     * @param catalog the catalog to walk
+     * @param threads the number of records rendered concurrently
+     * @param intervalSeconds the pause between two passes (0 to only walk the catalog once)
+     */
+    public PreRenderer(AbstractCatalog catalog, int threads, int intervalSeconds) {
+        if (catalog instanceof CompositeCatalog) {
+            for (AbstractCatalog child : ((CompositeCatalog) catalog).getChildren()) {
+                if (child.getRecordFactory().getRecordCache() != null) {
+                    catalogs.add(child);
+                }
+            }
+        } else {
+            catalogs.add(catalog);
+        }
+        this.threads = threads;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Create the renderer described by the PreRenderer.* properties.
+     *
+     * @param properties the repository properties
+     * @param catalog the catalog to walk
+     * @return a new renderer, or null if it isn't enabled or there's no cache to fill
+     */
+    public static PreRenderer factory(Properties properties, AbstractCatalog catalog) {
+        if (!"true".equals(properties.getProperty("PreRenderer.enabled"))) {
+            return null;
+        }
+        int threads = Integer.parseInt(properties.getProperty("PreRenderer.threads", "1"));
+        int intervalSeconds = Integer.parseInt(properties.getProperty("PreRenderer.intervalSeconds", "0"));
+        PreRenderer preRenderer = new PreRenderer(catalog, threads, intervalSeconds);
+        if (preRenderer.catalogs.isEmpty()) {
+            LOGGER.warn("PreRenderer.enabled is set but no RecordFactory cache is configured: pre-rendering is disabled");
+            return null;
+        }
+        LOGGER.debug("PreRenderer.factory: threads=" + threads + " intervalSeconds=" + intervalSeconds + " catalogs=" + preRenderer.catalogs.size());
+        return preRenderer;
+    }
+
+    /** Start walking the catalog on a background thread. */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PreRenderer-worker-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        walker = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    do {
+                        long start = System.currentTimeMillis();
+                        renderAll();
+                        lastPassMillis = System.currentTimeMillis() - start;
+                        LOGGER.info("PreRenderer: pass completed in " + lastPassMillis + "ms. " + PreRenderer.this);
+                        if (intervalSeconds > 0) {
+                            Thread.sleep(intervalSeconds * 1000L);
+                        }
+                    } while (running && intervalSeconds > 0);
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, "PreRenderer");
+        walker.setDaemon(true);
+        walker.setPriority(Thread.MIN_PRIORITY);
+        walker.start();
+    }
+
+    /** Stop the walk and wait briefly for the records being rendered. */
+    public synchronized void stop() {
+        running = false;
+        if (walker != null) {
+            walker.interrupt();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Walk the whole catalog once for every metadataPrefix, rendering the
+     * records that aren't cached for their current datestamp.
+     *
+     * @throws InterruptedException the renderer was stopped
+     */
+    public void renderAll() throws InterruptedException {
+        for (AbstractCatalog catalog : catalogs) {
+            renderAll(catalog);
+        }
+    }
+
+    /**
+     * Walk one catalog, filling its own cache.
+     */
+    private void renderAll(final AbstractCatalog catalog) throws InterruptedException {
+        RenderedRecordCache recordCache = catalog.getRecordFactory().getRecordCache();
+        List<String> metadataPrefixes = new ArrayList<String>();
+        Iterator<Map.Entry<String, CrosswalkItem>> iterator = catalog.getCrosswalks().iterator();
+        while (iterator.hasNext()) {
+            metadataPrefixes.add(iterator.next().getKey());
+        }
+        // keeps the walker at most a few records ahead of the workers
+        final Semaphore inFlight = new Semaphore(threads * 4);
+        for (final String metadataPrefix : metadataPrefixes) {
+            try {
+                Map<String, Object> listIdentifiersMap = catalog.listIdentifiers(null, null, null, metadataPrefix);
+                while (running) {
+                    Iterator headers = (Iterator) listIdentifiersMap.get("headers");
+                    Iterator identifiers = (Iterator) listIdentifiersMap.get("identifiers");
+                    while (running && headers.hasNext()) {
+                        String header = headers.next().toString();
+                        final String identifier = identifiers.next().toString();
+                        if (header.indexOf("status=\"deleted\"") >= 0) {
+                            continue;
+                        }
+                        String datestamp = getElement(header, "datestamp");
+                        if (datestamp != null && recordCache.contains(RenderedRecordCache.RECORD, identifier, datestamp, metadataPrefix)) {
+                            skippedCount.incrementAndGet();
+                            continue;
+                        }
+                        inFlight.acquire();
+                        workers.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    catalog.getRecord(identifier, metadataPrefix);
+                                    renderedCount.incrementAndGet();
+                                } catch (Exception e) {
+                                    failedCount.incrementAndGet();
+                                    LOGGER.debug("PreRenderer: " + identifier + " (" + metadataPrefix + "): " + e.getMessage());
+                                } finally {
+                                    inFlight.release();
+                                }
+                            }
+                        });
+                    }
+                    Map resumptionMap = (Map) listIdentifiersMap.get("resumptionMap");
+                    String resumptionToken = resumptionMap == null ? null : (String) resumptionMap.get("resumptionToken");
+                    if (resumptionToken == null || resumptionToken.length() == 0) {
+                        break;
+                    }
+                    listIdentifiersMap = catalog.listIdentifiers(resumptionToken);
+                }
+            } catch (NoItemsMatchException e) {
+                // nothing to render in this format
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                LOGGER.error("PreRenderer: couldn't walk the catalog for " + metadataPrefix, e);
+            }
+            if (!running) {
+                throw new InterruptedException();
+            }
+        }
+        // wait for the last records of the pass
+        inFlight.acquire(threads * 4);
+        inFlight.release(threads * 4);
+    }
+
+    /**
+     * Extract the text of a simple element from the header XML.
+     */
+    private static String getElement(String xml, String name) {
+        int start = xml.indexOf("<" + name + ">");
+        int end = xml.indexOf("</" + name + ">");
+        if (start < 0 || end < start) {
+            return null;
+        }
+        return xml.substring(start + name.length() + 2, end);
+    }
+
+    public long getRenderedCount() {
+        return renderedCount.get();
+    }
+
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getLastPassMillis() {
+        return lastPassMillis;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PreRenderer: ");
+        sb.append("rendered=").append(renderedCount.get());
+        sb.append(" skipped=").append(skippedCount.get());
+        sb.append(" failed=").append(failedCount.get());
+        sb.append(" lastPassMillis=").append(lastPassMillis);
+        return sb.toString();
+    }
+}
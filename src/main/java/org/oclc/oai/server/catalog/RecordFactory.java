@@ -10,13 +10,14 @@
  */
 package org.oclc.oai.server.catalog;
 
-// import java.io.UnsupportedEncodingException;
-
+import java.io.UnsupportedEncodingException;
 import java.util.*;
 
 import org.oclc.oai.server.crosswalk.Crosswalk;
 import org.oclc.oai.server.crosswalk.CrosswalkItem;
 import org.oclc.oai.server.crosswalk.Crosswalks;
+import org.oclc.oai.server.metrics.Phase;
+import org.oclc.oai.server.metrics.PhaseSpan;
 import org.oclc.oai.server.verb.CannotDisseminateFormatException;
 import org.oclc.oai.server.verb.NoMetadataFormatsException;
 import org.oclc.oai.util.OAIUtil;
@@ -37,6 +38,9 @@ public abstract class RecordFactory {
     /** Container for the crosswalk(s) supported by this factory */
     private Crosswalks crosswalks;
 
+    /** Optional cache of rendered records (null if RecordFactory.cacheMaxBytes isn't set) */
+    private RenderedRecordCache recordCache;
+
     /**
      * Construct a RecordFactory capable of producing the Crosswalk(s) specified in the properties file.
      *
@@ -44,6 +48,7 @@ public abstract class RecordFactory {
      */
     public RecordFactory(Properties properties) {
         crosswalks = new Crosswalks(properties);
+        recordCache = RenderedRecordCache.factory(properties);
     }
 
     public RecordFactory(Map<String, CrosswalkItem> crosswalkMap) {
@@ -59,6 +64,15 @@ public abstract class RecordFactory {
         return crosswalks;
     }
 
+    /**
+     * Retrieve the rendered record cache
+     *
+     * @return the cache, or null if caching isn't enabled for this factory
+     */
+    public RenderedRecordCache getRecordCache() {
+        return recordCache;
+    }
+
     /**
      * Utility method to parse the 'local identifier' from the OAI identifier
      *
@@ -182,11 +196,85 @@ public abstract class RecordFactory {
     public String create(Object nativeItem, String schemaURL, String metadataPrefix, Iterator setSpecs, Iterator abouts)
             throws IllegalArgumentException, CannotDisseminateFormatException {
         if (isDeleted(nativeItem)) {
-            StringBuilder sb = new StringBuilder("<record>");
-            sb.append(createHeader(nativeItem)[0]);
-            sb.append("</record>");
-            return sb.toString();
+            return createDeleted(nativeItem);
         }
+        String identifier = null;
+        String datestamp = null;
+        if (recordCache != null && metadataPrefix != null) {
+            identifier = getOAIIdentifier(nativeItem);
+            datestamp = getDatestamp(nativeItem);
+            String cached = recordCache.get(RenderedRecordCache.RECORD, identifier, datestamp, metadataPrefix);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        String result = createUncached(nativeItem, schemaURL, metadataPrefix, setSpecs, abouts);
+        if (identifier != null) {
+            recordCache.put(RenderedRecordCache.RECORD, identifier, datestamp, metadataPrefix, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Create the &lt;record&gt; as UTF-8 bytes. A record found in the cache is
+     * returned as-is, without being decoded; a freshly rendered one is encoded
+     * only once, for both the cache and the response.
+     *
+     * @param nativeItem the native record
+     * @param schemaURL the schemaURL desired for the response
+     * @param metadataPrefix
+     * @param setSpecs
+     * @param abouts
+     * @return the UTF-8 encoded OAI record response. The array may be shared and mustn't be modified.
+     * @throws IllegalArgumentException One of the header components for this record is bad.
+     * @throws CannotDisseminateFormatException This nativeItem doesn't support the specified metadataPrefix
+     */
+    public byte[] createBytes(Object nativeItem, String schemaURL, String metadataPrefix, Iterator setSpecs, Iterator abouts)
+            throws IllegalArgumentException, CannotDisseminateFormatException {
+        return createRendered(nativeItem, schemaURL, metadataPrefix, setSpecs, abouts).getBytes();
+    }
+
+    /**
+     * Create the &lt;record&gt; as a RenderedRecord: UTF-8 bytes plus, for
+     * cached records, the gzip member computed by earlier gzipped responses.
+     *
+     * @param nativeItem the native record
+     * @param schemaURL the schemaURL desired for the response
+     * @param metadataPrefix
+     * @param setSpecs
+     * @param abouts
+     * @return the rendered OAI record response
+     * @throws IllegalArgumentException One of the header components for this record is bad.
+     * @throws CannotDisseminateFormatException This nativeItem doesn't support the specified metadataPrefix
+     */
+    public RenderedRecord createRendered(Object nativeItem, String schemaURL, String metadataPrefix, Iterator setSpecs, Iterator abouts)
+            throws IllegalArgumentException, CannotDisseminateFormatException {
+        if (isDeleted(nativeItem)) {
+            return new RenderedRecord(utf8(createDeleted(nativeItem)));
+        }
+        if (recordCache != null && metadataPrefix != null) {
+            String identifier = getOAIIdentifier(nativeItem);
+            String datestamp = getDatestamp(nativeItem);
+            RenderedRecord cached = recordCache.getRendered(RenderedRecordCache.RECORD, identifier, datestamp, metadataPrefix);
+            if (cached != null) {
+                return cached;
+            }
+            byte[] result = utf8(createUncached(nativeItem, schemaURL, metadataPrefix, setSpecs, abouts));
+            return recordCache.putRendered(RenderedRecordCache.RECORD, identifier, datestamp, metadataPrefix, result);
+        }
+        return new RenderedRecord(utf8(createUncached(nativeItem, schemaURL, metadataPrefix, setSpecs, abouts)));
+    }
+
+    private String createDeleted(Object nativeItem) {
+        StringBuilder sb = new StringBuilder("<record>");
+        sb.append(createHeader(nativeItem)[0]);
+        sb.append("</record>");
+        return sb.toString();
+    }
+
+    private String createUncached(Object nativeItem, String schemaURL, String metadataPrefix, Iterator setSpecs, Iterator abouts)
+            throws IllegalArgumentException, CannotDisseminateFormatException {
         String result = quickCreate(nativeItem, schemaURL, metadataPrefix);
         if (result == null) {
             if (setSpecs == null) {
@@ -197,10 +285,17 @@ public abstract class RecordFactory {
             }
             result = create(nativeItem, schemaURL, metadataPrefix, getOAIIdentifier(nativeItem), getDatestamp(nativeItem), setSpecs, abouts, isDeleted(nativeItem));
         }
-
         return result;
     }
 
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
     /**
      * Allows classes that implement RecordFactory to override the default create() method.
      * This is useful, for example, if the entire &lt;record&gt; is already packaged as the native record.
@@ -267,7 +362,14 @@ public abstract class RecordFactory {
                 LOGGER.debug("RecordFactory.create: crosswalk=" + crosswalk);
                 if (schemaURL == null || (metadataPrefix == null && crosswalk.getSchemaURL().equals(schemaURL))
                         || (metadataPrefix != null && itemPrefix.equals(metadataPrefix))) {
-                    xmlRec.append(crosswalk.createMetadata(nativeItem));
+                    PhaseSpan span = PhaseSpan.start(Phase.CROSSWALK, crosswalk.getClass().getName());
+                    String metadata = null;
+                    try {
+                        metadata = crosswalk.createMetadata(nativeItem);
+                    } finally {
+                        span.end(itemPrefix, 1, metadata == null ? -1 : metadata.length());
+                    }
+                    xmlRec.append(metadata);
                     break;
                 }
             }
@@ -323,6 +425,16 @@ public abstract class RecordFactory {
         if (isDeleted(nativeItem)) {
             throw new CannotDisseminateFormatException("Record is deleted.");
         }
+        String identifier = null;
+        String datestamp = null;
+        if (recordCache != null && metadataPrefix != null) {
+            identifier = getOAIIdentifier(nativeItem);
+            datestamp = getDatestamp(nativeItem);
+            String cached = recordCache.get(RenderedRecordCache.METADATA, identifier, datestamp, metadataPrefix);
+            if (cached != null) {
+                return cached;
+            }
+        }
         String result = quickCreateMetadata(nativeItem, schemaURL, metadataPrefix);
         if (result == null) {
             if (setSpecs == null) {
@@ -334,6 +446,9 @@ public abstract class RecordFactory {
             result = createMetadata(nativeItem, schemaURL,
                     isDeleted(nativeItem));
         }
+        if (identifier != null) {
+            recordCache.put(RenderedRecordCache.METADATA, identifier, datestamp, metadataPrefix, result);
+        }
 
         return result;
     }
@@ -373,7 +488,14 @@ public abstract class RecordFactory {
             CrosswalkItem crosswalkItem = (CrosswalkItem) entry.getValue();
             Crosswalk crosswalk = crosswalkItem.getCrosswalk();
             if (schemaURL == null || crosswalk.getSchemaURL().equals(schemaURL)) {
-                xmlRec.append(crosswalk.createMetadata(nativeItem));
+                PhaseSpan span = PhaseSpan.start(Phase.CROSSWALK, crosswalk.getClass().getName());
+                String metadata = null;
+                try {
+                    metadata = crosswalk.createMetadata(nativeItem);
+                } finally {
+                    span.end((String) entry.getKey(), 1, metadata == null ? -1 : metadata.length());
+                }
+                xmlRec.append(metadata);
             }
         }
         return xmlRec.toString();
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.util.zip.Deflater;
+
+import org.oclc.oai.util.GzipMemberWriter;
+
+/**
+ * A rendered &lt;record&gt; as UTF-8 bytes, together with the same bytes
+ * compressed as a standalone gzip member. The member is computed the first
+ * time a gzip response needs it; for records held by the
+ * RenderedRecordCache, it's then cached (and written to the disk cache)
+ * along with the bytes, so repeated harvests splice it into the response
+ * without compressing the record again.
+ */
+public class RenderedRecord {
+
+    private final byte[] bytes;
+    private volatile byte[] gzipMember;
+
+    /** The cache to notify when the member is computed, or null */
+    private final RenderedRecordCache owner;
+    private final String key;
+    private final String datestamp;
+
+    /**
+     * Construct a record that isn't cached.
+     *
+     * @param bytes the UTF-8 encoded record
+     */
+    public RenderedRecord(byte[] bytes) {
+        this(bytes, null, null, null, null);
+    }
+
+    RenderedRecord(byte[] bytes, byte[] gzipMember, RenderedRecordCache owner, String key, String datestamp) {
+        this.bytes = bytes;
+        this.gzipMember = gzipMember;
+        this.owner = owner;
+        this.key = key;
+        this.datestamp = datestamp;
+    }
+
+    /**
+     * Get the UTF-8 encoded record. The array is shared and mustn't be modified.
+     *
+     * @return the record bytes
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Is the gzip member worth splicing into a response? It is if it has
+     * already been computed, or if it will be kept by the cache once it is;
+     * a member computed for a single response costs more than compressing
+     * the record along with the rest of the response.
+     *
+     * @return true if the record is held by the cache or already has its member
+     */
+    public boolean isCached() {
+        return owner != null || gzipMember != null;
+    }
+
+    /**
+     * Get the record compressed as a complete gzip member, computing it if necessary.
+     *
+     * @return the gzip member. The array is shared and mustn't be modified.
+     */
+    public byte[] getGzipMember() {
+        byte[] member = gzipMember;
+        if (member == null) {
+            if (owner == null) {
+                member = GzipMemberWriter.compress(bytes, Deflater.DEFAULT_COMPRESSION);
+            } else {
+                // paid once per record and datestamp, so squeeze it
+                member = GzipMemberWriter.compress(bytes, Deflater.BEST_COMPRESSION);
+                owner.storeGzipMember(key, datestamp, member);
+            }
+            gzipMember = member;
+        }
+        return member;
+    }
+
+    /**
+     * Has the gzip member already been computed?
+     *
+     * @return true if getGzipMember won't compress anything
+     */
+    public boolean hasGzipMember() {
+        return gzipMember != null;
+    }
+}
@@ -0,0 +1,442 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RenderedRecordCache keeps the output of the crosswalks so the same record
+ * isn't re-crosswalked for every harvester asking for the same metadataPrefix.
+ * Entries are kept as UTF-8 bytes, ready to be copied to the response. They
+ * are keyed by (identifier, metadataPrefix) and remember the datestamp
+ * they were rendered for: a lookup with a different datestamp drops the entry,
+ * so a modified record is never served stale. The cache is bounded by the
+ * approximate heap size of its entries and evicts the least recently used ones.
+ * <p/>
+ * If a DiskRecordCache is configured, it acts as a second level: every entry
+ * is written through to it, and a heap miss is looked up on disk before
+ * giving up, so evicted entries and a restart don't mean re-crosswalking.
+ * <p/>
+ * Each entry also remembers the gzip member computed for it by
+ * RenderedRecord.getGzipMember, so gzipped responses only compress a record
+ * once per datestamp.
+ *
+ * @see RecordFactory#getRecordCache()
+ */
+public class RenderedRecordCache {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderedRecordCache.class);
+
+    /** Kind of entry holding a complete &lt;record&gt; */
+    public static final String RECORD = "record";
+
+    /** Kind of entry holding the content of a &lt;metadata&gt; element */
+    public static final String METADATA = "metadata";
+
+    /** Rough per-entry cost of the map entry, key and Entry objects */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /** Suffix of the disk cache keys holding the gzip member of an entry */
+    private static final String GZIP_SUFFIX = "#gzip";
+
+    private final long maxBytes;
+    private final DiskRecordCache diskCache;
+    private long currentBytes = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+    private long hitCount = 0;
+    private long diskHitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long invalidationCount = 0;
+
+    private static class Entry {
+        private final String datestamp;
+        private final RenderedRecord record;
+        private long size;
+
+        private Entry(String key, String datestamp, RenderedRecord record) {
+            this.datestamp = datestamp;
+            this.record = record;
+            this.size = ENTRY_OVERHEAD + 2L * (key.length() + datestamp.length()) + record.getBytes().length;
+            if (record.hasGzipMember()) {
+                size += record.getGzipMember().length;
+            }
+        }
+    }
+
+    /**
+     * Construct a cache holding at most maxBytes worth of rendered records.
+     *
+     * @param maxBytes the approximate heap budget of the cache
+     */
+    public RenderedRecordCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Construct a cache holding at most maxBytes worth of rendered records on
+     * the heap, backed by a disk cache.
+     *
+     * @param maxBytes the approximate heap budget of the cache (0 to only use the disk)
+     * @param diskCache the second level cache, or null
+     */
+    public RenderedRecordCache(long maxBytes, DiskRecordCache diskCache) {
+        this.maxBytes = maxBytes;
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Create the cache described by the RecordFactory.cacheMaxBytes and
+     * RecordFactory.diskCache* properties.
+     *
+     * @param properties the repository properties
+     * @return a new cache, or null if caching isn't configured
+     */
+    public static RenderedRecordCache factory(Properties properties) {
+        String maxBytes = properties.getProperty("RecordFactory.cacheMaxBytes");
+        long heapBytes = maxBytes == null ? 0 : Math.max(0, Long.parseLong(maxBytes));
+        DiskRecordCache diskCache = null;
+        try {
+            diskCache = DiskRecordCache.factory(properties);
+        } catch (IOException e) {
+            LOGGER.error("RenderedRecordCache: the disk cache is disabled", e);
+        }
+        if (heapBytes == 0 && diskCache == null) {
+            return null;
+        }
+        LOGGER.debug("RenderedRecordCache.factory: maxBytes=" + heapBytes + " disk=" + (diskCache != null));
+        return new RenderedRecordCache(heapBytes, diskCache);
+    }
+
+    private static String key(String kind, String identifier, String metadataPrefix) {
+        return kind + ":" + metadataPrefix + ":" + identifier;
+    }
+
+    /**
+     * Look up a rendered record.
+     *
+     * @param kind RECORD or METADATA
+     * @param identifier the OAI identifier
+     * @param datestamp the current datestamp of the native record
+     * @param metadataPrefix the metadataPrefix it was rendered for
+     * @return the rendered String, or null if it isn't cached for this datestamp
+     */
+    public String get(String kind, String identifier, String datestamp, String metadataPrefix) {
+        byte[] value = getBytes(kind, identifier, datestamp, metadataPrefix);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Look up a rendered record as UTF-8 bytes.
+     *
+     * @param kind RECORD or METADATA
+     * @param identifier the OAI identifier
+     * @param datestamp the current datestamp of the native record
+     * @param metadataPrefix the metadataPrefix it was rendered for
+     * @return the UTF-8 encoded rendering, or null if it isn't cached for this datestamp.
+     * The array is shared and mustn't be modified.
+     */
+    public byte[] getBytes(String kind, String identifier, String datestamp, String metadataPrefix) {
+        RenderedRecord record = getRendered(kind, identifier, datestamp, metadataPrefix);
+        return record == null ? null : record.getBytes();
+    }
+
+    /**
+     * Look up a rendered record, with its gzip member if it has been computed.
+     *
+     * @param kind RECORD or METADATA
+     * @param identifier the OAI identifier
+     * @param datestamp the current datestamp of the native record
+     * @param metadataPrefix the metadataPrefix it was rendered for
+     * @return the rendering, or null if it isn't cached for this datestamp.
+     */
+    public RenderedRecord getRendered(String kind, String identifier, String datestamp, String metadataPrefix) {
+        String key = key(kind, identifier, metadataPrefix);
+        datestamp = nonNull(datestamp);
+        RenderedRecord record = getFromHeap(key, datestamp);
+        if (record != null || diskCache == null) {
+            return record;
+        }
+        byte[] value = diskCache.get(key, datestamp);
+        if (value == null) {
+            return null;
+        }
+        byte[] gzipMember = null;
+        if (diskCache.contains(key + GZIP_SUFFIX, datestamp)) {
+            gzipMember = diskCache.get(key + GZIP_SUFFIX, datestamp);
+        }
+        record = new RenderedRecord(value, gzipMember, this, key, datestamp);
+        synchronized (this) {
+            ++diskHitCount;
+            --missCount;
+            putOnHeap(key, datestamp, record);
+        }
+        return record;
+    }
+
+    private synchronized RenderedRecord getFromHeap(String key, String datestamp) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            ++missCount;
+            return null;
+        }
+        if (!entry.datestamp.equals(datestamp)) {
+            entries.remove(key);
+            currentBytes -= entry.size;
+            ++invalidationCount;
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        return entry.record;
+    }
+
+    /**
+     * Is the rendered record cached for this datestamp, on the heap or on disk?
+     * Unlike get, this doesn't count as a hit or a miss and doesn't promote
+     * disk entries to the heap.
+     *
+     * @param kind RECORD or METADATA
+     * @param identifier the OAI identifier
+     * @param datestamp the current datestamp of the native record
+     * @param metadataPrefix the metadataPrefix it was rendered for
+     * @return true if get would return the rendered String
+     */
+    public boolean contains(String kind, String identifier, String datestamp, String metadataPrefix) {
+        String key = key(kind, identifier, metadataPrefix);
+        datestamp = nonNull(datestamp);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.datestamp.equals(datestamp)) {
+                return true;
+            }
+        }
+        return diskCache != null && diskCache.contains(key, datestamp);
+    }
+
+    /**
+     * Store a rendered record, evicting the least recently used entries if necessary.
+     *
+     * @param kind RECORD or METADATA
+     * @param identifier the OAI identifier
+     * @param datestamp the datestamp of the native record it was rendered from
+     * @param metadataPrefix the metadataPrefix it was rendered for
+     * @param value the rendered String
+     */
+    public void put(String kind, String identifier, String datestamp, String metadataPrefix, String value) {
+        try {
+            putBytes(kind, identifier, datestamp, metadataPrefix, value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            LOGGER.error("An Exception occured", e);
+        }
+    }
+
+    /**
+     * Store a rendered record already encoded as UTF-8.
+     *
+     * @param kind RECORD or METADATA
+     * @param identifier the OAI identifier
+     * @param datestamp the datestamp of the native record it was rendered from
+     * @param metadataPrefix the metadataPrefix it was rendered for
+     * @param value the UTF-8 encoded rendering; the array mustn't be modified afterwards
+     */
+    public void putBytes(String kind, String identifier, String datestamp, String metadataPrefix, byte[] value) {
+        putRendered(kind, identifier, datestamp, metadataPrefix, value);
+    }
+
+    /**
+     * Store a rendered record already encoded as UTF-8.
+     *
+     * @param kind RECORD or METADATA
+     * @param identifier the OAI identifier
+     * @param datestamp the datestamp of the native record it was rendered from
+     * @param metadataPrefix the metadataPrefix it was rendered for
+     * @param value the UTF-8 encoded rendering; the array mustn't be modified afterwards
+     * @return the cached record, whose gzip member will be cached too once computed
+     */
+    public RenderedRecord putRendered(String kind, String identifier, String datestamp, String metadataPrefix, byte[] value) {
+        String key = key(kind, identifier, metadataPrefix);
+        datestamp = nonNull(datestamp);
+        RenderedRecord record = new RenderedRecord(value, null, this, key, datestamp);
+        putOnHeap(key, datestamp, record);
+        if (diskCache != null) {
+            diskCache.put(key, datestamp, value);
+        }
+        return record;
+    }
+
+    /**
+     * Remember the gzip member computed for an entry.
+     *
+     * @see RenderedRecord#getGzipMember()
+     */
+    void storeGzipMember(String key, String datestamp, byte[] gzipMember) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.datestamp.equals(datestamp)) {
+                entry.size += gzipMember.length;
+                currentBytes += gzipMember.length;
+                evict();
+            }
+        }
+        if (diskCache != null) {
+            diskCache.put(key + GZIP_SUFFIX, datestamp, gzipMember);
+        }
+    }
+
+    /**
+     * A RecordFactory may return a null datestamp; it's cached as an empty
+     * one, so it takes no space in the entry and still matches itself.
+     */
+    private static String nonNull(String datestamp) {
+        return datestamp == null ? "" : datestamp;
+    }
+
+    private synchronized void putOnHeap(String key, String datestamp, RenderedRecord record) {
+        Entry entry = new Entry(key, datestamp, record);
+        if (entry.size > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            currentBytes -= old.size;
+        }
+        currentBytes += entry.size;
+        evict();
+    }
+
+    /** Evict the least recently used entries until the cache fits in maxBytes. */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            currentBytes -= eldest.size;
+            ++evictionCount;
+        }
+    }
+
+    /**
+     * Drop the renderings of a record that has been modified, from the heap
+     * and from the disk cache. The datestamp check is enough for most
+     * catalogs, but not for a record modified twice within the granularity
+     * of its datestamps.
+     *
+     * @param identifier the OAI identifier
+     * @param metadataPrefixes the metadataPrefixes it may have been rendered for
+     */
+    public void invalidate(String identifier, Collection<String> metadataPrefixes) {
+        List<String> keys = new ArrayList<String>();
+        for (String metadataPrefix : metadataPrefixes) {
+            keys.add(key(RECORD, identifier, metadataPrefix));
+            keys.add(key(METADATA, identifier, metadataPrefix));
+        }
+        synchronized (this) {
+            for (String key : keys) {
+                Entry entry = entries.remove(key);
+                if (entry != null) {
+                    currentBytes -= entry.size;
+                    ++invalidationCount;
+                }
+            }
+        }
+        if (diskCache != null) {
+            for (String key : keys) {
+                diskCache.remove(key);
+                diskCache.remove(key + GZIP_SUFFIX);
+            }
+        }
+    }
+
+    /** Drop every entry from the heap. The disk cache and the statistics are kept. */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /** Release the disk cache, if any. */
+    public void close() {
+        if (diskCache != null) {
+            diskCache.close();
+        }
+    }
+
+    public DiskRecordCache getDiskCache() {
+        return diskCache;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return currentBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("RenderedRecordCache: ");
+        sb.append("entries=").append(entries.size());
+        sb.append(" bytes=").append(currentBytes).append("/").append(maxBytes);
+        sb.append(" hits=").append(hitCount);
+        sb.append(" diskHits=").append(diskHitCount);
+        sb.append(" misses=").append(missCount);
+        sb.append(" evictions=").append(evictionCount);
+        sb.append(" invalidations=").append(invalidationCount);
+        if (diskCache != null) {
+            sb.append(" [").append(diskCache).append("]");
+        }
+        return sb.toString();
+    }
+}
@@ -62,6 +62,7 @@ public class SRUOAICatalog extends AbstractCatalog {
     private String sortKeys = "";
     protected int maxListSize;
     private Map<String, String> sets = null;
+    private SRUTransport transport;
     private static TransformerFactory transformerFactory = TransformerFactory.newInstance();
     private static Transformer transformer = null;
     private static Map<Thread, Object> builderMap = new HashMap<Thread, Object>();
@@ -102,6 +103,7 @@ public class SRUOAICatalog extends AbstractCatalog {
 
         this.sruURL = sruURL;
         sets = getSets(properties);
+        transport = new SRUTransport(properties);
     }
 
     private static Map<String, String> getSets(Properties properties) {
@@ -162,8 +164,8 @@ public class SRUOAICatalog extends AbstractCatalog {
         try {
             srResponse = getSearchRetrieveResponse(sruURL, from, until, set, "http://www.openarchives.org/OAI/2.0/#header", 1, maxListSize, "xml");
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (SAXException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -184,8 +186,8 @@ public class SRUOAICatalog extends AbstractCatalog {
                         hashMap.put("metadata", getNativeMetadata(localIdentifier,
                                 metadataPrefix));
                     } catch (IOException e) {
-                        LOGGER.error("An Exception occured", e);
-                        throw new OAIInternalServerError(e.getMessage());
+                        SRUTransport.logFailure(LOGGER, e);
+                        throw SRUTransport.toServerError(e, e.getMessage());
                     } catch (TransformerException e) {
                         LOGGER.error("An Exception occured", e);
                         throw new OAIInternalServerError(e.getMessage());
@@ -231,8 +233,8 @@ public class SRUOAICatalog extends AbstractCatalog {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (ParserConfigurationException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -274,8 +276,8 @@ public class SRUOAICatalog extends AbstractCatalog {
                                 maxListSize,
                                 "xml");
             } catch (IOException e) {
-                LOGGER.error("An Exception occured", e);
-                throw new OAIInternalServerError(e.getMessage());
+                SRUTransport.logFailure(LOGGER, e);
+                throw SRUTransport.toServerError(e, e.getMessage());
             } catch (SAXException e) {
                 LOGGER.error("An Exception occured", e);
                 throw new OAIInternalServerError(e.getMessage());
@@ -316,8 +318,8 @@ public class SRUOAICatalog extends AbstractCatalog {
             listIdentifiersMap.put("headers", headers.iterator());
             listIdentifiersMap.put("identifiers", identifiers.iterator());
         } catch (Throwable e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError("Database Failure");
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, "Database Failure");
         }
         return listIdentifiersMap;
     }
@@ -332,7 +334,7 @@ public class SRUOAICatalog extends AbstractCatalog {
         try {
             nodeList = getIdentifierRecords(sruURL, oaiIdentifier, (String) null);
         } catch (Throwable e) {
-            throw new OAIInternalServerError("Database failure");
+            throw SRUTransport.toServerError(e, "Database failure");
         }
         if (nodeList != null) {
             for (int i = 0; i < nodeList.getLength(); ++i) {
@@ -353,8 +355,8 @@ public class SRUOAICatalog extends AbstractCatalog {
                     LOGGER.error("An Exception occured", e);
                     throw new OAIInternalServerError(e.getMessage());
                 } catch (IOException e) {
-                    LOGGER.error("An Exception occured", e);
-                    throw new OAIInternalServerError(e.getMessage());
+                    SRUTransport.logFailure(LOGGER, e);
+                    throw SRUTransport.toServerError(e, e.getMessage());
                 } catch (ParserConfigurationException e) {
                     LOGGER.error("An Exception occured", e);
                     throw new OAIInternalServerError(e.getMessage());
@@ -372,8 +374,8 @@ public class SRUOAICatalog extends AbstractCatalog {
         try {
             nativeObject = getFullRecord(sruURL, oaiIdentifier, metadataPrefix);
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (ParserConfigurationException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -411,8 +413,8 @@ public class SRUOAICatalog extends AbstractCatalog {
         try {
             nativeObject = getFullRecord(sruURL, oaiIdentifier, metadataPrefix);
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (ParserConfigurationException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -497,8 +499,8 @@ public class SRUOAICatalog extends AbstractCatalog {
         try {
             srResponse = getSearchRetrieveResponse(sruURL, from, until, set, "http://www.openarchives.org/OAI/2.0/#header", 1, maxListSize, "xml");
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (SAXException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -524,8 +526,8 @@ public class SRUOAICatalog extends AbstractCatalog {
                     try {
                         map.put("metadata", getNativeMetadata(localIdentifier, metadataPrefix));
                     } catch (IOException e) {
-                        LOGGER.error("An Exception occured", e);
-                        throw new OAIInternalServerError(e.getMessage());
+                        SRUTransport.logFailure(LOGGER, e);
+                        throw SRUTransport.toServerError(e, e.getMessage());
                     } catch (ParserConfigurationException e) {
                         LOGGER.error("An Exception occured", e);
                         throw new OAIInternalServerError(e.getMessage());
@@ -558,8 +560,8 @@ public class SRUOAICatalog extends AbstractCatalog {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (ParserConfigurationException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -613,8 +615,8 @@ public class SRUOAICatalog extends AbstractCatalog {
             }
             listRecordsMap.put("records", recordsList.iterator());
         } catch (Throwable e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError("Database Failure");
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, "Database Failure");
         }
         return listRecordsMap;
     }
@@ -656,8 +658,7 @@ public class SRUOAICatalog extends AbstractCatalog {
         request.append("&maximumRecords=").append(Integer.toString(maximumRecords));
         request.append("&recordPacking=").append(recordPacking);
         request.append("&sortKeys=").append(URLEncoder.encode(sortKeys, "UTF-8"));
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        return builder.parse(request.toString());
+        return transport.parse(factory.newDocumentBuilder(), request.toString());
     }
 
     private Document
@@ -673,8 +674,7 @@ public class SRUOAICatalog extends AbstractCatalog {
         request.append("&startRecord=").append(nextRecordPosition);
         request.append("&maximumRecords=").append(Integer.toString(maximumRecords));
         request.append("&recordPacking=").append(recordPacking);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        return builder.parse(request.toString());
+        return transport.parse(factory.newDocumentBuilder(), request.toString());
     }
 
     private Document
@@ -691,8 +691,7 @@ public class SRUOAICatalog extends AbstractCatalog {
         request.append("&recordSchema=").append(URLEncoder.encode(recordSchema, "UTF-8"));
         request.append("&startRecord=1&maximumRecords=1");
         request.append("&recordPacking=").append(recordPacking);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        return builder.parse(request.toString());
+        return transport.parse(factory.newDocumentBuilder(), request.toString());
     }
 
     private Element getRecordData(Node record) throws TransformerException, SAXException, IOException, ParserConfigurationException {
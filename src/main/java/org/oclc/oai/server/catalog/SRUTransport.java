@@ -0,0 +1,381 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.oclc.oai.server.verb.OAIInternalServerError;
+import org.oclc.oai.server.verb.OAIServiceUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * SRUTransport fetches the searchRetrieve responses of the SRU catalogs, so
+ * that a slow or dead SRU server can't hold every servlet thread:
+ * <ul>
+ * <li>requests time out after SRUOAICatalog.connectTimeoutMillis and
+ * SRUOAICatalog.readTimeoutMillis;</li>
+ * <li>no more than SRUOAICatalog.maxConnections requests are sent at once.
+ * Responses are read to the end so that their connections are kept alive and
+ * reused (the JVM keeps up to http.maxConnections idle ones per server);</li>
+ * <li>failed requests (I/O errors and 5xx statuses) are retried
+ * SRUOAICatalog.maxRetries times, waiting SRUOAICatalog.retryBackoffMillis
+ * before the first retry and twice as long before each following one;</li>
+ * <li>after SRUOAICatalog.failureThreshold requests in a row have failed,
+ * the circuit opens: requests fail at once with an UnavailableException,
+ * which the harvester gets as a 503 with a Retry-After header, for
+ * SRUOAICatalog.openSeconds. Then a single trial request is let through,
+ * which closes the circuit if it succeeds and opens it again otherwise.</li>
+ * </ul>
+ */
+public class SRUTransport {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SRUTransport.class);
+
+    private static final String PROPERTY_PREFIX = "SRUOAICatalog.";
+
+    /** Circuit states, guarded by this */
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxConnections;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+    private final int failureThreshold;
+    private final int openSeconds;
+    private final Semaphore connections;
+
+    private int state = CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialRunning = false;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong openCount = new AtomicLong();
+
+    /**
+     * Thrown instead of sending a request while the circuit is open or every
+     * connection is busy.
+     */
+    public static class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int retryAfter;
+
+        public UnavailableException(String message, int retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return the number of seconds after which the request may succeed
+         */
+        public int getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    /** A response with an error status */
+    private static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private StatusException(int status, String url) {
+            super("HTTP " + status + " from " + url);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Construct a transport from the SRUOAICatalog.* properties.
+     *
+     * @param properties the repository properties
+     */
+    public SRUTransport(Properties properties) {
+        connectTimeoutMillis = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "connectTimeoutMillis", "5000"));
+        readTimeoutMillis = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "readTimeoutMillis", "30000"));
+        maxConnections = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxConnections", "8"));
+        maxRetries = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxRetries", "2"));
+        retryBackoffMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "retryBackoffMillis", "200"));
+        failureThreshold = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "failureThreshold", "5"));
+        openSeconds = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "openSeconds", "30"));
+        connections = new Semaphore(maxConnections, true);
+        LOGGER.debug("SRUTransport: connectTimeoutMillis=" + connectTimeoutMillis + " readTimeoutMillis=" + readTimeoutMillis
+                + " maxConnections=" + maxConnections + " maxRetries=" + maxRetries + " failureThreshold=" + failureThreshold);
+    }
+
+    /**
+     * Fetch and parse an SRU response. This replaces builder.parse(url).
+     *
+     * @param builder the parser
+     * @param url the searchRetrieve URL
+     * @return the response document
+     * @throws IOException the request failed, or an UnavailableException if it wasn't sent
+     * @throws SAXException the response isn't well-formed
+     */
+    public Document parse(DocumentBuilder builder, String url) throws IOException, SAXException {
+        return builder.parse(new ByteArrayInputStream(fetch(url)), url);
+    }
+
+    /**
+     * Fetch a URL, retrying and tripping the circuit as configured.
+     *
+     * @param url the URL
+     * @return the response body
+     * @throws IOException the request failed, or an UnavailableException if it wasn't sent
+     */
+    public byte[] fetch(String url) throws IOException {
+        boolean trial = admit();
+        try {
+            try {
+                if (!connections.tryAcquire(connectTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    rejectedCount.incrementAndGet();
+                    throw new UnavailableException("All " + maxConnections + " connections to the SRU server are busy", 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            }
+            try {
+                // a trial request isn't retried, so that the circuit reopens quickly
+                int attempts = trial ? 1 : maxRetries + 1;
+                IOException failure = null;
+                for (int attempt = 0; attempt < attempts; ++attempt) {
+                    if (attempt > 0) {
+                        retryCount.incrementAndGet();
+                        sleep(retryBackoffMillis << (attempt - 1));
+                    }
+                    requestCount.incrementAndGet();
+                    try {
+                        byte[] body = get(url);
+                        succeeded();
+                        return body;
+                    } catch (StatusException e) {
+                        if (e.status < 500) {
+                            // the server is up, the request is wrong
+                            succeeded();
+                            throw e;
+                        }
+                        failure = e;
+                    } catch (InterruptedIOException e) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw e;
+                        }
+                        // a timeout
+                        failure = e;
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    LOGGER.debug("SRUTransport: attempt " + (attempt + 1) + " of " + attempts + " failed: " + failure.getMessage());
+                }
+                failureCount.incrementAndGet();
+                failed();
+                throw failure;
+            } finally {
+                connections.release();
+            }
+        } finally {
+            if (trial) {
+                endTrial();
+            }
+        }
+    }
+
+    private byte[] get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setUseCaches(false);
+        try {
+            int status = connection.getResponseCode();
+            if (status >= 400) {
+                // read the error body too, so the connection can be reused
+                InputStream err = connection.getErrorStream();
+                if (err != null) {
+                    readFully(err);
+                }
+                throw new StatusException(status, url);
+            }
+            return readFully(connection.getInputStream());
+        } catch (StatusException e) {
+            throw e;
+        } catch (IOException e) {
+            // don't let a broken connection go back to the keep-alive cache
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if the request is the trial of a half-open circuit
+     * @throws UnavailableException the circuit is open
+     */
+    private synchronized boolean admit() throws UnavailableException {
+        if (state == OPEN) {
+            long remaining = openedAt + openSeconds * 1000L - System.currentTimeMillis();
+            if (remaining > 0) {
+                rejectedCount.incrementAndGet();
+                throw new UnavailableException("The SRU server is unavailable", (int) ((remaining + 999) / 1000));
+            }
+            state = HALF_OPEN;
+        }
+        if (state == HALF_OPEN) {
+            if (trialRunning) {
+                rejectedCount.incrementAndGet();
+                throw new UnavailableException("The SRU server is unavailable", 1);
+            }
+            trialRunning = true;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void succeeded() {
+        if (state != CLOSED) {
+            LOGGER.info("SRUTransport: the SRU server is available again");
+        }
+        state = CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void failed() {
+        ++consecutiveFailures;
+        if (state == HALF_OPEN || (state == CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = OPEN;
+            openedAt = System.currentTimeMillis();
+            openCount.incrementAndGet();
+            LOGGER.warn("SRUTransport: " + consecutiveFailures + " requests failed in a row, failing fast for " + openSeconds + " seconds");
+        }
+    }
+
+    private synchronized void endTrial() {
+        trialRunning = false;
+    }
+
+    /**
+     * Log a failed SRU request. While the circuit is open every request
+     * fails fast, and the opening of the circuit has already been logged, so
+     * those failures are only logged at debug level, without a stack trace.
+     *
+     * @param logger the logger of the catalog
+     * @param e the failure
+     */
+    public static void logFailure(Logger logger, Throwable e) {
+        if (e instanceof UnavailableException || e instanceof OAIServiceUnavailableException) {
+            logger.debug("SRU request failed fast: " + e.getMessage());
+        } else {
+            logger.error("An Exception occured", e);
+        }
+    }
+
+    /**
+     * Convert an exception caught while querying the SRU server to the one
+     * reported to the harvester: a 503 if the server is known to be down, a
+     * 500 otherwise.
+     *
+     * @param e the exception
+     * @param message the message of the internal server error
+     * @return the exception to throw
+     */
+    public static OAIInternalServerError toServerError(Throwable e, String message) {
+        if (e instanceof OAIServiceUnavailableException) {
+            return (OAIServiceUnavailableException) e;
+        }
+        if (e instanceof UnavailableException) {
+            return new OAIServiceUnavailableException(e.getMessage(), ((UnavailableException) e).getRetryAfter());
+        }
+        return new OAIInternalServerError(message);
+    }
+
+    /**
+     * Is the circuit open, i.e. are requests failing fast?
+     *
+     * @return true if the circuit is open or half-open
+     */
+    public synchronized boolean isOpen() {
+        return state != CLOSED;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SRUTransport: ");
+        synchronized (this) {
+            sb.append(state == CLOSED ? "closed" : state == OPEN ? "open" : "half-open");
+        }
+        sb.append(" requests=").append(requestCount.get());
+        sb.append(" retries=").append(retryCount.get());
+        sb.append(" failures=").append(failureCount.get());
+        sb.append(" rejected=").append(rejectedCount.get());
+        sb.append(" opened=").append(openCount.get());
+        sb.append(" busy=").append(maxConnections - connections.availablePermits()).append("/").append(maxConnections);
+        return sb.toString();
+    }
+}
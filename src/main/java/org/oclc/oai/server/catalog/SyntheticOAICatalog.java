@@ -0,0 +1,518 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.oclc.oai.server.verb.BadArgumentException;
+import org.oclc.oai.server.verb.BadResumptionTokenException;
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+import org.oclc.oai.server.verb.IdDoesNotExistException;
+import org.oclc.oai.server.verb.NoItemsMatchException;
+import org.oclc.oai.server.verb.NoMetadataFormatsException;
+import org.oclc.oai.server.verb.NoSetHierarchyException;
+import org.oclc.oai.util.Datestamp;
+import org.oclc.oai.util.OAIUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SyntheticOAICatalog is an implementation of AbstractCatalog whose records
+ * are generated on the fly: record <i>n</i> (0 &lt;= n &lt; recordCount) is
+ * computed from SyntheticOAICatalog.seed and n alone, so the same properties
+ * always give the same repository, of any size, without any storage. It is
+ * meant to measure the verbs, crosswalks and output of OAICat at production
+ * scale independently of a real backend.
+ * <p/>
+ * The datestamps grow with n, from SyntheticOAICatalog.earliestDatestamp to
+ * SyntheticOAICatalog.latestDatestamp, so from/until ranges are found by a
+ * binary search, and the resumptionTokens only hold the position of the next
+ * record: they are stateless and never expire. Set membership, deletion and
+ * metadata are pseudo-random functions of n. The records are HashMaps with
+ * the keys localIdentifier, datestamp, setSpecs, deleted, title, creator,
+ * subject, date and description; use SyntheticRecordFactory and
+ * Synthetic2oai_dc with it.
+ */
+public class SyntheticOAICatalog extends AbstractCatalog {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyntheticOAICatalog.class);
+
+    private static final String[] WORDS = {
+            "archive", "library", "history", "river", "garden", "letter", "map", "survey",
+            "north", "early", "modern", "theory", "music", "city", "report", "journal",
+            "coast", "field", "study", "notes", "trade", "church", "school", "railway",
+            "island", "census", "atlas", "poems", "law", "science", "war", "travel"
+    };
+
+    private static final String[] SURNAMES = {
+            "Martin", "Bernard", "Smith", "Young", "LeVan", "Dubois", "Moreau", "Jones",
+            "Garcia", "M\u00fcller", "Rossi", "Nakamura", "Novak", "Silva", "Brown", "Petit"
+    };
+
+    private final int recordCount;
+    private final long seed;
+    private final int maxListSize;
+    private final long earliestMillis;
+    private final long latestMillis;
+    private final double datestampSkew;
+    private final String[] sets;
+    private final int setsPerRecord;
+    private final double deletedRatio;
+    private final int recordBytes;
+    private final boolean seconds;
+
+    public SyntheticOAICatalog(Properties properties) {
+        String temp = properties.getProperty("SyntheticOAICatalog.maxListSize");
+        if (temp == null) {
+            throw new IllegalArgumentException("SyntheticOAICatalog.maxListSize is missing from the properties file");
+        }
+        maxListSize = Integer.parseInt(temp);
+        temp = properties.getProperty("SyntheticOAICatalog.recordCount");
+        if (temp == null) {
+            throw new IllegalArgumentException("SyntheticOAICatalog.recordCount is missing from the properties file");
+        }
+        recordCount = Integer.parseInt(temp);
+        seed = Long.parseLong(properties.getProperty("SyntheticOAICatalog.seed", "0"));
+        earliestMillis = Datestamp.parse(properties.getProperty("SyntheticOAICatalog.earliestDatestamp", "2000-01-01"));
+        latestMillis = Datestamp.parse(properties.getProperty("SyntheticOAICatalog.latestDatestamp", "2020-12-31"));
+        if (earliestMillis < 0 || latestMillis < earliestMillis) {
+            throw new IllegalArgumentException("SyntheticOAICatalog.earliestDatestamp and latestDatestamp are invalid");
+        }
+        datestampSkew = Double.parseDouble(properties.getProperty("SyntheticOAICatalog.datestampSkew", "1"));
+        if (datestampSkew <= 0) {
+            throw new IllegalArgumentException("SyntheticOAICatalog.datestampSkew must be greater than 0");
+        }
+        temp = properties.getProperty("SyntheticOAICatalog.sets", "");
+        sets = temp.trim().length() == 0 ? new String[0] : temp.trim().split("\\s*,\\s*");
+        setsPerRecord = Math.min(sets.length,
+                Integer.parseInt(properties.getProperty("SyntheticOAICatalog.setsPerRecord", "1")));
+        deletedRatio = Double.parseDouble(properties.getProperty("SyntheticOAICatalog.deletedRatio", "0"));
+        recordBytes = Integer.parseInt(properties.getProperty("SyntheticOAICatalog.recordBytes", "1000"));
+        seconds = "YYYY-MM-DDThh:mm:ssZ".equalsIgnoreCase(properties.getProperty("AbstractCatalog.granularity"));
+
+        LOGGER.debug("in SyntheticOAICatalog(): recordCount=" + recordCount + " seed=" + seed
+                + " sets=" + Arrays.asList(sets) + " deletedRatio=" + deletedRatio);
+    }
+
+    /**
+     * A 64 bit mixing function (the finalizer of MurmurHash3): consecutive
+     * inputs give unrelated outputs.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * @return a number in [0, 1) that depends only on the seed, the record and the salt
+     */
+    private double uniform(int n, long salt) {
+        return (mix(seed ^ mix(n * 0x9e3779b97f4a7c15L + salt)) >>> 11) * 0x1.0p-53;
+    }
+
+    private long getDatestampMillis(int n) {
+        double position = (double) n / recordCount;
+        if (datestampSkew != 1) {
+            position = Math.pow(position, 1 / datestampSkew);
+        }
+        return Datestamp.truncate(earliestMillis + (long) ((latestMillis - earliestMillis) * position), seconds);
+    }
+
+    /**
+     * @return the first record whose datestamp is at or after millis
+     */
+    private int lowerBound(long millis) {
+        int low = 0;
+        int high = recordCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getDatestampMillis(middle) < millis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean isDeleted(int n) {
+        return deletedRatio > 0 && uniform(n, 1) < deletedRatio;
+    }
+
+    private List<String> getSetSpecs(int n) {
+        List<String> setSpecs = new ArrayList<String>(setsPerRecord);
+        int first = (int) (uniform(n, 2) * sets.length);
+        for (int i = 0; i < setsPerRecord; ++i) {
+            setSpecs.add(sets[(first + i) % sets.length]);
+        }
+        return setSpecs;
+    }
+
+    private boolean isInSet(int n, String set) {
+        if (set == null) {
+            return true;
+        }
+        int first = (int) (uniform(n, 2) * sets.length);
+        for (int i = 0; i < setsPerRecord; ++i) {
+            if (sets[(first + i) % sets.length].equals(set)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, Object> getNativeHeader(int n) {
+        Map<String, Object> nativeItem = new HashMap<String, Object>();
+        nativeItem.put("localIdentifier", Integer.toString(n));
+        nativeItem.put("datestamp", Datestamp.format(getDatestampMillis(n), seconds));
+        nativeItem.put("setSpecs", getSetSpecs(n));
+        nativeItem.put("deleted", Boolean.valueOf(isDeleted(n)));
+        return nativeItem;
+    }
+
+    private Map<String, Object> getNativeRecord(int n) {
+        Map<String, Object> nativeItem = getNativeHeader(n);
+        if (isDeleted(n)) {
+            return nativeItem;
+        }
+        Random random = new Random(mix(seed ^ mix(n * 0x9e3779b97f4a7c15L + 3)));
+        nativeItem.put("title", words(random, 3 + random.nextInt(6), true));
+        nativeItem.put("creator", SURNAMES[random.nextInt(SURNAMES.length)] + ", "
+                + (char) ('A' + random.nextInt(26)) + ".");
+        nativeItem.put("subject", words(random, 1 + random.nextInt(3), false));
+        nativeItem.put("date", Datestamp.format(getDatestampMillis(n), false).substring(0, 4));
+        int length = 0;
+        for (String key : new String[]{"title", "creator", "subject"}) {
+            length += ((String) nativeItem.get(key)).length();
+        }
+        StringBuilder description = new StringBuilder();
+        while (length + description.length() < recordBytes) {
+            if (description.length() > 0) {
+                description.append(' ');
+            }
+            description.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        nativeItem.put("description", description.toString());
+        return nativeItem;
+    }
+
+    private static String words(Random random, int count, boolean capitalize) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        if (capitalize) {
+            sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the record number of an OAI identifier, or -1 if there is no such record
+     */
+    private int getRecordNumber(String oaiIdentifier) {
+        String localIdentifier = getRecordFactory().fromOAIIdentifier(oaiIdentifier);
+        if (localIdentifier == null) {
+            return -1;
+        }
+        try {
+            int n = Integer.parseInt(localIdentifier);
+            return n >= 0 && n < recordCount && localIdentifier.equals(Integer.toString(n)) ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Retrieve the specified metadata for the specified oaiIdentifier
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return the Record object containing the result.
+     * @throws CannotDisseminateFormatException signals an http status code 400 problem
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     */
+    public String getRecord(String oaiIdentifier, String metadataPrefix) throws IdDoesNotExistException, CannotDisseminateFormatException {
+        int n = getRecordNumber(oaiIdentifier);
+        if (n < 0) {
+            throw new IdDoesNotExistException(oaiIdentifier);
+        }
+        return getRecordFactory().create(getNativeRecord(n), getSchemaURL(metadataPrefix), metadataPrefix, null, null);
+    }
+
+    /**
+     * Retrieve the specified record as UTF-8 bytes, straight from the
+     * RenderedRecordCache when possible.
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return the UTF-8 encoded record.
+     * @throws CannotDisseminateFormatException signals an http status code 400 problem
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     */
+    public byte[] getRecordBytes(String oaiIdentifier, String metadataPrefix) throws IdDoesNotExistException, CannotDisseminateFormatException {
+        int n = getRecordNumber(oaiIdentifier);
+        if (n < 0) {
+            throw new IdDoesNotExistException(oaiIdentifier);
+        }
+        return getRecordFactory().createBytes(getNativeRecord(n), getSchemaURL(metadataPrefix), metadataPrefix, null, null);
+    }
+
+    /**
+     * Retrieve a list of schemaLocation values associated with the specified
+     * oaiIdentifier.
+     *
+     * @param oaiIdentifier the OAI identifier
+     * @return a List<String> containing schemaLocation Strings
+     * @throws IdDoesNotExistException signals an http status code 404 problem
+     * @throws NoMetadataFormatsException the record is deleted
+     */
+    public List<String> getSchemaLocations(String oaiIdentifier) throws IdDoesNotExistException, NoMetadataFormatsException {
+        int n = getRecordNumber(oaiIdentifier);
+        if (n < 0) {
+            throw new IdDoesNotExistException(oaiIdentifier);
+        }
+        return getRecordFactory().getSchemaLocations(getNativeRecord(n));
+    }
+
+    private String getSchemaURL(String metadataPrefix) throws CannotDisseminateFormatException {
+        String schemaURL = null;
+        if (metadataPrefix != null) {
+            if ((schemaURL = getCrosswalks().getSchemaURL(metadataPrefix)) == null) {
+                throw new CannotDisseminateFormatException(metadataPrefix);
+            }
+        }
+        return schemaURL;
+    }
+
+    /**
+     * Retrieve a list of Identifiers that satisfy the criteria parameters
+     *
+     * @param from beginning date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param until ending date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param set set name or null if no set is desired
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return a Map object containing an optional "resumptionMap" and "headers" and "identifiers" Iterators.
+     */
+    public Map<String, Object> listIdentifiers(String from, String until, String set, String metadataPrefix)
+            throws BadArgumentException, CannotDisseminateFormatException, NoItemsMatchException, NoSetHierarchyException {
+        getSchemaURL(metadataPrefix);
+        return listIdentifiers(new Cursor(from, until, set, metadataPrefix));
+    }
+
+    /**
+     * Retrieve the next set of Identifiers associated with the resumptionToken
+     *
+     * @param resumptionToken a token from a previous listIdentifiers() result
+     * @return a Map object containing an optional "resumptionMap" and "headers" and "identifiers" Iterators.
+     */
+    public Map<String, Object> listIdentifiers(String resumptionToken) throws BadResumptionTokenException {
+        try {
+            return listIdentifiers(new Cursor(resumptionToken));
+        } catch (NoItemsMatchException e) {
+            throw new BadResumptionTokenException();
+        }
+    }
+
+    private Map<String, Object> listIdentifiers(Cursor cursor) throws NoItemsMatchException {
+        Map<String, Object> listIdentifiersMap = new HashMap<String, Object>();
+        List<String> headers = new ArrayList<String>();
+        List<String> identifiers = new ArrayList<String>();
+        int count = 0;
+        while (count < maxListSize && cursor.hasNext()) {
+            String[] header = getRecordFactory().createHeader(getNativeHeader(cursor.next()));
+            headers.add(header[0]);
+            identifiers.add(header[1]);
+            count++;
+        }
+        if (count == 0) {
+            throw new NoItemsMatchException();
+        }
+        if (cursor.hasNext()) {
+            listIdentifiersMap.put("resumptionMap", cursor.getResumptionMap(count));
+        }
+        listIdentifiersMap.put("headers", headers.iterator());
+        listIdentifiersMap.put("identifiers", identifiers.iterator());
+        return listIdentifiersMap;
+    }
+
+    /**
+     * Retrieve a list of records that satisfy the specified criteria
+     *
+     * @param from beginning date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param until ending date in the form of YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ
+     * @param set set name or null if no set is desired
+     * @param metadataPrefix the OAI metadataPrefix
+     * @return a Map object containing an optional "resumptionMap" and a "records" Iterator.
+     */
+    public Map<String, Object> listRecords(String from, String until, String set, String metadataPrefix)
+            throws BadArgumentException, CannotDisseminateFormatException, NoItemsMatchException, NoSetHierarchyException {
+        getSchemaURL(metadataPrefix);
+        return listRecords(new Cursor(from, until, set, metadataPrefix));
+    }
+
+    /**
+     * Retrieve the next set of records associated with the resumptionToken
+     *
+     * @param resumptionToken a token from a previous listRecords() result
+     * @return a Map object containing an optional "resumptionMap" and a "records" Iterator.
+     */
+    public Map<String, Object> listRecords(String resumptionToken) throws BadResumptionTokenException {
+        try {
+            return listRecords(new Cursor(resumptionToken));
+        } catch (NoItemsMatchException e) {
+            throw new BadResumptionTokenException();
+        } catch (CannotDisseminateFormatException e) {
+            /* the client hacked the resumptionToken beyond repair */
+            throw new BadResumptionTokenException();
+        }
+    }
+
+    private Map<String, Object> listRecords(Cursor cursor) throws CannotDisseminateFormatException, NoItemsMatchException {
+        Map<String, Object> listRecordsMap = new HashMap<String, Object>();
+        List<Object> records = new ArrayList<Object>();
+        String schemaURL = getSchemaURL(cursor.metadataPrefix);
+        int count = 0;
+        PageBudget budget = startPage();
+        while (count < maxListSize && !budget.isExhausted() && cursor.hasNext()) {
+            RenderedRecord record = getRecordFactory().createRendered(getNativeRecord(cursor.next()), schemaURL,
+                    cursor.metadataPrefix, null, null);
+            records.add(record);
+            budget.add(record);
+            count++;
+        }
+        if (count == 0) {
+            throw new NoItemsMatchException();
+        }
+        budget.finish(count, cursor.hasNext());
+        if (cursor.hasNext()) {
+            listRecordsMap.put("resumptionMap", cursor.getResumptionMap(count));
+        }
+        listRecordsMap.put("records", records.iterator());
+        return listRecordsMap;
+    }
+
+    /**
+     * The position of a list request in the records, and its resumptionToken.
+     * A token is next!end!cursor!completeListSize!metadataPrefix!set, where
+     * next and end are record numbers; completeListSize is -1 for sets, which
+     * would have to be scanned to be counted.
+     */
+    private class Cursor {
+        private int next;
+        private final int end;
+        private int cursor;
+        private final int completeListSize;
+        private final String metadataPrefix;
+        private final String set;
+
+        private Cursor(String from, String until, String set, String metadataPrefix)
+                throws BadArgumentException, NoSetHierarchyException {
+            if (set != null && sets.length == 0) {
+                throw new NoSetHierarchyException();
+            }
+            long fromMillis = Datestamp.parse(from);
+            long untilMillis = Datestamp.parseUntil(until);
+            if (fromMillis == Datestamp.INVALID || untilMillis == Datestamp.INVALID) {
+                throw new BadArgumentException();
+            }
+            this.next = lowerBound(fromMillis);
+            this.end = lowerBound(untilMillis + 1);
+            this.cursor = 0;
+            this.completeListSize = set == null ? end - next : -1;
+            this.metadataPrefix = metadataPrefix;
+            this.set = set;
+            skip();
+        }
+
+        private Cursor(String resumptionToken) throws BadResumptionTokenException {
+            String[] tokens = resumptionToken.split("!", 6);
+            if (tokens.length != 6) {
+                throw new BadResumptionTokenException();
+            }
+            try {
+                next = Integer.parseInt(tokens[0]);
+                end = Integer.parseInt(tokens[1]);
+                cursor = Integer.parseInt(tokens[2]);
+                completeListSize = Integer.parseInt(tokens[3]);
+            } catch (NumberFormatException e) {
+                throw new BadResumptionTokenException();
+            }
+            metadataPrefix = tokens[4];
+            set = tokens[5].length() == 0 ? null : tokens[5];
+            if (next < 0 || next > end || end > recordCount || cursor < 0) {
+                throw new BadResumptionTokenException();
+            }
+        }
+
+        /** move next to the next record of the set */
+        private void skip() {
+            while (next < end && !isInSet(next, set)) {
+                ++next;
+            }
+        }
+
+        private boolean hasNext() {
+            return next < end;
+        }
+
+        private int next() {
+            int n = next++;
+            skip();
+            return n;
+        }
+
+        private Map<String, String> getResumptionMap(int count) {
+            StringBuilder resumptionTokenSb = new StringBuilder();
+            resumptionTokenSb.append(next).append('!');
+            resumptionTokenSb.append(end).append('!');
+            resumptionTokenSb.append(cursor + count).append('!');
+            resumptionTokenSb.append(completeListSize).append('!');
+            resumptionTokenSb.append(metadataPrefix).append('!');
+            if (set != null) {
+                resumptionTokenSb.append(set);
+            }
+            return SyntheticOAICatalog.this.getResumptionMap(resumptionTokenSb.toString(), completeListSize, cursor);
+        }
+    }
+
+    public Map<String, Object> listSets() throws NoSetHierarchyException {
+        if (sets.length == 0) {
+            throw new NoSetHierarchyException();
+        }
+        List<String> setList = new ArrayList<String>();
+        for (String setSpec : sets) {
+            String encoded = OAIUtil.xmlEncode(setSpec);
+            setList.add("<set><setSpec>" + encoded + "</setSpec><setName>" + encoded + "</setName></set>");
+        }
+        Map<String, Object> listSetsMap = new HashMap<String, Object>();
+        listSetsMap.put("sets", setList.iterator());
+        return listSetsMap;
+    }
+
+    public Map<String, Object> listSets(String resumptionToken) throws BadResumptionTokenException {
+        throw new BadResumptionTokenException();
+    }
+
+    /** close the repository */
+    public void close() {}
+}
@@ -594,6 +594,15 @@ public class XMLFileOAICatalog extends AbstractCatalog {
     }
 
 
+    /**
+     * get the number of resumptionTokens whose result set is held in memory
+     *
+     * @return the number of open resumptionTokens
+     */
+    public int getOpenResumptionTokenCount() {
+        return resumptionResults.size();
+    }
+
     /** close the repository */
     public void close() {
     }
@@ -54,6 +54,7 @@ public class XerSRUOAICatalog extends AbstractCatalog {
     private String sortKeys = "";
     protected int maxListSize;
     private Map<String, String> sets = null;
+    private SRUTransport transport;
     private static TransformerFactory transformerFactory = TransformerFactory.newInstance();
     private static Transformer transformer = null;
     private static Map<Thread, Object> builderMap = new HashMap<Thread, Object>();
@@ -94,6 +95,7 @@ public class XerSRUOAICatalog extends AbstractCatalog {
 
         this.sruURL = sruURL;
         sets = getSets(properties);
+        transport = new SRUTransport(properties);
     }
 
     private static Map<String, String> getSets(Properties properties) {
@@ -156,8 +158,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
             srResponse = getSearchRetrieveResponse(sruURL, from, until, set, "http://www.openarchives.org/OAI/2.0/#header",
                     1, maxListSize, "xml");
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (SAXException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -178,8 +180,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
                         hashMap.put("metadata", getNativeMetadata(localIdentifier,
                                 metadataPrefix));
                     } catch (IOException e) {
-                        LOGGER.error("An Exception occured", e);
-                        throw new OAIInternalServerError(e.getMessage());
+                        SRUTransport.logFailure(LOGGER, e);
+                        throw SRUTransport.toServerError(e, e.getMessage());
                     } catch (TransformerException e) {
                         LOGGER.error("An Exception occured", e);
                         throw new OAIInternalServerError(e.getMessage());
@@ -223,8 +225,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (ParserConfigurationException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -260,8 +262,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
                 srResponse = getSearchRetrieveResponse(sruURL, resultSetId, nextRecordPosition,
                         "http://www.openarchives.org/OAI/2.0/#header", maxListSize, "xml");
             } catch (IOException e) {
-                LOGGER.error("An Exception occured", e);
-                throw new OAIInternalServerError(e.getMessage());
+                SRUTransport.logFailure(LOGGER, e);
+                throw SRUTransport.toServerError(e, e.getMessage());
             } catch (SAXException e) {
                 LOGGER.error("An Exception occured", e);
                 throw new OAIInternalServerError(e.getMessage());
@@ -297,8 +299,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
             listIdentifiersMap.put("headers", headers.iterator());
             listIdentifiersMap.put("identifiers", identifiers.iterator());
         } catch (Throwable e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError("Database Failure");
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, "Database Failure");
         }
         return listIdentifiersMap;
     }
@@ -310,7 +312,7 @@ public class XerSRUOAICatalog extends AbstractCatalog {
         try {
             nodeList = getIdentifierRecords(sruURL, oaiIdentifier, (String) null);
         } catch (Throwable e) {
-            throw new OAIInternalServerError("Database failure");
+            throw SRUTransport.toServerError(e, "Database failure");
         }
         if (nodeList != null) {
             for (int i = 0; i < nodeList.getLength(); ++i) {
@@ -331,8 +333,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
                     LOGGER.error("An Exception occured", e);
                     throw new OAIInternalServerError(e.getMessage());
                 } catch (IOException e) {
-                    LOGGER.error("An Exception occured", e);
-                    throw new OAIInternalServerError(e.getMessage());
+                    SRUTransport.logFailure(LOGGER, e);
+                    throw SRUTransport.toServerError(e, e.getMessage());
                 } catch (ParserConfigurationException e) {
                     LOGGER.error("An Exception occured", e);
                     throw new OAIInternalServerError(e.getMessage());
@@ -355,8 +357,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
         try {
             nativeObject = getFullRecord(sruURL, oaiIdentifier, metadataPrefix);
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (ParserConfigurationException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -400,8 +402,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
         try {
             nativeObject = getFullRecord(sruURL, oaiIdentifier, metadataPrefix);
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (ParserConfigurationException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -485,8 +487,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
         try {
             srResponse = getSearchRetrieveResponse(sruURL, from, until, set, "info:srw/schema/1/xer", 1, maxListSize, "xml");
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (SAXException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -531,8 +533,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
         } catch (IOException e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError(e.getMessage());
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, e.getMessage());
         } catch (ParserConfigurationException e) {
             LOGGER.error("An Exception occured", e);
             throw new OAIInternalServerError(e.getMessage());
@@ -587,8 +589,8 @@ public class XerSRUOAICatalog extends AbstractCatalog {
             }
             listRecordsMap.put("records", recordsList.iterator());
         } catch (Throwable e) {
-            LOGGER.error("An Exception occured", e);
-            throw new OAIInternalServerError("Database Failure");
+            SRUTransport.logFailure(LOGGER, e);
+            throw SRUTransport.toServerError(e, "Database Failure");
         }
         return listRecordsMap;
     }
@@ -630,8 +632,7 @@ public class XerSRUOAICatalog extends AbstractCatalog {
         request.append("&maximumRecords=").append(Integer.toString(maximumRecords));
         request.append("&recordPacking=").append(recordPacking);
         request.append("&sortKeys=").append(URLEncoder.encode(sortKeys, "UTF-8"));
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        return builder.parse(request.toString());
+        return transport.parse(factory.newDocumentBuilder(), request.toString());
     }
 
     private Document
@@ -647,8 +648,7 @@ public class XerSRUOAICatalog extends AbstractCatalog {
         request.append("&startRecord=").append(nextRecordPosition);
         request.append("&maximumRecords=").append(Integer.toString(maximumRecords));
         request.append("&recordPacking=").append(recordPacking);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        return builder.parse(request.toString());
+        return transport.parse(factory.newDocumentBuilder(), request.toString());
     }
 
     private Document
@@ -665,8 +665,7 @@ public class XerSRUOAICatalog extends AbstractCatalog {
         request.append("&recordSchema=").append(URLEncoder.encode(recordSchema, "UTF-8"));
         request.append("&startRecord=1&maximumRecords=1");
         request.append("&recordPacking=").append(recordPacking);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        return builder.parse(request.toString());
+        return transport.parse(factory.newDocumentBuilder(), request.toString());
     }
 
     private Element getRecordData(Node record) throws TransformerException, SAXException, IOException, ParserConfigurationException {
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.crosswalk;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+import org.oclc.oai.server.verb.OAIInternalServerError;
+import org.oclc.oai.util.OAIUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
+
+/**
+ * Convert native "item" through a chain of XSLT stylesheets and/or Java
+ * SAX filters. Each step is plugged into a single SAX pipeline, so the
+ * intermediate results are never serialized or re-parsed; only the output
+ * of the last step is written out.
+ * <p/>
+ * The crosswalk is configured per metadataPrefix:
+ * <pre>
+ * Crosswalks.mods=org.oclc.oai.server.crosswalk.ChainedCrosswalk
+ * ChainedCrosswalk.mods.schemaLocation=http://www.loc.gov/mods/v3 http://www.loc.gov/standards/mods/v3/mods-3-3.xsd
+ * ChainedCrosswalk.mods.steps=webapps/oaicat/extract.xsl, com.acme.oai.CleanupFilter, webapps/oaicat/mods.xsl
+ * </pre>
+ * A step naming a class that implements org.xml.sax.XMLFilter is used as a
+ * Java filter (a new instance is created for every record); any other step is
+ * treated as the path to a stylesheet. ChainedCrosswalk.[prefix].contentType
+ * and ChainedCrosswalk.[prefix].docType are optional.
+ */
+public class ChainedCrosswalk extends Crosswalk {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChainedCrosswalk.class);
+
+    private static SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+
+    static {
+        parserFactory.setNamespaceAware(true);
+    }
+
+    private SAXTransformerFactory saxFactory;
+
+    /** Compiled stylesheets (Templates) and XMLFilter classes, in pipeline order. */
+    private List<Object> steps = new ArrayList<Object>();
+
+    /**
+     * Construct the pipeline for the specified metadataPrefix.
+     *
+     * @param schemaLabel the metadataPrefix this crosswalk is registered under.
+     * @param properties properties that are needed to configure the crosswalk.
+     * @throws OAIInternalServerError the configuration is incomplete or a step couldn't be loaded.
+     */
+    public ChainedCrosswalk(String schemaLabel, Properties properties) throws OAIInternalServerError {
+        super(properties.getProperty("ChainedCrosswalk." + schemaLabel + ".schemaLocation"),
+                properties.getProperty("ChainedCrosswalk." + schemaLabel + ".contentType"),
+                properties.getProperty("ChainedCrosswalk." + schemaLabel + ".docType"));
+
+        String propertyPrefix = "ChainedCrosswalk." + schemaLabel;
+        if (getSchemaLocation() == null) {
+            throw new OAIInternalServerError(propertyPrefix + ".schemaLocation is missing from the properties file");
+        }
+        String stepList = properties.getProperty(propertyPrefix + ".steps");
+        if (stepList == null) {
+            throw new OAIInternalServerError(propertyPrefix + ".steps is missing from the properties file");
+        }
+
+        TransformerFactory tFactory = TransformerFactory.newInstance();
+        if (!tFactory.getFeature(SAXSource.FEATURE) || !tFactory.getFeature(SAXTransformerFactory.FEATURE_XMLFILTER)) {
+            throw new OAIInternalServerError("ChainedCrosswalk: the TransformerFactory doesn't support SAX filters");
+        }
+        saxFactory = (SAXTransformerFactory) tFactory;
+
+        StringTokenizer tokenizer = new StringTokenizer(stepList, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String step = tokenizer.nextToken().trim();
+            if (step.length() > 0) {
+                steps.add(loadStep(step));
+                LOGGER.debug("ChainedCrosswalk." + schemaLabel + ": step=" + step);
+            }
+        }
+        if (steps.size() == 0) {
+            throw new OAIInternalServerError(propertyPrefix + ".steps doesn't contain any step");
+        }
+    }
+
+    /**
+     * Resolve a step to either an XMLFilter class or a compiled stylesheet.
+     *
+     * @param step an XMLFilter class name or a stylesheet path
+     * @return the XMLFilter's no-arg Constructor or the stylesheet Templates
+     * @throws OAIInternalServerError the step couldn't be loaded
+     */
+    private Object loadStep(String step) throws OAIInternalServerError {
+        try {
+            Class<?> filterClass = Class.forName(step);
+            if (XMLFilter.class.isAssignableFrom(filterClass)) {
+                Constructor<?> constructor = filterClass.getDeclaredConstructor();
+                constructor.newInstance(); // fail now rather than on the first record
+                return constructor;
+            }
+            throw new OAIInternalServerError("ChainedCrosswalk: " + step + " doesn't implement org.xml.sax.XMLFilter");
+        } catch (ClassNotFoundException e) {
+            // not a class: it must be a stylesheet
+        } catch (NoSuchMethodException e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError("ChainedCrosswalk: " + step + " has no no-arg constructor");
+        } catch (InvocationTargetException e) {
+            LOGGER.error("An Exception occured", e.getTargetException());
+            throw new OAIInternalServerError(String.valueOf(e.getTargetException().getMessage()));
+        } catch (InstantiationException e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError(e.getMessage());
+        } catch (IllegalAccessException e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError(e.getMessage());
+        }
+
+        try {
+            InputStream is;
+            try {
+                is = new FileInputStream(step);
+            } catch (FileNotFoundException e) {
+                is = Thread.currentThread().getContextClassLoader().getResourceAsStream(step);
+                if (is == null) {
+                    throw e;
+                }
+            }
+            try {
+                return saxFactory.newTemplates(new StreamSource(is, step));
+            } finally {
+                is.close();
+            }
+        } catch (Exception e) {
+            LOGGER.error("An Exception occured", e);
+            throw new OAIInternalServerError(e.getMessage());
+        }
+    }
+
+    /**
+     * Can this nativeItem be represented in this format?
+     *
+     * @param nativeItem a record in native format
+     * @return true if this format is possible, false otherwise.
+     */
+    public boolean isAvailableFor(Object nativeItem) {
+        return true;
+    }
+
+    /**
+     * Perform the actual crosswalk by pushing the native record through the pipeline.
+     *
+     * @param nativeItem the native "item": a record Map containing "recordBytes" or
+     * "recordString", an XML String or a DOM Document.
+     * @return a String containing the XML to be stored within the <metadata> element.
+     * @throws CannotDisseminateFormatException nativeItem doesn't support this format.
+     */
+    public String createMetadata(Object nativeItem) throws CannotDisseminateFormatException {
+        try {
+            XMLReader parent = parserFactory.newSAXParser().getXMLReader();
+            for (Object step : steps) {
+                XMLFilter filter;
+                if (step instanceof Templates) {
+                    filter = saxFactory.newXMLFilter((Templates) step);
+                } else {
+                    filter = (XMLFilter) ((Constructor) step).newInstance();
+                }
+                filter.setParent(parent);
+                parent = filter;
+            }
+
+            Transformer serializer = saxFactory.newTransformer();
+            serializer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            serializer.setOutputProperty(OutputKeys.STANDALONE, "no");
+            StringWriter stringWriter = new StringWriter();
+            serializer.transform(new SAXSource(parent, getInputSource(nativeItem)), new StreamResult(stringWriter));
+
+            LOGGER.debug("ChainedCrosswalk.createMetadata: return=" + stringWriter.toString());
+            return stringWriter.toString();
+        } catch (Exception e) {
+            LOGGER.error("An Exception occured", e);
+            throw new CannotDisseminateFormatException(e.getMessage());
+        }
+    }
+
+    /**
+     * Wrap the native record as a SAX InputSource. Record bytes are handed to
+     * the parser as-is so it can honor the encoding declared in the record.
+     *
+     * @param nativeItem the native "item"
+     * @return an InputSource over the native record
+     * @throws Exception the nativeItem isn't recognized
+     */
+    private static InputSource getInputSource(Object nativeItem) throws Exception {
+        if (nativeItem instanceof HashMap) {
+            Map<String, Object> recordMap = (HashMap) nativeItem;
+            String xmlRec = (String) recordMap.get("recordString");
+            if (xmlRec == null) {
+                return new InputSource(new ByteArrayInputStream((byte[]) recordMap.get("recordBytes")));
+            }
+            return new InputSource(new StringReader(xmlRec.trim()));
+        } else if (nativeItem instanceof String) {
+            return new InputSource(new StringReader(((String) nativeItem).trim()));
+        } else if (nativeItem instanceof Document) {
+            return new InputSource(new StringReader(OAIUtil.toString((Document) nativeItem)));
+        }
+        throw new Exception("Unrecognized nativeItem");
+    }
+}
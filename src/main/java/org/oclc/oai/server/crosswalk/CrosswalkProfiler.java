@@ -0,0 +1,378 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.crosswalk;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.oclc.oai.server.catalog.AbstractCatalog;
+import org.oclc.oai.server.metrics.Phase;
+import org.oclc.oai.server.metrics.PhaseListener;
+import org.oclc.oai.server.metrics.PhaseSpan;
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+import org.oclc.oai.server.verb.NoItemsMatchException;
+
+/**
+ * CrosswalkProfiler runs every crosswalk of a repository over a sample of
+ * its records and reports, for each metadataPrefix, the throughput, the
+ * p50/p99/max latency and the allocation per record, and the slowest
+ * identifiers, to find the stylesheet or the record that slows harvests
+ * down.
+ * <pre>
+ * java -cp oaicat.jar:[libraries and catalog classes] org.oclc.oai.server.crosswalk.CrosswalkProfiler
+ *      [-records 1000] [-scan 10000] [-warmup 1] [-slowest 10] [-prefix oai_dc,marc21] oaicat.properties
+ * </pre>
+ * The catalog configured in the properties file is opened as OAIHandler
+ * would (without a ServletContext and without the rendered record cache),
+ * the first -scan identifiers of ListIdentifiers are read and -records of
+ * them are sampled at random. Each record is then rendered in each
+ * metadataPrefix with GetRecord, and only the time spent in the crosswalk
+ * (the CROSSWALK phase of the PhaseListener) is counted, not the catalog
+ * reading the record. The sample is rendered -warmup times first, so that
+ * the JIT and the stylesheet compilation don't count. Records the catalog
+ * renders without calling a crosswalk (deleted records, catalogs with a
+ * quickCreate) are counted as skipped. Allocation is measured when the JVM
+ * supports it.
+ */
+public class CrosswalkProfiler {
+
+    private int records = 1000;
+    private int scan = 10000;
+    private int warmup = 1;
+    private int slowest = 10;
+    private List<String> prefixes = null;
+
+    /** One rendering of a record. */
+    private static class Sample {
+        private final String identifier;
+        private long nanos = -1;
+        private long allocated = -1;
+        private long bytes = -1;
+
+        private Sample(String identifier) {
+            this.identifier = identifier;
+        }
+    }
+
+    /**
+     * Times the outermost CROSSWALK phase of the current rendering. A
+     * ChainedCrosswalk enters the phase again for each of its crosswalks.
+     */
+    private static class CrosswalkTimer implements PhaseListener {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final boolean allocation;
+        private Sample sample;
+        private int depth = 0;
+        private long start;
+        private long startAllocated;
+
+        private CrosswalkTimer() {
+            boolean supported = false;
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+                supported = sunThreads.isThreadAllocatedMemorySupported();
+                if (supported) {
+                    sunThreads.setThreadAllocatedMemoryEnabled(true);
+                }
+            }
+            allocation = supported;
+        }
+
+        private long allocated() {
+            if (!allocation) {
+                return -1;
+            }
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        public Object verbStarted(String verb) {
+            return null;
+        }
+
+        public void verbEnded(Object event, String metadataPrefix, int count, long bytes) {
+        }
+
+        public Object phaseStarted(Phase phase, String operation) {
+            if (phase != Phase.CROSSWALK || sample == null) {
+                return null;
+            }
+            if (depth++ == 0) {
+                startAllocated = allocated();
+                start = System.nanoTime();
+            }
+            return phase;
+        }
+
+        public void phaseEnded(Object event, String metadataPrefix, int count, long bytes) {
+            if (--depth == 0) {
+                long nanos = System.nanoTime() - start;
+                long end = allocated();
+                sample.nanos = nanos;
+                sample.allocated = allocation ? end - startAllocated : -1;
+                sample.bytes = bytes;
+            }
+        }
+    }
+
+    /** The samples of one metadataPrefix. */
+    private static class Result {
+        private final String metadataPrefix;
+        private final String crosswalk;
+        private final List<Sample> samples = new ArrayList<Sample>();
+        private int skipped = 0;
+        private int unavailable = 0;
+        private final List<String> errors = new ArrayList<String>();
+
+        private Result(String metadataPrefix, String crosswalk) {
+            this.metadataPrefix = metadataPrefix;
+            this.crosswalk = crosswalk;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        CrosswalkProfiler profiler = new CrosswalkProfiler();
+        String fileName = null;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                if ("-records".equals(args[i])) {
+                    profiler.records = Integer.parseInt(args[++i]);
+                } else if ("-scan".equals(args[i])) {
+                    profiler.scan = Integer.parseInt(args[++i]);
+                } else if ("-warmup".equals(args[i])) {
+                    profiler.warmup = Integer.parseInt(args[++i]);
+                } else if ("-slowest".equals(args[i])) {
+                    profiler.slowest = Integer.parseInt(args[++i]);
+                } else if ("-prefix".equals(args[i])) {
+                    profiler.prefixes = new ArrayList<String>();
+                    Collections.addAll(profiler.prefixes, args[++i].split(","));
+                } else if (fileName == null && !args[i].startsWith("-")) {
+                    fileName = args[i];
+                } else {
+                    fileName = null;
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            fileName = null;
+        }
+        if (fileName == null) {
+            System.err.println("usage: CrosswalkProfiler [-records n] [-scan n] [-warmup n] [-slowest n]"
+                    + " [-prefix metadataPrefix,...] oaicat.properties");
+            System.exit(1);
+        }
+
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(fileName);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        // render every record: the cache would measure itself instead of the crosswalks
+        properties.remove("RecordFactory.cacheMaxBytes");
+        properties.remove("RecordFactory.diskCacheDir");
+
+        AbstractCatalog catalog = AbstractCatalog.factory(properties, null);
+        try {
+            List<String> identifiers = profiler.sample(catalog);
+            System.out.println("Profiling " + identifiers.size() + " records");
+            List<Result> results = profiler.profile(catalog, identifiers);
+            profiler.print(results, System.out);
+        } finally {
+            catalog.close();
+        }
+    }
+
+    /**
+     * Draw the sample: -records identifiers chosen at random among the first
+     * -scan returned by ListIdentifiers.
+     */
+    private List<String> sample(AbstractCatalog catalog) throws Exception {
+        String metadataPrefix = prefixes != null ? prefixes.get(0)
+                : catalog.getCrosswalks().iterator().next().getKey();
+        String from = catalog.toFinestFrom("0001-01-01");
+        String until = catalog.toFinestUntil("9999-12-31");
+        List<String> identifiers = new ArrayList<String>();
+        Random random = new Random(0);
+        int seen = 0;
+        Map<String, Object> listIdentifiersMap;
+        try {
+            listIdentifiersMap = catalog.listIdentifiers(from, until, null, metadataPrefix);
+        } catch (NoItemsMatchException e) {
+            return identifiers;
+        }
+        while (seen < scan) {
+            Iterator headers = (Iterator) listIdentifiersMap.get("headers");
+            Iterator identifierIterator = (Iterator) listIdentifiersMap.get("identifiers");
+            while (seen < scan && identifierIterator.hasNext()) {
+                String header = (String) headers.next();
+                String identifier = (String) identifierIterator.next();
+                if (header.indexOf("status=\"deleted\"") >= 0) {
+                    continue;
+                }
+                // reservoir sampling
+                if (identifiers.size() < records) {
+                    identifiers.add(identifier);
+                } else {
+                    int i = random.nextInt(seen + 1);
+                    if (i < records) {
+                        identifiers.set(i, identifier);
+                    }
+                }
+                ++seen;
+            }
+            String resumptionToken = getResumptionToken(listIdentifiersMap);
+            if (resumptionToken == null) {
+                break;
+            }
+            listIdentifiersMap = catalog.listIdentifiers(resumptionToken);
+        }
+        return identifiers;
+    }
+
+    private static String getResumptionToken(Map<String, Object> listMap) {
+        Map resumptionMap = (Map) listMap.get("resumptionMap");
+        if (resumptionMap != null) {
+            return (String) resumptionMap.get("resumptionToken");
+        }
+        return (String) listMap.get("resumptionToken");
+    }
+
+    private List<Result> profile(AbstractCatalog catalog, List<String> identifiers) {
+        List<Result> results = new ArrayList<Result>();
+        CrosswalkTimer timer = new CrosswalkTimer();
+        PhaseSpan.setListener(timer);
+        try {
+            Iterator<Map.Entry<String, CrosswalkItem>> iterator = catalog.getCrosswalks().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, CrosswalkItem> entry = iterator.next();
+                if (prefixes != null && !prefixes.contains(entry.getKey())) {
+                    continue;
+                }
+                Result result = new Result(entry.getKey(), entry.getValue().getCrosswalk().getClass().getName());
+                for (int pass = 0; pass < warmup; ++pass) {
+                    for (String identifier : identifiers) {
+                        render(catalog, timer, identifier, entry.getKey(), null);
+                    }
+                }
+                for (String identifier : identifiers) {
+                    render(catalog, timer, identifier, entry.getKey(), result);
+                }
+                results.add(result);
+            }
+        } finally {
+            PhaseSpan.setListener(null);
+        }
+        return results;
+    }
+
+    /**
+     * Render a record, adding its sample to the result, or just warming up if result is null.
+     */
+    private static void render(AbstractCatalog catalog, CrosswalkTimer timer, String identifier, String metadataPrefix,
+                               Result result) {
+        Sample sample = new Sample(identifier);
+        timer.sample = sample;
+        timer.depth = 0;
+        try {
+            catalog.getRecord(identifier, metadataPrefix);
+            if (result == null) {
+                return;
+            }
+            if (sample.nanos < 0) {
+                ++result.skipped;
+            } else {
+                result.samples.add(sample);
+            }
+        } catch (CannotDisseminateFormatException e) {
+            if (result != null) {
+                ++result.unavailable;
+            }
+        } catch (Exception e) {
+            if (result != null) {
+                result.errors.add(identifier + ": " + e);
+            }
+        } finally {
+            timer.sample = null;
+        }
+    }
+
+    private void print(List<Result> results, PrintStream out) {
+        out.println();
+        out.printf("%-16s %8s %10s %9s %9s %9s %12s %10s %8s%n", "metadataPrefix", "records", "records/s",
+                "p50 ms", "p99 ms", "max ms", "alloc/record", "chars/rec", "skipped");
+        for (Result result : results) {
+            List<Sample> samples = result.samples;
+            long[] nanos = new long[samples.size()];
+            long totalNanos = 0;
+            long allocated = 0;
+            long bytes = 0;
+            for (int i = 0; i < nanos.length; ++i) {
+                Sample sample = samples.get(i);
+                nanos[i] = sample.nanos;
+                totalNanos += sample.nanos;
+                allocated += sample.allocated;
+                bytes += sample.bytes;
+            }
+            Arrays.sort(nanos);
+            int n = Math.max(1, nanos.length);
+            out.printf("%-16s %8d %10.1f %9.3f %9.3f %9.3f %12s %10d %8d%n", result.metadataPrefix, nanos.length,
+                    totalNanos == 0 ? 0 : nanos.length * 1e9 / totalNanos,
+                    percentile(nanos, 50) / 1e6, percentile(nanos, 99) / 1e6,
+                    (nanos.length == 0 ? 0 : nanos[nanos.length - 1]) / 1e6,
+                    nanos.length > 0 && samples.get(0).allocated >= 0 ? Long.toString(allocated / n) : "n/a",
+                    bytes / n, result.skipped + result.unavailable);
+        }
+        for (Result result : results) {
+            out.println();
+            out.println(result.metadataPrefix + " (" + result.crosswalk + ")");
+            List<Sample> sorted = new ArrayList<Sample>(result.samples);
+            Collections.sort(sorted, new Comparator<Sample>() {
+                public int compare(Sample a, Sample b) {
+                    return a.nanos < b.nanos ? 1 : a.nanos > b.nanos ? -1 : 0;
+                }
+            });
+            for (int i = 0; i < slowest && i < sorted.size(); ++i) {
+                Sample sample = sorted.get(i);
+                out.printf("  %9.3f ms %10d chars  %s%n", sample.nanos / 1e6, sample.bytes, sample.identifier);
+            }
+            if (result.unavailable > 0) {
+                out.println("  not available for " + result.unavailable + " records");
+            }
+            if (result.skipped > 0) {
+                out.println("  rendered without the crosswalk for " + result.skipped + " records");
+            }
+            for (String error : result.errors) {
+                out.println("  error " + error);
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.crosswalk;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.oclc.oai.server.verb.CannotDisseminateFormatException;
+import org.oclc.oai.server.verb.OAIInternalServerError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copy one namespace subtree out of the native record. This is the streaming
+ * equivalent of the Copy* crosswalks (Copymets, Copyxsd, Copyoai_dc, ...) and
+ * of XML2oai_dc: the element is located by namespace URI and local name
+ * rather than by its prefix, and its events are copied straight to the output
+ * writer without running a stylesheet or building a DOM.
+ * <p/>
+ * The crosswalk is configured per metadataPrefix:
+ * <pre>
+ * Crosswalks.mets=org.oclc.oai.server.crosswalk.NamespaceExtractCrosswalk
+ * NamespaceExtractCrosswalk.mets.schemaLocation=http://www.loc.gov/METS/ http://www.loc.gov/standards/mets/mets.xsd
+ * NamespaceExtractCrosswalk.mets.localName=mets
+ * </pre>
+ * NamespaceExtractCrosswalk.[prefix].namespaceURI defaults to the namespace
+ * portion of the schemaLocation.
+ */
+public class NamespaceExtractCrosswalk extends Crosswalk {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(NamespaceExtractCrosswalk.class);
+
+    private static XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private static XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+    }
+
+    private String namespaceURI;
+    private String localName;
+
+    /**
+     * Construct the crosswalk for the specified metadataPrefix.
+     *
+     * @param schemaLabel the metadataPrefix this crosswalk is registered under.
+     * @param properties properties that are needed to configure the crosswalk.
+     * @throws OAIInternalServerError the configuration is incomplete.
+     */
+    public NamespaceExtractCrosswalk(String schemaLabel, Properties properties) throws OAIInternalServerError {
+        super(properties.getProperty("NamespaceExtractCrosswalk." + schemaLabel + ".schemaLocation"),
+                properties.getProperty("NamespaceExtractCrosswalk." + schemaLabel + ".contentType"),
+                properties.getProperty("NamespaceExtractCrosswalk." + schemaLabel + ".docType"));
+
+        String propertyPrefix = "NamespaceExtractCrosswalk." + schemaLabel;
+        if (getSchemaLocation() == null) {
+            throw new OAIInternalServerError(propertyPrefix + ".schemaLocation is missing from the properties file");
+        }
+        localName = properties.getProperty(propertyPrefix + ".localName");
+        if (localName == null) {
+            throw new OAIInternalServerError(propertyPrefix + ".localName is missing from the properties file");
+        }
+        namespaceURI = properties.getProperty(propertyPrefix + ".namespaceURI", getNamespaceURL());
+        LOGGER.debug(propertyPrefix + ": {" + namespaceURI + "}" + localName);
+    }
+
+    /**
+     * Does the native record contain the element?
+     *
+     * @param nativeItem a record in native format
+     * @return true if the element is present, false otherwise.
+     */
+    public boolean isAvailableFor(Object nativeItem) {
+        try {
+            XMLStreamReader reader = createReader(nativeItem);
+            try {
+                return skipToElement(reader, null) != null;
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            LOGGER.debug("NamespaceExtractCrosswalk.isAvailableFor: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Perform the actual crosswalk.
+     *
+     * @param nativeItem the native "item": a record Map containing "recordBytes" or
+     * "recordString", a byte[] or an XML String.
+     * @return a String containing the XML to be stored within the <metadata> element.
+     * @throws CannotDisseminateFormatException nativeItem doesn't contain the element.
+     */
+    public String createMetadata(Object nativeItem) throws CannotDisseminateFormatException {
+        try {
+            XMLStreamReader reader = createReader(nativeItem);
+            try {
+                List<String[]> namespaces = new ArrayList<String[]>();
+                if (skipToElement(reader, namespaces) == null) {
+                    throw new CannotDisseminateFormatException(getSchemaLocation());
+                }
+                StringWriter stringWriter = new StringWriter();
+                XMLStreamWriter writer = outputFactory.createXMLStreamWriter(stringWriter);
+                copySubtree(reader, writer, namespaces);
+                writer.close();
+                return stringWriter.toString();
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            LOGGER.error("An Exception occured", e);
+            throw new CannotDisseminateFormatException(e.getMessage());
+        }
+    }
+
+    private static XMLStreamReader createReader(Object nativeItem) throws XMLStreamException, CannotDisseminateFormatException {
+        if (nativeItem instanceof HashMap) {
+            Map<String, Object> recordMap = (HashMap) nativeItem;
+            String xmlRec = (String) recordMap.get("recordString");
+            if (xmlRec == null) {
+                return inputFactory.createXMLStreamReader(new ByteArrayInputStream((byte[]) recordMap.get("recordBytes")));
+            }
+            return inputFactory.createXMLStreamReader(new StringReader(xmlRec.trim()));
+        } else if (nativeItem instanceof byte[]) {
+            return inputFactory.createXMLStreamReader(new ByteArrayInputStream((byte[]) nativeItem));
+        } else if (nativeItem instanceof String) {
+            return inputFactory.createXMLStreamReader(new StringReader(((String) nativeItem).trim()));
+        }
+        throw new CannotDisseminateFormatException("Unrecognized nativeItem");
+    }
+
+    /**
+     * Advance the reader to the start of the requested element.
+     *
+     * @param reader the record reader
+     * @param namespaces if not null, receives the namespace declarations in scope
+     * at the element, outermost first; a null entry marks the start of each ancestor.
+     * @return the reader positioned on the element, or null if it isn't present
+     * @throws XMLStreamException the record isn't well-formed
+     */
+    private XMLStreamReader skipToElement(XMLStreamReader reader, List<String[]> namespaces) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (localName.equals(reader.getLocalName()) && namespaceURI.equals(reader.getNamespaceURI())) {
+                    return reader;
+                }
+                if (namespaces != null) {
+                    namespaces.add(null);
+                    for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+                        namespaces.add(new String[]{reader.getNamespacePrefix(i), reader.getNamespaceURI(i)});
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && namespaces != null) {
+                int marker = namespaces.lastIndexOf(null);
+                while (namespaces.size() > marker) {
+                    namespaces.remove(namespaces.size() - 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy the element the reader is positioned on, and everything inside it,
+     * to the writer. The namespace declarations inherited from the ancestors are
+     * redeclared on the copied root so the fragment stands on its own.
+     */
+    private static void copySubtree(XMLStreamReader reader, XMLStreamWriter writer, List<String[]> inherited) throws XMLStreamException {
+        Map<String, String> rootNamespaces = new LinkedHashMap<String, String>();
+        for (String[] binding : inherited) {
+            if (binding != null) {
+                rootNamespaces.put(binding[0] == null ? "" : binding[0], binding[1]);
+            }
+        }
+        int depth = 0;
+        while (true) {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String prefix = reader.getPrefix();
+                    if (prefix == null || prefix.length() == 0) {
+                        writer.writeStartElement("", reader.getLocalName(), nonNull(reader.getNamespaceURI()));
+                    } else {
+                        writer.writeStartElement(prefix, reader.getLocalName(), reader.getNamespaceURI());
+                    }
+                    if (depth == 0) {
+                        for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+                            String nsPrefix = reader.getNamespacePrefix(i);
+                            rootNamespaces.put(nsPrefix == null ? "" : nsPrefix, nonNull(reader.getNamespaceURI(i)));
+                        }
+                        for (Map.Entry<String, String> entry : rootNamespaces.entrySet()) {
+                            writeNamespace(writer, entry.getKey(), entry.getValue());
+                        }
+                    } else {
+                        for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+                            writeNamespace(writer, reader.getNamespacePrefix(i), nonNull(reader.getNamespaceURI(i)));
+                        }
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); ++i) {
+                        String attrPrefix = reader.getAttributePrefix(i);
+                        if (attrPrefix == null || attrPrefix.length() == 0) {
+                            writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        } else {
+                            writer.writeAttribute(attrPrefix, reader.getAttributeNamespace(i), reader.getAttributeLocalName(i),
+                                    reader.getAttributeValue(i));
+                        }
+                    }
+                    ++depth;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    --depth;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    writer.writeEntityRef(reader.getLocalName());
+                    break;
+                default:
+                    break;
+            }
+            if (depth == 0 || !reader.hasNext()) {
+                break;
+            }
+            reader.next();
+        }
+        writer.flush();
+    }
+
+    private static void writeNamespace(XMLStreamWriter writer, String prefix, String uri) throws XMLStreamException {
+        if (prefix == null || prefix.length() == 0) {
+            writer.writeDefaultNamespace(uri);
+        } else {
+            writer.writeNamespace(prefix, uri);
+        }
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+}
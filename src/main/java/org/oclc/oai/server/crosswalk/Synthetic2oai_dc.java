@@ -0,0 +1,75 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.crosswalk;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.oclc.oai.util.OAIUtil;
+
+/**
+ * Convert the native "item" of SyntheticOAICatalog, a HashMap of generated
+ * field values, to oai_dc.
+ */
+public class Synthetic2oai_dc extends Crosswalk {
+
+    private static final String[][] ELEMENTS = {
+            {"title", "dc:title"},
+            {"creator", "dc:creator"},
+            {"subject", "dc:subject"},
+            {"description", "dc:description"},
+            {"date", "dc:date"}
+    };
+
+    /**
+     * The constructor assigns the schemaLocation associated with this crosswalk.
+     *
+     * @param properties properties that are needed to configure the crosswalk.
+     */
+    public Synthetic2oai_dc(Properties properties) {
+        super("http://www.openarchives.org/OAI/2.0/oai_dc/ http://www.openarchives.org/OAI/2.0/oai_dc.xsd");
+    }
+
+    /**
+     * Can this nativeItem be represented in DC format?
+     *
+     * @param nativeItem a record in native format
+     * @return true if DC format is possible, false otherwise.
+     */
+    public boolean isAvailableFor(Object nativeItem) {
+        return true; // all records must support oai_dc according to the OAI spec.
+    }
+
+    /**
+     * Perform the actual crosswalk.
+     *
+     * @param nativeItem the native "item"
+     * @return a String containing the XML to be stored within the <metadata> element.
+     */
+    public String createMetadata(Object nativeItem) {
+        Map table = (Map) nativeItem;
+        StringBuilder sb = new StringBuilder();
+        sb.append("<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"")
+                .append(getSchemaLocation())
+                .append("\">\n");
+        for (String[] element : ELEMENTS) {
+            Object value = table.get(element[0]);
+            if (value != null) {
+                sb.append('<').append(element[1]).append('>');
+                sb.append(OAIUtil.xmlEncode(value.toString()));
+                sb.append("</").append(element[1]).append(">\n");
+            }
+        }
+        sb.append("<dc:identifier>").append(OAIUtil.xmlEncode((String) table.get("localIdentifier"))).append("</dc:identifier>\n");
+        sb.append("</oai_dc:dc>\n");
+        return sb.toString();
+    }
+}
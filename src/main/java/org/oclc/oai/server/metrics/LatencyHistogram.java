@@ -0,0 +1,106 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with fixed, roughly logarithmic buckets, cheap enough
+ * to update on every request without locking.
+ */
+public class LatencyHistogram {
+
+    /** Upper bounds of the buckets, in milliseconds. The last bucket is unbounded. */
+    private static final long[] BOUNDS = {
+            1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong sumMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    /**
+     * Count a request.
+     *
+     * @param millis the request latency
+     */
+    public void record(long millis) {
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            ++i;
+        }
+        counts.incrementAndGet(i);
+        sumMillis.addAndGet(millis);
+        long max = maxMillis.get();
+        while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+            max = maxMillis.get();
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSumMillis() {
+        return sumMillis.get();
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    /**
+     * Estimate a percentile from the buckets.
+     *
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, in milliseconds
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return maxMillis.get();
+    }
+
+    /**
+     * Append the histogram as cumulative buckets in the plain text exposition format.
+     *
+     * @param sb the destination
+     * @param name the metric name
+     * @param labels the labels, e.g. verb="ListRecords"
+     */
+    public void appendText(StringBuilder sb, String name, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS.length; ++i) {
+            cumulative += counts.get(i);
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(BOUNDS[i] / 1000.0).append("\"} ")
+                    .append(cumulative).append("\n");
+        }
+        cumulative += counts.get(BOUNDS.length);
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append("\n");
+        sb.append(name).append("_sum{").append(labels).append("} ").append(sumMillis.get() / 1000.0).append("\n");
+        sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append("\n");
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.oclc.oai.server.catalog.AbstractCatalog;
+import org.oclc.oai.server.catalog.DiskRecordCache;
+import org.oclc.oai.server.catalog.PageBudget;
+import org.oclc.oai.server.catalog.RenderedRecordCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OAIMetrics counts the requests of a repository by verb and metadataPrefix:
+ * HTTP status, response bytes, latency histogram and the time spent in each
+ * Phase (catalog, crosswalk, serialization, compression). It also reports
+ * the rendered record cache hit ratios, the open resumptionTokens and the
+ * ListRecords page-size decisions of the catalog.
+ * <p/>
+ * The metrics are published as MBeans under the domain
+ * OAIMetrics.jmxDomain (org.oclc.oai by default), and as plain text by the
+ * Metrics extension verb. A resumed request is counted under the
+ * metadataPrefix of its request, i.e. "-", since the prefix is hidden in the
+ * resumptionToken.
+ */
+public class OAIMetrics implements OAIMetricsMBean {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(OAIMetrics.class);
+
+    private static final String NO_PREFIX = "-";
+
+    private final AbstractCatalog catalog;
+    private final String jmxDomain;
+    private final String name;
+    private final ConcurrentMap<String, RequestStats> stats = new ConcurrentHashMap<String, RequestStats>();
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * Construct the metrics of a repository.
+     *
+     * @param properties the repository properties
+     * @param catalog the catalog whose caches and resumptionTokens are reported (may be null)
+     */
+    public OAIMetrics(Properties properties, AbstractCatalog catalog) {
+        this.catalog = catalog;
+        this.jmxDomain = properties.getProperty("OAIMetrics.jmxDomain", "org.oclc.oai");
+        this.name = properties.getProperty("OAIMetrics.name", "oaicat");
+    }
+
+    /**
+     * Create the metrics described by the properties, and register them with
+     * the platform MBeanServer.
+     *
+     * @param properties the repository properties
+     * @param catalog the catalog
+     * @return new metrics, or null if OAIMetrics.enabled isn't true
+     */
+    public static OAIMetrics factory(Properties properties, AbstractCatalog catalog) {
+        if (!"true".equals(properties.getProperty("OAIMetrics.enabled"))) {
+            return null;
+        }
+        OAIMetrics metrics = new OAIMetrics(properties, catalog);
+        metrics.register(metrics, "type=OAIMetrics,name=" + ObjectName.quote(metrics.name));
+        return metrics;
+    }
+
+    private void register(Object mbean, String keys) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(jmxDomain + ":" + keys);
+            if (server.isRegistered(objectName)) {
+                LOGGER.warn("OAIMetrics: " + objectName + " is already registered. Set OAIMetrics.name to a unique value.");
+                return;
+            }
+            server.registerMBean(mbean, objectName);
+            synchronized (registered) {
+                registered.add(objectName);
+            }
+        } catch (Exception e) {
+            LOGGER.error("An Exception occured", e);
+        }
+    }
+
+    /**
+     * Unregister the MBeans. Called when the servlet is destroyed.
+     */
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registered) {
+            for (ObjectName objectName : registered) {
+                try {
+                    server.unregisterMBean(objectName);
+                } catch (Exception e) {
+                    LOGGER.debug("OAIMetrics.unregister: " + e.getMessage());
+                }
+            }
+            registered.clear();
+        }
+    }
+
+    /**
+     * Count a request.
+     *
+     * @param verb the verb parameter (may be null)
+     * @param metadataPrefix the metadataPrefix parameter (may be null)
+     * @param status the HTTP status of the response
+     * @param bytes the uncompressed size of the response (-1 if unknown)
+     * @param millis the request latency
+     * @param nanos the time spent in each Phase, as returned by PhaseTimer.end()
+     */
+    public void record(String verb, String metadataPrefix, int status, long bytes, long millis, long[] nanos) {
+        getStats(verb, metadataPrefix).record(status, bytes, millis, nanos);
+    }
+
+    private RequestStats getStats(String verb, String metadataPrefix) {
+        // don't let garbage parameters create unbounded numbers of MBeans; extension verbs count as "other"
+        if (verb == null || !isKnownVerb(verb)) {
+            verb = "other";
+        }
+        if (metadataPrefix == null || catalog == null || !catalog.getCrosswalks().containsValue(metadataPrefix)) {
+            metadataPrefix = NO_PREFIX;
+        }
+        String key = verb + " " + metadataPrefix;
+        RequestStats requestStats = stats.get(key);
+        if (requestStats == null) {
+            RequestStats newStats = new RequestStats(verb, metadataPrefix);
+            requestStats = stats.putIfAbsent(key, newStats);
+            if (requestStats == null) {
+                requestStats = newStats;
+                register(newStats, "type=RequestStats,name=" + ObjectName.quote(name) + ",verb=" + ObjectName.quote(verb)
+                        + ",metadataPrefix=" + ObjectName.quote(metadataPrefix));
+            }
+        }
+        return requestStats;
+    }
+
+    private static boolean isKnownVerb(String verb) {
+        return "GetRecord".equals(verb) || "Identify".equals(verb) || "ListIdentifiers".equals(verb)
+                || "ListMetadataFormats".equals(verb) || "ListRecords".equals(verb) || "ListSets".equals(verb);
+    }
+
+    public long getRequestCount() {
+        long count = 0;
+        for (RequestStats requestStats : stats.values()) {
+            count += requestStats.getRequestCount();
+        }
+        return count;
+    }
+
+    public long getErrorCount() {
+        long count = 0;
+        for (RequestStats requestStats : stats.values()) {
+            count += requestStats.getErrorCount();
+        }
+        return count;
+    }
+
+    public long getResponseBytes() {
+        long bytes = 0;
+        for (RequestStats requestStats : stats.values()) {
+            bytes += requestStats.getResponseBytes();
+        }
+        return bytes;
+    }
+
+    private RenderedRecordCache getRecordCache() {
+        if (catalog == null || catalog.getRecordFactory() == null) {
+            return null;
+        }
+        return catalog.getRecordFactory().getRecordCache();
+    }
+
+    public double getCacheHitRatio() {
+        RenderedRecordCache cache = getRecordCache();
+        if (cache == null) {
+            return 0;
+        }
+        long hits = cache.getHitCount() + cache.getDiskHitCount();
+        long total = hits + cache.getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public double getDiskCacheHitRatio() {
+        RenderedRecordCache cache = getRecordCache();
+        DiskRecordCache diskCache = cache == null ? null : cache.getDiskCache();
+        if (diskCache == null) {
+            return 0;
+        }
+        long total = diskCache.getHitCount() + diskCache.getMissCount();
+        return total == 0 ? 0 : (double) diskCache.getHitCount() / total;
+    }
+
+    public int getOpenResumptionTokenCount() {
+        return catalog == null ? -1 : catalog.getOpenResumptionTokenCount();
+    }
+
+    public String getPageStats() {
+        return catalog == null ? null : catalog.getPageStats().toString();
+    }
+
+    /**
+     * Get the statistics of each verb and metadataPrefix.
+     *
+     * @return the statistics sorted by verb and metadataPrefix
+     */
+    public Map<String, RequestStats> getRequestStats() {
+        return new TreeMap<String, RequestStats>(stats);
+    }
+
+    public String getText() {
+        StringBuilder sb = new StringBuilder();
+        for (RequestStats requestStats : getRequestStats().values()) {
+            requestStats.appendText(sb);
+        }
+        RenderedRecordCache cache = getRecordCache();
+        if (cache != null) {
+            sb.append("oai_record_cache_hits_total ").append(cache.getHitCount()).append("\n");
+            sb.append("oai_record_cache_disk_hits_total ").append(cache.getDiskHitCount()).append("\n");
+            sb.append("oai_record_cache_misses_total ").append(cache.getMissCount()).append("\n");
+            sb.append("oai_record_cache_evictions_total ").append(cache.getEvictionCount()).append("\n");
+            sb.append("oai_record_cache_bytes ").append(cache.getBytes()).append("\n");
+            sb.append("oai_record_cache_hit_ratio ").append(getCacheHitRatio()).append("\n");
+        }
+        if (catalog != null) {
+            int openTokens = catalog.getOpenResumptionTokenCount();
+            if (openTokens >= 0) {
+                sb.append("oai_open_resumption_tokens ").append(openTokens).append("\n");
+            }
+            PageBudget.Stats pageStats = catalog.getPageStats();
+            sb.append("oai_pages_total{ended_by=\"count\"} ").append(pageStats.getEndedByCountCount()).append("\n");
+            sb.append("oai_pages_total{ended_by=\"bytes\"} ").append(pageStats.getEndedByBytesCount()).append("\n");
+            sb.append("oai_pages_total{ended_by=\"time\"} ").append(pageStats.getEndedByTimeCount()).append("\n");
+            sb.append("oai_pages_total{ended_by=\"end\"} ").append(pageStats.getLastPageCount()).append("\n");
+            sb.append("oai_page_records_total ").append(pageStats.getRecordCount()).append("\n");
+            sb.append("oai_page_bytes_total ").append(pageStats.getByteCount()).append("\n");
+            sb.append("oai_page_bytes_max ").append(pageStats.getMaxPageBytes()).append("\n");
+        }
+        Runtime rt = Runtime.getRuntime();
+        sb.append("jvm_memory_used_bytes ").append(rt.totalMemory() - rt.freeMemory()).append("\n");
+        sb.append("jvm_memory_max_bytes ").append(rt.maxMemory()).append("\n");
+        return sb.toString();
+    }
+}
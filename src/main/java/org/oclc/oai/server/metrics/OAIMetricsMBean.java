@@ -0,0 +1,36 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics;
+
+/**
+ * JMX view of an OAI repository's metrics.
+ */
+public interface OAIMetricsMBean {
+
+    long getRequestCount();
+
+    long getErrorCount();
+
+    long getResponseBytes();
+
+    double getCacheHitRatio();
+
+    double getDiskCacheHitRatio();
+
+    int getOpenResumptionTokenCount();
+
+    String getPageStats();
+
+    /**
+     * @return all the metrics in the plain text exposition format
+     */
+    String getText();
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics;
+
+/**
+ * The parts of a request whose time is measured separately by the PhaseTimer.
+ */
+public enum Phase {
+    /** Fetching items from the catalog (database, files, SRU server, ...) */
+    CATALOG,
+    /** Executing SQL statements, inside the catalog */
+    JDBC,
+    /** Converting native items to a metadata format */
+    CROSSWALK,
+    /** Building and writing the response */
+    SERIALIZATION,
+    /** Compressing the response */
+    COMPRESSION
+}
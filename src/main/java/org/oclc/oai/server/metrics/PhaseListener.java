@@ -0,0 +1,57 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics;
+
+/**
+ * A PhaseListener is told when a request runs its verb and when it enters
+ * and leaves each Phase, e.g. to emit profiling events. It is installed
+ * with the OAIHandler.phaseListener property and is called on every
+ * request, so it should do (almost) nothing while it isn't recording.
+ */
+public interface PhaseListener {
+
+    /**
+     * A request starts running a verb.
+     *
+     * @param verb the verb
+     * @return an object passed back to verbEnded, or null if the listener isn't interested
+     */
+    Object verbStarted(String verb);
+
+    /**
+     * The verb has built its response.
+     *
+     * @param event the object returned by verbStarted
+     * @param metadataPrefix the metadataPrefix parameter, or null
+     * @param count the number of records or headers in the response, or -1 if unknown
+     * @param bytes the size of the response, or -1 if unknown
+     */
+    void verbEnded(Object event, String metadataPrefix, int count, long bytes);
+
+    /**
+     * The current thread enters a phase.
+     *
+     * @param phase the phase
+     * @param operation what is being done, e.g. the catalog method, the crosswalk class or the SQL statement
+     * @return an object passed back to phaseEnded, or null if the listener isn't interested
+     */
+    Object phaseStarted(Phase phase, String operation);
+
+    /**
+     * The current thread leaves the phase.
+     *
+     * @param event the object returned by phaseStarted
+     * @param metadataPrefix the metadataPrefix involved, or null
+     * @param count the number of identifiers involved, or -1 if unknown
+     * @param bytes the size of the output, or -1 if unknown
+     */
+    void phaseEnded(Object event, String metadataPrefix, int count, long bytes);
+}
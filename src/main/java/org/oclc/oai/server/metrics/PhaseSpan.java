@@ -0,0 +1,114 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics;
+
+/**
+ * A PhaseSpan times a block of code with the PhaseTimer and reports it to
+ * the PhaseListener, if one is installed:
+ * <pre>
+ * PhaseSpan span = PhaseSpan.start(Phase.CATALOG, "listRecords");
+ * try {
+ *     ...
+ * } finally {
+ *     span.end(metadataPrefix, -1, -1);
+ * }
+ * </pre>
+ * When neither the metrics nor a listener are active, start() returns a
+ * shared span and costs a ThreadLocal lookup.
+ */
+public final class PhaseSpan {
+
+    private static final PhaseSpan NOOP = new PhaseSpan(null, null, null, false);
+
+    private static volatile PhaseListener listener;
+
+    private final Phase previous;
+    private final PhaseListener spanListener;
+    private final Object event;
+    private final boolean verb;
+
+    private PhaseSpan(Phase previous, PhaseListener spanListener, Object event, boolean verb) {
+        this.previous = previous;
+        this.spanListener = spanListener;
+        this.event = event;
+        this.verb = verb;
+    }
+
+    /**
+     * Install the listener called by every span.
+     *
+     * @param phaseListener the listener, or null to remove it
+     */
+    public static void setListener(PhaseListener phaseListener) {
+        listener = phaseListener;
+    }
+
+    public static PhaseListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Enter a phase.
+     *
+     * @param phase the phase
+     * @param operation what is being done
+     * @return the span to end when the phase is left
+     */
+    public static PhaseSpan start(Phase phase, String operation) {
+        Phase previous = PhaseTimer.enter(phase);
+        PhaseListener phaseListener = listener;
+        Object event = phaseListener == null ? null : phaseListener.phaseStarted(phase, operation);
+        if (previous == null && event == null) {
+            return NOOP;
+        }
+        return new PhaseSpan(previous, phaseListener, event, false);
+    }
+
+    /**
+     * Start running a verb. This doesn't change the phase.
+     *
+     * @param verbName the verb
+     * @return the span to end when the response has been built
+     */
+    public static PhaseSpan startVerb(String verbName) {
+        PhaseListener phaseListener = listener;
+        Object event = phaseListener == null ? null : phaseListener.verbStarted(verbName);
+        if (event == null) {
+            return NOOP;
+        }
+        return new PhaseSpan(null, phaseListener, event, true);
+    }
+
+    /**
+     * Leave the phase.
+     */
+    public void end() {
+        end(null, -1, -1);
+    }
+
+    /**
+     * Leave the phase, describing what was done.
+     *
+     * @param metadataPrefix the metadataPrefix involved, or null
+     * @param count the number of identifiers involved, or -1 if unknown
+     * @param bytes the size of the output, or -1 if unknown
+     */
+    public void end(String metadataPrefix, int count, long bytes) {
+        PhaseTimer.exit(previous);
+        if (event != null) {
+            if (verb) {
+                spanListener.verbEnded(event, metadataPrefix, count, bytes);
+            } else {
+                spanListener.phaseEnded(event, metadataPrefix, count, bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics;
+
+/**
+ * PhaseTimer splits the time a request spends in the current thread between
+ * the Phases. Time is charged to the innermost phase only, so the crosswalk
+ * time spent inside a catalog call isn't counted twice:
+ * <pre>
+ * Phase previous = PhaseTimer.enter(Phase.CATALOG);
+ * try {
+ *     ...
+ * } finally {
+ *     PhaseTimer.exit(previous);
+ * }
+ * </pre>
+ * Outside of a timed request (between begin() and end()) enter and exit do nothing.
+ */
+public class PhaseTimer {
+
+    private static final ThreadLocal<PhaseTimer> current = new ThreadLocal<PhaseTimer>();
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] nanos = new long[PHASES.length];
+    private Phase phase = Phase.SERIALIZATION;
+    private long since = System.nanoTime();
+
+    private PhaseTimer() {
+    }
+
+    /**
+     * Start timing a request in the current thread. The time is charged to
+     * SERIALIZATION until another phase is entered.
+     */
+    public static void begin() {
+        current.set(new PhaseTimer());
+    }
+
+    /**
+     * Stop timing the request in the current thread.
+     *
+     * @return the nanoseconds spent in each phase, indexed by Phase.ordinal(), or null if begin() wasn't called
+     */
+    public static long[] end() {
+        PhaseTimer timer = current.get();
+        if (timer == null) {
+            return null;
+        }
+        current.remove();
+        timer.charge();
+        return timer.nanos;
+    }
+
+    /**
+     * Charge the time spent so far to the current phase, and switch to the specified one.
+     *
+     * @param phase the phase being entered
+     * @return the phase to restore with exit(), or null if the request isn't timed
+     */
+    public static Phase enter(Phase phase) {
+        PhaseTimer timer = current.get();
+        if (timer == null) {
+            return null;
+        }
+        Phase previous = timer.phase;
+        timer.charge();
+        timer.phase = phase;
+        return previous;
+    }
+
+    /**
+     * Charge the time spent so far to the current phase, and go back to the previous one.
+     *
+     * @param previous the value returned by the matching enter()
+     */
+    public static void exit(Phase previous) {
+        if (previous == null) {
+            return;
+        }
+        PhaseTimer timer = current.get();
+        if (timer != null) {
+            timer.charge();
+            timer.phase = previous;
+        }
+    }
+
+    private void charge() {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - since;
+        since = now;
+    }
+}
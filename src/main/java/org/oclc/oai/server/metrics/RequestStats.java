@@ -0,0 +1,148 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters of the requests of one verb and metadataPrefix.
+ */
+public class RequestStats implements RequestStatsMBean {
+
+    private final String verb;
+    private final String metadataPrefix;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private final ConcurrentMap<Integer, AtomicLong> statusCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public RequestStats(String verb, String metadataPrefix) {
+        this.verb = verb;
+        this.metadataPrefix = metadataPrefix;
+    }
+
+    /**
+     * Count a request.
+     *
+     * @param status the HTTP status of the response
+     * @param bytes the uncompressed size of the response (-1 if unknown)
+     * @param millis the request latency
+     * @param nanos the time spent in each Phase, or null
+     */
+    public void record(int status, long bytes, long millis, long[] nanos) {
+        requestCount.incrementAndGet();
+        if (status >= 400) {
+            errorCount.incrementAndGet();
+        }
+        AtomicLong statusCount = statusCounts.get(status);
+        if (statusCount == null) {
+            AtomicLong newCount = new AtomicLong();
+            statusCount = statusCounts.putIfAbsent(status, newCount);
+            if (statusCount == null) {
+                statusCount = newCount;
+            }
+        }
+        statusCount.incrementAndGet();
+        if (bytes > 0) {
+            responseBytes.addAndGet(bytes);
+        }
+        latency.record(millis);
+        if (nanos != null) {
+            for (int i = 0; i < nanos.length; ++i) {
+                phaseNanos.addAndGet(i, nanos[i]);
+            }
+        }
+    }
+
+    public String getVerb() {
+        return verb;
+    }
+
+    public String getMetadataPrefix() {
+        return metadataPrefix;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    public long getAverageMillis() {
+        long count = latency.getCount();
+        return count == 0 ? 0 : latency.getSumMillis() / count;
+    }
+
+    public long getMaxMillis() {
+        return latency.getMaxMillis();
+    }
+
+    public long get50thPercentileMillis() {
+        return latency.getPercentile(50);
+    }
+
+    public long get99thPercentileMillis() {
+        return latency.getPercentile(99);
+    }
+
+    public long getCatalogMillis() {
+        return getPhaseMillis(Phase.CATALOG);
+    }
+
+    public long getCrosswalkMillis() {
+        return getPhaseMillis(Phase.CROSSWALK);
+    }
+
+    public long getSerializationMillis() {
+        return getPhaseMillis(Phase.SERIALIZATION);
+    }
+
+    public long getCompressionMillis() {
+        return getPhaseMillis(Phase.COMPRESSION);
+    }
+
+    public long getPhaseMillis(Phase phase) {
+        return phaseNanos.get(phase.ordinal()) / 1000000L;
+    }
+
+    /**
+     * Append the counters in the plain text exposition format.
+     *
+     * @param sb the destination
+     */
+    public void appendText(StringBuilder sb) {
+        String labels = "verb=\"" + verb + "\",metadataPrefix=\"" + metadataPrefix + "\"";
+        Map<Integer, AtomicLong> sorted = new TreeMap<Integer, AtomicLong>(statusCounts);
+        for (Map.Entry<Integer, AtomicLong> entry : sorted.entrySet()) {
+            sb.append("oai_requests_total{").append(labels).append(",status=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().get()).append("\n");
+        }
+        sb.append("oai_response_bytes_total{").append(labels).append("} ").append(responseBytes.get()).append("\n");
+        for (Phase phase : Phase.values()) {
+            sb.append("oai_phase_seconds_total{").append(labels).append(",phase=\"").append(phase.name().toLowerCase()).append("\"} ")
+                    .append(phaseNanos.get(phase.ordinal()) / 1e9).append("\n");
+        }
+        latency.appendText(sb, "oai_request_duration_seconds", labels);
+    }
+}
@@ -19,6 +19,8 @@ import javax.xml.transform.TransformerException;
 
 import org.oclc.oai.server.catalog.AbstractCatalog;
 import org.oclc.oai.server.crosswalk.Crosswalks;
+import org.oclc.oai.server.metrics.Phase;
+import org.oclc.oai.server.metrics.PhaseSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +52,21 @@ public class GetRecord extends ServerVerb {
      */
     public static String construct(HashMap context, HttpServletRequest request, HttpServletResponse response, Transformer serverTransformer)
             throws OAIInternalServerError, TransformerException {
+        return render(response, "text/xml; charset=UTF-8", constructBuffer(context, request, response), serverTransformer);
+    }
+
+    /**
+     * Construct the xml response as UTF-8 bytes, for a response that isn't
+     * rendered on the server.
+     *
+     * @param context the servlet context
+     * @param request the servlet request
+     * @param response the servlet response
+     * @return a ResponseBuffer containing the XML response, to be released by the caller
+     * @throws OAIInternalServerError an http 500 status error occurred
+     */
+    public static ResponseBuffer constructBuffer(HashMap context, HttpServletRequest request, HttpServletResponse response)
+            throws OAIInternalServerError {
         Properties properties = (Properties) context.get("OAIHandler.properties");
         AbstractCatalog abstractCatalog = (AbstractCatalog) context.get("OAIHandler.catalog");
         String baseURL = properties.getProperty("OAIHandler.baseURL");
@@ -60,7 +77,7 @@ public class GetRecord extends ServerVerb {
                 baseURL = request.getRequestURL().toString();
             }
         }
-        StringBuilder sb = new StringBuilder();
+        ResponseBuffer sb = new ResponseBuffer();
         String identifier = request.getParameter("identifier");
         String metadataPrefix = request.getParameter("metadataPrefix");
         LOGGER.debug("GetRecord.constructGetRecord: identifier=" + identifier);
@@ -92,7 +109,13 @@ public class GetRecord extends ServerVerb {
             } else if (!crosswalks.containsValue(metadataPrefix)) {
                 throw new CannotDisseminateFormatException(metadataPrefix);
             } else {
-                String record = abstractCatalog.getRecord(identifier, metadataPrefix);
+                byte[] record = null;
+                PhaseSpan span = PhaseSpan.start(Phase.CATALOG, "getRecord");
+                try {
+                    record = abstractCatalog.getRecordBytes(identifier, metadataPrefix);
+                } finally {
+                    span.end(metadataPrefix, 1, record == null ? -1 : record.length);
+                }
                 if (record != null) {
                     sb.append(getRequestElement(request, validParamNames, baseURL));
                     sb.append("<GetRecord>");
@@ -115,6 +138,7 @@ public class GetRecord extends ServerVerb {
             sb.append(e.getMessage());
         }
         sb.append("</OAI-PMH>");
-        return render(response, "text/xml; charset=UTF-8", sb.toString(), serverTransformer);
+        response.setContentType("text/xml; charset=UTF-8");
+        return sb;
     }
 }
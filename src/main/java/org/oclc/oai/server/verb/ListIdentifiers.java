@@ -24,6 +24,8 @@ import javax.xml.transform.TransformerException;
 
 import org.oclc.oai.server.catalog.AbstractCatalog;
 import org.oclc.oai.server.crosswalk.Crosswalks;
+import org.oclc.oai.server.metrics.Phase;
+import org.oclc.oai.server.metrics.PhaseSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -157,8 +159,13 @@ public class ListIdentifiers extends ServerVerb {
                     if (!crosswalks.containsValue(metadataPrefix)) {
                         throw new CannotDisseminateFormatException(metadataPrefix);
                     } else {
-                        listIdentifiersMap = abstractCatalog.listIdentifiers(from, until, set,
-                                metadataPrefix);
+                        PhaseSpan span = PhaseSpan.start(Phase.CATALOG, "listIdentifiers");
+                        try {
+                            listIdentifiersMap = abstractCatalog.listIdentifiers(from, until, set,
+                                    metadataPrefix);
+                        } finally {
+                            span.end(metadataPrefix, -1, -1);
+                        }
                     }
                 } catch (NoItemsMatchException e) {
                     sb.append(getRequestElement(request, validParamNames, baseURL, xmlEncodeSetSpec));
@@ -183,7 +190,12 @@ public class ListIdentifiers extends ServerVerb {
                     sb.append(new BadArgumentException().getMessage());
                 } else {
                     try {
-                        listIdentifiersMap = abstractCatalog.listIdentifiers(oldResumptionToken);
+                        PhaseSpan span = PhaseSpan.start(Phase.CATALOG, "listIdentifiers");
+                        try {
+                            listIdentifiersMap = abstractCatalog.listIdentifiers(oldResumptionToken);
+                        } finally {
+                            span.end(metadataPrefix, -1, -1);
+                        }
                     } catch (BadResumptionTokenException e) {
                         sb.append(getRequestElement(request, validParamNames, baseURL, xmlEncodeSetSpec));
                         sb.append(e.getMessage());
@@ -199,13 +211,17 @@ public class ListIdentifiers extends ServerVerb {
                 } else {
                     sb.append("<ListIdentifiers>");
                     Iterator identifiers = (Iterator) listIdentifiersMap.get("headers");
+                    int count = 0;
                     while (identifiers.hasNext()) {
                         sb.append((String) identifiers.next());
+                        ++count;
                     }
+                    request.setAttribute("OAIHandler.recordCount", Integer.valueOf(count));
 
                     Map newResumptionMap = (Map) listIdentifiersMap.get("resumptionMap");
                     if (newResumptionMap != null) {
                         String newResumptionToken = (String) newResumptionMap.get("resumptionToken");
+                        request.setAttribute("OAIHandler.resumptionToken", newResumptionToken);
                         String expirationDate = (String) newResumptionMap.get("expirationDate");
                         String completeListSize = (String) newResumptionMap.get("completeListSize");
                         String cursor = (String) newResumptionMap.get("cursor");
@@ -24,6 +24,8 @@ import javax.xml.transform.TransformerException;
 
 import org.oclc.oai.server.catalog.AbstractCatalog;
 import org.oclc.oai.server.crosswalk.Crosswalks;
+import org.oclc.oai.server.metrics.Phase;
+import org.oclc.oai.server.metrics.PhaseSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,6 +74,16 @@ public class ListRecords extends ServerVerb {
     /** Server-side method to construct an xml response to a ListRecords verb. */
     public static String construct(HashMap context, HttpServletRequest request, HttpServletResponse response, Transformer serverTransformer)
             throws OAIInternalServerError, TransformerException {
+        return render(response, "text/xml; charset=UTF-8", constructBuffer(context, request, response), serverTransformer);
+    }
+
+    /**
+     * Construct the xml response to a ListRecords verb as UTF-8 bytes, for a
+     * response that isn't rendered on the server. The caller must release the
+     * ResponseBuffer once it has been written.
+     */
+    public static ResponseBuffer constructBuffer(HashMap context, HttpServletRequest request, HttpServletResponse response)
+            throws OAIInternalServerError {
 
         LOGGER.debug("ListRecords.construct: entered");
 
@@ -87,7 +99,7 @@ public class ListRecords extends ServerVerb {
                 baseURL = request.getRequestURL().toString();
             }
         }
-        StringBuilder sb = new StringBuilder();
+        ResponseBuffer sb = new ResponseBuffer();
         String oldResumptionToken = request.getParameter("resumptionToken");
         String metadataPrefix = request.getParameter("metadataPrefix");
 
@@ -166,8 +178,13 @@ public class ListRecords extends ServerVerb {
                     if (!crosswalks.containsValue(metadataPrefix)) {
                         throw new CannotDisseminateFormatException(metadataPrefix);
                     } else {
-                        listRecordsMap = abstractCatalog.listRecords(from, until, set,
-                                metadataPrefix);
+                        PhaseSpan span = PhaseSpan.start(Phase.CATALOG, "listRecords");
+                        try {
+                            listRecordsMap = abstractCatalog.listRecords(from, until, set,
+                                    metadataPrefix);
+                        } finally {
+                            span.end(metadataPrefix, -1, -1);
+                        }
                     }
                 } catch (NoItemsMatchException e) {
                     sb.append(getRequestElement(request, validParamNames, baseURL, xmlEncodeSetSpec));
@@ -192,7 +209,12 @@ public class ListRecords extends ServerVerb {
                     sb.append(new BadArgumentException().getMessage());
                 } else {
                     try {
-                        listRecordsMap = abstractCatalog.listRecords(oldResumptionToken);
+                        PhaseSpan span = PhaseSpan.start(Phase.CATALOG, "listRecords");
+                        try {
+                            listRecordsMap = abstractCatalog.listRecords(oldResumptionToken);
+                        } finally {
+                            span.end(metadataPrefix, -1, -1);
+                        }
                     } catch (BadResumptionTokenException e) {
                         sb.append(getRequestElement(request, validParamNames, baseURL, xmlEncodeSetSpec));
                         sb.append(e.getMessage());
@@ -208,12 +230,14 @@ public class ListRecords extends ServerVerb {
                     sb.append("<ListRecords>\n");
                     Iterator records = (Iterator) listRecordsMap.get("records");
                     while (records.hasNext()) {
-                        sb.append((String) records.next());
+                        sb.appendFragment(records.next());
                         sb.append("\n");
                     }
+                    request.setAttribute("OAIHandler.recordCount", Integer.valueOf(sb.getFragmentCount()));
                     Map newResumptionMap = (Map) listRecordsMap.get("resumptionMap");
                     if (newResumptionMap != null) {
                         String newResumptionToken = (String) newResumptionMap.get("resumptionToken");
+                        request.setAttribute("OAIHandler.resumptionToken", newResumptionToken);
                         String expirationDate = (String) newResumptionMap.get("expirationDate");
                         String completeListSize = (String) newResumptionMap.get("completeListSize");
                         String cursor = (String) newResumptionMap.get("cursor");
@@ -244,8 +268,11 @@ public class ListRecords extends ServerVerb {
             }
         }
         sb.append("</OAI-PMH>");
-        LOGGER.debug("ListRecords.constructListRecords: returning: " + sb.toString());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("ListRecords.constructListRecords: returning: " + sb.toString());
+        }
 
-        return render(response, "text/xml; charset=UTF-8", sb.toString(), serverTransformer);
+        response.setContentType("text/xml; charset=UTF-8");
+        return sb;
     }
 }
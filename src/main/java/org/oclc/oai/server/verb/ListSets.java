@@ -99,6 +99,7 @@ public class ListSets extends ServerVerb {
                 Map newResumptionMap = (Map) listSetsMap.get("resumptionMap");
                 if (newResumptionMap != null) {
                     String newResumptionToken = (String) newResumptionMap.get("resumptionToken");
+                    request.setAttribute("OAIHandler.resumptionToken", newResumptionToken);
                     String expirationDate = (String) newResumptionMap.get("expirationDate");
                     String completeListSize = (String) newResumptionMap.get("completeListSize");
                     String cursor = (String) newResumptionMap.get("cursor");
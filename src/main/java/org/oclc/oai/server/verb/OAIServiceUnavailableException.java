@@ -0,0 +1,44 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.verb;
+
+/**
+ * http 503 service unavailable exception, thrown when the catalog's backend is
+ * known to be down, so that harvesters retry later instead of waiting for it.
+ */
+public class OAIServiceUnavailableException extends OAIInternalServerError {
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfter;
+
+    /**
+     * Construct the exception
+     *
+     * @param s a message
+     * @param retryAfter the number of seconds for the Retry-After header
+     */
+    public OAIServiceUnavailableException(String s, int retryAfter) {
+        super(s);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Get the number of seconds after which the harvester should retry.
+     *
+     * @return the number of seconds for the Retry-After header
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.verb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.oclc.oai.server.catalog.RenderedRecord;
+import org.oclc.oai.util.GzipMemberWriter;
+
+/**
+ * ResponseBuffer accumulates an OAI response as UTF-8 bytes. Pre-encoded
+ * fragments, such as the records coming out of the RenderedRecordCache, are
+ * kept by reference and copied only once, straight to the servlet
+ * OutputStream; only the small dynamic parts of the response (envelope,
+ * request element, resumptionToken) go through a CharsetEncoder. The
+ * encoded parts are written into 8KB chunks taken from a shared pool, which
+ * are returned by release() once the response has been sent.
+ * <p/>
+ * Verbs with a constructBuffer() method next to construct() return a
+ * ResponseBuffer when the response isn't rendered on the server, and it is
+ * written by OAIHandler without ever materializing the whole response
+ * as a String. When the client accepts gzip, the cached RenderedRecords
+ * appended to the buffer contribute their pre-compressed gzip member and
+ * only the rest of the response is compressed on the fly.
+ */
+public class ResponseBuffer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int CHUNK_SIZE = 8192;
+
+    /** Fragments shorter than this are copied into a chunk rather than referenced */
+    private static final int COPY_THRESHOLD = 512;
+
+    private static final int MAX_POOLED_CHUNKS = 512;
+
+    private static final ConcurrentLinkedQueue<byte[]> chunkPool = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+
+    private final CharsetEncoder encoder = UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** Parts of the response in order: byte[] fragments or regions of a chunk */
+    private final List<Part> parts = new ArrayList<Part>();
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+    /** The chunk being filled, positioned after its last byte */
+    private ByteBuffer current;
+    /** The part covering the end of the current chunk, or null if a fragment has been appended since */
+    private Part currentPart;
+    private int size = 0;
+    private int fragmentCount = 0;
+
+    private static class Part {
+        private final byte[] bytes;
+        private final int offset;
+        private int length;
+        private final RenderedRecord record;
+
+        private Part(byte[] bytes, int offset, int length, RenderedRecord record) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Encode and append a dynamic part of the response.
+     *
+     * @param s the characters to append
+     * @return this buffer
+     */
+    public ResponseBuffer append(CharSequence s) {
+        if (s == null) {
+            s = "null";
+        }
+        CharBuffer in = CharBuffer.wrap(s);
+        encoder.reset();
+        while (true) {
+            ensureCurrentPart();
+            int start = current.position();
+            CoderResult result = encoder.encode(in, current, true);
+            currentPart.length += current.position() - start;
+            size += current.position() - start;
+            if (!result.isOverflow()) {
+                break;
+            }
+            current = null;
+        }
+        return this;
+    }
+
+    /**
+     * Append a pre-encoded UTF-8 fragment. Large fragments aren't copied, so
+     * the array mustn't be modified until the response has been written.
+     *
+     * @param bytes the UTF-8 bytes to append
+     * @return this buffer
+     */
+    public ResponseBuffer append(byte[] bytes) {
+        if (bytes.length < COPY_THRESHOLD) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensureCurrentPart();
+                int length = Math.min(current.remaining(), bytes.length - offset);
+                current.put(bytes, offset, length);
+                currentPart.length += length;
+                offset += length;
+            }
+        } else {
+            parts.add(new Part(bytes, 0, bytes.length, null));
+            currentPart = null;
+        }
+        size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Append a rendered record. Its gzip member is used if the response is
+     * written with writeGzipTo.
+     *
+     * @param record the rendered record
+     * @return this buffer
+     */
+    public ResponseBuffer append(RenderedRecord record) {
+        byte[] bytes = record.getBytes();
+        if (bytes.length < COPY_THRESHOLD) {
+            return append(bytes);
+        }
+        parts.add(new Part(bytes, 0, bytes.length, record));
+        currentPart = null;
+        size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Append a record fragment as found in the "records" Iterator of a
+     * catalog: a String, pre-encoded UTF-8 bytes or a RenderedRecord.
+     *
+     * @param fragment a String, a byte[] or a RenderedRecord
+     * @return this buffer
+     */
+    public ResponseBuffer appendFragment(Object fragment) {
+        ++fragmentCount;
+        if (fragment instanceof RenderedRecord) {
+            return append((RenderedRecord) fragment);
+        } else if (fragment instanceof byte[]) {
+            return append((byte[]) fragment);
+        }
+        return append((String) fragment);
+    }
+
+    private void ensureCurrentPart() {
+        if (current == null || !current.hasRemaining()) {
+            byte[] chunk = chunkPool.poll();
+            if (chunk == null) {
+                chunk = new byte[CHUNK_SIZE];
+            } else {
+                pooledChunks.decrementAndGet();
+            }
+            chunks.add(chunk);
+            current = ByteBuffer.wrap(chunk);
+            currentPart = null;
+        }
+        if (currentPart == null) {
+            currentPart = new Part(current.array(), current.position(), 0, null);
+            parts.add(currentPart);
+        }
+    }
+
+    /**
+     * Get the number of bytes in the response.
+     *
+     * @return the response length in bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of record fragments appended with appendFragment.
+     *
+     * @return the number of records in the response
+     */
+    public int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    /**
+     * Write the response.
+     *
+     * @param out the destination stream
+     * @throws IOException an I/O error occurred
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for (Part part : parts) {
+            if (part.length > 0) {
+                out.write(part.bytes, part.offset, part.length);
+            }
+        }
+    }
+
+    /**
+     * Write the response gzipped. If some of its RenderedRecords are cached,
+     * it's written as a sequence of gzip members: the cached records are
+     * copied as their pre-compressed member, and the parts in between are
+     * compressed on the fly. Otherwise the whole response is compressed as
+     * a single member, like any other response.
+     *
+     * @param out the destination stream. It isn't closed.
+     * @throws IOException an I/O error occurred
+     */
+    public void writeGzipTo(OutputStream out) throws IOException {
+        if (!hasCachedRecords()) {
+            GZIPOutputStream gzip = new GZIPOutputStream(out, CHUNK_SIZE);
+            writeTo(gzip);
+            gzip.finish();
+            return;
+        }
+        GzipMemberWriter writer = new GzipMemberWriter(out, Deflater.BEST_SPEED);
+        try {
+            for (Part part : parts) {
+                if (part.record != null && part.record.isCached()) {
+                    writer.writeMember(part.record.getGzipMember());
+                } else if (part.length > 0) {
+                    writer.write(part.bytes, part.offset, part.length);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private boolean hasCachedRecords() {
+        for (Part part : parts) {
+            if (part.record != null && part.record.isCached()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the response as UTF-8 bytes in a single array.
+     *
+     * @return the response bytes
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[size];
+        int offset = 0;
+        for (Part part : parts) {
+            System.arraycopy(part.bytes, part.offset, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    /**
+     * Return the chunks to the pool. The buffer is empty afterwards.
+     */
+    public void release() {
+        for (byte[] chunk : chunks) {
+            if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                chunkPool.offer(chunk);
+            } else {
+                pooledChunks.decrementAndGet();
+            }
+        }
+        chunks.clear();
+        parts.clear();
+        current = null;
+        currentPart = null;
+        size = 0;
+        fragmentCount = 0;
+    }
+
+    /**
+     * Decode the response. Used when the response must be post-processed as
+     * characters, e.g. by the server-side stylesheet.
+     */
+    public String toString() {
+        try {
+            return new String(toByteArray(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
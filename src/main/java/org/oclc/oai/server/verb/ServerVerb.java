@@ -17,7 +17,6 @@ import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 import javax.servlet.http.HttpServletRequest;
@@ -27,6 +26,7 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import org.oclc.oai.util.Datestamp;
 import org.oclc.oai.util.OAIUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -110,12 +110,7 @@ public abstract class ServerVerb {
      * @return a String representation of the OAI response Date.
      */
     public static String createResponseDate(Date date) {
-        StringBuilder sb = new StringBuilder();
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        formatter.setTimeZone(tz);
-        sb.append(formatter.format(date));
-        return sb.toString();
+        return Datestamp.formatCached(date.getTime());
     }
 
     protected static String getRequestElement(HttpServletRequest request, List validParamNames, String baseURL) {
@@ -207,6 +202,18 @@ public abstract class ServerVerb {
         return renderedResult;
     }
 
+    /**
+     * Render a byte-oriented response as a String: the buffer is decoded,
+     * released, and rendered like any other String response.
+     *
+     * @return the rendered String
+     */
+    protected static String render(HttpServletResponse response, String contentType, ResponseBuffer result, Transformer transformer) throws TransformerException {
+        String xml = result.toString();
+        result.release();
+        return render(response, contentType, xml, transformer);
+    }
+
     public static Map<String, Class<?>> getVerbs(Properties properties) {
         Map<String, Class<?>> serverVerbsMap = new HashMap<String, Class<?>>();
         serverVerbsMap.put("ListRecords", ListRecords.class);
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.verb.extension;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+
+import org.oclc.oai.server.HarvesterScheduler;
+import org.oclc.oai.server.verb.ServerVerb;
+import org.oclc.oai.util.OAIUtil;
+
+/**
+ * This class reports how each harvester is being throttled by the
+ * HarvesterScheduler: requests, delays, rejections and time spent waiting.
+ * Since the harvesters are listed by IP address or User-Agent, only the
+ * addresses in HarvesterStats.allowedAddresses may see them; the verb refuses
+ * every request until they are set.
+ * Register it with ExtensionVerbs.HarvesterStats=org.oclc.oai.server.verb.extension.HarvesterStats
+ */
+public class HarvesterStats extends ServerVerb {
+
+    /**
+     * Construct the xml response on the server-side.
+     *
+     * @param context the servlet context
+     * @param request the servlet request
+     * @return a String containing the XML response
+     */
+    public static String construct(HashMap context, HttpServletRequest request, HttpServletResponse response, Transformer serverTransformer)
+            throws TransformerException {
+        Properties properties = (Properties) context.get("OAIHandler.properties");
+        HarvesterScheduler harvesterScheduler = (HarvesterScheduler) context.get("OAIHandler.harvesterScheduler");
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+        String allowedAddresses = properties.getProperty("HarvesterStats.allowedAddresses", "");
+        if (!Arrays.asList(allowedAddresses.trim().split("[\\s,]+")).contains(request.getRemoteAddr())) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            sb.append("<harvesters><error>").append(OAIUtil.xmlEncode(request.getRemoteAddr()));
+            sb.append(" isn't in HarvesterStats.allowedAddresses</error></harvesters>");
+        } else if (harvesterScheduler == null) {
+            sb.append("<harvesters/>");
+        } else {
+            sb.append(harvesterScheduler.toXML());
+        }
+        return render(response, "text/xml; charset=UTF-8", sb.toString(), (Transformer) null);
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.verb.extension;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.oclc.oai.server.catalog.AbstractCatalog;
+import org.oclc.oai.server.catalog.LogStructuredOAICatalog;
+import org.oclc.oai.server.catalog.LogStructuredStore;
+import org.oclc.oai.server.verb.ServerVerb;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * This class writes a batch of records POSTed to it to a
+ * LogStructuredOAICatalog, where harvesters see them as soon as the response
+ * is sent: the batch is synced to the log of the store, and the cached
+ * renderings of its records are dropped. The body is a root element holding
+ * &lt;record&gt; elements in the format of a ListRecords response:
+ * <pre>
+ * &lt;ingest&gt;
+ *   &lt;record&gt;&lt;header&gt;&lt;identifier&gt;oai:...&lt;/identifier&gt;&lt;setSpec&gt;...&lt;/setSpec&gt;&lt;/header&gt;&lt;metadata&gt;...&lt;/metadata&gt;&lt;/record&gt;
+ *   &lt;record&gt;&lt;header status="deleted"&gt;&lt;identifier&gt;oai:...&lt;/identifier&gt;&lt;/header&gt;&lt;/record&gt;
+ * &lt;/ingest&gt;
+ * </pre>
+ * The element in &lt;metadata&gt; becomes the native metadata of the record;
+ * the datestamps are ignored and replaced with the current time. Send it with
+ * a Content-Type other than application/x-www-form-urlencoded, such as text/xml,
+ * so the servlet container leaves the body alone.
+ * <p/>
+ * Only the addresses in Ingest.allowedAddresses may use it; the verb refuses
+ * every batch until they are set, since behind a reverse proxy every request
+ * comes from the proxy's address, often 127.0.0.1. The body is limited to
+ * Ingest.maxBatchBytes and may not contain a DOCTYPE, so a batch can't make
+ * the parser read files or URLs through external entities.
+ * Register it with ExtensionVerbs.Ingest=org.oclc.oai.server.verb.extension.Ingest
+ */
+public class Ingest extends ServerVerb {
+
+    /** Class logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Ingest.class);
+
+    private static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Construct the xml response on the server-side.
+     *
+     * @param context the servlet context
+     * @param request the servlet request
+     * @return a String containing the XML response
+     */
+    public static String construct(HashMap context, HttpServletRequest request, HttpServletResponse response, Transformer serverTransformer)
+            throws TransformerException {
+        Properties properties = (Properties) context.get("OAIHandler.properties");
+        AbstractCatalog abstractCatalog = (AbstractCatalog) context.get("OAIHandler.catalog");
+        if (!"POST".equals(request.getMethod())) {
+            response.setHeader("Allow", "POST");
+            return error(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "records must be POSTed");
+        }
+        String allowedAddresses = properties.getProperty("Ingest.allowedAddresses", "");
+        if (!Arrays.asList(allowedAddresses.trim().split("[\\s,]+")).contains(request.getRemoteAddr())) {
+            LOGGER.warn("Ingest: refused a batch from " + request.getRemoteAddr());
+            return error(response, HttpServletResponse.SC_FORBIDDEN, request.getRemoteAddr() + " isn't in Ingest.allowedAddresses");
+        }
+        if (!(abstractCatalog instanceof LogStructuredOAICatalog)) {
+            return error(response, HttpServletResponse.SC_NOT_IMPLEMENTED, "the catalog isn't a LogStructuredOAICatalog");
+        }
+        LogStructuredOAICatalog catalog = (LogStructuredOAICatalog) abstractCatalog;
+        String temp = properties.getProperty("Ingest.maxBatchBytes");
+        int maxBatchBytes = temp == null ? DEFAULT_MAX_BATCH_BYTES : Integer.parseInt(temp);
+
+        long start = System.currentTimeMillis();
+        LogStructuredStore.Batch batch;
+        int deleteCount = 0;
+        try {
+            byte[] body = readBody(request, maxBatchBytes);
+            if (body == null) {
+                return error(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "the batch is bigger than Ingest.maxBatchBytes");
+            }
+            batch = new LogStructuredStore.Batch();
+            long datestamp = catalog.currentDatestamp();
+            Document document = parse(body);
+            List<Element> records = getChildren(document.getDocumentElement(), "record");
+            for (Element record : records) {
+                Element header = getChild(record, "header");
+                Element identifier = header == null ? null : getChild(header, "identifier");
+                String localIdentifier = identifier == null ? null
+                        : catalog.getRecordFactory().fromOAIIdentifier(identifier.getTextContent().trim());
+                if (localIdentifier == null) {
+                    return error(response, HttpServletResponse.SC_BAD_REQUEST, "a record has no identifier of this repository");
+                }
+                if ("deleted".equals(header.getAttribute("status"))) {
+                    batch.delete(localIdentifier, datestamp);
+                    deleteCount++;
+                    continue;
+                }
+                List<String> setSpecs = new ArrayList<String>();
+                for (Element setSpec : getChildren(header, "setSpec")) {
+                    setSpecs.add(setSpec.getTextContent().trim());
+                }
+                Element metadata = getChild(record, "metadata");
+                List<Element> content = metadata == null ? new ArrayList<Element>() : getChildren(metadata, null);
+                if (content.size() != 1) {
+                    return error(response, HttpServletResponse.SC_BAD_REQUEST, localIdentifier + " needs one element in its metadata");
+                }
+                batch.put(localIdentifier, datestamp, setSpecs, serialize(content.get(0)));
+            }
+        } catch (SAXException e) {
+            return error(response, HttpServletResponse.SC_BAD_REQUEST, "the batch isn't well-formed: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            LOGGER.error("Ingest: couldn't read the batch", e);
+            return error(response, HttpServletResponse.SC_BAD_REQUEST, "couldn't read the batch");
+        }
+
+        List<String> written;
+        try {
+            written = catalog.ingest(batch);
+        } catch (IOException e) {
+            LOGGER.error("Ingest: couldn't write a batch of " + batch.size() + " records", e);
+            return error(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "the batch couldn't be written");
+        }
+        long millis = System.currentTimeMillis() - start;
+        LOGGER.info("Ingest: wrote " + written.size() + " of " + batch.size() + " records from " + request.getRemoteAddr() + " in " + millis + " ms");
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+        sb.append("<ingest records=\"").append(batch.size());
+        sb.append("\" deletions=\"").append(deleteCount);
+        sb.append("\" written=\"").append(written.size());
+        sb.append("\" millis=\"").append(millis).append("\"/>");
+        return render(response, "text/xml; charset=UTF-8", sb.toString(), (Transformer) null);
+    }
+
+    private static String error(HttpServletResponse response, int status, String message) throws TransformerException {
+        response.setStatus(status);
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+        sb.append("<ingest><error>");
+        for (int i = 0; i < message.length(); ++i) {
+            char c = message.charAt(i);
+            if (c == '<') {
+                sb.append("&lt;");
+            } else if (c == '&') {
+                sb.append("&amp;");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append("</error></ingest>");
+        return render(response, "text/xml; charset=UTF-8", sb.toString(), (Transformer) null);
+    }
+
+    /**
+     * @return the body, or null if it is longer than maxBytes
+     */
+    private static byte[] readBody(HttpServletRequest request, int maxBytes) throws IOException {
+        if (request.getContentLength() > maxBytes) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(request.getContentLength(), 8192));
+        InputStream in = request.getInputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            if (out.size() + n > maxBytes) {
+                return null;
+            }
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static Document parse(byte[] body) throws SAXException, IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            // no DTD, hence no external entity (XXE) or URL fetched on behalf of the client
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            factory.setXIncludeAware(false);
+            factory.setExpandEntityReferences(false);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] serialize(Element element) throws TransformerException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty("encoding", "UTF-8");
+        transformer.transform(new DOMSource(element), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the child elements with this local name, or all of them if localName is null
+     */
+    private static List<Element> getChildren(Element parent, String localName) {
+        List<Element> children = new ArrayList<Element>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && (localName == null || localName.equals(child.getLocalName()))) {
+                children.add((Element) child);
+            }
+        }
+        return children;
+    }
+
+    private static Element getChild(Element parent, String localName) {
+        List<Element> children = getChildren(parent, localName);
+        return children.isEmpty() ? null : children.get(0);
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.verb.extension;
+
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+
+import org.oclc.oai.server.metrics.OAIMetrics;
+import org.oclc.oai.server.verb.ServerVerb;
+
+/**
+ * This class returns the OAIMetrics of the repository in the plain text
+ * exposition format understood by most monitoring scrapers.
+ * Register it with ExtensionVerbs.Metrics=org.oclc.oai.server.verb.extension.Metrics
+ */
+public class Metrics extends ServerVerb {
+
+    /**
+     * Construct the text response on the server-side.
+     *
+     * @param context the servlet context
+     * @param request the servlet request
+     * @return a String containing the metrics
+     */
+    public static String construct(HashMap context, HttpServletRequest request, HttpServletResponse response, Transformer serverTransformer)
+            throws TransformerException {
+        OAIMetrics metrics = (OAIMetrics) context.get("OAIHandler.metrics");
+        String text;
+        if (metrics == null) {
+            text = "# OAIMetrics.enabled isn't true\n";
+        } else {
+            text = metrics.getText();
+        }
+        return render(response, "text/plain; version=0.0.4; charset=UTF-8", text, (Transformer) null);
+    }
+}
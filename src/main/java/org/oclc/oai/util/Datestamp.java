@@ -0,0 +1,229 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.util;
+
+/**
+ * OAI datestamps as a primitive long: milliseconds since 1970-01-01T00:00:00Z,
+ * like Date.getTime(). They compare with &lt; and &gt;, fit in long[] indexes,
+ * and are parsed and formatted at both OAI granularities (YYYY-MM-DD and
+ * YYYY-MM-DDThh:mm:ssZ, always UTC) without a SimpleDateFormat, so the
+ * methods are thread-safe and parse() allocates nothing.
+ */
+public final class Datestamp {
+
+    /** Returned by parse() for a string that isn't a valid datestamp */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    public static final long SECOND = 1000L;
+
+    public static final long DAY = 24L * 60 * 60 * SECOND;
+
+    /** The last second formatted by formatCached() */
+    private static volatile CachedSecond cachedSecond;
+
+    private static final class CachedSecond {
+        private final long second;
+        private final String text;
+
+        private CachedSecond(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private Datestamp() {
+    }
+
+    /**
+     * Parse a YYYY-MM-DD or YYYY-MM-DDThh:mm:ssZ datestamp. A day past the
+     * end of its month, like 2023-02-31, is invalid.
+     *
+     * @param s the datestamp
+     * @return the first millisecond of the day or second, or INVALID
+     */
+    public static long parse(CharSequence s) {
+        if (s == null) {
+            return INVALID;
+        }
+        int length = s.length();
+        if (length != 10 && length != 20) {
+            return INVALID;
+        }
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || s.charAt(4) != '-' || s.charAt(7) != '-') {
+            return INVALID;
+        }
+        long millis = daysFromCivil(year, month, day) * DAY;
+        if (length == 20) {
+            int hour = digits(s, 11, 2);
+            int minute = digits(s, 14, 2);
+            int second = digits(s, 17, 2);
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+                    || s.charAt(10) != 'T' || s.charAt(13) != ':' || s.charAt(16) != ':' || s.charAt(19) != 'Z') {
+                return INVALID;
+            }
+            millis += (hour * 3600 + minute * 60 + second) * SECOND;
+        }
+        return millis;
+    }
+
+    /**
+     * Parse an until datestamp: the result is the last millisecond of its day
+     * or second, so that a record is in the range if its datestamp is &lt;= it.
+     *
+     * @param s the datestamp
+     * @return the last millisecond of the day or second, or INVALID
+     */
+    public static long parseUntil(CharSequence s) {
+        long millis = parse(s);
+        if (millis == INVALID) {
+            return INVALID;
+        }
+        return millis + (s.length() == 10 ? DAY : SECOND) - 1;
+    }
+
+    /**
+     * Truncate a time to the granularity of the repository.
+     *
+     * @param millis milliseconds since the epoch
+     * @param seconds true for YYYY-MM-DDThh:mm:ssZ, false for YYYY-MM-DD
+     * @return the first millisecond of the second or day
+     */
+    public static long truncate(long millis, boolean seconds) {
+        long unit = seconds ? SECOND : DAY;
+        return floorDiv(millis, unit) * unit;
+    }
+
+    /**
+     * Format a datestamp.
+     *
+     * @param millis milliseconds since the epoch
+     * @param seconds true for YYYY-MM-DDThh:mm:ssZ, false for YYYY-MM-DD
+     * @return the datestamp
+     */
+    public static String format(long millis, boolean seconds) {
+        return append(new StringBuilder(20), millis, seconds).toString();
+    }
+
+    /**
+     * Format a YYYY-MM-DDThh:mm:ssZ datestamp, reusing the String of the
+     * previous call if it was in the same second, as the responseDate of
+     * concurrent requests usually is.
+     *
+     * @param millis milliseconds since the epoch
+     * @return the datestamp
+     */
+    public static String formatCached(long millis) {
+        long second = floorDiv(millis, SECOND);
+        CachedSecond cached = cachedSecond;
+        if (cached != null && cached.second == second) {
+            return cached.text;
+        }
+        String text = format(millis, true);
+        cachedSecond = new CachedSecond(second, text);
+        return text;
+    }
+
+    /**
+     * Append a datestamp to a StringBuilder.
+     *
+     * @param sb where to append it
+     * @param millis milliseconds since the epoch
+     * @param seconds true for YYYY-MM-DDThh:mm:ssZ, false for YYYY-MM-DD
+     * @return sb
+     */
+    public static StringBuilder append(StringBuilder sb, long millis, boolean seconds) {
+        long days = floorDiv(millis, DAY);
+        // civil date from days since 1970-01-01 in the proleptic Gregorian calendar
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        pad(sb, year, 4).append('-');
+        pad(sb, month, 2).append('-');
+        pad(sb, day, 2);
+        if (seconds) {
+            int secondOfDay = (int) ((millis - days * DAY) / SECOND);
+            sb.append('T');
+            pad(sb, secondOfDay / 3600, 2).append(':');
+            pad(sb, secondOfDay / 60 % 60, 2).append(':');
+            pad(sb, secondOfDay % 60, 2).append('Z');
+        }
+        return sb;
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Get the number of days in a month of the proleptic Gregorian calendar.
+     *
+     * @param year the year
+     * @param month the month, from 1 to 12
+     * @return 28 to 31
+     */
+    public static int daysInMonth(int year, int month) {
+        switch (month) {
+        case 2:
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * @return the value of the digits, or -1 if one of the characters isn't a digit
+     */
+    private static int digits(CharSequence s, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; ++i) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static StringBuilder pad(StringBuilder sb, int value, int width) {
+        for (int limit = 10, i = 1; i < width; ++i, limit *= 10) {
+            if (value < limit) {
+                sb.append('0');
+            }
+        }
+        return sb.append(value);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Write a gzip stream as a sequence of independent members (RFC 1952,
+ * section 2.2). Uncompressed bytes are deflated into the current member;
+ * a member compressed ahead of time can be spliced in with writeMember,
+ * which closes the current member first. Every gzip decoder, including
+ * the browsers' and the harvesters' Content-Encoding: gzip support,
+ * decompresses the concatenation as a single stream.
+ */
+public class GzipMemberWriter {
+
+    private static final byte[] HEADER = {
+            (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[8192];
+    private boolean inMember = false;
+    private boolean empty = true;
+
+    /**
+     * Construct a writer on top of the specified stream.
+     *
+     * @param out the destination of the gzip stream. It isn't closed by close().
+     * @param level the Deflater compression level for the bytes compressed on the fly
+     */
+    public GzipMemberWriter(OutputStream out, int level) {
+        this.out = out;
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Compress a complete gzip member.
+     *
+     * @param bytes the uncompressed bytes
+     * @param level the Deflater compression level
+     * @return the gzip member
+     */
+    public static byte[] compress(byte[] bytes, int level) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 3 + 32);
+        GzipMemberWriter writer = new GzipMemberWriter(baos, level);
+        try {
+            writer.write(bytes, 0, bytes.length);
+            writer.close();
+        } catch (IOException e) {
+            // can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e.getMessage());
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Compress bytes into the current member, starting a new one if necessary.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!inMember) {
+            out.write(HEADER);
+            crc.reset();
+            deflater.reset();
+            inMember = true;
+            empty = false;
+        }
+        crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+            if (n > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Close the current member, then copy a complete, pre-compressed member.
+     *
+     * @param member a gzip member, e.g. the result of compress()
+     */
+    public void writeMember(byte[] member) throws IOException {
+        finishMember();
+        out.write(member);
+        empty = false;
+    }
+
+    /**
+     * Write the trailer of the current member, if one is open.
+     */
+    public void finishMember() throws IOException {
+        if (!inMember) {
+            return;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer, 0, buffer.length);
+            if (n > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        writeIntLE(crc.getValue());
+        writeIntLE(deflater.getBytesRead());
+        inMember = false;
+    }
+
+    private void writeIntLE(long value) throws IOException {
+        out.write((int) value & 0xff);
+        out.write((int) (value >> 8) & 0xff);
+        out.write((int) (value >> 16) & 0xff);
+        out.write((int) (value >> 24) & 0xff);
+    }
+
+    /**
+     * Finish the stream and release the Deflater. An empty stream still gets
+     * an (empty) member so it's valid gzip.
+     */
+    public void close() throws IOException {
+        try {
+            if (empty) {
+                write(buffer, 0, 0);
+            }
+            finishMember();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2006 OCLC Online Computer Library Center Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or
+ * agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.oclc.oai.server.catalog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * SRUTransport against a stub SRU server: timeouts, retries of 5xx
+ * responses, and the circuit breaker going from closed to open, half-open
+ * and closed again.
+ */
+public class SRUTransportTest extends TestCase {
+
+    private static final byte[] BODY = "<searchRetrieveResponse/>".getBytes();
+
+    private HttpServer server;
+    private String url;
+
+    /** Statuses of the next responses; 200 once it is empty */
+    private final ConcurrentLinkedQueue<Integer> statuses = new ConcurrentLinkedQueue<Integer>();
+    private volatile long delayMillis = 0;
+    private final AtomicInteger hits = new AtomicInteger();
+
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/sru", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                hits.incrementAndGet();
+                try {
+                    if (delayMillis > 0) {
+                        Thread.sleep(delayMillis);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Integer status = statuses.poll();
+                exchange.sendResponseHeaders(status == null ? 200 : status.intValue(), BODY.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(BODY);
+                out.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/sru?operation=searchRetrieve";
+    }
+
+    protected void tearDown() {
+        server.stop(0);
+    }
+
+    private static SRUTransport transport(int maxRetries, int failureThreshold, int openSeconds) {
+        Properties properties = new Properties();
+        properties.setProperty("SRUOAICatalog.connectTimeoutMillis", "1000");
+        properties.setProperty("SRUOAICatalog.readTimeoutMillis", "300");
+        properties.setProperty("SRUOAICatalog.maxRetries", Integer.toString(maxRetries));
+        properties.setProperty("SRUOAICatalog.retryBackoffMillis", "10");
+        properties.setProperty("SRUOAICatalog.failureThreshold", Integer.toString(failureThreshold));
+        properties.setProperty("SRUOAICatalog.openSeconds", Integer.toString(openSeconds));
+        return new SRUTransport(properties);
+    }
+
+    public void testSlowServerTimesOut() throws IOException {
+        SRUTransport transport = transport(1, 5, 30);
+        delayMillis = 1000;
+        long start = System.currentTimeMillis();
+        try {
+            transport.fetch(url);
+            fail("a response slower than readTimeoutMillis should fail");
+        } catch (InterruptedIOException e) {
+            // the read timed out
+        }
+        assertTrue("both attempts should time out quickly", System.currentTimeMillis() - start < 1900);
+        assertEquals(2, transport.getRequestCount());
+        assertEquals(1, transport.getRetryCount());
+        assertEquals(1, transport.getFailureCount());
+        assertFalse(transport.isOpen());
+    }
+
+    public void testServerErrorIsRetried() throws IOException {
+        SRUTransport transport = transport(2, 5, 30);
+        statuses.add(Integer.valueOf(503));
+        statuses.add(Integer.valueOf(500));
+        byte[] body = transport.fetch(url);
+        assertEquals(new String(BODY), new String(body));
+        assertEquals(3, hits.get());
+        assertEquals(2, transport.getRetryCount());
+        assertEquals(0, transport.getFailureCount());
+    }
+
+    public void testCircuitOpensThenHalfOpensThenCloses() throws Exception {
+        SRUTransport transport = transport(0, 2, 1);
+        for (int i = 0; i < 2; ++i) {
+            statuses.add(Integer.valueOf(500));
+            try {
+                transport.fetch(url);
+                fail("a 500 should fail");
+            } catch (SRUTransport.UnavailableException e) {
+                fail("the circuit shouldn't be open yet");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertTrue(transport.isOpen());
+
+        // open: fails fast without reaching the server
+        int before = hits.get();
+        try {
+            transport.fetch(url);
+            fail("an open circuit should fail fast");
+        } catch (SRUTransport.UnavailableException e) {
+            assertTrue(e.getRetryAfter() >= 1);
+        }
+        assertEquals(before, hits.get());
+        assertEquals(1, transport.getRejectedCount());
+
+        // half-open: a failed trial opens the circuit again
+        Thread.sleep(1100);
+        statuses.add(Integer.valueOf(502));
+        try {
+            transport.fetch(url);
+            fail("the trial should fail");
+        } catch (SRUTransport.UnavailableException e) {
+            fail("the trial should reach the server");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(before + 1, hits.get());
+        try {
+            transport.fetch(url);
+            fail("a failed trial should reopen the circuit");
+        } catch (SRUTransport.UnavailableException e) {
+            // expected
+        }
+
+        // half-open again: a successful trial closes the circuit
+        Thread.sleep(1100);
+        transport.fetch(url);
+        assertFalse(transport.isOpen());
+        transport.fetch(url);
+        assertEquals(before + 3, hits.get());
+    }
+
+    public void testClientErrorDoesNotTripCircuit() throws IOException {
+        SRUTransport transport = transport(2, 1, 30);
+        for (int i = 0; i < 3; ++i) {
+            statuses.add(Integer.valueOf(404));
+            try {
+                transport.fetch(url);
+                fail("a 404 should fail");
+            } catch (SRUTransport.UnavailableException e) {
+                fail("a 404 shouldn't open the circuit");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertEquals("a 404 shouldn't be retried", 3, hits.get());
+        assertEquals(0, transport.getRetryCount());
+        assertFalse(transport.isOpen());
+        assertEquals(new String(BODY), new String(transport.fetch(url)));
+    }
+}